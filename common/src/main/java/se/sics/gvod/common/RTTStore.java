@@ -20,14 +20,24 @@
  */
 package se.sics.gvod.common;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,36 +47,57 @@ import se.sics.gvod.net.VodAddress;
 
 /**
  * Stores the distribution of RTT samples to different hosts, calculates average, variance 
- * and standard variation of samples, and periodically runs decay process which throws 
- * the old samples away. 
+ * and standard variation of samples, and decays samples that are old. 
  * 
+ * There is one RTTStore instance per node (see instance(nodeId)), so many simulated
+ * nodes can coexist in one JVM without sharing state. The static methods that take a
+ * nodeId are kept for convenience and delegate to the node's instance.
+ * 
+ * Decay is lazy: before the store ranks its RTTs, it catches up on the decay periods
+ * they missed, so there is no timer thread iterating over all the samples. Decay
+ * periods are aligned on multiples of DECAY_PERIOD, so this happens at most once per
+ * DECAY_PERIOD. RTTs in a store must only be updated through the store, as they are
+ * removed from the index and re-added when their RTO changes.
+ * 
+ * Each instance keeps an index of its RTTs ordered by RTO, so that the best-k
+ * queries don't have to copy and sort all samples.
  */
 public class RTTStore {
 
     protected static final int DECAY_PERIOD = 10000;
     protected static final int SAMPLE_VALIDITY_PERIOD = 10000;
     protected static final int MINIMUM_SAMPLES_TO_KEEP = 5;
-    private static final ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, RTT>> publicRtts 
-            = new ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, RTT>>();
-
-    static {
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new DecayTask(), DECAY_PERIOD, DECAY_PERIOD);
-    }
-
-    private static final class DecayTask extends TimerTask {
+    // Stop catching up on decay after this many periods, the RTO has converged by then.
+    protected static final int MAX_DECAY_STEPS = 20;
+    // Below this number of samples, percentile queries fall back on the RTO.
+    public static final int MIN_SAMPLES_FOR_PERCENTILE = 10;
+    // Percentile queries rank this many times numNodes candidates, taken in RTO order.
+    public static final int PERCENTILE_CANDIDATES = 4;
+    private static final int SNAPSHOT_MAGIC = 0x52545453; // "RTTS"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final ConcurrentHashMap<Integer, RTTStore> stores
+            = new ConcurrentHashMap<Integer, RTTStore>();
 
+    /**
+     * Orders RTTs by RTO, then by node id, so that RTTs with the same RTO
+     * can be stored in the index.
+     */
+    private static final Comparator<RTT> INDEX_ORDER = new Comparator<RTT>() {
         @Override
-        public void run() {
-            for (int i : publicRtts.keySet()) {
-                for (RTT rtt : publicRtts.get(i).values()) {
-                    // JIM - Are RTT objects updated anywhere else? If so....
-                    // potential for ConcurrentAccessModification Exception here!!
-                    rtt.decay();
-                }
+        public int compare(RTT rtt1, RTT rtt2) {
+            int res = RTT.Order.ByRto.compare(rtt1, rtt2);
+            if (res != 0) {
+                return res;
             }
+            int id1 = rtt1.getAddress().getId();
+            int id2 = rtt2.getAddress().getId();
+            return (id1 < id2) ? -1 : ((id1 == id2) ? 0 : 1);
         }
-    }
+    };
+    private final ConcurrentHashMap<Integer, RTT> rtts = new ConcurrentHashMap<Integer, RTT>();
+    private final TreeSet<RTT> index = new TreeSet<RTT>(INDEX_ORDER);
+    // start of the last decay period the RTTs were decayed up to
+    private long decayedUntil = 0;
 
     public static final class Sample {
 
@@ -132,6 +163,21 @@ public class RTTStore {
             },
 
         }
+
+        /**
+         * @param percentile e.g., 0.95 for p95
+         * @return a comparator that orders RTTs by getPercentileRto(percentile)
+         */
+        public static Comparator<RTT> byPercentile(final double percentile) {
+            return new Comparator<RTT>() {
+                @Override
+                public int compare(RTT rtt1, RTT rtt2) {
+                    long p1 = rtt1.getPercentileRto(percentile);
+                    long p2 = rtt2.getPercentileRto(percentile);
+                    return (p1 < p2) ? -1 : ((p1 == p2) ? 0 : 1);
+                }
+            };
+        }
         private final VodAddress address;
         private volatile double avgRTT;
         private volatile double varRTT;
@@ -142,6 +188,9 @@ public class RTTStore {
         private final long K = 4;
         private final long minRTO;
         private volatile long lastContacted;
+        private long lastDecayed;
+        // distribution of the measured samples, not updated by decay
+        private final RttHistogram histogram = new RttHistogram();
 
         public RTT(VodAddress address, long minRTO) {
             if (address == null) {
@@ -157,6 +206,21 @@ public class RTTStore {
             RTO = -1.0;
             showedRTO = 0.0;
             lastContacted = System.currentTimeMillis();
+            lastDecayed = lastContacted - (lastContacted % DECAY_PERIOD);
+        }
+
+        /**
+         * Restores an RTT from a snapshot. The histogram starts empty, so
+         * percentile queries use the restored RTO until new samples arrive.
+         */
+        RTT(VodAddress address, long minRTO, double avgRTT, double varRTT,
+                long lastContacted) {
+            this(address, minRTO);
+            this.avgRTT = avgRTT;
+            this.varRTT = varRTT;
+            this.RTO = avgRTT + K * varRTT;
+            this.showedRTO = (this.RTO < minRTO) ? minRTO : this.RTO;
+            this.lastContacted = lastContacted;
         }
 
         /**
@@ -166,15 +230,30 @@ public class RTTStore {
          *            The RTT of the packet
          */
         public void addSample(long rtt) {
+            addSample(rtt, System.currentTimeMillis(), true);
+        }
+
+        /**
+         * @param measured false for a default or penalty RTT that wasn't
+         * measured, which updates the RTO but not the histogram
+         */
+        synchronized void addSample(long rtt, long now, boolean measured) {
+            catchUpDecay(now);
             addSampleWithoutTimestamp(rtt);
+            if (measured) {
+                histogram.add(rtt);
+            }
+            updateShowedRto();
+            lastContacted = now;
+        }
 
+        private void updateShowedRto() {
             // log.debug("RTO before check if between max and min value " + RTO);
             if (this.RTO < minRTO) {
                 this.showedRTO = minRTO;
             } else {
                 this.showedRTO = RTO;
             }
-            lastContacted = System.currentTimeMillis();
         }
 
         private void addSampleWithoutTimestamp(long rtt) {
@@ -240,7 +319,38 @@ public class RTTStore {
             return r;
         }
 
-        public RttStats getRttStats() {
+        /**
+         * @param percentile e.g., 0.5, 0.95, 0.99
+         * @return estimate of the given percentile of the measured RTTs,
+         * or -1 if there are no samples.
+         */
+        public synchronized long getPercentile(double percentile) {
+            return histogram.getPercentile(percentile);
+        }
+
+        /**
+         * A timeout based on a percentile of the measured RTTs, which is not
+         * inflated by a single outlier the way the RTO is. Falls back on the
+         * RTO until there are MIN_SAMPLES_FOR_PERCENTILE samples.
+         * @param percentile e.g., 0.99 for a retransmission timeout
+         * @return the timeout in ms, at least minRTO.
+         */
+        public synchronized long getPercentileRto(double percentile) {
+            if (histogram.getCount() < MIN_SAMPLES_FOR_PERCENTILE) {
+                return getRTO();
+            }
+            return Math.max(minRTO, histogram.getPercentile(percentile));
+        }
+
+        public synchronized int getNumSamples() {
+            return histogram.getCount();
+        }
+
+        /**
+         * Doesn't apply decay, as that would change the RTO of an RTT that is
+         * in a store's index.
+         */
+        public synchronized RttStats getRttStats() {
             return new RttStats(avgRTT, varRTT, RTO, showedRTO, minRTO, lastContacted, address);
         }
 
@@ -248,18 +358,40 @@ public class RTTStore {
             return address;
         }
 
-        public void decay() {
-            if (SAMPLE_VALIDITY_PERIOD < System.currentTimeMillis() - lastContacted) {
+        private void decayAt(long time) {
+            if (SAMPLE_VALIDITY_PERIOD < time - lastContacted) {
                 // TODO: is this a reasonable model for decaying rtts? 
                 long rto = getRTO();
                 if (this.RTO != -1) {
                     rto *= 0.01;
                     addSampleWithoutTimestamp(rto);
+                    updateShowedRto();
                 }
 
             }
         }
 
+        synchronized boolean isDecayDue(long now) {
+            return now - lastDecayed >= DECAY_PERIOD;
+        }
+
+        /**
+         * Applies the decay for every DECAY_PERIOD that has passed since the
+         * last time this RTT was decayed. Called by the store, which re-indexes
+         * the RTT.
+         */
+        synchronized void catchUpDecay(long now) {
+            long periods = (now - lastDecayed) / DECAY_PERIOD;
+            if (periods <= 0) {
+                return;
+            }
+            long start = Math.max(0, periods - MAX_DECAY_STEPS);
+            for (long i = start + 1; i <= periods; i++) {
+                decayAt(lastDecayed + i * DECAY_PERIOD);
+            }
+            lastDecayed += periods * DECAY_PERIOD;
+        }
+
         @Override
         public boolean equals(Object obj) {
             if (obj == null) {
@@ -286,35 +418,362 @@ public class RTTStore {
         
     }
 
+    /**
+     * Get the RTTStore for a node. Each node should only use its own store.
+     * @param nodeId the id of the node storing the samples (often, self.getId())
+     * @return the RTTStore for nodeId, created if it doesn't exist.
+     */
+    public static RTTStore instance(int nodeId) {
+        RTTStore store = stores.get(nodeId);
+        if (store == null) {
+            store = new RTTStore();
+            RTTStore existing = stores.putIfAbsent(nodeId, store);
+            if (existing != null) {
+                store = existing;
+            }
+        }
+        return store;
+    }
+
+    /**
+     * This method stores the rttValue for address.
+     * @param address the address of the node for which the rtt sample has been made
+     * @param rttValue the round-trip latency measured
+     * @return a RTT object representing the set of rtt samples for this addr,
+     * or null if the address is not open.
+     */
+    public RTT addSample(VodAddress address, long rttValue) {
+        return addSample(address, rttValue, System.currentTimeMillis(), true);
+    }
+
+    /**
+     * Stores a default or penalty RTT for address, e.g., for a node that we
+     * haven't measured yet or that timed out. It updates the RTO, but is kept
+     * out of the histogram, so it doesn't skew the percentiles.
+     * @return a RTT object representing the set of rtt samples for this addr,
+     * or null if the address is not open.
+     */
+    public RTT addPlaceholderSample(VodAddress address, long rttValue) {
+        return addSample(address, rttValue, System.currentTimeMillis(), false);
+    }
+
+    synchronized RTT addSample(VodAddress address, long rttValue, long now,
+            boolean measured) {
+        if (!address.isOpen()) {
+            return null;
+        }
+        RTT rtt = rtts.get(address.getId());
+        if (rtt == null) {
+            rtt = new RTT(address, 10 /*minRto*/);
+            rtts.put(address.getId(), rtt);
+        } else if (!index.remove(rtt)) {
+            // The RTO was changed outside of the store, the index is stale.
+            reindex();
+            index.remove(rtt);
+        }
+        rtt.addSample(rttValue, now, measured);
+        index.add(rtt);
+        return rtt;
+    }
+
+    /**
+     * Removes failedNode's samples.
+     * @param failedNode the address of the node that we want to remove samples for.
+     */
+    public synchronized void removeSamples(VodAddress failedNode) {
+        RTT rtt = rtts.remove(failedNode.getId());
+        if (rtt != null && !index.remove(rtt)) {
+            reindex();
+        }
+    }
+
+    public RTT getRtt(VodAddress address) {
+        return rtts.get(address.getId());
+    }
+
+    public boolean containsPublicSample(VodAddress address) {
+        return address.isOpen() && rtts.containsKey(address.getId());
+    }
+
+    public int size() {
+        return rtts.size();
+    }
+
+    /**
+     * @param numNodes max number of RTTs returned
+     * @param ignoreSet nodes that should not be returned
+     * @return the numNodes RTTs with the lowest RTO, in increasing order of RTO.
+     */
+    public synchronized List<RTT> getOnAvgBest(int numNodes, Set<Address> ignoreSet) {
+        catchUpDecay(System.currentTimeMillis());
+        Set<Integer> ignoreIds = new HashSet<Integer>();
+        for (Address ignoreAddr : ignoreSet) {
+            ignoreIds.add(ignoreAddr.getId());
+        }
+        List<RTT> best = new ArrayList<RTT>();
+        for (RTT r : index) {
+            if (best.size() >= numNodes) {
+                break;
+            }
+            if (!ignoreIds.contains(r.getAddress().getId())) {
+                best.add(r);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Ranks nodes by a percentile of their RTT, e.g. p90, so that nodes whose
+     * latency is usually low but with the odd outlier are not ranked below
+     * nodes with a consistently higher latency.
+     * Only the PERCENTILE_CANDIDATES * numNodes nodes with the lowest RTO are
+     * ranked, so the query doesn't sort all samples. A node whose RTO is
+     * inflated by outliers is still ranked, as long as it is in that set.
+     * @param numNodes max number of RTTs returned
+     * @param percentile e.g., 0.9 for p90
+     * @param ignoreSet nodes that should not be returned
+     * @return the numNodes RTTs with the lowest percentile, in increasing order.
+     */
+    public synchronized List<RTT> getOnPercentileBest(int numNodes, double percentile,
+            Set<Address> ignoreSet) {
+        catchUpDecay(System.currentTimeMillis());
+        Set<Integer> ignoreIds = new HashSet<Integer>();
+        for (Address ignoreAddr : ignoreSet) {
+            ignoreIds.add(ignoreAddr.getId());
+        }
+        int numCandidates = numNodes * PERCENTILE_CANDIDATES;
+        // Snapshot the percentiles, as samples can be added while we sort.
+        final Map<RTT, Long> percentiles = new HashMap<RTT, Long>();
+        List<RTT> best = new ArrayList<RTT>();
+        for (RTT r : index) {
+            if (best.size() >= numCandidates) {
+                break;
+            }
+            if (!ignoreIds.contains(r.getAddress().getId())) {
+                best.add(r);
+                percentiles.put(r, r.getPercentileRto(percentile));
+            }
+        }
+        Collections.sort(best, new Comparator<RTT>() {
+            @Override
+            public int compare(RTT rtt1, RTT rtt2) {
+                return percentiles.get(rtt1).compareTo(percentiles.get(rtt2));
+            }
+        });
+        if (best.size() > numNodes) {
+            best = new ArrayList<RTT>(best.subList(0, numNodes));
+        }
+        return best;
+    }
+
+    /**
+     * @param numNodes max number of RTTs returned, or 0 for no limit
+     * @param value the RTO that returned RTTs should be better than
+     * @param tolerance returned RTTs have a RTO lower than (value - tolerance)
+     * @return the RTTs with a RTO lower than (value - tolerance), in increasing
+     * order of RTO.
+     */
+    public synchronized List<RTT> getOnAvgBetterRtts(int numNodes, long value,
+            long tolerance) {
+        catchUpDecay(System.currentTimeMillis());
+        List<RTT> better = new ArrayList<RTT>();
+        for (RTT r : index) {
+            if (numNodes > 0 && better.size() >= numNodes) {
+                break;
+            }
+            if (r.getRTO() >= value - tolerance) {
+                break;
+            }
+            better.add(r);
+        }
+        return better;
+    }
+
+    /**
+     * Writes a snapshot of the RTTs in this store, so that a restarted node
+     * can start with an idea of which nodes are close.
+     * The file is written to a temp file first, then renamed.
+     * @param file the snapshot file
+     * @return number of RTTs written
+     * @throws IOException
+     */
+    public int saveSnapshot(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        int n;
+        try {
+            n = writeSnapshot(out, System.currentTimeMillis());
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not replace RTT snapshot: " + file);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename RTT snapshot to: " + file);
+        }
+        return n;
+    }
+
+    /**
+     * Loads a snapshot written by saveSnapshot(). See readSnapshot().
+     * @param file the snapshot file
+     * @param maxAge snapshot entries older than this (ms) are ignored
+     * @return number of RTTs restored, 0 if the file doesn't exist
+     * @throws IOException if the file is corrupt or can't be read
+     */
+    public int loadSnapshot(File file, long maxAge) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return readSnapshot(in, System.currentTimeMillis(), maxAge);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Snapshot format: magic, version, time written, number of entries, then
+     * for each entry the node's open address, SRTT, RTTVAR, number of samples
+     * and the time since it was last contacted.
+     * The RTTs are decayed through catchUpDecay() first, which re-indexes
+     * them, so the snapshot holds the RTTs the store ranks by.
+     */
+    synchronized int writeSnapshot(DataOutputStream out, long now) throws IOException {
+        catchUpDecay(now);
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeByte(SNAPSHOT_VERSION);
+        out.writeLong(now);
+        out.writeInt(rtts.size());
+        int n = 0;
+        for (RTT r : rtts.values()) {
+            RttStats stats = r.getRttStats();
+            VodAddress addr = r.getAddress();
+            byte[] ip = addr.getIp().getAddress();
+            out.writeInt(addr.getId());
+            out.writeByte(ip.length);
+            out.write(ip);
+            out.writeInt(addr.getPort());
+            out.writeInt(addr.getOverlayId());
+            out.writeDouble(stats.getAvgRTT());
+            out.writeDouble(stats.getVarRTT());
+            out.writeInt(r.getNumSamples());
+            out.writeLong(Math.max(0, now - stats.getLastContacted()));
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Restores the RTTs in a snapshot, discounting our confidence in them by
+     * their age and by the number of samples they were based on: the less
+     * confident we are, the more the variance (and so the RTO) is inflated.
+     * A restored node is ranked behind a measured node with the same SRTT,
+     * and its RTO is corrected as soon as new samples arrive.
+     * RTTs already in the store are not overwritten.
+     */
+    synchronized int readSnapshot(DataInputStream in, long now, long maxAge)
+            throws IOException {
+        if (in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not an RTT snapshot.");
+        }
+        int version = in.readByte();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("Unsupported RTT snapshot version: " + version);
+        }
+        long written = in.readLong();
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("Corrupt RTT snapshot, size: " + size);
+        }
+        int restored = 0;
+        for (int i = 0; i < size; i++) {
+            int id = in.readInt();
+            int ipLen = in.readByte();
+            if (ipLen != 4 && ipLen != 16) {
+                throw new IOException("Corrupt RTT snapshot, ip length: " + ipLen);
+            }
+            byte[] ip = new byte[ipLen];
+            in.readFully(ip);
+            int port = in.readInt();
+            int overlayId = in.readInt();
+            double avg = in.readDouble();
+            double var = in.readDouble();
+            int samples = in.readInt();
+            long age = Math.max(0, now - written) + in.readLong();
+            if (age >= maxAge || rtts.containsKey(id) || avg <= 0) {
+                continue;
+            }
+            double confidence = (1.0d - ((double) age / maxAge))
+                    * Math.min(1.0d, (double) samples / MIN_SAMPLES_FOR_PERCENTILE);
+            VodAddress addr = new VodAddress(
+                    new Address(InetAddress.getByAddress(ip), port, id), overlayId);
+            RTT rtt = new RTT(addr, 10 /*minRto*/, avg,
+                    var + (1.0d - confidence) * avg, now - age);
+            rtts.put(id, rtt);
+            index.add(rtt);
+            restored++;
+        }
+        return restored;
+    }
+
+    /**
+     * Decays the RTTs that missed decay periods, removing each one from the
+     * index and re-adding it, as its RTO changes. Only runs once the start of
+     * a new decay period has passed.
+     */
+    synchronized void catchUpDecay(long now) {
+        long period = now - (now % DECAY_PERIOD);
+        if (period <= decayedUntil) {
+            return;
+        }
+        decayedUntil = period;
+        boolean stale = false;
+        for (RTT r : rtts.values()) {
+            if (r.isDecayDue(now)) {
+                stale |= !index.remove(r);
+                r.catchUpDecay(now);
+                index.add(r);
+            }
+        }
+        if (stale) {
+            reindex();
+        }
+    }
+
+    private void reindex() {
+        index.clear();
+        index.addAll(rtts.values());
+    }
+
     /**
      * This method stores the rttValue for address at nodeId.
-     * nodeId is required for simuation mode, as RTTStore is a singleton.
+     * nodeId is required for simuation mode, where many nodes share the JVM.
      * @param nodeId the id of the node that recorded the rtt sample (often, self.getId())
      * @param address the address of the node for which the rtt sample has been made
      * @param rttValue the round-trip latency measured
      * @return a RTT object representing the set of rtt samples for this addr at nodeId.
      */
     public static RTT addSample(int nodeId, VodAddress address, long rttValue) {
-        if (address.isOpen()) {
-            RTT rtt;
-            if (!publicRtts.containsKey(nodeId)) {
-                ConcurrentHashMap<Integer, RTT> m = new ConcurrentHashMap<Integer, RTT>();
-                publicRtts.put(nodeId, m);
-            }
-            ConcurrentHashMap<Integer, RTT> m = publicRtts.get(nodeId);
+        if (!address.isOpen()) {
+            return null;
+        }
+        return instance(nodeId).addSample(address, rttValue);
+    }
 
-            if (!m.containsKey(address.getId())) {
-                rtt = new RTT(address, 10 /*minRto*/);
-                m.put(address.getId(), rtt);
-                rtt.addSample(rttValue);
-            } else {
-                rtt = m.get(address.getId());
-                rtt.addSample(rttValue);
-            }
-            return rtt;
-        } else {
+    /**
+     * Stores a default or penalty RTT for address at nodeId. See
+     * addPlaceholderSample(VodAddress, long).
+     */
+    public static RTT addPlaceholderSample(int nodeId, VodAddress address, long rttValue) {
+        if (!address.isOpen()) {
             return null;
         }
+        return instance(nodeId).addPlaceholderSample(address, rttValue);
     }
 
     /**
@@ -323,10 +782,9 @@ public class RTTStore {
      * @param failedNode the address of the node that we want to remove samples for.
      */
     public static void removeSamples(int nodeId, VodAddress failedNode) {
-
-        ConcurrentHashMap<Integer, RTT> m = publicRtts.get(nodeId);
-        if (m != null) {
-            m.remove(failedNode.getId());
+        RTTStore store = stores.get(nodeId);
+        if (store != null) {
+            store.removeSamples(failedNode);
         }
     }
 
@@ -338,28 +796,14 @@ public class RTTStore {
      * @return 
      */
     public static RTT getRtt(int nodeId, VodAddress address) {
-        if (!publicRtts.containsKey(nodeId)) {
-            return null;
-        }
-        ConcurrentHashMap<Integer, RTT> m = publicRtts.get(nodeId);
-
-        if (!m.containsKey(address.getId())) {
-            return null;
-        } else {
-            return m.get(address.getId());
-        }
+        RTTStore store = stores.get(nodeId);
+        return (store == null) ? null : store.getRtt(address);
     }
 
     
     public static boolean containsPublicSample(int nodeId, VodAddress address) {
-        if (address.isOpen()) {
-            if (!publicRtts.containsKey(nodeId)) {
-                return false;
-            }
-            ConcurrentHashMap<Integer, RTT> m = publicRtts.get(nodeId);
-            return m.containsKey(address.getId());
-        }
-        return false;
+        RTTStore store = stores.get(nodeId);
+        return store != null && store.containsPublicSample(address);
     }
     
     public static List<RTT> getOnAvgBest(int nodeId, int numNodes) {
@@ -376,66 +820,25 @@ public class RTTStore {
      */
     public static List<RTT> getOnAvgBest(int nodeId, int numNodes,
             Set<Address> ignoreSet) {
-        ConcurrentHashMap<Integer, RTT> m = publicRtts.get(nodeId);
-        if (m == null) {
-                m = new ConcurrentHashMap<Integer, RTT>();
-                publicRtts.put(nodeId, m);
-        }
-        
-        List<RTT> rtts = new ArrayList<RTT>(m.values());
-        List<RTT> remove = new ArrayList<RTT>();
-        for (RTT r : rtts) {
-            for (Address ignoreAddr : ignoreSet) {
-                if (ignoreAddr.getId() == r.getAddress().getId()) {
-                    remove.add(r);
-                }
-            }
-        }
-        rtts.removeAll(remove);
-
-        Collections.sort(rtts, RTT.Order.ByRto);
-        if (rtts.size() < numNodes) {
-            numNodes = rtts.size();
-        }
-        if (numNodes > 0) {
-            rtts = rtts.subList(0, numNodes);
-        }
+        return instance(nodeId).getOnAvgBest(numNodes, ignoreSet);
+    }
 
-        return rtts;
+    public static List<RTT> getOnPercentileBest(int nodeId, int numNodes,
+            double percentile, Set<Address> ignoreSet) {
+        return instance(nodeId).getOnPercentileBest(numNodes, percentile, ignoreSet);
     }
 
     public static List<RTT> getAllOnAvgBetterRtts(int nodeId, long value, long rttGreaterThanTolerance) {
-        return RTTStore.getOnAvgBetterRtts(nodeId, publicRtts.size(), value, rttGreaterThanTolerance);
+        return RTTStore.getOnAvgBetterRtts(nodeId, 0, value, rttGreaterThanTolerance);
     }
 
     public static List<RTT> getOnAvgBetterRtts(int nodeId, int numNodes, 
             long value, long tolerance) {
-        ConcurrentHashMap<Integer, RTT> m = publicRtts.get(nodeId);
-        if (m == null) {
-                m = new ConcurrentHashMap<Integer, RTT>();
-                publicRtts.put(nodeId, m);
-        }
-        List<RTT> rtts = new ArrayList<RTT>(m.values());
-
-        while (!rtts.isEmpty()) {
-            RTT max = (RTT) Collections.max(rtts, RTT.Order.ByRto);
-            if (max.getRTO() >= value - tolerance) {
-                rtts.remove(max);
-            } else {
-                break;
-            }
-        }
-
-        if (numNodes > 0 && rtts.size() > numNodes) {
-            Collections.sort(rtts, RTT.Order.ByRto);
-            rtts = rtts.subList(0, numNodes - 1);
-        }
-
-        return rtts;
+        return instance(nodeId).getOnAvgBetterRtts(numNodes, value, tolerance);
     }
 
     //This is for the test case reason
     protected static void cleanup() {
-        publicRtts.clear();
+        stores.clear();
     }
 }
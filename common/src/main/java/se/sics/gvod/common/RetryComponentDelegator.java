@@ -4,6 +4,7 @@
  */
 package se.sics.gvod.common;
 
+import java.util.List;
 import java.util.Set;
 import se.sics.gvod.address.Address;
 import se.sics.gvod.net.msgs.RewriteableRetryTimeout;
@@ -56,6 +57,21 @@ public interface RetryComponentDelegator extends ComponentDelegator {
     public TimeoutId doRetry(RewriteableMsg msg, long timeoutInMilliSecs, int rtoRetries, 
             double rtoScaleAfterRetry, Object request, int overlayId);
 
+    /*
+     * Hedged request: the message is sent (and retried) to the first candidate.
+     * If no response has been received after hedgeDelay ms, a copy of the message
+     * with the same timeoutId is sent to the next candidate, and so on until there
+     * are no more candidates. The first response wins: calling cancelRetry() on
+     * the returned timeoutId stops both retries and outstanding hedges, so later
+     * responses are discarded as usual.
+     * Only use it for requests that any candidate can answer and that don't
+     * change state at the receiver.
+     */
+    public TimeoutId doHedge(RewriteableRetryTimeout timeout, List<Address> candidates,
+            long hedgeDelay);
+    public TimeoutId doHedge(RewriteableRetryTimeout timeout, List<Address> candidates,
+            long hedgeDelay, Object request);
+
     /**
      * 
      * @param timeoutId
@@ -0,0 +1,139 @@
+package se.sics.gvod.common;
+
+/**
+ * A fixed-size histogram of RTT samples with logarithmic buckets, used to
+ * estimate percentiles (p50, p95, p99) of the latency to a node.
+ *
+ * Each bucket is GROWTH times wider than the previous one, so the relative error
+ * of a percentile is bounded (about 5%) whatever the latency, and the memory used
+ * doesn't depend on the number of samples. Unlike the mean and variance, a
+ * percentile is not distorted by a single outlier.
+ *
+ * When the number of samples reaches maxCount, all the counts are halved, so
+ * older samples are aged out and the histogram follows changes in latency.
+ *
+ * Not thread-safe, see RTTStore.RTT.
+ *
+ * @author jdowling
+ */
+public class RttHistogram {
+
+    public static final int DEFAULT_MAX_COUNT = 1000;
+    private static final double GROWTH = 1.1d;
+    private static final double LOG_GROWTH = Math.log(GROWTH);
+    // RTTs larger than this (ms) are counted in the last bucket.
+    private static final long MAX_RTT = 2 * 60 * 1000;
+    // bucket 0 holds rtts <= 1ms, bucket i holds rtts in [GROWTH^(i-1), GROWTH^i)
+    private static final int NUM_BUCKETS = 2 + (int) (Math.log(MAX_RTT) / LOG_GROWTH);
+    private final int[] counts = new int[NUM_BUCKETS];
+    private final int maxCount;
+    private int count = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    public RttHistogram() {
+        this(DEFAULT_MAX_COUNT);
+    }
+
+    /**
+     * @param maxCount number of samples at which the counts are halved.
+     */
+    public RttHistogram(int maxCount) {
+        if (maxCount < 2) {
+            throw new IllegalArgumentException("maxCount must be at least 2");
+        }
+        this.maxCount = maxCount;
+    }
+
+    private static int bucket(long rtt) {
+        if (rtt <= 1) {
+            return 0;
+        }
+        if (rtt >= MAX_RTT) {
+            return NUM_BUCKETS - 1;
+        }
+        return 1 + (int) (Math.log(rtt) / LOG_GROWTH);
+    }
+
+    /**
+     * @return the largest rtt that falls into bucket b.
+     */
+    private static long upperBound(int b) {
+        if (b == 0) {
+            return 1;
+        }
+        return Math.max(1, (long) Math.ceil(Math.pow(GROWTH, b)) - 1);
+    }
+
+    public void add(long rtt) {
+        if (rtt < 0) {
+            throw new IllegalArgumentException("rtt must be zero or greater");
+        }
+        if (count >= maxCount) {
+            age();
+        }
+        counts[bucket(rtt)]++;
+        count++;
+        min = Math.min(min, rtt);
+        max = Math.max(max, rtt);
+    }
+
+    private void age() {
+        count = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] /= 2;
+            count += counts[i];
+        }
+    }
+
+    /**
+     * @param percentile in the range (0, 1], e.g., 0.95 for p95.
+     * @return an upper bound on the rtt below which 'percentile' of the samples
+     * fall, or -1 if there are no samples.
+     */
+    public long getPercentile(double percentile) {
+        if (percentile <= 0 || percentile > 1) {
+            throw new IllegalArgumentException("percentile must be in (0, 1]: "
+                    + percentile);
+        }
+        if (count == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(percentile * count);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.max(min, Math.min(max, upperBound(i)));
+            }
+        }
+        return max;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the smallest sample since the last clear(), or -1.
+     */
+    public long getMin() {
+        return (count == 0) ? -1 : min;
+    }
+
+    /**
+     * @return the largest sample since the last clear(), or -1.
+     */
+    public long getMax() {
+        return (count == 0) ? -1 : max;
+    }
+
+    public void clear() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = 0;
+        }
+        count = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+}
@@ -42,8 +42,10 @@ public class SelfImpl extends SelfBase
     @Override
     public VodDescriptor getDescriptor() {
         int age = 0;
-        return  new VodDescriptor(getAddress(), VodView.getPeerUtility(this), 
+        VodDescriptor desc = new VodDescriptor(getAddress(), VodView.getPeerUtility(this),
                 age, VodConfig.LB_MTU_MEASURED);
+        desc.setCoordinate(Vivaldi.instance(nodeId).getCoordinate());
+        return desc;
     }
 
     @Override
@@ -0,0 +1,127 @@
+package se.sics.gvod.common;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maintains a node's Vivaldi coordinate, so that the RTT to nodes we have never
+ * pinged can be estimated from their coordinates. Coordinates are piggybacked
+ * on VodDescriptors, so they are spread by the existing gossiping.
+ *
+ * Each time we measure the RTT to a node whose coordinate we know, our
+ * coordinate is moved so that the distance between the two coordinates gets
+ * closer to the measured RTT. The size of the move depends on how confident
+ * we are in our coordinate compared to the remote node's coordinate
+ * (F. Dabek et al., "Vivaldi: A Decentralized Network Coordinate System").
+ *
+ * There is one instance per node, see instance(nodeId), like RTTStore.
+ *
+ * @author jdowling
+ */
+public final class Vivaldi {
+
+    // tuning constants from the Vivaldi paper
+    private static final double CC = 0.25d;
+    private static final double CE = 0.25d;
+    // Ignore samples larger than this, they are probably not network latency.
+    private static final long MAX_RTT = 60 * 1000;
+    private static final ConcurrentHashMap<Integer, Vivaldi> instances =
+            new ConcurrentHashMap<Integer, Vivaldi>();
+    private final Random random;
+    private VivaldiCoordinate coordinate = VivaldiCoordinate.ORIGIN;
+    private long numUpdates = 0;
+
+    public Vivaldi(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static Vivaldi instance(int nodeId) {
+        Vivaldi v = instances.get(nodeId);
+        if (v == null) {
+            v = new Vivaldi(nodeId);
+            Vivaldi existing = instances.putIfAbsent(nodeId, v);
+            if (existing != null) {
+                v = existing;
+            }
+        }
+        return v;
+    }
+
+    public synchronized VivaldiCoordinate getCoordinate() {
+        return coordinate;
+    }
+
+    public synchronized long getNumUpdates() {
+        return numUpdates;
+    }
+
+    /**
+     * Updates our coordinate with a RTT measured to a remote node.
+     * @param remote the coordinate of the remote node, ignored if null
+     * @param rtt the RTT measured to the remote node, in ms
+     */
+    public synchronized void update(VivaldiCoordinate remote, double rtt) {
+        if (remote == null || rtt <= 0 || rtt > MAX_RTT) {
+            return;
+        }
+        double dist = coordinate.distance(remote);
+        double w = coordinate.getError() / (coordinate.getError() + remote.getError());
+        double sampleError = Math.abs(dist - rtt) / rtt;
+        double error = sampleError * CE * w + coordinate.getError() * (1 - CE * w);
+        double delta = CC * w;
+        double force = delta * (rtt - dist);
+
+        // Unit vector from the remote node to us, where the height is the sum
+        // of both heights. Random direction if we are at the same point.
+        double[] pos = coordinate.getPosition();
+        double[] dir = new double[VivaldiCoordinate.DIMENSIONS];
+        double norm = coordinate.euclideanDistance(remote);
+        if (norm > 0) {
+            for (int i = 0; i < dir.length; i++) {
+                dir[i] = (pos[i] - remote.getPosition(i)) / dist;
+            }
+        } else {
+            double sum = 0;
+            for (int i = 0; i < dir.length; i++) {
+                dir[i] = random.nextGaussian();
+                sum += dir[i] * dir[i];
+            }
+            sum = Math.sqrt(sum);
+            for (int i = 0; i < dir.length; i++) {
+                dir[i] /= sum;
+            }
+        }
+        for (int i = 0; i < pos.length; i++) {
+            pos[i] += force * dir[i];
+        }
+        double height = coordinate.getHeight()
+                + force * (coordinate.getHeight() + remote.getHeight()) / dist;
+        coordinate = new VivaldiCoordinate(pos, height, error);
+        numUpdates++;
+    }
+
+    /**
+     * @param desc a node's descriptor
+     * @return the estimated RTT to the node in ms, or -1 if the descriptor
+     * doesn't have a coordinate.
+     */
+    public long estimateRtt(VodDescriptor desc) {
+        return estimateRtt(getCoordinate(), desc.getCoordinate());
+    }
+
+    /**
+     * @return the estimated RTT between the coordinates in ms, or -1 if either
+     * coordinate is null.
+     */
+    public static long estimateRtt(VivaldiCoordinate c1, VivaldiCoordinate c2) {
+        if (c1 == null || c2 == null) {
+            return -1;
+        }
+        return Math.round(c1.distance(c2));
+    }
+
+    //This is for the test case reason
+    protected static void cleanup() {
+        instances.clear();
+    }
+}
@@ -0,0 +1,86 @@
+package se.sics.gvod.common;
+
+import java.io.Serializable;
+
+/**
+ * A Vivaldi network coordinate: a point in a 2D Euclidean space plus a height,
+ * which models the latency of the node's access link. The distance between
+ * two coordinates is an estimate of the RTT (ms) between the nodes.
+ *
+ * Immutable.
+ *
+ * @author jdowling
+ */
+public final class VivaldiCoordinate implements Serializable {
+
+    private static final long serialVersionUID = -3349272518732212003L;
+    public static final int DIMENSIONS = 2;
+    public static final double MAX_ERROR = 1.0d;
+    public static final double MIN_ERROR = 0.01d;
+    // a zero height would never grow, see Vivaldi.update()
+    public static final double MIN_HEIGHT = 0.1d;
+    public static final VivaldiCoordinate ORIGIN =
+            new VivaldiCoordinate(new double[DIMENSIONS], MIN_HEIGHT, MAX_ERROR);
+    private final double[] position;
+    private final double height;
+    private final double error;
+
+    /**
+     * @param position position in the Euclidean space, of length DIMENSIONS
+     * @param height height, at least MIN_HEIGHT
+     * @param error relative error of the coordinate, in [MIN_ERROR, MAX_ERROR]
+     */
+    public VivaldiCoordinate(double[] position, double height, double error) {
+        if (position == null || position.length != DIMENSIONS) {
+            throw new IllegalArgumentException("Position must have "
+                    + DIMENSIONS + " dimensions");
+        }
+        this.position = position.clone();
+        this.height = Math.max(MIN_HEIGHT, height);
+        this.error = Math.min(MAX_ERROR, Math.max(MIN_ERROR, error));
+    }
+
+    public double getPosition(int dimension) {
+        return position[dimension];
+    }
+
+    public double getHeight() {
+        return height;
+    }
+
+    public double getError() {
+        return error;
+    }
+
+    /**
+     * @param that another coordinate
+     * @return the estimated RTT to that coordinate, in ms.
+     */
+    public double distance(VivaldiCoordinate that) {
+        return euclideanDistance(that) + this.height + that.height;
+    }
+
+    double euclideanDistance(VivaldiCoordinate that) {
+        double sum = 0;
+        for (int i = 0; i < DIMENSIONS; i++) {
+            double d = this.position[i] - that.position[i];
+            sum += d * d;
+        }
+        return Math.sqrt(sum);
+    }
+
+    double[] getPosition() {
+        return position.clone();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < DIMENSIONS; i++) {
+            sb.append(String.format("%.1f", position[i])).append(",");
+        }
+        sb.append("h=").append(String.format("%.1f", height));
+        sb.append(",e=").append(String.format("%.2f", error)).append(")");
+        return sb.toString();
+    }
+}
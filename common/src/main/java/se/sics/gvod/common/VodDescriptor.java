@@ -30,6 +30,10 @@ public class VodDescriptor implements Comparable<VodDescriptor>, Serializable {
      */
     private int uploadRate;
     private final long numberOfIndexEntries;
+    /**
+     * Vivaldi coordinate of the node, null if unknown. 1 + 16 bytes
+     */
+    private VivaldiCoordinate coordinate;
     /**
      * Don't serialize. Sender side of data request. Determines number of
      * outstanding requests that can be in-flight.
@@ -146,6 +150,7 @@ public class VodDescriptor implements Comparable<VodDescriptor>, Serializable {
                 descriptor.getUtility(), descriptor.refs, descriptor.uploadRate,
                 descriptor.requestPipeline,
                 descriptor.window, descriptor.pipeSize, descriptor.mtu);
+        this.coordinate = descriptor.coordinate;
     }
 
     public VodDescriptor(VodDescriptor descriptor, VodAddress newAddr) {
@@ -153,6 +158,7 @@ public class VodDescriptor implements Comparable<VodDescriptor>, Serializable {
                 descriptor.getUtility(), descriptor.refs, descriptor.uploadRate,
                 descriptor.requestPipeline,
                 descriptor.window, descriptor.pipeSize, descriptor.mtu);
+        this.coordinate = descriptor.coordinate;
     }
 
     public VodDescriptor(VodDescriptor descriptor, Utility utility, int piece) {
@@ -161,13 +167,16 @@ public class VodDescriptor implements Comparable<VodDescriptor>, Serializable {
                 descriptor.refs, descriptor.uploadRate,
                 descriptor.requestPipeline,
                 descriptor.window, descriptor.pipeSize, descriptor.mtu);
+        this.coordinate = descriptor.coordinate;
     }
 
     public VodDescriptor clone(int newOverlayId) {
         VodAddress o = new VodAddress(this.vodAddress.getPeerAddress(), newOverlayId,
                 this.vodAddress.getNat(), this.vodAddress.getParents());
-        return new VodDescriptor(o, age, utility, refs, uploadRate,
+        VodDescriptor d = new VodDescriptor(o, age, utility, refs, uploadRate,
                 requestPipeline, window, pipeSize, mtu);
+        d.coordinate = coordinate;
+        return d;
     }
 
     public int getMtu() {
@@ -369,6 +378,14 @@ public class VodDescriptor implements Comparable<VodDescriptor>, Serializable {
         return vodAddress.getId();
     }
 
+    public VivaldiCoordinate getCoordinate() {
+        return coordinate;
+    }
+
+    public void setCoordinate(VivaldiCoordinate coordinate) {
+        this.coordinate = coordinate;
+    }
+
     public boolean isConnected() {
         return connected;
     }
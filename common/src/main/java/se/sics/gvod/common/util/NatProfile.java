@@ -0,0 +1,331 @@
+package se.sics.gvod.common.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sics.gvod.address.Address;
+import se.sics.gvod.net.Nat;
+
+/**
+ * The NAT type found by the last run of the stun protocol, with the parents we
+ * had, saved in a small binary file so that a restarted node can use them
+ * straight away instead of waiting for stun to finish.
+ *
+ * The profile is tagged with a fingerprint of the network interfaces and the
+ * default gateway of the host. A profile written on a different network (or
+ * after the interfaces changed) has a different fingerprint and is not used.
+ *
+ * This replaces the XML-encoded CachedNatType for startup, as XMLDecoder is
+ * slow to load and breaks whenever NatBean changes.
+ *
+ * @author jdowling
+ */
+public class NatProfile {
+
+    private static final Logger logger = LoggerFactory.getLogger(NatProfile.class);
+    private static final int PROFILE_MAGIC = 0x4e415450; // "NATP"
+    private static final int PROFILE_VERSION = 1;
+    private static final String ROUTE_TABLE = "/proc/net/route";
+    private final Nat nat;
+    private final Set<Address> parents;
+    private final long fingerprint;
+    private final long timestamp;
+
+    public NatProfile(Nat nat, Set<Address> parents, long fingerprint, long timestamp) {
+        if (nat == null) {
+            throw new NullPointerException("nat was null");
+        }
+        this.nat = nat;
+        this.parents = new HashSet<Address>(parents);
+        this.fingerprint = fingerprint;
+        this.timestamp = timestamp;
+    }
+
+    public Nat getNat() {
+        return nat;
+    }
+
+    public Set<Address> getParents() {
+        return parents;
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @param fingerprint fingerprint of the network we are on now
+     * @param now current time in ms
+     * @param maxAge profiles older than this (ms) are not valid
+     * @return true if the profile can be used instead of running stun first.
+     */
+    public boolean isValid(long fingerprint, long now, long maxAge) {
+        return this.fingerprint == fingerprint
+                && now >= timestamp && now - timestamp < maxAge;
+    }
+
+    /**
+     * Compares the policies of two NAT types, not the measured binding
+     * timeouts, which change from run to run.
+     * @return true if the two NAT types need the same hole punching mechanisms.
+     */
+    public static boolean sameNat(Nat n1, Nat n2) {
+        if (n1 == null || n2 == null) {
+            return n1 == n2;
+        }
+        return n1.getType() == n2.getType()
+                && n1.getMappingPolicy() == n2.getMappingPolicy()
+                && n1.getAllocationPolicy() == n2.getAllocationPolicy()
+                && n1.getFilteringPolicy() == n2.getFilteringPolicy()
+                && n1.getDelta() == n2.getDelta();
+    }
+
+    /**
+     * The file is written to a temp file first, then renamed.
+     * @param file the profile file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not replace NAT profile: " + file);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename NAT profile to: " + file);
+        }
+    }
+
+    /**
+     * @param file the profile file
+     * @return the profile, or null if the file doesn't exist.
+     * @throws IOException if the file is corrupt or can't be read
+     */
+    public static NatProfile load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Profile format: magic, version, time written, network fingerprint, the
+     * NAT type (type, mapping, allocation and filtering policies as ordinals,
+     * delta, binding timeout, and the public address if UPnP), then the
+     * number of parents and their addresses.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(PROFILE_MAGIC);
+        out.writeByte(PROFILE_VERSION);
+        out.writeLong(timestamp);
+        out.writeLong(fingerprint);
+        out.writeByte(nat.getType().ordinal());
+        out.writeByte(nat.getMappingPolicy().ordinal());
+        out.writeByte(nat.getAllocationPolicy().ordinal());
+        out.writeByte(nat.getFilteringPolicy().ordinal());
+        out.writeInt(nat.getDelta());
+        out.writeLong(nat.getBindingTimeout());
+        if (nat.getType() == Nat.Type.UPNP) {
+            writeAddress(out, nat.getPublicUPNPAddress());
+        }
+        out.writeByte(parents.size());
+        for (Address p : parents) {
+            writeAddress(out, p);
+        }
+    }
+
+    static NatProfile read(DataInputStream in) throws IOException {
+        if (in.readInt() != PROFILE_MAGIC) {
+            throw new IOException("Not a NAT profile.");
+        }
+        int version = in.readByte();
+        if (version != PROFILE_VERSION) {
+            throw new IOException("Unsupported NAT profile version: " + version);
+        }
+        long timestamp = in.readLong();
+        long fingerprint = in.readLong();
+        Nat.Type type = readEnum(in, Nat.Type.values());
+        Nat.MappingPolicy mapping = readEnum(in, Nat.MappingPolicy.values());
+        Nat.AllocationPolicy allocation = readEnum(in, Nat.AllocationPolicy.values());
+        Nat.FilteringPolicy filtering = readEnum(in, Nat.FilteringPolicy.values());
+        int delta = in.readInt();
+        long bindingTimeout = in.readLong();
+        Nat nat;
+        if (type == Nat.Type.UPNP) {
+            nat = new Nat(type, readAddress(in), mapping, allocation, filtering);
+            nat.setBindingTimeout(bindingTimeout);
+        } else if (type == Nat.Type.NAT) {
+            if (delta < 0) {
+                throw new IOException("Corrupt NAT profile, delta: " + delta);
+            }
+            nat = new Nat(type, mapping, allocation, filtering, delta, bindingTimeout);
+        } else {
+            nat = new Nat(type);
+        }
+        int numParents = in.readUnsignedByte();
+        Set<Address> parents = new HashSet<Address>();
+        for (int i = 0; i < numParents; i++) {
+            parents.add(readAddress(in));
+        }
+        return new NatProfile(nat, parents, fingerprint, timestamp);
+    }
+
+    private static void writeAddress(DataOutputStream out, Address addr) throws IOException {
+        byte[] ip = addr.getIp().getAddress();
+        out.writeInt(addr.getId());
+        out.writeByte(ip.length);
+        out.write(ip);
+        out.writeInt(addr.getPort());
+    }
+
+    private static Address readAddress(DataInputStream in) throws IOException {
+        int id = in.readInt();
+        int ipLen = in.readByte();
+        if (ipLen != 4 && ipLen != 16) {
+            throw new IOException("Corrupt NAT profile, ip length: " + ipLen);
+        }
+        byte[] ip = new byte[ipLen];
+        in.readFully(ip);
+        int port = in.readInt();
+        return new Address(InetAddress.getByAddress(ip), port, id);
+    }
+
+    private static <E> E readEnum(DataInputStream in, E[] values) throws IOException {
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= values.length) {
+            throw new IOException("Corrupt NAT profile, ordinal: " + ordinal);
+        }
+        return values[ordinal];
+    }
+
+    /**
+     * A hash of the names, hardware addresses and IPv4 addresses of the
+     * network interfaces that are up, and of the default gateway (only
+     * available on Linux, from /proc/net/route). IPv6 addresses are left out,
+     * as temporary IPv6 addresses change while the NAT stays the same.
+     * @return the fingerprint of the network this host is on.
+     */
+    public static long networkFingerprint() {
+        List<String> parts = new ArrayList<String>();
+        try {
+            Enumeration<NetworkInterface> nis = NetworkInterface.getNetworkInterfaces();
+            while (nis != null && nis.hasMoreElements()) {
+                NetworkInterface ni = nis.nextElement();
+                if (!ni.isUp() || ni.isLoopback()) {
+                    continue;
+                }
+                StringBuilder sb = new StringBuilder(ni.getName());
+                byte[] mac = ni.getHardwareAddress();
+                if (mac != null) {
+                    sb.append('/');
+                    for (byte b : mac) {
+                        sb.append(Integer.toHexString(b & 0xff));
+                    }
+                }
+                List<String> addrs = new ArrayList<String>();
+                for (InetAddress a : Collections.list(ni.getInetAddresses())) {
+                    if (a instanceof Inet4Address) {
+                        addrs.add(a.getHostAddress());
+                    }
+                }
+                Collections.sort(addrs);
+                sb.append(addrs);
+                parts.add(sb.toString());
+            }
+        } catch (SocketException e) {
+            logger.warn("Could not list network interfaces: " + e.getMessage());
+        }
+        Collections.sort(parts);
+        parts.add("gw=" + defaultGateway());
+        return fingerprint(parts);
+    }
+
+    static long fingerprint(List<String> parts) {
+        // 64-bit FNV-1a
+        long h = 0xcbf29ce484222325L;
+        for (String s : parts) {
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            h ^= '|';
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * @return the gateway of the default route as a hex string, or an empty
+     * string if the routing table can't be read.
+     */
+    private static String defaultGateway() {
+        File routes = new File(ROUTE_TABLE);
+        if (!routes.canRead()) {
+            return "";
+        }
+        BufferedReader r = null;
+        try {
+            r = new BufferedReader(new FileReader(routes));
+            String line;
+            while ((line = r.readLine()) != null) {
+                // Iface Destination Gateway Flags ...
+                String[] cols = line.trim().split("\\s+");
+                if (cols.length > 2 && cols[1].equals("00000000")) {
+                    return cols[0] + ":" + cols[2];
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Could not read " + ROUTE_TABLE + ": " + e.getMessage());
+        } finally {
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return "";
+    }
+
+    @Override
+    public String toString() {
+        return "NatProfile(" + nat + ", parents=" + parents.size()
+                + ", written=" + timestamp + ")";
+    }
+}
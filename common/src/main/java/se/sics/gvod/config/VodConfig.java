@@ -110,6 +110,11 @@ public class VodConfig extends BaseCommandLineConfig {
     static int STUN_UPNP_DISCOVERY_TIMEOUT = 3 * 1000;
     static boolean STUN_UPNP_ENABLED = false;
     static boolean STUN_MEASURE_NAT_BINDING_TIMEOUT = false;
+    static boolean STUN_FAST_CLASSIFICATION = false;
+    static int STUN_RULE_EXPIRATION_MAX_WAIT = 5 * 60 * 1000;
+    static int STUN_BINDING_TIMEOUT_PROBES = 4;
+    // max number of stun servers echoed in parallel in fast classification mode
+    public static final int STUN_FAST_NUM_PARALLEL_SERVERS = 3;
     public static final int STUN_PARTNER_HEARTBEAT_PERIOD = 30 * 1000;
     public static final int STUN_MAX_NUM_PARTNERS = 5;
     public static final int STUN_PARTNER_RTO_RETRIES = 0;
@@ -169,11 +174,93 @@ public class VodConfig extends BaseCommandLineConfig {
     public final static int NT_SERVER_INIT_RETRY_PERIOD = 1000;
     public final static int NT_GARBAGE_COLLECT_STALE_CONNS_PERIOD = 10 * 1000;
     public final static int NT_STALE_RELAY_MSG_TIME = 60 * 1000;
+    // SERVER RESPONSE CACHE DEFAULTS (for retransmitted requests)
+    public static int RESPONSE_CACHE_SIZE = 10 * 1000;
+    // should be longer than the time a client spends retrying a request
+    public static int RESPONSE_CACHE_TTL = 30 * 1000;
+    // RETRY BUDGET DEFAULTS (retries as a fraction of first attempts, per component)
+    public static boolean RETRY_BUDGET_ENABLED = true;
+    public static double RETRY_BUDGET_RATIO = 0.1d;
+    public static int RETRY_BUDGET_WINDOW = 10 * 1000;
+    public static int RETRY_BUDGET_MIN_RETRIES = 20;
+    public static int RETRY_BUDGET_MIN_RETRIES_PER_DEST = 5;
+    // RTT SNAPSHOT DEFAULTS (0 disables writing snapshots)
+    public static int NT_RTT_SNAPSHOT_PERIOD = 60 * 1000;
+    public static long NT_RTT_SNAPSHOT_MAX_AGE = 24 * 60 * 60 * 1000L;
+    // NAT PROFILE DEFAULTS (cached NAT type used at startup, 0 disables the cache)
+    public static int NT_NAT_PROFILE_MAX_AGE = 7 * 24 * 60 * 60 * 1000;
+    // PENDING MSGS DEFAULTS (msgs buffered while hole punching to a private node)
+    public static int NT_PENDING_MSGS_MAX_PER_DEST = 64;
+    public static int NT_PENDING_MSGS_MAX_BYTES_PER_DEST = 256 * 1024;
+    public static int NT_PENDING_MSGS_MAX = 4 * 1024;
+    public static int NT_PENDING_MSGS_MAX_BYTES = 8 * 1024 * 1024;
+    // should be about the timeout of requests, later copies of a request are retries
+    public static int NT_PENDING_MSG_TTL = 5 * 1000;
+    public static boolean NT_PENDING_MSGS_DROP_OLDEST = true;
+    // RELAY DEDUP DEFAULTS (rotating bloom filter of the relayed msgs received)
+    public static int NT_RELAY_DEDUP_EXPECTED_MSGS = 50 * 1000;
+    public static double NT_RELAY_DEDUP_FPP = 0.001d;
+    public static int NT_RELAY_DEDUP_WINDOW = NT_STALE_RELAY_MSG_TIME;
+    // relay msgs to a private node via its parents while hole punching to it,
+    // instead of buffering them until hole punching has finished
+    public static boolean NT_RELAY_WHILE_HOLE_PUNCHING = true;
+    // relay msgs via all parents of a private node, instead of via the best
+    // parent and only via all parents when a request is retried
+    public static boolean NT_RELAY_FAN_OUT = false;
+    // parents relay msgs to their children on the network I/O threads, without
+    // decoding them and delivering them to the NatTraverser
+    public static boolean NT_RELAY_FAST_PATH = true;
     // HOLE-PUNCHING CLIENT DEFAULTS
     public static int HP_DELTA = 1;
     public final static int HP_SCANNING_RETRIES = 5;
     // Timeout a hpSession if it hasn't been used for this period of time.
     public final static int HP_SESSION_EXPIRATION = 55 * 1000;
+    // Back off from hole punching to a node with a mechanism that failed for
+    // HP_FAILURE_BACKOFF * 2^(failures-1) ms (relay to it instead), at most
+    // HP_FAILURE_MAX_BACKOFF ms. One failure is forgotten per HP_FAILURE_DECAY ms.
+    public static int HP_FAILURE_BACKOFF = 30 * 1000;
+    public static int HP_FAILURE_MAX_BACKOFF = 30 * 60 * 1000;
+    public static int HP_FAILURE_DECAY = 10 * 60 * 1000;
+    // Heartbeats are sent by one timer that checks all connections every
+    // HP_HEARTBEAT_TICK ms, so a heartbeat can be up to this late.
+    public static int HP_HEARTBEAT_TICK = 5 * 1000;
+    // PRC burst mode: probe this many predicted ports at once, HP_PRC_BURST_PACING
+    // ms apart, instead of one port at a time. 1 turns burst mode off.
+    public static int HP_PRC_BURST_SIZE = 1;
+    public static int HP_PRC_BURST_PACING = 2;
+    // Learn which hole punching mechanism works best for each pair of NAT
+    // types, trying another feasible one with probability HP_MECHANISM_EXPLORATION.
+    // A mechanism needs HP_MECHANISM_MIN_SAMPLES attempts before it is
+    // preferred or avoided for its success rate.
+    public static boolean HP_LEARN_MECHANISMS = false;
+    public static double HP_MECHANISM_EXPLORATION = 0.05;
+    public static int HP_MECHANISM_MIN_SAMPLES = 5;
+    public static double HP_MECHANISM_MIN_SUCCESS_RATE = 0.5;
+    // RendezvousServer shards, each with its own handler thread. Clients are
+    // partitioned between them by id. 1 runs a single RendezvousServer.
+    public static int RS_NUM_SHARDS = 1;
+    // RendezvousServer registrations and hole punching sessions are expired
+    // within RS_EXPIRY_TICK ms of their deadline.
+    public static int RS_EXPIRY_TICK = 1000;
+    // RendezvousServer admission control. New registrations are rejected when
+    // the cpu load (0..1 of all cores), the delay of the shards' event queues
+    // (ms), or the relayed bytes/sec pass their watermark. 0 disables a watermark.
+    public static double RS_MAX_CPU_LOAD = 0.9d;
+    public static int RS_MAX_QUEUE_DELAY = 1000;
+    public static int RS_MAX_RELAY_BYTES_PER_SEC = 0;
+    // above RS_SHED_LOAD percent of a watermark, the server asks its most
+    // expensive child to move to another parent, once per RS_SHED_DELAY,
+    // until the load is below 100 percent again
+    public static int RS_SHED_LOAD = 120;
+    // a shed child is relayed for RS_SHED_DELAY ms while it finds another
+    // parent, and rejected clients wait as long before asking again
+    public static int RS_SHED_DELAY = 30 * 1000;
+    // RendezvousServer REGISTRATION SNAPSHOTS (0 disables writing snapshots).
+    // Restored registrations are kept for at least RS_RESTORE_GRACE_PERIOD ms
+    // while the children are probed.
+    public static int RS_SNAPSHOT_PERIOD = 10 * 1000;
+    public static long RS_SNAPSHOT_MAX_AGE = 10 * 60 * 1000L;
+    public static int RS_RESTORE_GRACE_PERIOD = 30 * 1000;
     // LEDBAT Defaults
     public static final int LB_MAX_PIPELINE_SIZE = 100;
     public static final int LB_DEFAULT_PIPELINE_SIZE = 15;
@@ -498,6 +585,22 @@ public class VodConfig extends BaseCommandLineConfig {
         return isSaved;
     }
 
+    public static String getRttSnapshotFile(int nodeId) {
+        return BaseCommandLineConfig.GVOD_HOME + File.separator + "rtts-" + nodeId + ".bin";
+    }
+
+    public static String getRegistrationSnapshotFile(int nodeId) {
+        return BaseCommandLineConfig.GVOD_HOME + File.separator + "children-" + nodeId + ".bin";
+    }
+
+    public static String getNatProfileFile(int nodeId) {
+        return BaseCommandLineConfig.GVOD_HOME + File.separator + "nat-" + nodeId + ".bin";
+    }
+
+    public static String getHpStatsFile(int nodeId) {
+        return BaseCommandLineConfig.GVOD_HOME + File.separator + "hp-" + nodeId + ".bin";
+    }
+
     public static Boolean removeSavedNatType() {
         File sConfig = new File(STARTUP_CONFIG_FILE);
         return sConfig.delete();
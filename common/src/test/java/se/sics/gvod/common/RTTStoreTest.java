@@ -4,11 +4,14 @@ package se.sics.gvod.common;
  * To change this template, choose Tools | Templates
  * and open the template in the editor.
  */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.net.InetAddress;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -79,28 +82,56 @@ public class RTTStoreTest {
 
     @Test
     public void testDecay() {
-        try {
-            for (int i = 0; i < 450; i++) {
-                RTTStore.addSample(nodeId, vodAddress1, 10);
-            }
+        for (int i = 0; i < 450; i++) {
+            RTTStore.addSample(nodeId, vodAddress1, 10);
+        }
 
-            for (int i = 0; i < 5; i++) {
-                RTTStore.addSample(nodeId, vodAddress2, 20);
-            }
+        for (int i = 0; i < 5; i++) {
+            RTTStore.addSample(nodeId, vodAddress2, 20);
+        }
+
+        RTT rtt2 = RTTStore.getRtt(nodeId, vodAddress2);
+        long rto = rtt2.getRTO();
 
-            RTT rtt2 = RTTStore.getRtt(nodeId, vodAddress2);
-            
-            rtt2.decay();
-            long rto = rtt2.getRTO();
-            
-            Thread.sleep(RTTStore.SAMPLE_VALIDITY_PERIOD + 500);
-            rtt2.decay();
-            assert (rtt2.getRTO() >= rto);
-        } catch (InterruptedException ex) {
-            Logger.getLogger(RTTStoreTest.class.getName()).log(Level.SEVERE, null, ex);
+        RTTStore.instance(nodeId).catchUpDecay(System.currentTimeMillis()
+                + RTTStore.SAMPLE_VALIDITY_PERIOD + 2 * RTTStore.DECAY_PERIOD);
+        assert (rtt2.getRTO() >= rto);
+    }
+
+    @Test
+    public void testDecayReordersBest() {
+        RTTStore store = RTTStore.instance(nodeId);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            store.addSample(vodAddress1, 100, now, true);
         }
+        // vodAddress2 is contacted later, so only vodAddress1 decays
+        long later = now + RTTStore.SAMPLE_VALIDITY_PERIOD + 2 * RTTStore.DECAY_PERIOD;
+        for (int i = 0; i < 20; i++) {
+            store.addSample(vodAddress2, 120, later, true);
+        }
+        assert (store.getOnAvgBest(1, new HashSet<Address>()).get(0).getAddress()
+                .equals(vodAddress1));
+
+        RttStats before = store.getRtt(vodAddress1).getRttStats();
+        store.catchUpDecay(later);
+        RTT decayed = store.getRtt(vodAddress1);
+        assert (decayed.getRttStats().getRtto() != before.getRtto());
+
+        List<RTT> best = store.getOnAvgBest(2, new HashSet<Address>());
+        assert (best.size() == 2);
+        assert (best.get(0).getAddress().equals(vodAddress2));
+        assert (best.get(1).getAddress().equals(vodAddress1));
+        assert (best.get(0).getRTO() <= best.get(1).getRTO());
+        List<RTT> better = store.getOnAvgBetterRtts(0, decayed.getRTO(), 0);
+        assert (better.size() == 1);
+        assert (better.get(0).getAddress().equals(vodAddress2));
+
+        // the decayed RTT is still found in the index
+        store.removeSamples(vodAddress1);
+        assert (store.getOnAvgBest(2, new HashSet<Address>()).size() == 1);
     }
-    
+
     @Test
     public void testGetOnAvgBetterRtts() {
         List<RTT> allOnAvgBetterRtts = RTTStore.getAllOnAvgBetterRtts(nodeId, 100, 0);
@@ -132,5 +163,114 @@ public class RTTStoreTest {
         assert (onAvgBetterRtts2.size() == 1);
         assert (onAvgBetterRtts2.get(0).getAddress().equals(vodAddress1));
     }
+
+    @Test
+    public void testStoresArePerNode() {
+        RTTStore.addSample(nodeId, vodAddress1, 10);
+        assert (RTTStore.getRtt(nodeId + 1, vodAddress1) == null);
+        assert (RTTStore.instance(nodeId + 1).size() == 0);
+        assert (RTTStore.instance(nodeId).size() == 1);
+        RTTStore.removeSamples(nodeId, vodAddress1);
+        assert (RTTStore.instance(nodeId).size() == 0);
+        assert (RTTStore.getOnAvgBest(nodeId, 1).isEmpty());
+    }
+
+    @Test
+    public void testBestOrderedByRto() throws Exception {
+        InetAddress ip = InetAddress.getByName("192.168.0.3");
+        for (int i = 0; i < 10; i++) {
+            VodAddress addr = ToVodAddr.systemAddr(new Address(ip, 9000 + i, 100 + i));
+            RTTStore.addSample(nodeId, addr, 100 - (i * 5));
+        }
+        List<RTT> best = RTTStore.getOnAvgBest(nodeId, 3);
+        assert (best.size() == 3);
+        assert (best.get(0).getAddress().getId() == 109);
+        assert (best.get(1).getAddress().getId() == 108);
+        assert (best.get(2).getAddress().getId() == 107);
+
+        // re-ordered when a new sample changes the RTO
+        VodAddress worst = ToVodAddr.systemAddr(new Address(ip, 9000, 100));
+        for (int i = 0; i < 50; i++) {
+            RTTStore.addSample(nodeId, worst, 1);
+        }
+        assert (RTTStore.getOnAvgBest(nodeId, 1).get(0).getAddress().getId() == 100);
+
+        assert (RTTStore.getOnAvgBetterRtts(nodeId, 4, 1000, 0).size() == 4);
+        assert (RTTStore.getAllOnAvgBetterRtts(nodeId, 1000, 0).size() == 10);
+    }
+
+    @Test
+    public void testPercentileBest() throws Exception {
+        InetAddress ip = InetAddress.getByName("192.168.0.3");
+        // a node with a low p90 but an outlier that inflates its RTO
+        VodAddress spiky = ToVodAddr.systemAddr(new Address(ip, 9000, 100));
+        VodAddress steady = ToVodAddr.systemAddr(new Address(ip, 9001, 101));
+        for (int i = 0; i < 20; i++) {
+            RTTStore.addSample(nodeId, spiky, 20);
+            RTTStore.addSample(nodeId, steady, 60);
+        }
+        RTTStore.addSample(nodeId, spiky, 2000);
+        assert (RTTStore.getOnAvgBest(nodeId, 1).get(0).getAddress().equals(steady));
+        List<RTT> best = RTTStore.getOnPercentileBest(nodeId, 1, 0.9d, new HashSet<Address>());
+        assert (best.size() == 1);
+        assert (best.get(0).getAddress().equals(spiky));
+
+        // placeholders change the RTO, not the percentiles
+        RTT rtt = RTTStore.getRtt(nodeId, steady);
+        long p90 = rtt.getPercentileRto(0.9d);
+        RTTStore.addPlaceholderSample(nodeId, steady, 5000);
+        assert (rtt.getNumSamples() == 20);
+        assert (rtt.getPercentileRto(0.9d) == p90);
+
+        // only nodes with a low RTO are ranked
+        for (int i = 0; i < 2 * RTTStore.PERCENTILE_CANDIDATES; i++) {
+            VodAddress addr = ToVodAddr.systemAddr(new Address(ip, 9010 + i, 110 + i));
+            for (int j = 0; j < 20; j++) {
+                RTTStore.addSample(nodeId, addr, 30);
+            }
+        }
+        assert (RTTStore.getOnPercentileBest(nodeId, 1, 0.9d, new HashSet<Address>())
+                .get(0).getAddress().getId() >= 110);
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            RTTStore.addSample(nodeId, vodAddress1, 10);
+            RTTStore.addSample(nodeId, vodAddress2, 50);
+        }
+        long now = System.currentTimeMillis();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        assert (RTTStore.instance(nodeId).writeSnapshot(new DataOutputStream(bytes), now) == 2);
+
+        // restored an hour later
+        RTTStore restored = RTTStore.instance(nodeId + 1);
+        long hour = 60 * 60 * 1000;
+        assert (restored.readSnapshot(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())), now + hour, 24 * hour) == 2);
+        RTT r1 = restored.getRtt(vodAddress1);
+        assert (r1 != null);
+        assert (r1.getAddress().getPeerAddress().equals(vodAddress1.getPeerAddress()));
+        assert (r1.getRTO() >= RTTStore.getRtt(nodeId, vodAddress1).getRTO());
+        assert (restored.getOnAvgBest(1, new HashSet<Address>()).get(0).getAddress().getId()
+                == vodAddress1.getId());
+
+        // a later snapshot decays the RTTs that weren't contacted, and keeps
+        // the index in order
+        RTTStore store = RTTStore.instance(nodeId);
+        long rto1 = store.getRtt(vodAddress1).getRTO();
+        long later = now + RTTStore.SAMPLE_VALIDITY_PERIOD + 2 * RTTStore.DECAY_PERIOD;
+        store.writeSnapshot(new DataOutputStream(new ByteArrayOutputStream()), later);
+        assert (store.getRtt(vodAddress1).getRTO() != rto1);
+        List<RTT> best = store.getOnAvgBest(2, new HashSet<Address>());
+        assert (best.get(0).getRTO() <= best.get(1).getRTO());
+        store.removeSamples(vodAddress2);
+        assert (store.getOnAvgBest(2, new HashSet<Address>()).size() == 1);
+
+        // too old
+        RTTStore stale = RTTStore.instance(nodeId + 2);
+        assert (stale.readSnapshot(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())), now + hour, hour) == 0);
+    }
  
 }
@@ -0,0 +1,72 @@
+package se.sics.gvod.common;
+
+import java.net.InetAddress;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import se.sics.gvod.address.Address;
+import se.sics.gvod.common.RTTStore.RTT;
+import se.sics.gvod.common.util.ToVodAddr;
+
+/**
+ *
+ * @author jdowling
+ */
+public class RttHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        RttHistogram h = new RttHistogram();
+        assertEquals(-1, h.getPercentile(0.5d));
+        assertEquals(0, h.getCount());
+    }
+
+    @Test
+    public void testPercentiles() {
+        RttHistogram h = new RttHistogram();
+        for (int i = 1; i <= 100; i++) {
+            h.add(i * 10);
+        }
+        assertEquals(500, h.getPercentile(0.5d), 500 * 0.1d);
+        assertEquals(950, h.getPercentile(0.95d), 950 * 0.1d);
+        assertEquals(990, h.getPercentile(0.99d), 990 * 0.1d);
+        assertEquals(1000, h.getPercentile(1.0d));
+        assertEquals(10, h.getMin());
+    }
+
+    @Test
+    public void testOutlier() {
+        RttHistogram h = new RttHistogram();
+        for (int i = 0; i < 99; i++) {
+            h.add(50);
+        }
+        h.add(10000);
+        assertEquals(50, h.getPercentile(0.95d), 50 * 0.1d);
+        assertEquals(10000, h.getPercentile(1.0d));
+    }
+
+    @Test
+    public void testAging() {
+        RttHistogram h = new RttHistogram(100);
+        for (int i = 0; i < 100; i++) {
+            h.add(500);
+        }
+        for (int i = 0; i < 200; i++) {
+            h.add(20);
+        }
+        assertTrue(h.getCount() <= 100);
+        assertEquals(20, h.getPercentile(0.9d), 20 * 0.1d);
+    }
+
+    @Test
+    public void testRttPercentileRto() throws Exception {
+        RTT rtt = new RTT(ToVodAddr.systemAddr(new Address(
+                InetAddress.getByName("192.168.0.1"), 8081, 1)), 10);
+        rtt.addSample(100);
+        // not enough samples, falls back on the RTO
+        assertEquals(rtt.getRTO(), rtt.getPercentileRto(0.99d));
+        for (int i = 0; i < RTTStore.MIN_SAMPLES_FOR_PERCENTILE; i++) {
+            rtt.addSample(100);
+        }
+        assertEquals(100, rtt.getPercentileRto(0.99d));
+    }
+}
@@ -0,0 +1,96 @@
+package se.sics.gvod.common;
+
+import java.util.Random;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jdowling
+ */
+public class VivaldiTest {
+
+    private static final int NUM_NODES = 50;
+    private static final int NUM_NEIGHBOURS = 8;
+
+    @After
+    public void tearDown() {
+        Vivaldi.cleanup();
+    }
+
+    @Test
+    public void testUnknownCoordinate() {
+        assertEquals(-1, Vivaldi.estimateRtt(null, VivaldiCoordinate.ORIGIN));
+        assertEquals(-1, Vivaldi.estimateRtt(VivaldiCoordinate.ORIGIN, null));
+        Vivaldi v = Vivaldi.instance(1);
+        v.update(null, 100);
+        v.update(VivaldiCoordinate.ORIGIN, -1);
+        assertEquals(0, v.getNumUpdates());
+        assertSame(v, Vivaldi.instance(1));
+    }
+
+    @Test
+    public void testTwoNodes() {
+        Vivaldi a = Vivaldi.instance(1);
+        Vivaldi b = Vivaldi.instance(2);
+        for (int i = 0; i < 100; i++) {
+            a.update(b.getCoordinate(), 100);
+            b.update(a.getCoordinate(), 100);
+        }
+        long estimate = Vivaldi.estimateRtt(a.getCoordinate(), b.getCoordinate());
+        assertEquals(100, estimate, 10);
+        assertTrue(a.getCoordinate().getError() < 0.2d);
+    }
+
+    /**
+     * Nodes placed on a plane, where the rtt is proportional to the distance,
+     * should find coordinates that predict the rtt to nodes they never sampled.
+     */
+    @Test
+    public void testEstimatesUnsampledNodes() {
+        Random r = new Random(1);
+        double[][] pos = new double[NUM_NODES][2];
+        int[][] neighbours = new int[NUM_NODES][NUM_NEIGHBOURS];
+        boolean[][] sampled = new boolean[NUM_NODES][NUM_NODES];
+        for (int i = 0; i < NUM_NODES; i++) {
+            pos[i][0] = r.nextDouble() * 200;
+            pos[i][1] = r.nextDouble() * 200;
+            for (int k = 0; k < NUM_NEIGHBOURS; k++) {
+                int j = (i + 1 + r.nextInt(NUM_NODES - 1)) % NUM_NODES;
+                neighbours[i][k] = j;
+                sampled[i][j] = true;
+                sampled[j][i] = true;
+            }
+        }
+        for (int round = 0; round < 300; round++) {
+            for (int i = 0; i < NUM_NODES; i++) {
+                int j = neighbours[i][r.nextInt(NUM_NEIGHBOURS)];
+                Vivaldi.instance(i).update(Vivaldi.instance(j).getCoordinate(),
+                        rtt(pos, i, j));
+            }
+        }
+        double sum = 0;
+        int count = 0;
+        for (int i = 0; i < NUM_NODES; i++) {
+            for (int j = i + 1; j < NUM_NODES; j++) {
+                if (sampled[i][j]) {
+                    continue;
+                }
+                double actual = rtt(pos, i, j);
+                long estimate = Vivaldi.estimateRtt(Vivaldi.instance(i).getCoordinate(),
+                        Vivaldi.instance(j).getCoordinate());
+                sum += Math.abs(estimate - actual) / actual;
+                count++;
+            }
+        }
+        assertTrue(count > 0);
+        assertTrue("avg relative error " + sum / count, sum / count < 0.2d);
+    }
+
+    private static double rtt(double[][] pos, int i, int j) {
+        double dx = pos[i][0] - pos[j][0];
+        double dy = pos[i][1] - pos[j][1];
+        return 10 + Math.sqrt(dx * dx + dy * dy);
+    }
+}
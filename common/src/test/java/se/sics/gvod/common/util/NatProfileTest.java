@@ -0,0 +1,111 @@
+package se.sics.gvod.common.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import se.sics.gvod.address.Address;
+import se.sics.gvod.net.Nat;
+
+/**
+ *
+ * @author jdowling
+ */
+public class NatProfileTest {
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private NatProfile roundTrip(NatProfile p) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        p.write(out);
+        out.close();
+        return NatProfile.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Nat nat = new Nat(Nat.Type.NAT, Nat.MappingPolicy.HOST_DEPENDENT,
+                Nat.AllocationPolicy.PORT_CONTIGUITY, Nat.FilteringPolicy.PORT_DEPENDENT,
+                2, 45 * 1000);
+        Set<Address> parents = new HashSet<Address>();
+        parents.add(new Address(InetAddress.getByName("192.168.1.13"), 8888, 10));
+        parents.add(new Address(InetAddress.getByName("::1"), 9999, 3));
+        NatProfile p = roundTrip(new NatProfile(nat, parents, 1234L, 5678L));
+
+        assertTrue(NatProfile.sameNat(nat, p.getNat()));
+        assertEquals(45 * 1000, p.getNat().getBindingTimeout());
+        assertEquals(nat.toString(), p.getNat().toString());
+        assertEquals(parents, p.getParents());
+        assertEquals(1234L, p.getFingerprint());
+        assertEquals(5678L, p.getTimestamp());
+
+        NatProfile open = roundTrip(new NatProfile(new Nat(Nat.Type.OPEN),
+                new HashSet<Address>(), 1L, 2L));
+        assertTrue(open.getNat().isOpen());
+        assertTrue(open.getParents().isEmpty());
+    }
+
+    @Test
+    public void testValidity() {
+        NatProfile p = new NatProfile(new Nat(Nat.Type.OPEN), new HashSet<Address>(),
+                42L, 10 * DAY);
+        assertTrue(p.isValid(42L, 10 * DAY + 1000, DAY));
+        assertFalse(p.isValid(43L, 10 * DAY + 1000, DAY));
+        assertFalse(p.isValid(42L, 11 * DAY, DAY));
+        // clock went backwards
+        assertFalse(p.isValid(42L, 9 * DAY, DAY));
+
+        Nat n1 = new Nat(Nat.Type.NAT, Nat.MappingPolicy.ENDPOINT_INDEPENDENT,
+                Nat.AllocationPolicy.PORT_PRESERVATION, Nat.FilteringPolicy.ENDPOINT_INDEPENDENT,
+                0, 30 * 1000);
+        Nat n2 = new Nat(Nat.Type.NAT, Nat.MappingPolicy.ENDPOINT_INDEPENDENT,
+                Nat.AllocationPolicy.PORT_PRESERVATION, Nat.FilteringPolicy.ENDPOINT_INDEPENDENT,
+                0, 90 * 1000);
+        Nat n3 = new Nat(Nat.Type.NAT, Nat.MappingPolicy.ENDPOINT_INDEPENDENT,
+                Nat.AllocationPolicy.PORT_PRESERVATION, Nat.FilteringPolicy.PORT_DEPENDENT,
+                0, 30 * 1000);
+        // binding timeouts are measured, they don't make it a different NAT type
+        assertTrue(NatProfile.sameNat(n1, n2));
+        assertFalse(NatProfile.sameNat(n1, n3));
+        assertFalse(NatProfile.sameNat(n1, new Nat(Nat.Type.OPEN)));
+    }
+
+    @Test
+    public void testFile() throws IOException {
+        File f = File.createTempFile("natprofile", ".bin");
+        f.delete();
+        try {
+            assertNull(NatProfile.load(f));
+            long fp = NatProfile.networkFingerprint();
+            assertEquals(fp, NatProfile.networkFingerprint());
+            new NatProfile(new Nat(Nat.Type.OPEN), new HashSet<Address>(), fp, 1L).save(f);
+            NatProfile p = NatProfile.load(f);
+            assertEquals(fp, p.getFingerprint());
+
+            FileOutputStream out = new FileOutputStream(f);
+            out.write(new byte[]{1, 2, 3, 4, 5});
+            out.close();
+            try {
+                NatProfile.load(f);
+                fail("Loaded a corrupt profile");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            f.delete();
+        }
+        assertFalse(NatProfile.fingerprint(Arrays.asList("eth0[10.0.0.2]", "gw=a"))
+                == NatProfile.fingerprint(Arrays.asList("eth0[10.0.0.3]", "gw=a")));
+    }
+}
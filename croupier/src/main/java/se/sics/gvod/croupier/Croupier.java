@@ -277,7 +277,12 @@ public class Croupier extends MsgRetryComponent {
 
                 Long timeStarted = shuffleTimes.get(event.getTimeoutId().getId());
                 if (timeStarted != null) {
-                    RTTStore.addSample(self.getId(), event.getVodSource(), System.currentTimeMillis() - timeStarted);
+                    long rtt = System.currentTimeMillis() - timeStarted;
+                    RTTStore.addSample(self.getId(), event.getVodSource(), rtt);
+                    // responses from private nodes are relayed, so the rtt is not to their coordinate
+                    if (event.getVodSource().isOpen()) {
+                        Vivaldi.instance(self.getId()).update(event.getDesc().getCoordinate(), rtt);
+                    }
                     logger.debug(compName + "Adding a RTT sample. TimeoutId: {}. Rtt={}", event.getTimeoutId().getId(), timeStarted);
                 } else {
                     logger.warn(compName + "Time started was null when trying to add a RTT sample. TimeoutId: {}",
@@ -307,7 +312,7 @@ public class Croupier extends MsgRetryComponent {
                 // with a default RTO for the descriptor.
                 for (VodDescriptor vd : recPublicDescs) {
                     if (!RTTStore.containsPublicSample(self.getId(), vd.getVodAddress())) {
-                        RTTStore.addSample(self.getId(), vd.getVodAddress(),
+                        RTTStore.addPlaceholderSample(self.getId(), vd.getVodAddress(),
                                 config.getRto());
                     }
                 }
@@ -330,7 +335,7 @@ public class Croupier extends MsgRetryComponent {
             shuffleTimes.remove(event.getTimeoutId().getId());
 
             VodAddress suspected = event.getPeer();
-            RTTStore.addSample(self.getId(), suspected, config.getRto() * 2);
+            RTTStore.addPlaceholderSample(self.getId(), suspected, config.getRto() * 2);
 
             if (suspected.isOpen()) {
                 publicView.timedOutForShuffle(suspected);
@@ -14,6 +14,8 @@ import se.sics.gvod.common.RTTStore;
 import se.sics.gvod.common.RTTStore.RTT;
 import se.sics.gvod.common.Self;
 import se.sics.gvod.common.SelfFactory;
+import se.sics.gvod.common.Vivaldi;
+import se.sics.gvod.common.VivaldiCoordinate;
 import se.sics.gvod.config.VodConfig;
 import se.sics.gvod.common.util.ToVodAddr;
 import se.sics.gvod.hp.msgs.HpRegisterMsg;
@@ -300,6 +302,7 @@ public final class CroupierStats {
         sb.append(reportReboots(overlayId));
 //        sb.append(reportParentChangeEvents(overlayId));
         sb.append(reportHitStats(overlayId));
+        sb.append(reportVivaldiError(overlayId));
 //        sb.append(reportAvgRTT(overlayId));
 //        sb.append(reportConnectionTimes(overlayId));
 //        sb.append(reportOldParents(overlayId));
@@ -720,6 +723,45 @@ public final class CroupierStats {
         return str;
     }
 
+//-------------------------------------------------------------------
+    // Compares the rtt estimated from the Vivaldi coordinates of each node and
+    // its partners with the rtt from the network model (2 * one-way latency).
+    private static String reportVivaldiError(int overlayId) {
+        StringBuilder sb = new StringBuilder("---\n");
+        List<Double> errors = new ArrayList<Double>();
+        for (Map.Entry<VodAddress, Stats> entry : nodeMap.entrySet()) {
+            Stats info = entry.getValue();
+            if (info.getOverlayId() != overlayId) {
+                continue;
+            }
+            VivaldiCoordinate c = Vivaldi.instance(info.getNodeId()).getCoordinate();
+            for (VodAddress partner : info.getAllPartners()) {
+                VivaldiCoordinate pc = Vivaldi.instance(partner.getId()).getCoordinate();
+                long estimate = Vivaldi.estimateRtt(c, pc);
+                RewriteableMsg m = new CroupierStats.DummyMessage(
+                        entry.getKey().getPeerAddress(), partner.getPeerAddress());
+                long actual = 2 * networkModel.getLatencyMs(m);
+                if (estimate < 0 || actual <= 0) {
+                    continue;
+                }
+                errors.add(Math.abs(estimate - actual) / (double) actual);
+            }
+        }
+        if (errors.isEmpty()) {
+            return sb.append("vivaldi relative error: no samples\n").toString();
+        }
+        Collections.sort(errors);
+        double sum = 0;
+        for (double e : errors) {
+            sum += e;
+        }
+        sb.append(String.format("vivaldi relative error: median %.2f, 90th %.2f, avg %.2f (%d pairs)\n",
+                errors.get(errors.size() / 2),
+                errors.get((int) (errors.size() * 0.9d)),
+                sum / errors.size(), errors.size()));
+        return sb.toString();
+    }
+
 //-------------------------------------------------------------------
     private static String reportRandomness(int overlayId) {
         String str = "---\n";
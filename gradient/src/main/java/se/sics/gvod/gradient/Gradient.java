@@ -15,6 +15,7 @@ import java.util.Set;
 import java.util.TreeMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.sics.gvod.address.Address;
 import se.sics.gvod.common.RTTStore;
 import se.sics.gvod.common.RTTStore.RTT;
 import se.sics.gvod.common.RetryComponentDelegator;
@@ -56,6 +57,10 @@ import se.sics.kompics.Stop;
  */
 public class Gradient extends MsgRetryComponent {
 
+    // percentiles of the RTT to the shuffle peer used for the retry timeout
+    // and for the delay before hedging a sets exchange
+    private static final double RETRY_PERCENTILE = 0.99d;
+    private static final double HEDGE_PERCENTILE = 0.95d;
     private final Logger logger = LoggerFactory.getLogger(Gradient.class);
     private Negative<GradientPort> gradient = negative(GradientPort.class);
     private Positive<PeerSamplePort> croupier = positive(PeerSamplePort.class);
@@ -311,12 +316,32 @@ public class Gradient extends MsgRetryComponent {
 
                 // TODO: get setsExchangeDelay from RTT
                 RTT retryTime = RTTStore.getRtt(self.getId(), shuffleDest);
-                long rt = (retryTime == null) ? 2000 : retryTime.getRTO();
+                long rt = (retryTime == null) ? 2000
+                        : retryTime.getPercentileRto(RETRY_PERCENTILE);
                 ScheduleRetryTimeout schedule
                         = new ScheduleRetryTimeout(rt, 0);
                 GradientSetsExchangeMsg.RequestRetryTimeout requestTimeout
                         = new GradientSetsExchangeMsg.RequestRetryTimeout(schedule, request);
-                TimeoutId id = delegator.doRetry(requestTimeout);
+                // Any similar peer can answer a sets exchange, so if the shuffle
+                // peer is slower than usual, hedge to another open similar peer.
+                long hedgeDelay;
+                if (retryTime == null) {
+                    hedgeDelay = rt;
+                } else if (retryTime.getNumSamples() >= RTTStore.MIN_SAMPLES_FOR_PERCENTILE) {
+                    hedgeDelay = retryTime.getPercentile(HEDGE_PERCENTILE);
+                } else {
+                    hedgeDelay = (long) (retryTime.getRttStats().getAvgRTT()
+                            + 2 * retryTime.getRttStats().getVarRTT());
+                }
+                List<Address> candidates = getHedgeCandidates(shuffleDest);
+                TimeoutId id;
+                // the context is the shuffle peer, as a hedge rewrites the
+                // destination of the request
+                if (candidates.size() > 1 && hedgeDelay > 0 && hedgeDelay < rt) {
+                    id = delegator.doHedge(requestTimeout, candidates, hedgeDelay, shuffleDest);
+                } else {
+                    id = delegator.doRetry(requestTimeout, shuffleDest);
+                }
 
                 logger.info(compName + "GradientSetsExchange.Request sent. "
                         + "clientId {} remoteId {} timeoutId"
@@ -330,6 +355,27 @@ public class Gradient extends MsgRetryComponent {
             }
         }
     };
+    /**
+     * Hedged msgs are sent by rewriting the destination address, so the
+     * NatTraverser can only deliver them to open nodes.
+     */
+    private List<Address> getHedgeCandidates(VodAddress shuffleDest) {
+        List<Address> candidates = new ArrayList<Address>();
+        if (!shuffleDest.isOpen()) {
+            return candidates;
+        }
+        candidates.add(shuffleDest.getPeerAddress());
+        for (VodDescriptor d : similarSet.getSimilarPeers(numberOfBestSimilarPeers)) {
+            VodAddress a = d.getVodAddress();
+            if (a.isOpen() && a.getId() != shuffleDest.getId()
+                    && a.getId() != self.getId()) {
+                candidates.add(a.getPeerAddress());
+                break;
+            }
+        }
+        return candidates;
+    }
+
     Handler<GradientSetsExchangeMsg.Request> handleSetsExchangeRequest = new Handler<GradientSetsExchangeMsg.Request>() {
 
         @Override
@@ -376,14 +422,18 @@ public class Gradient extends MsgRetryComponent {
 
         @Override
         public void handle(RequestRetryTimeout event) {
+            VodAddress shuffleDest = (VodAddress) delegator.doGetContext(event.getTimeoutId());
             if (delegator.doCancelRetry(event.getTimeoutId())) {
                 GradientStats.instance(self).incTimeouts();
+                if (shuffleDest == null) {
+                    shuffleDest = event.getRequestMsg().getVodDestination();
+                }
                 logger.info(compName + "GradientSetsExchangeMsg.RequestRetryTimeout "
                         + event.getRequestMsg().getVodSource().toString()
-                        + "to " + event.getRequestMsg().getVodDestination().toString()
+                        + "to " + shuffleDest.toString()
                         + " TimeoutId " + event.getTimeoutId());
                 // remove from gradient neighbours
-                similarSet.removeNeighbour(event.getRequestMsg().getVodDestination());
+                similarSet.removeNeighbour(shuffleDest);
             }
         }
     };
@@ -132,4 +132,37 @@ public class GradientUnitTest extends VodRetryComponentTestCase {
         assert(gradient.similarSet.getBestSimilarPeerAddress().equals(n3.getVodAddress()));
         
     }
+
+    @Test
+    public void testTimeoutRemovesShuffleDest() {
+        gradient.handleCroupierSample.handle(new CroupierSample(nodes));
+        SchedulePeriodicTimeout st = new SchedulePeriodicTimeout(0, 1000);
+        GradientSetsExchangeCycle gsec = new GradientSetsExchangeCycle(st);
+        st.setTimeoutEvent(gsec);
+        gradient.handleCycle.handle(gsec);
+        events = pollEvent(1);
+        GradientSetsExchangeMsg.Request req = (GradientSetsExchangeMsg.Request) events.getFirst();
+        VodAddress shuffleDest = req.getVodDestination();
+        GradientSetsExchangeMsg.RequestRetryTimeout timeout =
+                (GradientSetsExchangeMsg.RequestRetryTimeout) timeouts.get(req.getTimeoutId());
+
+        // a hedge rewrites the destination of the request
+        VodAddress hedgeDest = null;
+        for (VodDescriptor d : nodes) {
+            if (d.getVodAddress().getId() != shuffleDest.getId()) {
+                hedgeDest = d.getVodAddress();
+            }
+        }
+        req.rewriteDestination(hedgeDest.getPeerAddress());
+
+        gradient.handleSetsExchangeRequestTimeout.handle(timeout);
+        boolean shuffleDestRemoved = true;
+        boolean hedgeDestKept = false;
+        for (VodDescriptor d : gradient.similarSet.getAllSimilarPeers()) {
+            shuffleDestRemoved &= d.getVodAddress().getId() != shuffleDest.getId();
+            hedgeDestKept |= d.getVodAddress().getId() == hedgeDest.getId();
+        }
+        assert (shuffleDestRemoved);
+        assert (hedgeDestKept);
+    }
 }
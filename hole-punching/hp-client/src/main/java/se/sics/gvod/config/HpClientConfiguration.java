@@ -11,6 +11,16 @@ public class HpClientConfiguration extends AbstractConfiguration<HpClientConfigu
     int rto;
     int rtoRetries;
     double rtoScale;
+    int failureBackoff;
+    int failureMaxBackoff;
+    int failureDecay;
+    int heartbeatTick;
+    int prcBurstSize;
+    int prcBurstPacing;
+    boolean learnMechanisms;
+    double mechanismExploration;
+    int mechanismMinSamples;
+    double mechanismMinSuccessRate;
 
     /**
      * Default constructor comes first.
@@ -22,7 +32,17 @@ public class HpClientConfiguration extends AbstractConfiguration<HpClientConfigu
                 true,
                 VodConfig.DEFAULT_RTO,
                 VodConfig.DEFAULT_RTO_RETRIES,
-                VodConfig.DEFAULT_RTO_SCALE
+                VodConfig.DEFAULT_RTO_SCALE,
+                VodConfig.HP_FAILURE_BACKOFF,
+                VodConfig.HP_FAILURE_MAX_BACKOFF,
+                VodConfig.HP_FAILURE_DECAY,
+                VodConfig.HP_HEARTBEAT_TICK,
+                VodConfig.HP_PRC_BURST_SIZE,
+                VodConfig.HP_PRC_BURST_PACING,
+                VodConfig.HP_LEARN_MECHANISMS,
+                VodConfig.HP_MECHANISM_EXPLORATION,
+                VodConfig.HP_MECHANISM_MIN_SAMPLES,
+                VodConfig.HP_MECHANISM_MIN_SUCCESS_RATE
                 );
     }
 
@@ -33,13 +53,33 @@ public class HpClientConfiguration extends AbstractConfiguration<HpClientConfigu
             int scanRetries, boolean scanningEnabled,
             int rto,
             int rtoRetries,
-            double rtoScale) {
+            double rtoScale,
+            int failureBackoff,
+            int failureMaxBackoff,
+            int failureDecay,
+            int heartbeatTick,
+            int prcBurstSize,
+            int prcBurstPacing,
+            boolean learnMechanisms,
+            double mechanismExploration,
+            int mechanismMinSamples,
+            double mechanismMinSuccessRate) {
         this.scanRetries = scanRetries;
         this.sessionExpirationTime = sessionExpirationTime;
         this.scanningEnabled = scanningEnabled;
         this.rto = rto;
         this.rtoRetries = rtoRetries;
         this.rtoScale = rtoScale;
+        this.failureBackoff = failureBackoff;
+        this.failureMaxBackoff = failureMaxBackoff;
+        this.failureDecay = failureDecay;
+        this.heartbeatTick = heartbeatTick;
+        this.prcBurstSize = prcBurstSize;
+        this.prcBurstPacing = prcBurstPacing;
+        this.learnMechanisms = learnMechanisms;
+        this.mechanismExploration = mechanismExploration;
+        this.mechanismMinSamples = mechanismMinSamples;
+        this.mechanismMinSuccessRate = mechanismMinSuccessRate;
     }
 
     public static HpClientConfiguration build() {
@@ -70,6 +110,46 @@ public class HpClientConfiguration extends AbstractConfiguration<HpClientConfigu
         return sessionExpirationTime;
     }
 
+    public int getFailureBackoff() {
+        return failureBackoff;
+    }
+
+    public int getFailureMaxBackoff() {
+        return failureMaxBackoff;
+    }
+
+    public int getFailureDecay() {
+        return failureDecay;
+    }
+
+    public int getHeartbeatTick() {
+        return heartbeatTick;
+    }
+
+    public int getPrcBurstSize() {
+        return prcBurstSize;
+    }
+
+    public int getPrcBurstPacing() {
+        return prcBurstPacing;
+    }
+
+    public boolean isLearnMechanisms() {
+        return learnMechanisms;
+    }
+
+    public double getMechanismExploration() {
+        return mechanismExploration;
+    }
+
+    public int getMechanismMinSamples() {
+        return mechanismMinSamples;
+    }
+
+    public double getMechanismMinSuccessRate() {
+        return mechanismMinSuccessRate;
+    }
+
     public HpClientConfiguration setRto(int rto) {
         this.rto = rto;
         return this;
@@ -99,4 +179,54 @@ public class HpClientConfiguration extends AbstractConfiguration<HpClientConfigu
         this.sessionExpirationTime = sessionExpirationTime;
         return this;
     }
+
+    public HpClientConfiguration setFailureBackoff(int failureBackoff) {
+        this.failureBackoff = failureBackoff;
+        return this;
+    }
+
+    public HpClientConfiguration setFailureMaxBackoff(int failureMaxBackoff) {
+        this.failureMaxBackoff = failureMaxBackoff;
+        return this;
+    }
+
+    public HpClientConfiguration setFailureDecay(int failureDecay) {
+        this.failureDecay = failureDecay;
+        return this;
+    }
+
+    public HpClientConfiguration setHeartbeatTick(int heartbeatTick) {
+        this.heartbeatTick = heartbeatTick;
+        return this;
+    }
+
+    public HpClientConfiguration setPrcBurstSize(int prcBurstSize) {
+        this.prcBurstSize = prcBurstSize;
+        return this;
+    }
+
+    public HpClientConfiguration setPrcBurstPacing(int prcBurstPacing) {
+        this.prcBurstPacing = prcBurstPacing;
+        return this;
+    }
+
+    public HpClientConfiguration setLearnMechanisms(boolean learnMechanisms) {
+        this.learnMechanisms = learnMechanisms;
+        return this;
+    }
+
+    public HpClientConfiguration setMechanismExploration(double mechanismExploration) {
+        this.mechanismExploration = mechanismExploration;
+        return this;
+    }
+
+    public HpClientConfiguration setMechanismMinSamples(int mechanismMinSamples) {
+        this.mechanismMinSamples = mechanismMinSamples;
+        return this;
+    }
+
+    public HpClientConfiguration setMechanismMinSuccessRate(double mechanismMinSuccessRate) {
+        this.mechanismMinSuccessRate = mechanismMinSuccessRate;
+        return this;
+    }
 }
@@ -0,0 +1,276 @@
+package se.sics.gvod.nat.hp.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import se.sics.gvod.address.Address;
+
+/**
+ * The opened (hole-punched) connections to private nodes, by the id of the
+ * remote node. It is shared by the HpClient, which creates and deletes the
+ * connections, and the NatTraverser, which uses them and closes the least
+ * recently used connections when there are too many.
+ *
+ * The connections are kept in a doubly-linked list in the order they were last
+ * used, so touching a connection and finding the least recently used ones
+ * don't need to scan or sort the table. To find the expired connections, each
+ * connection is also put in a bucket by the time it expires (lastUsed +
+ * natBindingTimeout, rounded to BUCKET_WIDTH), so only the buckets that have
+ * expired are visited.
+ *
+ * All methods are synchronized, as the table is accessed by the threads of
+ * both components. Connections must be touched through the table, not with
+ * OpenedConnection.setLastUsed(), or the ordering will be wrong.
+ *
+ * @author jdowling
+ */
+public class ConnectionTable {
+
+    public static final long BUCKET_WIDTH = 1000;
+
+    private static class Node {
+
+        private final int remoteId;
+        private final OpenedConnection oc;
+        private Node prev;
+        private Node next;
+        private long bucket;
+
+        public Node(int remoteId, OpenedConnection oc) {
+            this.remoteId = remoteId;
+            this.oc = oc;
+        }
+    }
+    private final Map<Integer, Node> index = new HashMap<Integer, Node>();
+    private final TreeMap<Long, Set<Node>> expiryBuckets = new TreeMap<Long, Set<Node>>();
+    // least recently used first
+    private Node head = null;
+    private Node tail = null;
+
+    public ConnectionTable() {
+    }
+
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    public synchronized OpenedConnection get(int remoteId) {
+        Node n = index.get(remoteId);
+        return (n == null) ? null : n.oc;
+    }
+
+    public synchronized boolean containsKey(int remoteId) {
+        return index.containsKey(remoteId);
+    }
+
+    /**
+     * Adds a connection as the most recently used one, replacing any existing
+     * connection to the remote node.
+     * @return the replaced connection, or null.
+     */
+    public synchronized OpenedConnection put(int remoteId, OpenedConnection oc) {
+        Node old = index.remove(remoteId);
+        if (old != null) {
+            unlink(old);
+        }
+        Node n = new Node(remoteId, oc);
+        index.put(remoteId, n);
+        append(n);
+        addToBucket(n);
+        return (old == null) ? null : old.oc;
+    }
+
+    public synchronized OpenedConnection remove(int remoteId) {
+        Node n = index.remove(remoteId);
+        if (n == null) {
+            return null;
+        }
+        unlink(n);
+        return n.oc;
+    }
+
+    /**
+     * Marks a connection as used now, making it the most recently used one.
+     * @return the connection, or null if there is no connection to the node.
+     */
+    public synchronized OpenedConnection touch(int remoteId) {
+        Node n = index.get(remoteId);
+        if (n == null) {
+            return null;
+        }
+        n.oc.setLastUsed(now());
+        if (n != tail) {
+            unlinkFromList(n);
+            append(n);
+        }
+        removeFromBucket(n);
+        addToBucket(n);
+        return n.oc;
+    }
+
+    /**
+     * Marks a connection as used now to send a msg. A sent msg refreshes the
+     * NAT binding, so the HpClient doesn't heartbeat the connection until it
+     * hasn't been sent on for half the binding timeout.
+     * @return the connection, or null if there is no connection to the node.
+     */
+    public synchronized OpenedConnection touchSent(int remoteId) {
+        OpenedConnection oc = touch(remoteId);
+        if (oc != null) {
+            oc.setLastSent(oc.getLastUsed());
+        }
+        return oc;
+    }
+
+    /**
+     * Moves a connection to the address that a msg from the remote node was
+     * received from, if it is not the connection's address. This happens when
+     * the NAT mapping of the remote node changed, and it sent on the connection
+     * from its new mapping, so replies have to go to the new mapping too.
+     * Only a msg received on the connection's local port moves it, a msg from
+     * the remote node that reached another of my ports went through another
+     * NAT mapping and says nothing about this one.
+     * @param localPort the port the msg was received on
+     * @return true if the connection was moved.
+     */
+    public synchronized boolean migrate(int remoteId, Address src, int localPort) {
+        Node n = index.get(remoteId);
+        if (n == null || n.oc.getPortInUse() != localPort
+                || n.oc.getHoleOpened().equals(src)) {
+            return false;
+        }
+        // src may be rewritten in place by the network layer, copy it
+        n.oc.setHoleOpened(new Address(src));
+        return true;
+    }
+
+    /**
+     * @param number max number of connections to return
+     * @return the ids of the least recently used connections, least recent first.
+     */
+    public synchronized List<Integer> oldest(int number) {
+        List<Integer> ids = new ArrayList<Integer>(Math.min(number, index.size()));
+        for (Node n = head; n != null && ids.size() < number; n = n.next) {
+            ids.add(n.remoteId);
+        }
+        return ids;
+    }
+
+    /**
+     * The connections are not removed, so that the caller can clean them up
+     * and then remove them.
+     * @return the ids of the connections that have not been used for longer
+     * than their NAT binding timeout.
+     */
+    public synchronized List<Integer> expired() {
+        long now = now();
+        List<Integer> ids = new ArrayList<Integer>();
+        for (Map.Entry<Long, Set<Node>> e : expiryBuckets.entrySet()) {
+            if (e.getKey() * BUCKET_WIDTH > now) {
+                break;
+            }
+            for (Node n : e.getValue()) {
+                if (now - n.oc.getLastUsed() > n.oc.getNatBindingTimeout()) {
+                    ids.add(n.remoteId);
+                }
+            }
+        }
+        return ids;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    /**
+     * @return a copy of the ids of the connections.
+     */
+    public synchronized Set<Integer> keySet() {
+        return new LinkedHashSet<Integer>(index.keySet());
+    }
+
+    /**
+     * @return a copy of the connections, least recently used first.
+     */
+    public synchronized List<OpenedConnection> values() {
+        List<OpenedConnection> values = new ArrayList<OpenedConnection>(index.size());
+        for (Node n = head; n != null; n = n.next) {
+            values.add(n.oc);
+        }
+        return values;
+    }
+
+    public synchronized void clear() {
+        index.clear();
+        expiryBuckets.clear();
+        head = null;
+        tail = null;
+    }
+
+    private void append(Node n) {
+        n.prev = tail;
+        n.next = null;
+        if (tail == null) {
+            head = n;
+        } else {
+            tail.next = n;
+        }
+        tail = n;
+    }
+
+    private void unlink(Node n) {
+        unlinkFromList(n);
+        removeFromBucket(n);
+    }
+
+    private void unlinkFromList(Node n) {
+        if (n.prev == null) {
+            head = n.next;
+        } else {
+            n.prev.next = n.next;
+        }
+        if (n.next == null) {
+            tail = n.prev;
+        } else {
+            n.next.prev = n.prev;
+        }
+        n.prev = null;
+        n.next = null;
+    }
+
+    private void addToBucket(Node n) {
+        long expires = n.oc.getLastUsed() + n.oc.getNatBindingTimeout();
+        // round up, so all the connections in bucket b have expired at b * BUCKET_WIDTH
+        n.bucket = (expires + BUCKET_WIDTH - 1) / BUCKET_WIDTH;
+        Set<Node> bucket = expiryBuckets.get(n.bucket);
+        if (bucket == null) {
+            bucket = new LinkedHashSet<Node>();
+            expiryBuckets.put(n.bucket, bucket);
+        }
+        bucket.add(n);
+    }
+
+    private void removeFromBucket(Node n) {
+        Set<Node> bucket = expiryBuckets.get(n.bucket);
+        if (bucket != null) {
+            bucket.remove(n);
+            if (bucket.isEmpty()) {
+                expiryBuckets.remove(n.bucket);
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConnectionTable(" + index.size() + " connections, "
+                + expiryBuckets.size() + " expiry buckets)";
+    }
+}
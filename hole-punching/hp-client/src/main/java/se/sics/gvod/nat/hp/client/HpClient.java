@@ -4,13 +4,16 @@
  */
 package se.sics.gvod.nat.hp.client;
 
+import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
@@ -44,6 +47,7 @@ import se.sics.gvod.hp.msgs.PRP_ConnectMsg;
 import se.sics.gvod.hp.msgs.PRP_ServerRequestForAvailablePortsMsg;
 import se.sics.gvod.hp.msgs.SHP_OpenHoleMsg;
 import se.sics.gvod.nat.common.MsgRetryComponent;
+import se.sics.gvod.nat.hp.client.events.ConnectionMigrated;
 import se.sics.gvod.nat.hp.client.events.DeleteConnection;
 import se.sics.gvod.nat.hp.client.events.GoMsg_PortResponse;
 import se.sics.gvod.nat.hp.client.events.InterleavedPRC_PortResponse;
@@ -65,7 +69,6 @@ import se.sics.gvod.net.events.PortDeleteRequest;
 import se.sics.gvod.net.events.PortDeleteResponse;
 import se.sics.gvod.net.msgs.ScheduleRetryTimeout;
 import se.sics.gvod.net.util.NatReporter;
-import se.sics.gvod.timer.CancelTimeout;
 import se.sics.gvod.timer.SchedulePeriodicTimeout;
 import se.sics.gvod.timer.ScheduleTimeout;
 import se.sics.gvod.timer.Timeout;
@@ -157,8 +160,6 @@ public class HpClient extends MsgRetryComponent {
     public static AtomicInteger pingSuccessCount = new AtomicInteger();
     public static AtomicInteger pingFailureCount = new AtomicInteger();
     public static AtomicInteger nonPingedConnections = new AtomicInteger();
-    public static ConcurrentHashMap<String, Integer> failedPings
-            = new ConcurrentHashMap<String, Integer>();
     private final Logger logger = LoggerFactory.getLogger(HpClient.class);
     private Negative<HpClientPort> hpClientPort = negative(HpClientPort.class);
     private Positive<NatNetworkControl> natNetworkControl = positive(NatNetworkControl.class);
@@ -173,8 +174,23 @@ public class HpClient extends MsgRetryComponent {
      * all the opened connections are stored in this map map key is remoteClientID.
      * openedConnections is a thread-safe data structure shared with the NatTraverser component.
      */
-    ConcurrentHashMap<Integer, OpenedConnection> openedConnections;
+    ConnectionTable openedConnections;
     ConcurrentSkipListSet<Integer> portsInUse;
+    /*
+     * hole punching failures by remote node and mechanism, shared with the
+     * NatTraverser component.
+     */
+    HpFailureTable failureTable;
+    /*
+     * learns which mechanism works best for a pair of NAT types, from the
+     * outcomes of the sessions started by this node.
+     */
+    HpMechanismSelector mechanismSelector;
+    /*
+     * when the hole punching sessions started by this node began, by remote
+     * node id, to measure how long a mechanism takes.
+     */
+    private Map<Integer, Long> hpStartTimes = new HashMap<Integer, Long>();
 
     /*
      * hp Stats
@@ -186,6 +202,10 @@ public class HpClient extends MsgRetryComponent {
      * Measure time taken by heartbeat msgs.
      */
     private Map<Integer, Long> startTimers = new HashMap<Integer, Long>();
+    // the connections that share the binding of a heartbeated connection,
+    // touched when its pong arrives
+    private Map<Integer, List<Integer>> heartbeatSiblings = new HashMap<Integer, List<Integer>>();
+    private long lastHeartbeatSweep = 0;
     /*
      * this is only for debugging. all out puts from this component will have
      * its name prepeneded to it. when multiple client are running at the same
@@ -212,6 +232,11 @@ public class HpClient extends MsgRetryComponent {
         private final boolean heartbeatConnection;
         private final TimeoutId msgTimeoutId;
         private boolean dedicatedPort;
+        // PRC burst mode: the outstanding probes, and the predicted ports
+        // that are still to be probed (when probes are paced)
+        private final Set<TimeoutId> burstProbes = new HashSet<TimeoutId>();
+        private final LinkedList<VodAddress> burstQueue = new LinkedList<VodAddress>();
+        private VodAddress burstSource;
 
         public HpSession(
                 int remoteClientID,
@@ -284,6 +309,18 @@ public class HpClient extends MsgRetryComponent {
         }
 
         public boolean isScanningPossible() {
+            if (scanRetriesCounter < totalScanRetries && isPortPredicted() && scanningEnabled) {
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        /**
+         * @return true if the remote opened hole is a port predicted from the
+         * port contiguity of the remote NAT.
+         */
+        public boolean isPortPredicted() {
             boolean val = false;
             if (holePunchingMechanism == HPMechanism.PRC
                     && holePunchingRole == HPRole.PRC_RESPONDER) {
@@ -296,12 +333,51 @@ public class HpClient extends MsgRetryComponent {
                     && (holePunchingRole == HPRole.PRP_INTERLEAVED)) {
                 val = true;
             }
+            return val;
+        }
 
-            if (scanRetriesCounter < totalScanRetries && val && scanningEnabled) {
-                return true;
-            } else {
-                return false;
+        /**
+         * @return the port increment of the remote NAT measured by stun, or
+         * 1 if it isn't known.
+         */
+        public int getPredictionDelta() {
+            if (remoteClientNat != null && remoteClientNat.getDelta() > 1) {
+                return remoteClientNat.getDelta();
             }
+            return Math.max(1, delta);
+        }
+
+        /**
+         * Moves the remote opened hole past the ports probed by the last
+         * burst, counting the burst as one scan retry.
+         */
+        public void nextBurstWindow(int burstSize) {
+            Address next = new Address(remoteOpenedHole.getIp(),
+                    remoteOpenedHole.getPort() + burstSize * getPredictionDelta(),
+                    remoteOpenedHole.getId());
+            remoteOpenedHole = new VodAddress(next, self.getOverlayId(),
+                    remoteOpenedHole.getNat(), remoteOpenedHole.getParents());
+            scanRetriesCounter++;
+        }
+
+        public Set<TimeoutId> getBurstProbes() {
+            return burstProbes;
+        }
+
+        public LinkedList<VodAddress> getBurstQueue() {
+            return burstQueue;
+        }
+
+        public boolean isBurstOngoing() {
+            return !burstProbes.isEmpty() || !burstQueue.isEmpty();
+        }
+
+        public VodAddress getBurstSource() {
+            return burstSource;
+        }
+
+        public void setBurstSource(VodAddress burstSource) {
+            this.burstSource = burstSource;
         }
 
         public VodAddress getNextScanningPort() {
@@ -375,18 +451,61 @@ public class HpClient extends MsgRetryComponent {
         }
     }
 
-    private class SendHeartbeatTimeout extends Timeout {
+    private class PrcBurstTimeout extends Timeout {
 
         private final int remoteId;
+        private final TimeoutId msgTimeoutId;
 
-        public SendHeartbeatTimeout(ScheduleTimeout st, int remoteId) {
+        public PrcBurstTimeout(ScheduleTimeout st, int remoteId, TimeoutId msgTimeoutId) {
             super(st);
             this.remoteId = remoteId;
+            this.msgTimeoutId = msgTimeoutId;
         }
 
         public int getRemoteId() {
             return remoteId;
         }
+
+        public TimeoutId getMsgTimeoutId() {
+            return msgTimeoutId;
+        }
+    }
+
+    /**
+     * The NAT binding of a connection: the local port and the public address
+     * of the remote node. Connections with the same binding are refreshed by
+     * the same packets.
+     */
+    private static final class NatBinding {
+
+        private final int localPort;
+        private final InetAddress remoteIp;
+        private final int remotePort;
+
+        public NatBinding(OpenedConnection oc) {
+            this.localPort = oc.getPortInUse();
+            this.remoteIp = oc.getHoleOpened().getIp();
+            this.remotePort = oc.getHoleOpened().getPort();
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 7;
+            hash = 31 * hash + localPort;
+            hash = 31 * hash + remoteIp.hashCode();
+            hash = 31 * hash + remotePort;
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof NatBinding)) {
+                return false;
+            }
+            NatBinding that = (NatBinding) obj;
+            return localPort == that.localPort && remotePort == that.remotePort
+                    && remoteIp.equals(that.remoteIp);
+        }
     }
 
     public HpClient(HpClientInit init) {
@@ -405,6 +524,8 @@ public class HpClient extends MsgRetryComponent {
 
         openedConnections = init.getOpenedConnections();
         portsInUse = init.getBoundPorts();
+        failureTable = init.getFailureTable();
+        mechanismSelector = init.getMechanismSelector();
 
         compName = "(" + self.getId() + ") ";
     }
@@ -553,8 +674,9 @@ public class HpClient extends MsgRetryComponent {
         HpSession session = hpSessions.get(remoteId);
 
         // The hp object tells us what hp-algorithm to run and what our role is
-        HolePunching hp = HpFeasability.isPossible(self.getAddress(), remoteAddr);
+        HolePunching hp = selectMechanism(remoteAddr);
         if (hp != null) {
+            hpStartTimes.put(remoteId, System.currentTimeMillis());
             if (hpStats.containsKey(hp.getHolePunchingMechanism())) {
                 hpStats.get(hp.getHolePunchingMechanism()).incrementStartCounter();
             } else {
@@ -592,8 +714,12 @@ public class HpClient extends MsgRetryComponent {
                 Address addr = remoteAddr.getParents().iterator().next();
                 // make sure to use SYSTEM_OVERLAY_ID for HolePunching
                 VodAddress zServer = new VodAddress(addr, self.getOverlayId());
+                // ask the zServer for the mechanism we selected, if we learned it
+                HPMechanism requested = config.isLearnMechanisms()
+                        ? hp.getHolePunchingMechanism() : HPMechanism.NONE;
                 HpConnectMsg.Request req = new HpConnectMsg.Request(self.getAddress(),
-                        zServer, remoteId, remoteAddr.getDelta(), 0 /* rtt */, msgTimeoutId);
+                        zServer, remoteId, remoteAddr.getDelta(), 0 /* rtt */,
+                        requested, msgTimeoutId);
                 ScheduleRetryTimeout st
                         = new ScheduleRetryTimeout(config.getRto(),
                                 config.getRtoRetries(), config.getRtoScale());
@@ -608,6 +734,27 @@ public class HpClient extends MsgRetryComponent {
         }
     }
 
+    /**
+     * @return the default mechanism for the NAT pair, or, if we are learning
+     * mechanisms, the one picked by the mechanism selector from all feasible
+     * ones. Null if hole punching is not feasible.
+     */
+    private HolePunching selectMechanism(VodAddress remoteAddr) {
+        if (!config.isLearnMechanisms()) {
+            return HpFeasability.isPossible(self.getAddress(), remoteAddr);
+        }
+        List<HolePunching> possible = HpFeasability.allPossible(self.getAddress(), remoteAddr);
+        if (possible.isEmpty()) {
+            return null;
+        }
+        List<HPMechanism> candidates = new ArrayList<HPMechanism>();
+        for (HolePunching hp : possible) {
+            candidates.add(hp.getHolePunchingMechanism());
+        }
+        HPMechanism m = mechanismSelector.select(self.getNat(), remoteAddr.getNat(), candidates);
+        return possible.get(candidates.indexOf(m));
+    }
+
     /**
      * Delete the connection from the map, stops heartbeats to the remote node,
      * and if the connection had a dedicated port (because of a(PP)) then unbind
@@ -621,10 +768,6 @@ public class HpClient extends MsgRetryComponent {
         logger.info(compName + " request to delete the connection to: " + remoteId);
         OpenedConnection oc = openedConnections.get(remoteId);
         if (oc != null) {
-            TimeoutId timeoutId = oc.getHeartbeatTimeoutId();
-            if (timeoutId != null) {
-                trigger(new CancelTimeout(timeoutId), timer);
-            }
             if (sendDeleteMsgToRemoteNode) {
                 Address srcAddr = new Address(self.getIp(), oc.getPortInUse(), self.getId());
                 VodAddress newSourceAddress = new VodAddress(srcAddr,
@@ -776,7 +919,7 @@ public class HpClient extends MsgRetryComponent {
         }
     }
 
-    private void sendHolePunchingMsg(VodAddress sourceAddress, VodAddress dest,
+    private TimeoutId sendHolePunchingMsg(VodAddress sourceAddress, VodAddress dest,
             TimeoutId msgTimeoutId, int msgRetries, int rto, double scaleRetries) {
         dest = ToVodAddr.hpClient(dest.getPeerAddress(), dest.getNat());
 
@@ -786,12 +929,77 @@ public class HpClient extends MsgRetryComponent {
                 = new ScheduleRetryTimeout(rto, msgRetries, scaleRetries);
         HolePunchingMsg.RequestTimeout requestRetryTimeout
                 = new HolePunchingMsg.RequestTimeout(st, holePunchingMessage);
-        delegator.doRetry(requestRetryTimeout);
+        TimeoutId id = delegator.doRetry(requestRetryTimeout);
         logger.debug(compName + " HolePunchingMsg.Request from "
                 + sourceAddress.getPeerAddress() + " to "
                 + dest.getPeerAddress() + " - " + msgTimeoutId);
+        return id;
+    }
+
+    /**
+     * Sends a HolePunchingMsg to each of the next prcBurstSize predicted
+     * ports of the remote NAT, instead of one port at a time. The predicted
+     * port comes first, then the ports after it in steps of the remote NAT's
+     * delta, as ports allocated by other hosts behind a busy NAT push the
+     * real port up. The first probe to get a response cancels the rest.
+     */
+    private void sendPrcBurst(HpSession session, VodAddress source, TimeoutId msgTimeoutId) {
+        VodAddress predicted = session.getRemoteOpenedHole();
+        int delta = session.getPredictionDelta();
+        session.getBurstQueue().clear();
+        for (int i = 0; i < config.getPrcBurstSize(); i++) {
+            int port = predicted.getPort() + i * delta;
+            if (port > 65535) {
+                break;
+            }
+            Address a = new Address(predicted.getIp(), port, predicted.getId());
+            session.getBurstQueue().add(new VodAddress(a, self.getOverlayId(),
+                    predicted.getNat()));
+        }
+        session.setBurstSource(source);
+        logger.debug(compName + "PRC burst of " + session.getBurstQueue().size()
+                + " probes to " + predicted.getPeerAddress() + " delta " + delta
+                + " - " + msgTimeoutId);
+        sendBurstProbes(session, msgTimeoutId);
+    }
 
+    private void sendBurstProbes(HpSession session, TimeoutId msgTimeoutId) {
+        LinkedList<VodAddress> queue = session.getBurstQueue();
+        while (!queue.isEmpty()) {
+            TimeoutId id = sendHolePunchingMsg(session.getBurstSource(), queue.removeFirst(),
+                    msgTimeoutId, config.getRtoRetries(), config.getRto(),
+                    config.getRtoScale());
+            session.getBurstProbes().add(id);
+            if (config.getPrcBurstPacing() > 0 && !queue.isEmpty()) {
+                ScheduleTimeout st = new ScheduleTimeout(config.getPrcBurstPacing());
+                st.setTimeoutEvent(new PrcBurstTimeout(st, session.getRemoteClientId(),
+                        msgTimeoutId));
+                delegator.doTrigger(st, timer);
+                return;
+            }
+        }
     }
+
+    /**
+     * Cancels the probes of a burst that are still outstanding, and the ones
+     * not sent yet.
+     */
+    private void cancelPrcBurst(HpSession session) {
+        for (TimeoutId id : session.getBurstProbes()) {
+            delegator.doCancelRetry(id);
+        }
+        session.getBurstProbes().clear();
+        session.getBurstQueue().clear();
+    }
+    Handler<PrcBurstTimeout> handlePrcBurstTimeout = new Handler<PrcBurstTimeout>() {
+        @Override
+        public void handle(PrcBurstTimeout event) {
+            HpSession session = hpSessions.get(event.getRemoteId());
+            if (session != null) {
+                sendBurstProbes(session, event.getMsgTimeoutId());
+            }
+        }
+    };
     Handler<HolePunchingMsg.Request> handleHolePunchingMsgRequest = new Handler<HolePunchingMsg.Request>() {
         @Override
         public void handle(HolePunchingMsg.Request request) {
@@ -808,6 +1016,10 @@ public class HpClient extends MsgRetryComponent {
             }
             HpSession session = hpSessions.get(remoteId);
             int srcPort = request.getVodDestination().getPort();
+            if (session != null && session.isBurstOngoing()) {
+                // the hole is open, the rest of our probes aren't needed
+                cancelPrcBurst(session);
+            }
             if (session == null && !holeExists) {
                 session = new HpSession(remoteId, null,
                         config.getScanRetries(), config.isScanningEnabled(),
@@ -879,6 +1091,11 @@ public class HpClient extends MsgRetryComponent {
                     session.setHpOngoing(false);
                     srcPort = response.getVodDestination().getPort();
                     session.setPortInUse(srcPort);
+                    if (session.getBurstProbes().remove(response.getSrcTimeoutId())) {
+                        // the first probe of a PRC burst to succeed found the port
+                        cancelPrcBurst(session);
+                        session.setRemoteOpenedHole(openedHole);
+                    }
 
 //                    if (self.getNat().getMappingPolicy() == Nat.MappingPolicy.PORT_DEPENDENT
 //                            && response.getVodSource().getNat().getFilteringPolicy()
@@ -966,8 +1183,20 @@ public class HpClient extends MsgRetryComponent {
                         HolePunchingMsg.Request requestMsg = event.getRequestMsg();
 
                         if (session != null) {
+                            boolean burstProbe = session.getBurstProbes().remove(event.getTimeoutId());
+                            if (burstProbe && session.isBurstOngoing()) {
+                                // other probes of the burst may still succeed
+                                return;
+                            }
                             session.setHpOngoing(false);
-                            if (session.isScanningPossible()
+                            if (burstProbe && session.isScanningPossible()
+                            && !openedConnections.containsKey(session.getRemoteClientId())) {
+                                // the whole burst failed, probe the next ports
+                                session.nextBurstWindow(config.getPrcBurstSize());
+                                session.setHpOngoing(true);
+                                sendPrcBurst(session, session.getBurstSource(),
+                                        requestMsg.getMsgTimeoutId());
+                            } else if (session.isScanningPossible()
                             && !openedConnections.containsKey(session.getRemoteClientId())) {
 
                                 // send the holepunching message on another port
@@ -1059,7 +1288,7 @@ public class HpClient extends MsgRetryComponent {
                             logger.debug(compName + "Local port :" + session.getPortInUse()
                                     + " for communicating with " + msg.getDestination());
                         } else {
-                            openedConnections.get(remoteId).setLastUsed(System.currentTimeMillis());
+                            openedConnections.touch(remoteId);
                         }
                         // send response to the upper component
                         if (session.getOpenConnectionRequest() != null) {
@@ -1094,9 +1323,7 @@ public class HpClient extends MsgRetryComponent {
                 isHeartbeat);
         openedConnections.put(openedHole.getId(), openedConnection);
         hpSessions.remove(openedHole.getId());
-        if (isHeartbeat) {
-            scheduleHeartbeat(openedHole.getId());
-        } else {
+        if (!isHeartbeat) {
             logger.debug(compName + "Not heartbeating " + openedHole.getId());
             nonPingedConnections.incrementAndGet();
         }
@@ -1111,21 +1338,24 @@ public class HpClient extends MsgRetryComponent {
                     (int) self.getNat().getBindingTimeout(), true);
             openedConnections.put(remote.getId(), newOc);
             hpSessions.remove(remote.getId());
-            scheduleHeartbeat(remote.getId());
         } else {
             logger.trace(compName + "Updating openedConnection to: " + remote.getId());
-            oc.setLastUsed(System.currentTimeMillis());
+            openedConnections.touch(remote.getId());
         }
     }
     Handler<HpKeepAliveMsg.Ping> handleHpKeepAliveMsgPing
             = new Handler<HpKeepAliveMsg.Ping>() {
                 @Override
                 public void handle(HpKeepAliveMsg.Ping msg) {
-                    NatConnection.refreshConnection(openedConnections,
-                            msg.getVodSource(), msg.getDestination().getPort());
+                    if (NatConnection.refreshConnection(openedConnections,
+                            msg.getVodSource(), msg.getDestination().getPort())) {
+                        logger.info(compName + "NAT mapping of " + msg.getSource().getId()
+                                + " changed, moved connection to " + msg.getSource());
+                    }
                     logger.trace(compName + "Received ping from: " + msg.getSource());
+                    // tell the sender which public address its ping came from
                     HpKeepAliveMsg.Pong reply = new HpKeepAliveMsg.Pong(msg.getVodDestination(),
-                            msg.getVodSource(), msg.getTimeoutId());
+                            msg.getVodSource(), msg.getTimeoutId(), new Address(msg.getSource()));
                     delegator.doTrigger(reply, network);
                 }
             };
@@ -1135,70 +1365,164 @@ public class HpClient extends MsgRetryComponent {
                 @Override
                 public void handle(HpKeepAliveMsg.Pong msg) {
                     int remoteId = msg.getSource().getId();
-                    OpenedConnection oc = openedConnections.get(remoteId);
                     Long startTime = startTimers.remove(remoteId);
                     startTime = startTime == null ? 0 : startTime;
                     long timeTaken = System.currentTimeMillis() - startTime;
                     RTTStore.addSample(self.getId(), msg.getVodSource(), timeTaken);
                     if (delegator.doCancelRetry(msg.getTimeoutId())) {
                         logger.trace(compName + "Received pong from: " + msg.getSource());
-                        if (oc == null) {
-                            logger.warn(compName + "Couldn't find connection to heartbeat to: " + remoteId);
-                        } else {
-                            scheduleHeartbeat(oc.getHoleOpened().getId());
-                        }
                         // update or add an openedConnection
                         addOrUpdateOpenedConnectionNoSession(msg.getSource(), msg.getDestination().getPort(), false);
                         pingSuccessCount.incrementAndGet();
+                        OpenedConnection oc = openedConnections.get(remoteId);
+                        touchSiblings(remoteId, oc);
+                        if (oc != null) {
+                            if (oc.isMigrating()) {
+                                oc.setMigrating(false);
+                                delegator.doTrigger(new ConnectionMigrated(remoteId, true), hpClientPort);
+                            }
+                            checkReflexiveAddress(oc, msg.getObservedSource());
+                        }
                     } else {
                         logger.warn(compName + "Couldn't cancel timeoutId for HpKeepAliveMsg.Ping");
                     }
                 }
             };
 
-    private void scheduleHeartbeat(int remoteId) {
-        OpenedConnection oc = openedConnections.get(remoteId);
-        if (oc != null) {
-            logger.trace(compName + "Scheduling heartbeat to " + remoteId);
-            ScheduleTimeout st = new ScheduleTimeout(self.getNat().getBindingTimeout() / 2);
-            SendHeartbeatTimeout sht = new SendHeartbeatTimeout(st, remoteId);
-            st.setTimeoutEvent(sht);
-            trigger(st, timer);
-            oc.setHeartbeatTimeoutId(sht.getTimeoutId());
+    /**
+     * The pong refreshed the binding of the connections that share it with
+     * the pinged one, so they don't expire either.
+     */
+    private void touchSiblings(int remoteId, OpenedConnection oc) {
+        List<Integer> siblings = heartbeatSiblings.remove(remoteId);
+        if (siblings == null || oc == null) {
+            return;
+        }
+        NatBinding b = new NatBinding(oc);
+        for (Integer id : siblings) {
+            OpenedConnection sibling = openedConnections.get(id);
+            // it may have moved to another binding since the ping was sent
+            if (sibling != null && b.equals(new NatBinding(sibling))) {
+                openedConnections.touch(id);
+            }
+        }
+    }
+
+    /**
+     * Compares the public address that the remote node saw our ping come from
+     * with the one it saw last time. If they differ, our NAT mapping changed
+     * (it timed out, or the gateway rebooted or got a new IP), and all the
+     * connections that used the old mapping are broken until they are moved.
+     */
+    private void checkReflexiveAddress(OpenedConnection oc, Address observed) {
+        if (observed == null) {
+            return;
+        }
+        Address prev = oc.getReflexiveAddress();
+        oc.setReflexiveAddress(observed);
+        if (prev != null && (!prev.getIp().equals(observed.getIp())
+                || prev.getPort() != observed.getPort())) {
+            migrateConnections(oc, prev, observed);
+        }
+    }
+
+    /**
+     * Moves the connections that used our old NAT mapping to the new one. The
+     * connection that found the change already works, as the remote node has
+     * replied to the new mapping. All others are pinged straight away from
+     * their local port, which opens the new mapping towards the remote node,
+     * and the remote node moves its end of the connection when the ping
+     * arrives from the new mapping. If our public IP changed, all mappings
+     * changed, so all connections are moved. Until the pong comes back, the
+     * NatTraverser holds the msgs for the connection. If the ping times out,
+     * the connection is deleted, and the NatTraverser hole punches again.
+     */
+    private void migrateConnections(OpenedConnection changed, Address prev, Address observed) {
+        boolean ipChanged = !prev.getIp().equals(observed.getIp());
+        int port = changed.getPortInUse();
+        int n = 0;
+        for (OpenedConnection oc : openedConnections.values()) {
+            if (oc == changed || (!ipChanged && oc.getPortInUse() != port)) {
+                continue;
+            }
+            oc.setReflexiveAddress(oc.getPortInUse() == port ? observed : null);
+            oc.setMigrating(true);
+            if (!startTimers.containsKey(oc.getHoleOpened().getId())) {
+                sendPing(oc, new ScheduleRetryTimeout(config.getRto(),
+                        config.getRtoRetries(), config.getRtoScale()));
+            }
+            n++;
+        }
+        logger.info(compName + "NAT mapping changed from " + prev + " to " + observed
+                + ", moving " + n + " connections");
+    }
+
+    /**
+     * Heartbeats the connections whose NAT binding hasn't been sent on for
+     * half the binding timeout. Msgs sent by the NatTraverser refresh the
+     * binding too, so busy connections are not heartbeated. Connections that
+     * share a binding (same local port and remote public address) get one
+     * heartbeat between them, and its pong keeps them all from expiring.
+     */
+    private void sendHeartbeats(long now) {
+        long interval = self.getNat().getBindingTimeout() / 2;
+        Map<NatBinding, Long> lastSent = new HashMap<NatBinding, Long>();
+        Map<NatBinding, OpenedConnection> toPing = new HashMap<NatBinding, OpenedConnection>();
+        Map<NatBinding, List<Integer>> members = new HashMap<NatBinding, List<Integer>>();
+        for (OpenedConnection oc : openedConnections.values()) {
+            NatBinding b = new NatBinding(oc);
+            List<Integer> ids = members.get(b);
+            if (ids == null) {
+                ids = new ArrayList<Integer>();
+                members.put(b, ids);
+            }
+            ids.add(oc.getHoleOpened().getId());
+            Long t = lastSent.get(b);
+            if (t == null || oc.getLastSent() > t) {
+                lastSent.put(b, oc.getLastSent());
+            }
+            if (oc.isHeartbeat() && !toPing.containsKey(b)
+                    && !startTimers.containsKey(oc.getHoleOpened().getId())) {
+                toPing.put(b, oc);
+            }
+        }
+        for (Map.Entry<NatBinding, OpenedConnection> e : toPing.entrySet()) {
+            if (now - lastSent.get(e.getKey()) >= interval) {
+                int remoteId = e.getValue().getHoleOpened().getId();
+                List<Integer> siblings = members.get(e.getKey());
+                siblings.remove(Integer.valueOf(remoteId));
+                if (!siblings.isEmpty()) {
+                    heartbeatSiblings.put(remoteId, siblings);
+                }
+                sendHeartbeat(e.getValue());
+            }
         }
     }
 
     private void sendHeartbeat(OpenedConnection oc) {
+        sendPing(oc, new ScheduleRetryTimeout(2000, 3, 0.5));
+    }
+
+    private void sendPing(OpenedConnection oc, ScheduleRetryTimeout srt) {
+        oc.setLastSent(System.currentTimeMillis());
         VodAddress openedHole = new VodAddress(oc.getHoleOpened(), self.getOverlayId());
         VodAddress src = new VodAddress(new Address(self.getIp(), oc.getPortInUse(), self.getId()),
                 self.getOverlayId(), self.getNat());
         HpKeepAliveMsg.Ping pingMsg = new HpKeepAliveMsg.Ping(src, openedHole);
-        ScheduleRetryTimeout srt = new ScheduleRetryTimeout(2000, 3, 0.5);
         HpKeepAliveMsg.PingTimeout hbt = new HpKeepAliveMsg.PingTimeout(srt, pingMsg);
         delegator.doRetry(hbt);
         logger.trace(compName + "Sending heartbeat from " + self.getAddress()
-                + "=>" + src.getPort() + " to : {} with timeout=" + 2000,
+                + "=>" + src.getPort() + " to : {} with timeout=" + srt.getDelay(),
                 openedHole);
         startTimers.put(openedHole.getId(), System.currentTimeMillis());
     }
-    Handler<SendHeartbeatTimeout> handleSendHeartbeatTimeout
-            = new Handler<SendHeartbeatTimeout>() {
-                @Override
-                public void handle(SendHeartbeatTimeout event) {
-                    int remoteId = event.getRemoteId();
-                    OpenedConnection oc = openedConnections.get(remoteId);
-                    if (oc == null) {
-                        logger.error(compName + "Couldn'd find connection to heartbeat to: " + remoteId);
-                    } else {
-                        sendHeartbeat(oc);
-                    }
-                }
-            };
     Handler<HpKeepAliveMsg.PingTimeout> handleHpKeepAliveMsgPingTimeout
             = new Handler<HpKeepAliveMsg.PingTimeout>() {
                 @Override
                 public void handle(HpKeepAliveMsg.PingTimeout event) {
                     int remoteId = event.getMsg().getDestination().getId();
+                    OpenedConnection oc = openedConnections.get(remoteId);
+                    boolean migrating = oc != null && oc.isMigrating();
 
                     deleteConnection(remoteId, false);
 
@@ -1208,14 +1532,14 @@ public class HpClient extends MsgRetryComponent {
                             + " #openNatConnections = " + openedConnections.size());
                     pingFailureCount.incrementAndGet();
                     HpKeepAliveMsg.Ping msg = (HpKeepAliveMsg.Ping) event.getMsg();
-                    String str = self.getNat() + " - " + msg.getVodDestination().getNatAsString();
-                    Integer i = failedPings.get(str);
-                    if (i == null) {
-                        i = 0;
-                    }
-                    i++;
-                    failedPings.put(str, i);
                     startTimers.remove(remoteId);
+                    heartbeatSiblings.remove(remoteId);
+                    if (migrating) {
+                        // our NAT mapping changed, the mechanism didn't fail
+                        delegator.doTrigger(new ConnectionMigrated(remoteId, false), hpClientPort);
+                    } else {
+                        failureTable.recordFailure(remoteId, mechanismTo(msg.getVodDestination()));
+                    }
                     NatReporter.report(delegator, network, self.getAddress(),
                             msg.getDestination().getPort(), msg.getVodSource(),
                             false, 0, "OpenedConnection Pong Failed ");
@@ -1469,6 +1793,11 @@ public class HpClient extends MsgRetryComponent {
         VodAddress newSourceAddress = new VodAddress(newSourceAddr, self.getOverlayId(),
                 self.getNat(), self.getParents());
 
+        if (config.getPrcBurstSize() > 1 && session.isPortPredicted()) {
+            sendPrcBurst(session, newSourceAddress, msgTimeoutId);
+            return;
+        }
+
         //sendDummyMessagesToTestScanning(1);
         // scenario "{m(EI)_a(PP)_alt(PC)_f(PD)}_{m(PD)_a(PC)_alt(PC)_f(PD)}"
         // in this scenario you will get an exception if you send the hp message 
@@ -1503,20 +1832,23 @@ public class HpClient extends MsgRetryComponent {
             }
             for (Integer key : toBeDeleted) {
                 HpSession session = hpSessions.remove(key);
+                hpStartTimes.remove(key);
                 logger.debug(compName + " GC: hp session time expired. deleting the session " + key + " mechanism: " + session.getHolePunchingMechanism()
                         + " from " + session.getPortInUse() + "=>" + session.getRemoteOpenedHole());
             }
 
-            Set<OpenedConnection> toDeleteOc = new HashSet<OpenedConnection>();
-            for (OpenedConnection oc : openedConnections.values()) {
-                if (oc.isExpired()) {
-                    toDeleteOc.add(oc);
-                }
+            failureTable.expire();
+
+            long now = System.currentTimeMillis();
+            if (now - lastHeartbeatSweep >= config.getHeartbeatTick()) {
+                lastHeartbeatSweep = now;
+                sendHeartbeats(now);
             }
-            for (OpenedConnection oc : toDeleteOc) {
+
+            for (Integer remoteId : openedConnections.expired()) {
                 // delete the connection, don't bother telling my neighbour that i'm 
                 // deleting its connection
-                deleteConnection(oc.getHoleOpened().getId(), false);
+                deleteConnection(remoteId, false);
             }
 
             if (self.getNat().preallocatePorts()) {
@@ -2186,6 +2518,7 @@ public class HpClient extends MsgRetryComponent {
             HPMechanism hpMechanism,
             TimeoutId msgTimeoutId) {
         if (request != null) {
+            recordOutcome(request, resType, hpMechanism);
             OpenConnectionResponse response = new OpenConnectionResponse(
                     request, remoteAddr, resType,
                     hpMechanism, msgTimeoutId);
@@ -2195,6 +2528,43 @@ public class HpClient extends MsgRetryComponent {
         }
     }
 
+    /**
+     * Records the outcomes of hole punching that depend on the remote node and
+     * the mechanism used, not the failures of its rendezvous servers.
+     */
+    private void recordOutcome(OpenConnectionRequest request,
+            OpenConnectionResponseType resType, HPMechanism hpMechanism) {
+        if (hpMechanism == null || hpMechanism == HPMechanism.NONE) {
+            return;
+        }
+        int remoteId = request.getRemoteClientId();
+        Nat remoteNat = request.getRemoteAddress().getNat();
+        switch (resType) {
+            case OK:
+                Long started = hpStartTimes.remove(remoteId);
+                long latency = (started == null) ? 0 : System.currentTimeMillis() - started;
+                failureTable.recordSuccess(remoteId, hpMechanism);
+                mechanismSelector.record(self.getNat(), remoteNat, hpMechanism, true, latency);
+                break;
+            case HP_TIMEOUT:
+            case REMOTE_PEER_FAILED:
+            case NAT_COMBINATION_NOT_TRAVERSABLE:
+                hpStartTimes.remove(remoteId);
+                int failures = failureTable.recordFailure(remoteId, hpMechanism);
+                mechanismSelector.record(self.getNat(), remoteNat, hpMechanism, false, 0);
+                logger.debug(compName + "Hole punching to " + remoteId + " with " + hpMechanism
+                        + " failed " + failures + " time(s): " + resType);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private HPMechanism mechanismTo(VodAddress remoteAddr) {
+        HolePunching hp = HpFeasability.isPossible(self.getAddress(), remoteAddr);
+        return (hp == null) ? HPMechanism.NOT_POSSIBLE : hp.getHolePunchingMechanism();
+    }
+
     @Override
     public void stop(Stop event) {
         // TODO: cleanup
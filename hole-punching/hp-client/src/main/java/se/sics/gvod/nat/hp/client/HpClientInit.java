@@ -1,29 +1,58 @@
 package se.sics.gvod.nat.hp.client;
 
 import se.sics.gvod.config.HpClientConfiguration;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Random;
 import java.util.concurrent.ConcurrentSkipListSet;
 import se.sics.gvod.common.Self;
+import se.sics.gvod.config.VodConfig;
 import se.sics.kompics.Init;
 
 public final class HpClientInit extends Init<HpClient> {
 
     private final Self self;
-    private final ConcurrentHashMap<Integer, OpenedConnection> openedConnections;
+    private final ConnectionTable openedConnections;
     private final HpClientConfiguration config;
     private final ConcurrentSkipListSet<Integer> boundPorts;
+    private final HpFailureTable failureTable;
+    private final HpMechanismSelector mechanismSelector;
     
     public HpClientInit(Self self,
-            ConcurrentHashMap<Integer,OpenedConnection> openedConnections,
+            ConnectionTable openedConnections,
             HpClientConfiguration config,
             ConcurrentSkipListSet<Integer> parentPorts) {
+        this(self, openedConnections, config, parentPorts,
+                new HpFailureTable(config.getFailureBackoff(),
+                config.getFailureMaxBackoff(), config.getFailureDecay()));
+    }
+
+    public HpClientInit(Self self,
+            ConnectionTable openedConnections,
+            HpClientConfiguration config,
+            ConcurrentSkipListSet<Integer> parentPorts,
+            HpFailureTable failureTable) {
+        this(self, openedConnections, config, parentPorts, failureTable,
+                new HpMechanismSelector(config.getMechanismExploration(),
+                config.getMechanismMinSamples(), config.getMechanismMinSuccessRate(),
+                new Random(VodConfig.getSeed())));
+    }
+
+    public HpClientInit(Self self,
+            ConnectionTable openedConnections,
+            HpClientConfiguration config,
+            ConcurrentSkipListSet<Integer> parentPorts,
+            HpFailureTable failureTable,
+            HpMechanismSelector mechanismSelector) {
         assert self != null;
         assert openedConnections != null;
         assert parentPorts != null;
+        assert failureTable != null;
+        assert mechanismSelector != null;
         this.self = self;
         this.openedConnections = openedConnections;
         this.config = config;
         this.boundPorts = parentPorts;
+        this.failureTable = failureTable;
+        this.mechanismSelector = mechanismSelector;
     }
 
     public ConcurrentSkipListSet<Integer> getBoundPorts() {
@@ -34,7 +63,15 @@ public final class HpClientInit extends Init<HpClient> {
         return config;
     }
     
-    public ConcurrentHashMap<Integer, OpenedConnection> getOpenedConnections() {
+    public HpFailureTable getFailureTable() {
+        return failureTable;
+    }
+
+    public HpMechanismSelector getMechanismSelector() {
+        return mechanismSelector;
+    }
+
+    public ConnectionTable getOpenedConnections() {
         return openedConnections;
     }
 
@@ -1,6 +1,7 @@
 package se.sics.gvod.nat.hp.client;
 
 import se.sics.kompics.PortType;
+import se.sics.gvod.nat.hp.client.events.ConnectionMigrated;
 import se.sics.gvod.nat.hp.client.events.DeleteConnection;
 import se.sics.gvod.nat.hp.client.events.OpenConnectionRequest;
 import se.sics.gvod.nat.hp.client.events.OpenConnectionResponse;
@@ -12,6 +13,7 @@ public final class HpClientPort extends PortType {
                 positive(OpenConnectionResponse.class);
             // One-way
                 negative(DeleteConnection.class);
+                positive(ConnectionMigrated.class);
 
 	}
 }
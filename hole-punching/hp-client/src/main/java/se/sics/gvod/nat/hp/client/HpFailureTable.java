@@ -0,0 +1,159 @@
+package se.sics.gvod.nat.hp.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import se.sics.gvod.common.hp.HPMechanism;
+
+/**
+ * The hole punching failures to remote nodes, by the id of the remote node and
+ * the hole punching mechanism that failed. It is shared by the HpClient, which
+ * records the outcome of every hole punching session, and the NatTraverser,
+ * which doesn't start hole punching to a node that is backed off, but relays
+ * msgs to it via its parents instead.
+ *
+ * After a failure, the pair is backed off for backoff * 2^(failures-1) ms (at
+ * most maxBackoff ms) from the last attempt. Failures decay: one failure is
+ * forgotten for every decayPeriod ms without a new attempt, and a pair with no
+ * failures left is removed from the table. A successful hole punch removes the
+ * pair straight away.
+ *
+ * All methods are synchronized, as the table is accessed by the threads of
+ * both components.
+ *
+ * @author jdowling
+ */
+public class HpFailureTable {
+
+    private static class Entry {
+
+        private int failures;
+        private long lastAttempt;
+        private long backoffUntil;
+    }
+    private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+    private final long backoff;
+    private final long maxBackoff;
+    private final long decayPeriod;
+
+    /**
+     * @param backoff ms to back off for after the first failure
+     * @param maxBackoff the longest back off, in ms
+     * @param decayPeriod ms without an attempt after which one failure is
+     * forgotten
+     */
+    public HpFailureTable(long backoff, long maxBackoff, long decayPeriod) {
+        if (backoff < 0 || maxBackoff < backoff) {
+            throw new IllegalArgumentException("Invalid backoff: " + backoff
+                    + " max backoff: " + maxBackoff);
+        }
+        if (decayPeriod < 1) {
+            throw new IllegalArgumentException("decayPeriod must be greater than zero");
+        }
+        this.backoff = backoff;
+        this.maxBackoff = maxBackoff;
+        this.decayPeriod = decayPeriod;
+    }
+
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    private static long key(int remoteId, HPMechanism mechanism) {
+        return ((long) remoteId << 32) | mechanism.ordinal();
+    }
+
+    private int decayed(Entry e, long now) {
+        long forgotten = (now - e.lastAttempt) / decayPeriod;
+        return (forgotten >= e.failures) ? 0 : e.failures - (int) forgotten;
+    }
+
+    /**
+     * Records a failed hole punching attempt, and backs off the pair.
+     * @return the number of failures of the pair, after decay.
+     */
+    public synchronized int recordFailure(int remoteId, HPMechanism mechanism) {
+        long now = now();
+        Long k = key(remoteId, mechanism);
+        Entry e = entries.get(k);
+        if (e == null) {
+            e = new Entry();
+            entries.put(k, e);
+        } else {
+            e.failures = decayed(e, now);
+        }
+        e.failures++;
+        e.lastAttempt = now;
+        // 2^30 is as far as we need to shift, maxBackoff caps it anyway
+        long wait = backoff << Math.min(e.failures - 1, 30);
+        e.backoffUntil = now + ((wait < 0 || wait > maxBackoff) ? maxBackoff : wait);
+        return e.failures;
+    }
+
+    /**
+     * Forgets the failures of the pair, hole punching with the mechanism
+     * worked.
+     */
+    public synchronized void recordSuccess(int remoteId, HPMechanism mechanism) {
+        entries.remove(key(remoteId, mechanism));
+    }
+
+    /**
+     * @return true if hole punching to the remote node with the mechanism
+     * failed recently, and should not be tried again yet.
+     */
+    public synchronized boolean isBackedOff(int remoteId, HPMechanism mechanism) {
+        Entry e = entries.get(key(remoteId, mechanism));
+        return e != null && now() < e.backoffUntil;
+    }
+
+    /**
+     * @return the number of failures of the pair, after decay.
+     */
+    public synchronized int getFailures(int remoteId, HPMechanism mechanism) {
+        Entry e = entries.get(key(remoteId, mechanism));
+        return (e == null) ? 0 : decayed(e, now());
+    }
+
+    /**
+     * @return the time the pair was last tried, or 0 if it has no failures.
+     */
+    public synchronized long getLastAttempt(int remoteId, HPMechanism mechanism) {
+        Entry e = entries.get(key(remoteId, mechanism));
+        return (e == null) ? 0 : e.lastAttempt;
+    }
+
+    /**
+     * Removes the pairs that are no longer backed off and whose failures have
+     * all decayed.
+     * @return the number of pairs removed.
+     */
+    public synchronized int expire() {
+        long now = now();
+        List<Long> expired = new ArrayList<Long>();
+        for (Map.Entry<Long, Entry> me : entries.entrySet()) {
+            Entry e = me.getValue();
+            if (now >= e.backoffUntil && decayed(e, now) == 0) {
+                expired.add(me.getKey());
+            }
+        }
+        for (Long k : expired) {
+            entries.remove(k);
+        }
+        return expired.size();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "HpFailureTable(" + entries.size() + " pairs)";
+    }
+}
@@ -0,0 +1,334 @@
+package se.sics.gvod.nat.hp.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import se.sics.gvod.common.hp.HPMechanism;
+import se.sics.gvod.net.Nat;
+
+/**
+ * Picks the hole punching mechanism for a NAT pair from the outcomes of
+ * earlier hole punching sessions, instead of always using the first feasible
+ * one in HpFeasability's fixed order.
+ *
+ * Statistics are kept per (local NAT class, remote NAT class, mechanism),
+ * where a NAT class is the NAT type and its mapping, allocation and filtering
+ * policies. For each, we count attempts and successes, and keep a moving
+ * average of the time taken by successful sessions. Counts are halved when
+ * attempts reach MAX_ATTEMPTS, so that old outcomes fade out if a NAT's
+ * behaviour changes.
+ *
+ * select() prefers the fastest mechanism with at least minSamples attempts
+ * and a success rate of at least minSuccessRate. Without one, it takes the
+ * first candidate that is not known to be bad. With probability exploration,
+ * it tries a different candidate, so the alternatives keep getting measured.
+ *
+ * The statistics can be saved to and loaded from a small binary file, so that
+ * a restarted node keeps what it learned. All methods are synchronized.
+ *
+ * @author jdowling
+ */
+public class HpMechanismSelector {
+
+    private static final int STATS_MAGIC = 0x48504d53; // "HPMS"
+    private static final int STATS_VERSION = 1;
+    static final int MAX_ATTEMPTS = 256;
+
+    static class Stats {
+
+        int attempts;
+        int successes;
+        // moving average of the latency of successful sessions, in ms
+        long latency;
+
+        double successRate() {
+            return (attempts == 0) ? 0 : (double) successes / attempts;
+        }
+    }
+    private final Map<Long, EnumMap<HPMechanism, Stats>> stats =
+            new HashMap<Long, EnumMap<HPMechanism, Stats>>();
+    private final double exploration;
+    private final int minSamples;
+    private final double minSuccessRate;
+    private final Random random;
+
+    /**
+     * @param exploration probability of trying an alternative mechanism
+     * @param minSamples attempts needed before a mechanism's success rate is
+     * trusted
+     * @param minSuccessRate mechanisms with a lower success rate are avoided
+     * @param random used to pick when to explore and what
+     */
+    public HpMechanismSelector(double exploration, int minSamples,
+            double minSuccessRate, Random random) {
+        if (exploration < 0 || exploration > 1) {
+            throw new IllegalArgumentException("exploration must be in [0, 1]: " + exploration);
+        }
+        if (minSamples < 1) {
+            throw new IllegalArgumentException("minSamples must be greater than zero");
+        }
+        this.exploration = exploration;
+        this.minSamples = minSamples;
+        this.minSuccessRate = minSuccessRate;
+        this.random = random;
+    }
+
+    static int natClass(Nat nat) {
+        if (nat == null) {
+            return 0xffffffff;
+        }
+        return (ordinal(nat.getType()) << 24)
+                | (ordinal(nat.getMappingPolicy()) << 16)
+                | (ordinal(nat.getAllocationPolicy()) << 8)
+                | ordinal(nat.getFilteringPolicy());
+    }
+
+    private static int ordinal(Enum<?> e) {
+        return (e == null) ? 0xff : e.ordinal();
+    }
+
+    private static long key(Nat local, Nat remote) {
+        return ((long) natClass(local) << 32) | (natClass(remote) & 0xffffffffL);
+    }
+
+    private boolean isTrusted(Stats s) {
+        return s != null && s.attempts >= minSamples;
+    }
+
+    private boolean isGood(Stats s) {
+        return isTrusted(s) && s.successRate() >= minSuccessRate;
+    }
+
+    /**
+     * @param local our NAT
+     * @param remote the remote node's NAT
+     * @param candidates the feasible mechanisms, in HpFeasability's order
+     * @return the mechanism to use, or null if there are no candidates.
+     */
+    public synchronized HPMechanism select(Nat local, Nat remote,
+            List<HPMechanism> candidates) {
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        EnumMap<HPMechanism, Stats> pair = stats.get(key(local, remote));
+        HPMechanism best = null;
+        long bestLatency = Long.MAX_VALUE;
+        if (pair != null) {
+            for (HPMechanism m : candidates) {
+                Stats s = pair.get(m);
+                if (isGood(s) && s.latency < bestLatency) {
+                    best = m;
+                    bestLatency = s.latency;
+                }
+            }
+            if (best == null) {
+                for (HPMechanism m : candidates) {
+                    Stats s = pair.get(m);
+                    if (!isTrusted(s)) {
+                        best = m;
+                        break;
+                    }
+                }
+            }
+        }
+        if (best == null) {
+            best = candidates.get(0);
+        }
+        if (candidates.size() > 1 && random.nextDouble() < exploration) {
+            List<HPMechanism> others = new ArrayList<HPMechanism>(candidates);
+            others.remove(best);
+            return others.get(random.nextInt(others.size()));
+        }
+        return best;
+    }
+
+    /**
+     * Records the outcome of a hole punching session.
+     * @param latency ms from the start of the session to its outcome, only
+     * used if it succeeded.
+     */
+    public synchronized void record(Nat local, Nat remote, HPMechanism mechanism,
+            boolean success, long latency) {
+        Long k = key(local, remote);
+        EnumMap<HPMechanism, Stats> pair = stats.get(k);
+        if (pair == null) {
+            pair = new EnumMap<HPMechanism, Stats>(HPMechanism.class);
+            stats.put(k, pair);
+        }
+        Stats s = pair.get(mechanism);
+        if (s == null) {
+            s = new Stats();
+            pair.put(mechanism, s);
+        }
+        if (s.attempts >= MAX_ATTEMPTS) {
+            s.attempts /= 2;
+            s.successes /= 2;
+        }
+        s.attempts++;
+        if (success) {
+            // the first sample is taken as is, then 1/8 weight like TCP's SRTT
+            s.latency = (s.successes == 0) ? latency : s.latency + (latency - s.latency) / 8;
+            s.successes++;
+        }
+    }
+
+    /**
+     * @return the success rate of the mechanism for the NAT pair, or -1 if
+     * it has never been tried.
+     */
+    public synchronized double getSuccessRate(Nat local, Nat remote, HPMechanism mechanism) {
+        Stats s = getStats(local, remote, mechanism);
+        return (s == null) ? -1 : s.successRate();
+    }
+
+    /**
+     * @return the average latency of successful sessions for the NAT pair
+     * with the mechanism, or -1 if none succeeded.
+     */
+    public synchronized long getLatency(Nat local, Nat remote, HPMechanism mechanism) {
+        Stats s = getStats(local, remote, mechanism);
+        return (s == null || s.successes == 0) ? -1 : s.latency;
+    }
+
+    public synchronized int getAttempts(Nat local, Nat remote, HPMechanism mechanism) {
+        Stats s = getStats(local, remote, mechanism);
+        return (s == null) ? 0 : s.attempts;
+    }
+
+    private Stats getStats(Nat local, Nat remote, HPMechanism mechanism) {
+        EnumMap<HPMechanism, Stats> pair = stats.get(key(local, remote));
+        return (pair == null) ? null : pair.get(mechanism);
+    }
+
+    /**
+     * @return the number of (NAT pair, mechanism) entries.
+     */
+    public synchronized int size() {
+        int n = 0;
+        for (EnumMap<HPMechanism, Stats> pair : stats.values()) {
+            n += pair.size();
+        }
+        return n;
+    }
+
+    /**
+     * The file is written to a temp file first, then renamed.
+     * @param file the statistics file
+     * @return the number of entries saved
+     * @throws IOException
+     */
+    public synchronized int save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        int n;
+        try {
+            n = write(out);
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not replace hole punching stats: " + file);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename hole punching stats to: " + file);
+        }
+        return n;
+    }
+
+    /**
+     * Replaces the statistics for the entries in the file.
+     * @param file the statistics file
+     * @return the number of entries loaded, 0 if the file doesn't exist.
+     * @throws IOException if the file is corrupt or can't be read
+     */
+    public synchronized int load(File file) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Format: magic, version, number of entries, then for each entry the
+     * local and remote NAT classes, the mechanism's ordinal, attempts,
+     * successes and latency.
+     */
+    int write(DataOutputStream out) throws IOException {
+        out.writeInt(STATS_MAGIC);
+        out.writeByte(STATS_VERSION);
+        out.writeInt(size());
+        int n = 0;
+        for (Map.Entry<Long, EnumMap<HPMechanism, Stats>> pair : stats.entrySet()) {
+            for (Map.Entry<HPMechanism, Stats> e : pair.getValue().entrySet()) {
+                Stats s = e.getValue();
+                out.writeLong(pair.getKey());
+                out.writeByte(e.getKey().ordinal());
+                out.writeInt(s.attempts);
+                out.writeInt(s.successes);
+                out.writeLong(s.latency);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    int read(DataInputStream in) throws IOException {
+        if (in.readInt() != STATS_MAGIC) {
+            throw new IOException("Not a hole punching stats file.");
+        }
+        int version = in.readByte();
+        if (version != STATS_VERSION) {
+            throw new IOException("Unsupported hole punching stats version: " + version);
+        }
+        int n = in.readInt();
+        if (n < 0) {
+            throw new IOException("Corrupt hole punching stats, entries: " + n);
+        }
+        HPMechanism[] mechanisms = HPMechanism.values();
+        for (int i = 0; i < n; i++) {
+            Long k = in.readLong();
+            int ordinal = in.readUnsignedByte();
+            if (ordinal >= mechanisms.length) {
+                throw new IOException("Corrupt hole punching stats, ordinal: " + ordinal);
+            }
+            Stats s = new Stats();
+            s.attempts = in.readInt();
+            s.successes = in.readInt();
+            s.latency = in.readLong();
+            if (s.attempts < 0 || s.successes < 0 || s.successes > s.attempts) {
+                throw new IOException("Corrupt hole punching stats, attempts: "
+                        + s.attempts + " successes: " + s.successes);
+            }
+            EnumMap<HPMechanism, Stats> pair = stats.get(k);
+            if (pair == null) {
+                pair = new EnumMap<HPMechanism, Stats>(HPMechanism.class);
+                stats.put(k, pair);
+            }
+            pair.put(mechanisms[ordinal], s);
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "HpMechanismSelector(" + size() + " entries)";
+    }
+}
@@ -6,7 +6,6 @@ package se.sics.gvod.nat.hp.client;
 
 import se.sics.gvod.address.Address;
 import se.sics.gvod.net.Nat;
-import se.sics.gvod.timer.TimeoutId;
 
 /**
  *
@@ -14,14 +13,20 @@ import se.sics.gvod.timer.TimeoutId;
  */
 public class OpenedConnection {
 
-    final Address holeOpened;
+    // moves when the remote node's NAT mapping changes, see ConnectionTable.migrate()
+    private volatile Address holeOpened;
     final int portInUse;
     final boolean sharedPort;
     long lastUsed;
+    // last time a msg or heartbeat was sent on the connection
+    long lastSent;
     int numTimesUsed;
     final int natBindingTimeout;
     final boolean heartbeat;
-    TimeoutId heartbeatTimeoutId = null;
+    // our public address for this connection, as last seen by the remote node
+    Address reflexiveAddress;
+    // true while the connection is moving to a new NAT mapping of ours
+    volatile boolean migrating;
 
     /**
      *
@@ -41,19 +46,12 @@ public class OpenedConnection {
         this.sharedPort = sharedPort;
         this.holeOpened = holeOpened;
         this.lastUsed = System.currentTimeMillis();
+        this.lastSent = this.lastUsed;
         this.natBindingTimeout = Math.max(Nat.DEFAULT_RULE_EXPIRATION_TIME, natBindingTimeout);
         this.heartbeat = heartbeat;
         this.numTimesUsed = 0;
     }
 
-    public TimeoutId getHeartbeatTimeoutId() {
-        return heartbeatTimeoutId;
-    }
-
-    public void setHeartbeatTimeoutId(TimeoutId heartbeatTimeoutId) {
-        this.heartbeatTimeoutId = heartbeatTimeoutId;
-    }
-
     public boolean isSharedPort() {
         return sharedPort;
     }
@@ -74,6 +72,14 @@ public class OpenedConnection {
         this.lastUsed = lastUsed;
     }
 
+    public long getLastSent() {
+        return lastSent;
+    }
+
+    public void setLastSent(long lastSent) {
+        this.lastSent = lastSent;
+    }
+
     public void incNumTimesUsed() {
         this.numTimesUsed = (this.numTimesUsed == Integer.MAX_VALUE) ? Integer.MIN_VALUE :
                 ++this.numTimesUsed;
@@ -96,6 +102,26 @@ public class OpenedConnection {
         return holeOpened;
     }
 
+    public void setHoleOpened(Address holeOpened) {
+        this.holeOpened = holeOpened;
+    }
+
+    public Address getReflexiveAddress() {
+        return reflexiveAddress;
+    }
+
+    public void setReflexiveAddress(Address reflexiveAddress) {
+        this.reflexiveAddress = reflexiveAddress;
+    }
+
+    public boolean isMigrating() {
+        return migrating;
+    }
+
+    public void setMigrating(boolean migrating) {
+        this.migrating = migrating;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -0,0 +1,31 @@
+package se.sics.gvod.nat.hp.client.events;
+
+import se.sics.kompics.Event;
+
+/**
+ * Sent when an opened connection that was moving to a new NAT mapping of ours
+ * has finished moving. If it failed, the connection has been deleted.
+ *
+ * @author jdowling
+ */
+public final class ConnectionMigrated extends Event
+{
+    private final int remoteId;
+    private final boolean success;
+
+    public ConnectionMigrated(int remoteId, boolean success)
+    {
+        this.remoteId = remoteId;
+        this.success = success;
+    }
+
+    public int getRemoteId()
+    {
+        return remoteId;
+    }
+
+    public boolean isSuccess()
+    {
+        return success;
+    }
+}
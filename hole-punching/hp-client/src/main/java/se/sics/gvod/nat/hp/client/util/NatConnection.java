@@ -4,7 +4,7 @@
  */
 package se.sics.gvod.nat.hp.client.util;
 
-import java.util.concurrent.ConcurrentHashMap;
+import se.sics.gvod.nat.hp.client.ConnectionTable;
 import se.sics.gvod.nat.hp.client.OpenedConnection;
 import se.sics.gvod.net.VodAddress;
 
@@ -13,17 +13,22 @@ import se.sics.gvod.net.VodAddress;
  * @author jdowling
  */
 public class NatConnection {
-    public static void refreshConnection(ConcurrentHashMap<Integer, OpenedConnection> openedConnections,
+    /**
+     * @return true if the connection was moved to the remote node's address,
+     * as its NAT mapping changed.
+     */
+    public static boolean refreshConnection(ConnectionTable openedConnections,
             VodAddress remote, int myPort) {
             int remoteId = remote.getId();
-            OpenedConnection oc = openedConnections.get(remoteId);
+            OpenedConnection oc = openedConnections.touch(remoteId);
             if (oc != null) {
-                oc.setLastUsed(System.currentTimeMillis());
                 oc.incNumTimesUsed();
+                return openedConnections.migrate(remoteId, remote.getPeerAddress(), myPort);
             } else {
                 oc = new OpenedConnection(myPort, false,
                         remote.getPeerAddress(), remote.getNatBindingTimeout(), true);
                 openedConnections.put(remoteId, oc);
+                return false;
             }
     }
     
@@ -0,0 +1,156 @@
+package se.sics.gvod.nat.hp.client;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import se.sics.gvod.address.Address;
+import se.sics.gvod.net.Nat;
+
+/**
+ *
+ * @author jdowling
+ */
+public class ConnectionTableTest {
+
+    private long now;
+    private ConnectionTable table;
+    private InetAddress ip;
+
+    @Before
+    public void setUp() throws Exception {
+        now = 1000 * 1000;
+        table = new ConnectionTable() {
+            @Override
+            protected long now() {
+                return now;
+            }
+        };
+        ip = InetAddress.getByName("192.168.0.1");
+    }
+
+    private OpenedConnection connection(int id, int bindingTimeout) {
+        OpenedConnection oc = new OpenedConnection(1234, true,
+                new Address(ip, 4321, id), bindingTimeout, false);
+        oc.setLastUsed(now);
+        return oc;
+    }
+
+    @Test
+    public void testLruOrder() {
+        for (int i = 1; i <= 4; i++) {
+            table.put(i, connection(i, Nat.DEFAULT_RULE_EXPIRATION_TIME));
+        }
+        assertEquals(Arrays.asList(1, 2, 3, 4), table.oldest(10));
+        table.touch(1);
+        table.touch(3);
+        assertEquals(Arrays.asList(2, 4), table.oldest(2));
+        assertNotNull(table.remove(2));
+        assertNull(table.touch(2));
+        assertEquals(Arrays.asList(4, 1, 3), table.oldest(3));
+        // replacing a connection makes it the most recent
+        table.put(4, connection(4, Nat.DEFAULT_RULE_EXPIRATION_TIME));
+        assertEquals(Arrays.asList(1, 3, 4), table.oldest(3));
+        assertEquals(3, table.size());
+        assertEquals(3, table.values().size());
+    }
+
+    @Test
+    public void testExpiry() {
+        int timeout = Nat.DEFAULT_RULE_EXPIRATION_TIME;
+        table.put(1, connection(1, timeout));
+        table.put(2, connection(2, timeout * 2));
+        now += timeout / 2;
+        table.put(3, connection(3, timeout));
+        assertTrue(table.expired().isEmpty());
+
+        now += timeout / 2 + ConnectionTable.BUCKET_WIDTH;
+        assertEquals(Arrays.asList(1), table.expired());
+        // touching a connection postpones its expiry
+        table.touch(1);
+        assertTrue(table.expired().isEmpty());
+
+        now += timeout + ConnectionTable.BUCKET_WIDTH;
+        assertEquals(3, table.expired().size());
+        // expired() doesn't remove connections
+        assertEquals(3, table.size());
+    }
+
+    @Test
+    public void testTouchSent() {
+        OpenedConnection oc = connection(1, Nat.DEFAULT_RULE_EXPIRATION_TIME);
+        oc.setLastSent(now);
+        table.put(1, oc);
+        table.put(2, connection(2, Nat.DEFAULT_RULE_EXPIRATION_TIME));
+        now += 1000;
+        // received msgs don't count as sent
+        table.touch(1);
+        assertEquals(now - 1000, oc.getLastSent());
+        now += 1000;
+        assertSame(oc, table.touchSent(1));
+        assertEquals(now, oc.getLastSent());
+        assertEquals(now, oc.getLastUsed());
+        assertEquals(Arrays.asList(2, 1), table.oldest(2));
+        assertNull(table.touchSent(3));
+    }
+
+    @Test
+    public void testMigrate() throws Exception {
+        table.put(1, connection(1, Nat.DEFAULT_RULE_EXPIRATION_TIME));
+        Address same = new Address(ip, 4321, 1);
+        assertFalse(table.migrate(1, same, 1234));
+        Address moved = new Address(InetAddress.getByName("192.168.0.2"), 4322, 1);
+        // received on another local port, not on the connection
+        assertFalse(table.migrate(1, moved, 1235));
+        assertEquals(same, table.get(1).getHoleOpened());
+        assertTrue(table.migrate(1, moved, 1234));
+        assertEquals(moved, table.get(1).getHoleOpened());
+        // the connection has its own copy of the address
+        moved.setPort(4323);
+        assertEquals(4322, table.get(1).getHoleOpened().getPort());
+        assertFalse(table.migrate(2, moved, 1234));
+    }
+
+    /**
+     * 50k connections, touched at random, then evicting the oldest and
+     * collecting the expired ones, as NatTraverser and HpClient do.
+     */
+    @Test
+    public void testChurn50k() {
+        int numConnections = 50 * 1000;
+        int numTouches = 1000 * 1000;
+        Random r = new Random(1);
+        for (int i = 0; i < numConnections; i++) {
+            table.put(i, connection(i, Nat.DEFAULT_RULE_EXPIRATION_TIME + r.nextInt(60 * 1000)));
+            if (i % 100 == 0) {
+                now++;
+            }
+        }
+        for (int i = 0; i < numTouches; i++) {
+            table.touch(r.nextInt(numConnections));
+            if (i % 100 == 0) {
+                now++;
+            }
+        }
+        int evicted = 0;
+        for (int round = 0; round < 100; round++) {
+            for (Integer id : table.oldest(100)) {
+                table.remove(id);
+                evicted++;
+            }
+        }
+        now += Nat.DEFAULT_RULE_EXPIRATION_TIME + 30 * 1000;
+        int expired = 0;
+        for (Integer id : table.expired()) {
+            table.remove(id);
+            expired++;
+        }
+
+        assertEquals(10 * 1000, evicted);
+        assertTrue(expired > 0);
+        assertEquals(numConnections - evicted - expired, table.size());
+        assertTrue(table.expired().isEmpty());
+    }
+}
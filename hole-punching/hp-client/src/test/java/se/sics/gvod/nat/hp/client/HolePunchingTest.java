@@ -214,10 +214,8 @@ public class HolePunchingTest
         int serverS3Port = port;
         int clientPort = 1234;
         InetAddress natIpA, natIpB = null;
-        private ConcurrentHashMap<Integer, OpenedConnection> openedConnections_A
-                = new ConcurrentHashMap<Integer, OpenedConnection>();
-        private ConcurrentHashMap<Integer, OpenedConnection> openedConnections_B
-                = new ConcurrentHashMap<Integer, OpenedConnection>();
+        private ConnectionTable openedConnections_A = new ConnectionTable();
+        private ConnectionTable openedConnections_B = new ConnectionTable();
         //Nat of client A
         Nat.AllocationPolicy nat_A_AllocationPolicy;
         Nat.AlternativePortAllocationPolicy nat_A_AlternativeAllocationPolicy;
@@ -919,10 +917,9 @@ public class HolePunchingTest
                 = new Handler<TConnectionMsg.Ping>() {
                     @Override
                     public void handle(TConnectionMsg.Ping event) {
-                        Enumeration<OpenedConnection> els = openedConnections_A.elements();
                         logger.warn(client_A_ID + " Existing connections");
-                        while (els.hasMoreElements()) {
-                            logger.warn(client_A_ID + " " + els.nextElement());
+                        for (OpenedConnection oc : openedConnections_A.values()) {
+                            logger.warn(client_A_ID + " " + oc);
                         }
                         HolePunchingTest.logger.debug(client_A_ID
                                 + " Test Comp A: ping rcvd.");
@@ -978,10 +975,9 @@ public class HolePunchingTest
                 = new Handler<TConnectionMsg.Ping>() {
                     @Override
                     public void handle(TConnectionMsg.Ping event) {
-                        Enumeration<OpenedConnection> els = openedConnections_B.elements();
                         logger.warn(client_B_ID + " Existing connections");
-                        while (els.hasMoreElements()) {
-                            logger.warn(client_B_ID + " " + els.nextElement());
+                        for (OpenedConnection oc : openedConnections_B.values()) {
+                            logger.warn(client_B_ID + " " + oc);
                         }
 
                         HolePunchingTest.logger.debug(client_B_ID
@@ -4,8 +4,8 @@
  */
 package se.sics.gvod.nat.hp.client;
 
+import java.net.InetAddress;
 import java.util.LinkedList;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -13,18 +13,30 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import se.sics.gvod.common.VodRetryComponentTestCase;
+import se.sics.gvod.address.Address;
 import se.sics.gvod.common.evts.GarbageCleanupTimeout;
+import se.sics.gvod.common.hp.HPMechanism;
 import se.sics.gvod.common.hp.HPRole;
 import se.sics.gvod.common.hp.HolePunching;
 import se.sics.gvod.common.hp.HpFeasability;
 import se.sics.gvod.config.HpClientConfiguration;
 import se.sics.gvod.hp.events.OpenConnectionResponseType;
 import se.sics.gvod.hp.msgs.DeleteConnectionMsg;
+import se.sics.gvod.hp.msgs.GoMsg;
 import se.sics.gvod.hp.msgs.HolePunchingMsg;
 import se.sics.gvod.hp.msgs.HpConnectMsg;
+import se.sics.gvod.hp.msgs.HpKeepAliveMsg;
+import se.sics.gvod.nat.hp.client.events.ConnectionMigrated;
 import se.sics.gvod.nat.hp.client.events.DeleteConnection;
+import se.sics.gvod.nat.hp.client.events.GoMsg_PortResponse;
 import se.sics.gvod.nat.hp.client.events.OpenConnectionRequest;
 import se.sics.gvod.nat.hp.client.events.OpenConnectionResponse;
+import se.sics.gvod.net.Nat;
+import se.sics.gvod.net.VodAddress;
+import se.sics.gvod.net.events.PortBindRequest;
+import se.sics.gvod.net.events.PortBindResponse;
+import se.sics.gvod.net.msgs.ScheduleRetryTimeout;
+import se.sics.gvod.timer.TimeoutId;
 import se.sics.gvod.timer.UUID;
 import se.sics.kompics.KompicsEvent;
 import se.sics.kompics.Start;
@@ -38,7 +50,7 @@ public class HpClientUnitTest extends VodRetryComponentTestCase {
     HpClient hpClient = null;
     int scanRetries = 1;
     boolean scanningEnabled = true;
-    ConcurrentHashMap<Integer, OpenedConnection> connections;
+    ConnectionTable connections;
     LinkedList<KompicsEvent> events;
 
     public HpClientUnitTest() {
@@ -57,7 +69,7 @@ public class HpClientUnitTest extends VodRetryComponentTestCase {
     @Override
     public void setUp() {
         super.setUp();
-        connections = new ConcurrentHashMap<Integer, OpenedConnection>();
+        connections = new ConnectionTable();
         hpClient = new HpClient(this,
                 new HpClientInit(this,
                         connections,
@@ -195,6 +207,153 @@ public class HpClientUnitTest extends VodRetryComponentTestCase {
 //        }
     }
 
+    @Test
+    public void testPrcBurst() {
+        int burstSize = 4;
+        HpClient burstClient = new HpClient(this,
+                new HpClientInit(this,
+                        new ConnectionTable(),
+                        HpClientConfiguration.build().
+                        setScanRetries(scanRetries).
+                        setScanningEnabled(scanningEnabled).
+                        setRto(4000).
+                        setPrcBurstSize(burstSize).
+                        setPrcBurstPacing(0), new ConcurrentSkipListSet<Integer>()
+                ));
+        burstClient.handleStart.handle(Start.event);
+        events = pollEvent(1);
+
+        // the rendezvous server predicted port 40000 on a NAT with delta 2
+        Nat nat = new Nat(Nat.Type.NAT, Nat.MappingPolicy.PORT_DEPENDENT,
+                Nat.AllocationPolicy.PORT_CONTIGUITY, Nat.FilteringPolicy.PORT_DEPENDENT,
+                2, 30 * 1000);
+        Address remote = privAddrs.get(0).getPeerAddress();
+        VodAddress hole = new VodAddress(new Address(remote.getIp(), 40000, remote.getId()),
+                getAddress().getOverlayId(), nat);
+        burstClient.handleGoMsgRequest.handle(new GoMsg.Request(pubAddrs.get(0), getAddress(),
+                hole, HPMechanism.PRC, HPRole.PRC_RESPONDER, 0, UUID.nextUUID()));
+        events = pollEvent(1);
+        assertSequence(events, PortBindRequest.class);
+        GoMsg_PortResponse bindResp = (GoMsg_PortResponse) ((PortBindRequest) events.get(0)).getResponse();
+        bindResp.setStatus(PortBindResponse.Status.SUCCESS);
+        burstClient.handleGoMsg_PortResponse.handle(bindResp);
+
+        // one probe for each predicted port, all sent at once
+        events = pollEvent(burstSize);
+        assertSequence(events, HolePunchingMsg.Request.class, HolePunchingMsg.Request.class,
+                HolePunchingMsg.Request.class, HolePunchingMsg.Request.class);
+        for (int i = 0; i < burstSize; i++) {
+            HolePunchingMsg.Request probe = (HolePunchingMsg.Request) events.get(i);
+            assertEquals(40000 + i * 2, probe.getDestination().getPort());
+            assertTrue(timeouts.containsKey(probe.getTimeoutId()));
+        }
+
+        // the first response cancels the other probes
+        HolePunchingMsg.Request probe = (HolePunchingMsg.Request) events.get(1);
+        burstClient.handleHolePunchingMsgResponse.handle(
+                new HolePunchingMsg.Response(probe.getVodDestination(), probe.getVodSource(),
+                        probe.getTimeoutId(), probe.getMsgTimeoutId()));
+        for (int i = 0; i < burstSize; i++) {
+            assertFalse(timeouts.containsKey(((HolePunchingMsg.Request) events.get(i)).getTimeoutId()));
+        }
+        assertEquals(40002, burstClient.openedConnections.get(remote.getId())
+                .getHoleOpened().getPort());
+        events = pollEvent(1);
+        assertSequence(events, HolePunchingMsg.ResponseAck.class);
+    }
+
+    private HpKeepAliveMsg.Pong pong(int remoteIdx, int localPort, Address observed) {
+        VodAddress remote = privAddrs.get(remoteIdx);
+        VodAddress local = new VodAddress(new Address(getAddress().getIp(), localPort, getId()),
+                getAddress().getOverlayId(), getAddress().getNat());
+        HpKeepAliveMsg.Ping ping = new HpKeepAliveMsg.Ping(local, remote);
+        TimeoutId timeoutId = UUID.nextUUID();
+        ping.setTimeoutId(timeoutId);
+        timeouts.put(timeoutId, new HpKeepAliveMsg.PingTimeout(
+                new ScheduleRetryTimeout(2000, 3), ping));
+        return new HpKeepAliveMsg.Pong(remote, local, timeoutId, observed);
+    }
+
+    @Test
+    public void testMigration() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            // connections 0 and 1 share local port 1234
+            int port = (i < 2) ? 1234 : 5678;
+            connections.put(privAddrs.get(i).getId(), new OpenedConnection(port, true,
+                    privAddrs.get(i).getPeerAddress(), Nat.DEFAULT_RULE_EXPIRATION_TIME, true));
+        }
+        InetAddress publicIp = InetAddress.getByName("193.10.64.1");
+        Address before = new Address(publicIp, 30000, getId());
+        Address after = new Address(publicIp, 30001, getId());
+
+        hpClient.handleHpKeepAliveMsgPong.handle(pong(0, 1234, before));
+        assertEquals(before, connections.get(privAddrs.get(0).getId()).getReflexiveAddress());
+        assertTrue(eventList.isEmpty());
+
+        // the mapping of port 1234 changed, connection 1 is moved too
+        hpClient.handleHpKeepAliveMsgPong.handle(pong(0, 1234, after));
+        events = pollEvent(1);
+        assertSequence(events, HpKeepAliveMsg.Ping.class);
+        assertEquals(privAddrs.get(1).getId(),
+                ((HpKeepAliveMsg.Ping) events.get(0)).getDestination().getId());
+        assertTrue(connections.get(privAddrs.get(1).getId()).isMigrating());
+        assertFalse(connections.get(privAddrs.get(2).getId()).isMigrating());
+
+        // the move is over when connection 1 answers
+        hpClient.handleHpKeepAliveMsgPong.handle(pong(1, 1234, after));
+        events = pollEvent(1);
+        assertSequence(events, ConnectionMigrated.class);
+        assertTrue(((ConnectionMigrated) events.get(0)).isSuccess());
+        assertFalse(connections.get(privAddrs.get(1).getId()).isMigrating());
+    }
+
+    @Test
+    public void testSharedBindingHeartbeat() throws Exception {
+        final long[] now = {1000 * 1000};
+        ConnectionTable table = new ConnectionTable() {
+            @Override
+            protected long now() {
+                return now[0];
+            }
+        };
+        HpClient client = new HpClient(this,
+                new HpClientInit(this, table,
+                        HpClientConfiguration.build().setRto(4000),
+                        new ConcurrentSkipListSet<Integer>()));
+        client.handleStart.handle(Start.event);
+        events = pollEvent(1);
+        GarbageCleanupTimeout gc = (GarbageCleanupTimeout) events.get(0);
+
+        // two connections behind the same public address, from local port 1234
+        int timeout = 60 * 1000;
+        InetAddress publicIp = InetAddress.getByName("193.10.64.2");
+        for (int i = 0; i < 2; i++) {
+            int id = privAddrs.get(i).getId();
+            OpenedConnection oc = new OpenedConnection(1234, true,
+                    new Address(publicIp, 40000, id), timeout, true);
+            oc.setLastUsed(now[0]);
+            // not sent on for long, due a heartbeat
+            oc.setLastSent(0);
+            table.put(id, oc);
+        }
+        client.handleGarbageCleanupTimeout.handle(gc);
+        events = pollEvent(1);
+        assertSequence(events, HpKeepAliveMsg.Ping.class);
+        HpKeepAliveMsg.Ping ping = (HpKeepAliveMsg.Ping) events.get(0);
+        assertTrue(eventList.isEmpty());
+
+        now[0] += timeout / 2;
+        client.handleHpKeepAliveMsgPong.handle(new HpKeepAliveMsg.Pong(ping.getVodDestination(),
+                ping.getVodSource(), ping.getTimeoutId(), null));
+
+        // more than a binding timeout after they were last used, the pong
+        // kept both of them open
+        now[0] += timeout / 2 + 2 * ConnectionTable.BUCKET_WIDTH;
+        assertTrue(table.expired().isEmpty());
+        now[0] += timeout;
+        assertEquals(2, table.expired().size());
+    }
+
     @Test
     public void testGetStats() {
         hpClient.handleGetHPStatsRequest.handle(new GetHPStatsRequest(hpClient));
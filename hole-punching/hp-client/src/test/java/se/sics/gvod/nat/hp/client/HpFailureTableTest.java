@@ -0,0 +1,83 @@
+package se.sics.gvod.nat.hp.client;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import se.sics.gvod.common.hp.HPMechanism;
+
+/**
+ *
+ * @author jdowling
+ */
+public class HpFailureTableTest {
+
+    private static final long BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 5000;
+    private static final long DECAY = 60 * 1000;
+    private long now;
+    private HpFailureTable table;
+
+    @Before
+    public void setUp() {
+        now = 1000 * 1000;
+        table = new HpFailureTable(BACKOFF, MAX_BACKOFF, DECAY) {
+            @Override
+            protected long now() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void testBackoff() {
+        assertFalse(table.isBackedOff(7, HPMechanism.PRC));
+        assertEquals(1, table.recordFailure(7, HPMechanism.PRC));
+        assertTrue(table.isBackedOff(7, HPMechanism.PRC));
+        // other mechanisms and other nodes are not backed off
+        assertFalse(table.isBackedOff(7, HPMechanism.SHP));
+        assertFalse(table.isBackedOff(8, HPMechanism.PRC));
+        now += BACKOFF;
+        assertFalse(table.isBackedOff(7, HPMechanism.PRC));
+
+        // the back off doubles with each failure, up to the max
+        assertEquals(2, table.recordFailure(7, HPMechanism.PRC));
+        now += 2 * BACKOFF - 1;
+        assertTrue(table.isBackedOff(7, HPMechanism.PRC));
+        for (int i = 3; i <= 10; i++) {
+            assertEquals(i, table.recordFailure(7, HPMechanism.PRC));
+        }
+        now += MAX_BACKOFF - 1;
+        assertTrue(table.isBackedOff(7, HPMechanism.PRC));
+        now++;
+        assertFalse(table.isBackedOff(7, HPMechanism.PRC));
+
+        table.recordSuccess(7, HPMechanism.PRC);
+        assertEquals(0, table.getFailures(7, HPMechanism.PRC));
+        assertTrue(table.isEmpty());
+    }
+
+    @Test
+    public void testDecay() {
+        table.recordFailure(3, HPMechanism.PRP_PRC);
+        table.recordFailure(3, HPMechanism.PRP_PRC);
+        table.recordFailure(3, HPMechanism.PRP_PRC);
+        table.recordFailure(4, HPMechanism.SHP);
+        assertEquals(now, table.getLastAttempt(3, HPMechanism.PRP_PRC));
+        assertEquals(2, table.size());
+
+        now += DECAY;
+        assertEquals(2, table.getFailures(3, HPMechanism.PRP_PRC));
+        assertEquals(0, table.getFailures(4, HPMechanism.SHP));
+        assertEquals(1, table.expire());
+        assertEquals(1, table.size());
+
+        // a new failure starts from the decayed count
+        assertEquals(3, table.recordFailure(3, HPMechanism.PRP_PRC));
+        now += 4 * BACKOFF - 1;
+        assertTrue(table.isBackedOff(3, HPMechanism.PRP_PRC));
+
+        now += 3 * DECAY;
+        assertEquals(1, table.expire());
+        assertTrue(table.isEmpty());
+    }
+}
@@ -0,0 +1,129 @@
+package se.sics.gvod.nat.hp.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import se.sics.gvod.common.hp.HPMechanism;
+import se.sics.gvod.net.Nat;
+
+/**
+ *
+ * @author jdowling
+ */
+public class HpMechanismSelectorTest {
+
+    private static final int MIN_SAMPLES = 3;
+    private Nat local;
+    private Nat remote;
+    private Nat other;
+    private List<HPMechanism> candidates;
+    private double nextDouble;
+    private HpMechanismSelector selector;
+
+    @Before
+    public void setUp() {
+        local = new Nat(Nat.Type.NAT, Nat.MappingPolicy.ENDPOINT_INDEPENDENT,
+                Nat.AllocationPolicy.PORT_PRESERVATION, Nat.FilteringPolicy.PORT_DEPENDENT,
+                1, 60 * 1000);
+        remote = new Nat(Nat.Type.NAT, Nat.MappingPolicy.PORT_DEPENDENT,
+                Nat.AllocationPolicy.PORT_CONTIGUITY, Nat.FilteringPolicy.PORT_DEPENDENT,
+                1, 60 * 1000);
+        other = new Nat(Nat.Type.OPEN);
+        candidates = Arrays.asList(HPMechanism.PRP, HPMechanism.PRC, HPMechanism.PRP_PRC);
+        nextDouble = 1;
+        selector = new HpMechanismSelector(0.1, MIN_SAMPLES, 0.5, new Random(1) {
+            @Override
+            public double nextDouble() {
+                return nextDouble;
+            }
+        });
+    }
+
+    private void record(HPMechanism m, int successes, int failures, long latency) {
+        for (int i = 0; i < successes; i++) {
+            selector.record(local, remote, m, true, latency);
+        }
+        for (int i = 0; i < failures; i++) {
+            selector.record(local, remote, m, false, 0);
+        }
+    }
+
+    @Test
+    public void testSelect() {
+        // nothing learned yet, use HpFeasability's order
+        assertEquals(HPMechanism.PRP, selector.select(local, remote, candidates));
+        assertNull(selector.select(local, remote, Arrays.<HPMechanism>asList()));
+
+        // PRP is known to fail, try the next one that isn't known to be bad
+        record(HPMechanism.PRP, 0, MIN_SAMPLES, 0);
+        assertEquals(HPMechanism.PRC, selector.select(local, remote, candidates));
+        // other NAT pairs aren't affected
+        assertEquals(HPMechanism.PRP, selector.select(local, other, candidates));
+
+        // the fastest of the mechanisms that work well wins
+        record(HPMechanism.PRC, 3, 1, 2000);
+        record(HPMechanism.PRP_PRC, 3, 0, 500);
+        assertEquals(HPMechanism.PRP_PRC, selector.select(local, remote, candidates));
+        assertEquals(0.75, selector.getSuccessRate(local, remote, HPMechanism.PRC), 0.001);
+        assertEquals(500, selector.getLatency(local, remote, HPMechanism.PRP_PRC));
+        assertEquals(-1, selector.getLatency(local, remote, HPMechanism.PRP));
+
+        // exploring never picks the best one
+        nextDouble = 0.05;
+        for (int i = 0; i < 20; i++) {
+            assertFalse(HPMechanism.PRP_PRC == selector.select(local, remote, candidates));
+        }
+        assertEquals(HPMechanism.PRP,
+                selector.select(local, remote, Arrays.asList(HPMechanism.PRP)));
+    }
+
+    @Test
+    public void testAging() {
+        record(HPMechanism.PRC, HpMechanismSelector.MAX_ATTEMPTS, 0, 1000);
+        assertEquals(HpMechanismSelector.MAX_ATTEMPTS,
+                selector.getAttempts(local, remote, HPMechanism.PRC));
+        // old successes are halved, so new failures count for more
+        record(HPMechanism.PRC, 0, HpMechanismSelector.MAX_ATTEMPTS / 2 + 1, 0);
+        assertTrue(selector.getSuccessRate(local, remote, HPMechanism.PRC) < 0.5);
+        assertEquals(HPMechanism.PRP_PRC, selector.select(local, remote,
+                Arrays.asList(HPMechanism.PRC, HPMechanism.PRP_PRC)));
+    }
+
+    @Test
+    public void testSaveLoad() throws IOException {
+        record(HPMechanism.PRP, 0, MIN_SAMPLES, 0);
+        record(HPMechanism.PRC, 4, 1, 1500);
+        selector.record(local, other, HPMechanism.SHP, true, 100);
+        File f = File.createTempFile("hp-stats", ".bin");
+        try {
+            assertEquals(3, selector.save(f));
+            HpMechanismSelector loaded = new HpMechanismSelector(0, MIN_SAMPLES, 0.5, new Random(1));
+            assertEquals(3, loaded.load(f));
+            assertEquals(3, loaded.size());
+            assertEquals(0.8, loaded.getSuccessRate(local, remote, HPMechanism.PRC), 0.001);
+            assertEquals(selector.getLatency(local, remote, HPMechanism.PRC),
+                    loaded.getLatency(local, remote, HPMechanism.PRC));
+            assertEquals(1, loaded.getAttempts(local, other, HPMechanism.SHP));
+            assertEquals(HPMechanism.PRC, loaded.select(local, remote, candidates));
+
+            FileOutputStream out = new FileOutputStream(f);
+            out.write(new byte[]{1, 2, 3, 4, 5});
+            out.close();
+            try {
+                loaded.load(f);
+                fail("Loaded a corrupt file");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            f.delete();
+        }
+        assertEquals(0, selector.load(f));
+    }
+}
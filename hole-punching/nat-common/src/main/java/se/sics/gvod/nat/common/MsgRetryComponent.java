@@ -4,6 +4,8 @@
  */
 package se.sics.gvod.nat.common;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.lang.NotImplementedException;
@@ -13,6 +15,7 @@ import se.sics.gvod.address.Address;
 import se.sics.gvod.common.RetryComponentDelegator;
 import se.sics.gvod.common.msgs.DirectMsgNetty;
 import se.sics.gvod.common.msgs.RelayMsgNetty;
+import se.sics.gvod.config.VodConfig;
 import se.sics.gvod.net.VodNetwork;
 import se.sics.gvod.net.msgs.DirectMsg;
 import se.sics.gvod.net.msgs.RewriteableMsg;
@@ -21,6 +24,7 @@ import se.sics.gvod.net.msgs.ScheduleRetryTimeout;
 import se.sics.gvod.timer.CancelTimeout;
 import se.sics.gvod.timer.OverlayTimeout;
 import se.sics.gvod.timer.ScheduleTimeout;
+import se.sics.gvod.timer.Timeout;
 import se.sics.gvod.timer.TimeoutId;
 import se.sics.gvod.timer.Timer;
 import se.sics.kompics.AutoSubscribeComponent;
@@ -82,6 +86,25 @@ public abstract class MsgRetryComponent extends AutoSubscribeComponent
      */
     protected ConcurrentHashMap<TimeoutId, Retry> mapMessageRetry =
             new ConcurrentHashMap<TimeoutId, Retry>();
+    /**
+     * Cache of responses sent by this component, used to answer retransmitted
+     * requests without re-processing them. Null (disabled) by default, servers
+     * enable it by calling enableResponseCache().
+     */
+    protected ResponseCache responseCache = null;
+    /**
+     * Limits the number of retries sent by this component relative to the number
+     * of requests sent. If a retry would exceed the budget, the request fails fast:
+     * the client's timeout is delivered immediately, with
+     * RewriteableRetryTimeout.isRetryBudgetExceeded() set, or a RetryBudgetExceeded
+     * timeout is delivered if the client didn't supply a timeout.
+     * Null if disabled.
+     */
+    protected RetryBudget retryBudget = VodConfig.RETRY_BUDGET_ENABLED
+            ? new RetryBudget(VodConfig.RETRY_BUDGET_RATIO, VodConfig.RETRY_BUDGET_WINDOW,
+            VodConfig.RETRY_BUDGET_MIN_RETRIES, VodConfig.RETRY_BUDGET_MIN_RETRIES_PER_DEST)
+            : null;
+    private long hedgesSent = 0;
 
     /**
      * This is the timeout event that is recvd by MsgRetryComp if the timer
@@ -101,6 +124,42 @@ public abstract class MsgRetryComponent extends AutoSubscribeComponent
         }
     }
 
+    /**
+     * Delivered to the component when a msg sent without a client-supplied
+     * timeout could not be retried, as the retry budget was exceeded.
+     */
+    public static class RetryBudgetExceeded extends OverlayTimeout {
+
+        private final RewriteableMsg msg;
+
+        public RetryBudgetExceeded(ScheduleTimeout timeout, RewriteableMsg msg, int overlayId) {
+            super(timeout, overlayId);
+            this.msg = msg;
+        }
+
+        public RewriteableMsg getMsg() {
+            return msg;
+        }
+    }
+
+    /**
+     * Fires when a hedged request has not been answered after the hedge delay,
+     * so the request is sent to the next candidate.
+     */
+    public static class HedgeTimeout extends OverlayTimeout {
+
+        private final TimeoutId requestTimeoutId;
+
+        public HedgeTimeout(ScheduleTimeout timeout, TimeoutId requestTimeoutId, int overlayId) {
+            super(timeout, overlayId);
+            this.requestTimeoutId = requestTimeoutId;
+        }
+
+        public TimeoutId getRequestTimeoutId() {
+            return requestTimeoutId;
+        }
+    }
+
     /**
      * The Retry object is stored with each timeout event in a map, so that if a
      * timeout is triggered, the retry object contains state required to retry
@@ -117,6 +176,10 @@ public abstract class MsgRetryComponent extends AutoSubscribeComponent
         private int rtoRetries;
         private int numReplies;
         private Set<Address> multicastAddrs;
+        private List<Address> hedgeCandidates;
+        private int nextHedge;
+        private long hedgeDelay;
+        private TimeoutId hedgeTimeoutId;
 
         public Retry(RewriteableMsg message, long retransmissionTimeout, int rtoRetries,
                 double rtoScaleAfterRetry, Object context, Set<Address> multicastAddrs) {
@@ -216,6 +279,36 @@ public abstract class MsgRetryComponent extends AutoSubscribeComponent
         public int getNumReplies() {
             return numReplies;
         }
+
+        public void setHedgeCandidates(List<Address> hedgeCandidates, long hedgeDelay) {
+            this.hedgeCandidates = hedgeCandidates;
+            this.hedgeDelay = hedgeDelay;
+            // the first candidate is the primary destination
+            this.nextHedge = 1;
+        }
+
+        public boolean hasMoreHedgeCandidates() {
+            return hedgeCandidates != null && nextHedge < hedgeCandidates.size();
+        }
+
+        public Address nextHedgeCandidate() {
+            if (!hasMoreHedgeCandidates()) {
+                return null;
+            }
+            return hedgeCandidates.get(nextHedge++);
+        }
+
+        public long getHedgeDelay() {
+            return hedgeDelay;
+        }
+
+        public TimeoutId getHedgeTimeoutId() {
+            return hedgeTimeoutId;
+        }
+
+        public void setHedgeTimeoutId(TimeoutId hedgeTimeoutId) {
+            this.hedgeTimeoutId = hedgeTimeoutId;
+        }
     }
 
     /**
@@ -284,6 +377,54 @@ public abstract class MsgRetryComponent extends AutoSubscribeComponent
         return retry(timeout, null);
     }
 
+    /**
+     * Sends the msg to the first candidate, and to the next candidate every
+     * hedgeDelay ms until a response is received (cancelRetry() is called) or
+     * there are no more candidates. All copies of the msg have the same
+     * timeoutId, so only the first response is handled. Retransmissions after
+     * an RTO go to the last candidate the msg was sent to.
+     *
+     * @param timeout object including msg to be sent
+     * @param candidates destinations, in order of preference
+     * @param hedgeDelay how long to wait for a response before sending to
+     * the next candidate. Typically a high percentile of the RTT to the
+     * previous candidate.
+     * @param request context object, see retry()
+     * @return timeoutId
+     */
+    protected TimeoutId hedge(RewriteableRetryTimeout timeout, List<Address> candidates,
+            long hedgeDelay, Object request) {
+        if (candidates == null || candidates.isEmpty()) {
+            throw new IllegalArgumentException("Hedged request needs at least one candidate.");
+        }
+        if (hedgeDelay <= 0) {
+            throw new IllegalArgumentException("Hedge delay must be greater than zero.");
+        }
+        timeout.getMsg().rewriteDestination(candidates.get(0));
+        TimeoutId timeoutId = retry(timeout, request);
+        Retry r = mapMessageRetry.get(timeoutId);
+        if (r != null && candidates.size() > 1) {
+            r.setHedgeCandidates(new ArrayList<Address>(candidates), hedgeDelay);
+            scheduleHedge(r, timeout.getOverlayId());
+        }
+        return timeoutId;
+    }
+
+    private void scheduleHedge(Retry r, int overlayId) {
+        ScheduleTimeout st = new ScheduleTimeout(r.getHedgeDelay());
+        HedgeTimeout ht = new HedgeTimeout(st, r.getTimeoutId(), overlayId);
+        st.setTimeoutEvent(ht);
+        r.setHedgeTimeoutId(ht.getTimeoutId());
+        trigger(st, timer);
+    }
+
+    private void cancelHedge(Retry r) {
+        if (r.getHedgeTimeoutId() != null) {
+            trigger(new CancelTimeout(r.getHedgeTimeoutId()), timer);
+            r.setHedgeTimeoutId(null);
+        }
+    }
+
     /**
      * Invoke this method to send a message.
      *
@@ -361,6 +502,16 @@ public abstract class MsgRetryComponent extends AutoSubscribeComponent
         TimeoutId timeoutId = requestTimeoutEvent.getTimeoutId();
         msg.setTimeoutId(timeoutId);
 
+        if (retryBudget != null && oldTimeoutId == null) {
+            if (retry.getMulticastAddrs() != null) {
+                for (Address addr : retry.getMulticastAddrs()) {
+                    retryBudget.attempt(addr.getId());
+                }
+            } else {
+                retryBudget.attempt(msg.getDestination().getId());
+            }
+        }
+
 
         // retransmissionTimeout is '0' if we just execute retry(msg) with no
         // parameters. In this case, we won't retry the message. We just set the
@@ -383,6 +534,76 @@ public abstract class MsgRetryComponent extends AutoSubscribeComponent
         return timeoutId;
     }
 
+    /**
+     * Servers call this in their init method, so that responses sent using
+     * doTrigger() are cached and retransmitted requests can be answered
+     * by calling replayResponse().
+     *
+     * @param maxSize max number of requests to cache responses for
+     * @param ttl how long in ms to keep a cached response
+     */
+    protected void enableResponseCache(int maxSize, long ttl) {
+        responseCache = new ResponseCache(maxSize, ttl);
+    }
+
+    /**
+     * Call this at the start of a handler for a request msg. If the request is a
+     * retransmission of a request that has already been answered, the cached
+     * response(s) are sent again. If the request is a retransmission of a request
+     * that is still being processed, it is dropped.
+     *
+     * @param request request msg received
+     * @return true if the request was a duplicate and the handler should return
+     * without processing it, false otherwise.
+     */
+    protected boolean replayResponse(RewriteableMsg request) {
+        if (responseCache == null) {
+            return false;
+        }
+        List<RewriteableMsg> responses = responseCache.get(request);
+        if (responses == null) {
+            return false;
+        }
+        for (RewriteableMsg r : responses) {
+            // the client's public address changed (e.g., new NAT binding), so
+            // the cached response would not reach it.
+            if (!r.getDestination().equals(request.getSource())) {
+                return false;
+            }
+        }
+        logger.debug("Duplicate request {} from {}. Replaying {} cached responses.",
+                new Object[]{request.getClass().getSimpleName(),
+                    request.getSource().getId(), responses.size()});
+        for (RewriteableMsg r : responses) {
+            trigger(r, network);
+        }
+        return true;
+    }
+
+    /**
+     * Override this to keep responses that don't answer a request from their
+     * destination, such as relayed msgs, out of the response cache.
+     *
+     * @param response response msg sent with doTrigger()
+     * @return true if the response is cached
+     */
+    protected boolean isCachedResponse(RewriteableMsg response) {
+        return true;
+    }
+
+    /**
+     * Call this when the response to a request is sent asynchronously (e.g.,
+     * after a port has been allocated), so that retransmissions of the request
+     * that arrive in the meantime are dropped by replayResponse().
+     *
+     * @param request request msg received
+     */
+    protected void markResponsePending(RewriteableMsg request) {
+        if (responseCache != null) {
+            responseCache.markPending(request);
+        }
+    }
+
     protected Object getContext(TimeoutId timeoutId) {
         Object request = null;
         logger.trace("Cancelling timer " + timeoutId);
@@ -409,9 +630,11 @@ public abstract class MsgRetryComponent extends AutoSubscribeComponent
         if (timeoutId.isSupported()) {
             logger.trace("Cancelling timer: " + timeoutId);
 
-            if (mapMessageRetry.remove(timeoutId) != null) {
+            Retry r = mapMessageRetry.remove(timeoutId);
+            if (r != null) {
                 CancelTimeout ct = new CancelTimeout(timeoutId);
                 trigger(ct, timer);
+                cancelHedge(r);
                 return true;
             } else {
                 logger.trace("Cancelling timer failed: " + timeoutId.getId() + " . Couldn't find timeoutId.");
@@ -445,10 +668,26 @@ public abstract class MsgRetryComponent extends AutoSubscribeComponent
                 return;
             }
 
-            cancelRetry(timeoutId);
+            // the timer has already fired, so just remove the retry. Don't
+            // call cancelRetry(), as it would also cancel an outstanding hedge.
+            mapMessageRetry.remove(timeoutId);
 
             RewriteableMsg msg = retryData.getMessage();
-            if (retryData.getRetriesLeft() > 0) {
+            if (retryData.getRetriesLeft() > 0 && !withinRetryBudget(retryData)) {
+                logger.debug("Retry budget exceeded, not retrying {} to {}",
+                        msg.getClass().getName(), msg.getDestination());
+                if (retryData.getScheduleTimeout() != null) {
+                    Timeout t = retryData.getScheduleTimeout().getTimeoutEvent();
+                    if (t instanceof RewriteableRetryTimeout) {
+                        ((RewriteableRetryTimeout) t).setRetryBudgetExceeded(true);
+                    }
+                    deliverClientTimeout(retryData);
+                } else {
+                    ScheduleTimeout st = new ScheduleTimeout(0);
+                    st.setTimeoutEvent(new RetryBudgetExceeded(st, msg, timeout.getOverlayId()));
+                    trigger(st, timer);
+                }
+            } else if (retryData.getRetriesLeft() > 0) {
                 retryData.decRetriesLeft();
                 retryData.rtoScale();
                 if (msg instanceof DirectMsg) {
@@ -469,17 +708,14 @@ public abstract class MsgRetryComponent extends AutoSubscribeComponent
             } else if (retryData.getRetriesLeft() == 0) {
                 // if there's a client-supplied timeout, send it back to the client
                 if (retryData.getScheduleTimeout() != null) {
-                    TimeoutId callbackTimeoutId = retryData.getTimeoutId();
-                    mapMessageRetry.put(callbackTimeoutId, retryData);
-                    ScheduleTimeout st = retryData.getScheduleTimeout();
-                    st.getTimeoutEvent().setTimeoutId(callbackTimeoutId);
-                    trigger(st, timer);
+                    deliverClientTimeout(retryData);
                     logger.debug("Msg timeout: no retries left: "
                             + retryData.getMessage().getClass().getName()
                             + " src: " + msg.getSource()
                             + " dest: " + msg.getDestination() + " "
                             + msg.getTimeoutId());
                 } else {
+                    cancelHedge(retryData);
                     logger.warn("MsgRetry: timeout obj was null with no retries left: {} ",
                             retryData.getMessage().getClass().getName());
                 }
@@ -489,6 +725,100 @@ public abstract class MsgRetryComponent extends AutoSubscribeComponent
             }
         }
     };
+    protected Handler<RetryBudgetExceeded> handleRetryBudgetExceeded = new Handler<RetryBudgetExceeded>() {
+        @Override
+        public void handle(RetryBudgetExceeded event) {
+            logger.debug("Retry budget exceeded for {} to {}",
+                    event.getMsg().getClass().getName(), event.getMsg().getDestination());
+        }
+    };
+
+    protected Handler<HedgeTimeout> handleHedgeTimeout = new Handler<HedgeTimeout>() {
+        @Override
+        public void handle(HedgeTimeout event) {
+            Retry r = mapMessageRetry.get(event.getRequestTimeoutId());
+            if (r == null || !event.getTimeoutId().equals(r.getHedgeTimeoutId())) {
+                // already answered, timed out or cancelled
+                return;
+            }
+            r.setHedgeTimeoutId(null);
+            Address next = r.nextHedgeCandidate();
+            if (next == null) {
+                return;
+            }
+            RewriteableMsg msg = r.getMessage();
+            logger.debug("No response from {} for {}. Hedging to {}",
+                    new Object[]{msg.getDestination(), msg.getClass().getName(), next});
+            if (retryBudget != null) {
+                retryBudget.attempt(next.getId());
+            }
+            msg.rewriteDestination(next);
+            trigger(msg, network);
+            hedgesSent++;
+            if (r.hasMoreHedgeCandidates()) {
+                scheduleHedge(r, event.getOverlayId());
+            }
+        }
+    };
+
+    /**
+     * @return number of hedged copies of requests sent by this component.
+     */
+    public long getNumHedgesSent() {
+        return hedgesSent;
+    }
+
+    /**
+     * Checks the retry budget for all the destinations of the msg, and if
+     * there is budget left, records the retry.
+     */
+    private boolean withinRetryBudget(Retry retryData) {
+        if (retryBudget == null) {
+            return true;
+        }
+        Set<Address> multicastAddrs = retryData.getMulticastAddrs();
+        if (multicastAddrs != null) {
+            for (Address addr : multicastAddrs) {
+                if (!retryBudget.canRetry(addr.getId())) {
+                    retryBudget.rejected();
+                    return false;
+                }
+            }
+            for (Address addr : multicastAddrs) {
+                retryBudget.retry(addr.getId());
+            }
+        } else {
+            int destId = retryData.getMessage().getDestination().getId();
+            if (!retryBudget.canRetry(destId)) {
+                retryBudget.rejected();
+                return false;
+            }
+            retryBudget.retry(destId);
+        }
+        return true;
+    }
+
+    /**
+     * Sends the client-supplied timeout back to the client, with the same
+     * timeoutId as the request msg.
+     */
+    private void deliverClientTimeout(Retry retryData) {
+        cancelHedge(retryData);
+        TimeoutId callbackTimeoutId = retryData.getTimeoutId();
+        mapMessageRetry.put(callbackTimeoutId, retryData);
+        ScheduleTimeout st = retryData.getScheduleTimeout();
+        st.getTimeoutEvent().setTimeoutId(callbackTimeoutId);
+        trigger(st, timer);
+    }
+
+    /**
+     * @return the retry budget metrics for this component, or null if the
+     * retry budget is disabled.
+     */
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
     public Handler<Stop> handleStop = new Handler<Stop>() {
         @Override
         public void handle(Stop event) {
@@ -524,6 +854,12 @@ public abstract class MsgRetryComponent extends AutoSubscribeComponent
             throw new IllegalStateException("Request msgs should not call doTrigger(). "
                     + " They should call doRetry().");
         }
+        if (responseCache != null
+                && (event instanceof DirectMsgNetty.Response
+                || event instanceof DirectMsgNetty.SystemResponse)
+                && isCachedResponse((RewriteableMsg) event)) {
+            responseCache.put((RewriteableMsg) event);
+        }
         trigger(event, port);
     }
 
@@ -548,6 +884,18 @@ public abstract class MsgRetryComponent extends AutoSubscribeComponent
         return retry(timeout, request);
     }
 
+    @Override
+    public TimeoutId doHedge(RewriteableRetryTimeout timeout, List<Address> candidates,
+            long hedgeDelay) {
+        return hedge(timeout, candidates, hedgeDelay, null);
+    }
+
+    @Override
+    public TimeoutId doHedge(RewriteableRetryTimeout timeout, List<Address> candidates,
+            long hedgeDelay, Object request) {
+        return hedge(timeout, candidates, hedgeDelay, request);
+    }
+
     @Override
     public boolean doCancelRetry(
             TimeoutId timeoutId) {
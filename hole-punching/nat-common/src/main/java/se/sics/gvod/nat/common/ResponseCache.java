@@ -0,0 +1,212 @@
+package se.sics.gvod.nat.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import se.sics.gvod.net.msgs.RewriteableMsg;
+import se.sics.gvod.timer.TimeoutId;
+
+/**
+ * Caches the responses a server has recently sent, so that a retransmitted
+ * request (same source id and same timeoutId) can be answered from the cache
+ * instead of being processed again by the server's handler.
+ *
+ * A request can be marked as pending while its response is being prepared
+ * asynchronously (e.g., waiting on a port allocation). Duplicates of a pending
+ * request are dropped, as the original response is on its way.
+ *
+ * Entries are kept in insertion order, so the oldest entry is always at the head
+ * of the map. This lets us evict both expired entries and entries over the size
+ * bound by only looking at the head.
+ *
+ * Not thread-safe, it should only be accessed from a component's handlers.
+ *
+ * @author jdowling
+ */
+public class ResponseCache {
+
+    private final int maxSize;
+    private final long ttl;
+    private final LinkedHashMap<Key, Entry> cache = new LinkedHashMap<Key, Entry>();
+    private long hits = 0;
+    private long pendingHits = 0;
+    private long misses = 0;
+
+    public static final class Key {
+
+        private final int nodeId;
+        private final int timeoutId;
+
+        public Key(int nodeId, TimeoutId timeoutId) {
+            this.nodeId = nodeId;
+            this.timeoutId = timeoutId.getId();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof Key == false) {
+                return false;
+            }
+            Key that = (Key) obj;
+            return this.nodeId == that.nodeId && this.timeoutId == that.timeoutId;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 + nodeId) + timeoutId;
+        }
+
+        @Override
+        public String toString() {
+            return nodeId + ":" + timeoutId;
+        }
+    }
+
+    private static final class Entry {
+
+        private final long createdAt;
+        private final List<RewriteableMsg> responses = new ArrayList<RewriteableMsg>(1);
+
+        Entry(long createdAt) {
+            this.createdAt = createdAt;
+        }
+    }
+
+    /**
+     * @param maxSize maximum number of requests we keep responses for.
+     * @param ttl time in ms after which a cached response is discarded. Should
+     * be larger than the total time a client spends retransmitting a request.
+     */
+    public ResponseCache(int maxSize, long ttl) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Response cache size must be greater than zero.");
+        }
+        if (ttl < 0) {
+            throw new IllegalArgumentException("Response cache ttl must be zero or greater.");
+        }
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Marks a request as being processed, so that duplicates received before
+     * its response is sent are dropped.
+     *
+     * @param request the request msg received
+     */
+    public void markPending(RewriteableMsg request) {
+        if (!cacheable(request)) {
+            return;
+        }
+        Key key = new Key(request.getSource().getId(), request.getTimeoutId());
+        if (!cache.containsKey(key)) {
+            insert(key, new Entry(now()));
+        }
+    }
+
+    /**
+     * Stores a response sent to a node. The response is keyed by its destination
+     * id and its timeoutId, which are the source id and the timeoutId of the
+     * request it answers.
+     *
+     * @param response the response msg sent
+     * @return true if the response was cached
+     */
+    public boolean put(RewriteableMsg response) {
+        if (!cacheable(response)) {
+            return false;
+        }
+        Key key = new Key(response.getDestination().getId(), response.getTimeoutId());
+        Entry e = cache.get(key);
+        if (e == null) {
+            e = new Entry(now());
+            insert(key, e);
+        }
+        e.responses.add(response);
+        return true;
+    }
+
+    /**
+     * Looks up the responses for a request.
+     *
+     * @param request the request msg received
+     * @return null if the request has not been seen before (or the entry expired),
+     * an empty list if the request is still pending, otherwise the responses that
+     * were sent for the request.
+     */
+    public List<RewriteableMsg> get(RewriteableMsg request) {
+        if (!cacheable(request)) {
+            return null;
+        }
+        expire(now());
+        Entry e = cache.get(new Key(request.getSource().getId(), request.getTimeoutId()));
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        if (e.responses.isEmpty()) {
+            pendingHits++;
+        } else {
+            hits++;
+        }
+        return Collections.unmodifiableList(e.responses);
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getPendingHits() {
+        return pendingHits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    private static boolean cacheable(RewriteableMsg msg) {
+        return msg.getTimeoutId() != null && msg.hasTimeout();
+    }
+
+    private void insert(Key key, Entry e) {
+        expire(e.createdAt);
+        while (cache.size() >= maxSize) {
+            Iterator<Key> iter = cache.keySet().iterator();
+            iter.next();
+            iter.remove();
+        }
+        cache.put(key, e);
+    }
+
+    private void expire(long now) {
+        Iterator<Map.Entry<Key, Entry>> iter = cache.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Key, Entry> e = iter.next();
+            if (now - e.getValue().createdAt < ttl) {
+                break;
+            }
+            iter.remove();
+        }
+    }
+
+    /**
+     * Overridden in unit tests.
+     */
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+}
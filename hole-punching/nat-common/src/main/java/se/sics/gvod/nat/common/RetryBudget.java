@@ -0,0 +1,219 @@
+package se.sics.gvod.nat.common;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Limits the number of retries a component sends, so that when a server
+ * degrades its clients don't all multiply their load on it by retrying.
+ *
+ * Retries are allowed as long as, over a sliding window, the number of retries
+ * is at most 'ratio' times the number of first attempts. A minimum number of
+ * retries per window is always allowed, so that components that send few
+ * requests can still retry. The budget is enforced both over all destinations
+ * and per destination.
+ *
+ * The sliding window is made up of a ring of buckets, so counting is O(1).
+ *
+ * Not thread-safe, it should only be accessed from a component's handlers.
+ *
+ * @author jdowling
+ */
+public class RetryBudget {
+
+    private static final int NUM_BUCKETS = 10;
+    private final double ratio;
+    private final long bucketLength;
+    private final int minRetries;
+    private final int minRetriesPerDest;
+    private final Window global = new Window();
+    private final Map<Integer, Window> perDest = new HashMap<Integer, Window>();
+    private long currentBucket = -1;
+    // metrics, not windowed
+    private long totalAttempts = 0;
+    private long totalRetries = 0;
+    private long totalRejected = 0;
+
+    /**
+     * Counts over the sliding window.
+     */
+    private static final class Window {
+
+        private final int[] attempts = new int[NUM_BUCKETS];
+        private final int[] retries = new int[NUM_BUCKETS];
+        private int sumAttempts = 0;
+        private int sumRetries = 0;
+
+        void clearBucket(int b) {
+            sumAttempts -= attempts[b];
+            sumRetries -= retries[b];
+            attempts[b] = 0;
+            retries[b] = 0;
+        }
+
+        boolean isEmpty() {
+            return sumAttempts == 0 && sumRetries == 0;
+        }
+    }
+
+    /**
+     * @param ratio max retries as a fraction of first attempts, e.g., 0.1.
+     * @param window length of the sliding window in ms.
+     * @param minRetries number of retries always allowed per window, over all
+     * destinations.
+     * @param minRetriesPerDest number of retries always allowed per window to
+     * a single destination.
+     */
+    public RetryBudget(double ratio, long window, int minRetries, int minRetriesPerDest) {
+        if (ratio < 0) {
+            throw new IllegalArgumentException("Retry budget ratio must be zero or greater.");
+        }
+        if (window < NUM_BUCKETS) {
+            throw new IllegalArgumentException("Retry budget window must be at least "
+                    + NUM_BUCKETS + "ms.");
+        }
+        this.ratio = ratio;
+        this.bucketLength = window / NUM_BUCKETS;
+        this.minRetries = minRetries;
+        this.minRetriesPerDest = minRetriesPerDest;
+    }
+
+    /**
+     * Record that a request was sent for the first time.
+     *
+     * @param destId id of the destination
+     */
+    public void attempt(int destId) {
+        int b = advance();
+        global.attempts[b]++;
+        global.sumAttempts++;
+        Window w = getWindow(destId);
+        w.attempts[b]++;
+        w.sumAttempts++;
+        totalAttempts++;
+    }
+
+    /**
+     * Checks if there is budget left to retry a request to the destination.
+     * Doesn't record anything, call retry() if the retry is sent.
+     *
+     * @param destId id of the destination
+     * @return true if a retry is allowed
+     */
+    public boolean canRetry(int destId) {
+        advance();
+        if (!withinBudget(global, minRetries)) {
+            return false;
+        }
+        Window w = perDest.get(destId);
+        return w == null || withinBudget(w, minRetriesPerDest);
+    }
+
+    /**
+     * Record that a request was retried.
+     *
+     * @param destId id of the destination
+     */
+    public void retry(int destId) {
+        int b = advance();
+        global.retries[b]++;
+        global.sumRetries++;
+        Window w = getWindow(destId);
+        w.retries[b]++;
+        w.sumRetries++;
+        totalRetries++;
+    }
+
+    /**
+     * Record that a retry was not sent, as the budget was exceeded.
+     */
+    public void rejected() {
+        totalRejected++;
+    }
+
+    private boolean withinBudget(Window w, int min) {
+        return w.sumRetries < Math.max(min, ratio * w.sumAttempts);
+    }
+
+    private Window getWindow(int destId) {
+        Window w = perDest.get(destId);
+        if (w == null) {
+            w = new Window();
+            perDest.put(destId, w);
+        }
+        return w;
+    }
+
+    /**
+     * Moves the window forward to the current time, clearing the buckets that
+     * have fallen out of it.
+     *
+     * @return the index of the current bucket
+     */
+    private int advance() {
+        long bucket = now() / bucketLength;
+        if (currentBucket == -1) {
+            currentBucket = bucket;
+        }
+        if (bucket > currentBucket) {
+            long toClear = Math.min(bucket - currentBucket, NUM_BUCKETS);
+            for (long i = 1; i <= toClear; i++) {
+                int b = (int) ((currentBucket + i) % NUM_BUCKETS);
+                global.clearBucket(b);
+                Iterator<Window> iter = perDest.values().iterator();
+                while (iter.hasNext()) {
+                    Window w = iter.next();
+                    w.clearBucket(b);
+                    if (w.isEmpty()) {
+                        iter.remove();
+                    }
+                }
+            }
+            currentBucket = bucket;
+        }
+        return (int) (currentBucket % NUM_BUCKETS);
+    }
+
+    public int getWindowAttempts() {
+        advance();
+        return global.sumAttempts;
+    }
+
+    public int getWindowRetries() {
+        advance();
+        return global.sumRetries;
+    }
+
+    /**
+     * @return fraction of the global retry budget used in the current window.
+     */
+    public double getBudgetUsed() {
+        advance();
+        double budget = Math.max(minRetries, ratio * global.sumAttempts);
+        return (budget == 0) ? 1.0d : global.sumRetries / budget;
+    }
+
+    public long getTotalAttempts() {
+        return totalAttempts;
+    }
+
+    public long getTotalRetries() {
+        return totalRetries;
+    }
+
+    public long getTotalRejected() {
+        return totalRejected;
+    }
+
+    public int getNumDestinations() {
+        return perDest.size();
+    }
+
+    /**
+     * Overridden in unit tests.
+     */
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+}
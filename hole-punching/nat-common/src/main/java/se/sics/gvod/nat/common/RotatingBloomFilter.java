@@ -0,0 +1,167 @@
+package se.sics.gvod.nat.common;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the keys seen in the last 'window' ms, in constant memory, for
+ * duplicate suppression. A key is a pair of longs.
+ *
+ * Two Bloom filters are used: keys are added to the current filter and looked
+ * up in both. Every window ms the current filter becomes the previous one, and
+ * the old previous filter is cleared and becomes the current one. So a key is
+ * remembered for between window and 2 * window ms. If more than
+ * expectedKeys are added in a window, the filters are rotated early, so the
+ * false-positive rate stays bounded and a burst shortens the memory instead.
+ *
+ * False negatives are not possible while a key is remembered. False
+ * positives (a new key reported as seen) happen with probability of about
+ * fpp.
+ *
+ * Not thread-safe, it should only be accessed from a component's handlers.
+ *
+ * @author jdowling
+ */
+public class RotatingBloomFilter {
+
+    private final long window;
+    private final int expectedKeys;
+    private final int numBits;
+    private final int numHashes;
+    private long[] current;
+    private long[] previous;
+    private long currentStart;
+    private int currentKeys = 0;
+    private long rotations = 0;
+
+    /**
+     * @param expectedKeys max number of keys added in a window
+     * @param fpp the false positive probability for a lookup, e.g., 0.001.
+     * @param window time in ms that keys are remembered for, at least.
+     */
+    public RotatingBloomFilter(int expectedKeys, double fpp, long window) {
+        if (expectedKeys < 1) {
+            throw new IllegalArgumentException("expectedKeys must be greater than zero");
+        }
+        if (fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("fpp must be in (0, 1): " + fpp);
+        }
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be greater than zero");
+        }
+        this.expectedKeys = expectedKeys;
+        this.window = window;
+        // a lookup checks two filters, so each one gets half the fpp
+        double p = fpp / 2;
+        double ln2 = Math.log(2);
+        long bits = (long) Math.ceil(-expectedKeys * Math.log(p) / (ln2 * ln2));
+        bits = Math.max(64, Math.min(bits, Integer.MAX_VALUE - 63));
+        this.numBits = (int) bits;
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedKeys * ln2));
+        this.current = new long[(numBits + 63) / 64];
+        this.previous = new long[current.length];
+        this.currentStart = now();
+    }
+
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if the key was probably added in the last window, false if
+     * it definitely wasn't.
+     */
+    public boolean mightContain(long k1, long k2) {
+        maybeRotate();
+        long h1 = mix(k1 ^ mix(k2));
+        long h2 = mix(h1 ^ k2);
+        return contains(current, h1, h2) || contains(previous, h1, h2);
+    }
+
+    public void put(long k1, long k2) {
+        maybeRotate();
+        if (currentKeys >= expectedKeys) {
+            rotate();
+        }
+        long h1 = mix(k1 ^ mix(k2));
+        long h2 = mix(h1 ^ k2);
+        for (int i = 0; i < numHashes; i++) {
+            int b = bit(h1 + i * h2);
+            current[b >>> 6] |= 1L << b;
+        }
+        currentKeys++;
+    }
+
+    /**
+     * Adds the key.
+     * @return true if the key was not already present.
+     */
+    public boolean putIfAbsent(long k1, long k2) {
+        if (mightContain(k1, k2)) {
+            return false;
+        }
+        put(k1, k2);
+        return true;
+    }
+
+    private boolean contains(long[] bits, long h1, long h2) {
+        for (int i = 0; i < numHashes; i++) {
+            int b = bit(h1 + i * h2);
+            if ((bits[b >>> 6] & (1L << b)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int bit(long h) {
+        return (int) ((h & Long.MAX_VALUE) % numBits);
+    }
+
+    private void maybeRotate() {
+        long now = now();
+        long elapsed = now - currentStart;
+        if (elapsed >= window) {
+            // not used for two windows, forget everything
+            if (elapsed >= 2 * window) {
+                Arrays.fill(current, 0);
+            }
+            rotate();
+            // keep the rotations on window boundaries, even if we were idle
+            currentStart = now - (elapsed % window);
+        }
+    }
+
+    private void rotate() {
+        long[] t = previous;
+        previous = current;
+        Arrays.fill(t, 0);
+        current = t;
+        currentKeys = 0;
+        currentStart = now();
+        rotations++;
+    }
+
+    /**
+     * The finalizer of MurmurHash3, spreads the bits of a key.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public int getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    public long getRotations() {
+        return rotations;
+    }
+}
@@ -0,0 +1,121 @@
+package se.sics.gvod.nat.common;
+
+import java.net.InetAddress;
+import java.util.List;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import se.sics.gvod.address.Address;
+import se.sics.gvod.common.util.ToVodAddr;
+import se.sics.gvod.net.VodAddress;
+import se.sics.gvod.net.msgs.RewriteableMsg;
+import se.sics.gvod.timer.UUID;
+
+/**
+ *
+ * @author jdowling
+ */
+public class ResponseCacheTest {
+
+    private static VodAddress client1;
+    private static VodAddress client2;
+    private static VodAddress server;
+    private long now;
+    private ResponseCache cache;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        InetAddress ip = InetAddress.getByName("127.0.0.1");
+        client1 = ToVodAddr.systemAddr(new Address(ip, 5001, 1));
+        client2 = ToVodAddr.systemAddr(new Address(ip, 5002, 2));
+        server = ToVodAddr.systemAddr(new Address(ip, 5003, 3));
+    }
+
+    @Before
+    public void setUp() {
+        now = 0;
+        cache = new ResponseCache(2, 1000) {
+            @Override
+            protected long now() {
+                return now;
+            }
+        };
+    }
+
+    private TMessage.RequestMsg request(VodAddress src) {
+        TMessage.RequestMsg req = new TMessage.RequestMsg(src, server);
+        req.setTimeoutId(UUID.nextUUID());
+        return req;
+    }
+
+    private TMessage.ResponseMsg response(TMessage.RequestMsg req) {
+        return new TMessage.ResponseMsg(server, req.getVodSource(), req.getTimeoutId());
+    }
+
+    @Test
+    public void testReplay() {
+        TMessage.RequestMsg req = request(client1);
+        assertNull(cache.get(req));
+        TMessage.ResponseMsg resp = response(req);
+        assertTrue(cache.put(resp));
+        List<RewriteableMsg> cached = cache.get(req);
+        assertEquals(1, cached.size());
+        assertSame(resp, cached.get(0));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testSameTimeoutIdDifferentSource() {
+        TMessage.RequestMsg req = request(client1);
+        cache.put(response(req));
+        TMessage.RequestMsg other = new TMessage.RequestMsg(client2, server);
+        other.setTimeoutId(req.getTimeoutId());
+        assertNull(cache.get(other));
+    }
+
+    @Test
+    public void testPending() {
+        TMessage.RequestMsg req = request(client1);
+        cache.markPending(req);
+        assertTrue(cache.get(req).isEmpty());
+        assertEquals(1, cache.getPendingHits());
+        cache.put(response(req));
+        assertEquals(1, cache.get(req).size());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testExpiry() {
+        TMessage.RequestMsg req = request(client1);
+        cache.put(response(req));
+        now = 999;
+        assertNotNull(cache.get(req));
+        now = 1000;
+        assertNull(cache.get(req));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testBoundedSize() {
+        TMessage.RequestMsg req1 = request(client1);
+        TMessage.RequestMsg req2 = request(client2);
+        TMessage.RequestMsg req3 = request(client1);
+        cache.put(response(req1));
+        cache.put(response(req2));
+        cache.put(response(req3));
+        assertEquals(2, cache.size());
+        assertNull(cache.get(req1));
+        assertNotNull(cache.get(req2));
+        assertNotNull(cache.get(req3));
+    }
+
+    @Test
+    public void testNoTimeoutIdNotCached() {
+        TMessage.RequestMsg req = new TMessage.RequestMsg(client1, server);
+        assertFalse(cache.put(new TMessage.ResponseMsg(server, client1, null)));
+        assertNull(cache.get(req));
+        assertEquals(0, cache.size());
+    }
+}
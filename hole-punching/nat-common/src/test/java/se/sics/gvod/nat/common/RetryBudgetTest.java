@@ -0,0 +1,79 @@
+package se.sics.gvod.nat.common;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jdowling
+ */
+public class RetryBudgetTest {
+
+    private long now;
+    private RetryBudget budget;
+
+    @Before
+    public void setUp() {
+        now = 0;
+        // 10% of attempts, 1s window, 2 retries always allowed, 1 per destination
+        budget = new RetryBudget(0.1d, 1000, 2, 1) {
+            @Override
+            protected long now() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void testMinRetriesPerDestination() {
+        budget.attempt(1);
+        assertTrue(budget.canRetry(1));
+        budget.retry(1);
+        assertFalse(budget.canRetry(1));
+        // other destinations still have budget
+        budget.attempt(2);
+        assertTrue(budget.canRetry(2));
+    }
+
+    @Test
+    public void testGlobalBudget() {
+        budget.attempt(1);
+        budget.attempt(2);
+        budget.attempt(3);
+        budget.retry(1);
+        budget.retry(2);
+        assertFalse(budget.canRetry(3));
+        assertEquals(1.0d, budget.getBudgetUsed(), 0.0001d);
+    }
+
+    @Test
+    public void testRatio() {
+        for (int i = 0; i < 100; i++) {
+            budget.attempt(i);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertTrue(budget.canRetry(i));
+            budget.retry(i);
+        }
+        assertFalse(budget.canRetry(50));
+        budget.rejected();
+        assertEquals(100, budget.getTotalAttempts());
+        assertEquals(10, budget.getTotalRetries());
+        assertEquals(1, budget.getTotalRejected());
+    }
+
+    @Test
+    public void testWindowSlides() {
+        budget.attempt(1);
+        budget.retry(1);
+        assertFalse(budget.canRetry(1));
+        now = 500;
+        assertFalse(budget.canRetry(1));
+        now = 1000;
+        assertTrue(budget.canRetry(1));
+        assertEquals(0, budget.getWindowAttempts());
+        assertEquals(0, budget.getWindowRetries());
+        assertEquals(0, budget.getNumDestinations());
+    }
+}
@@ -0,0 +1,87 @@
+package se.sics.gvod.nat.common;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jdowling
+ */
+public class RotatingBloomFilterTest {
+
+    private long now;
+    private RotatingBloomFilter filter;
+
+    @Before
+    public void setUp() {
+        now = 0;
+        filter = new RotatingBloomFilter(10000, 0.001d, 1000) {
+            @Override
+            protected long now() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void testPutIfAbsent() {
+        assertTrue(filter.putIfAbsent(1, 2));
+        assertFalse(filter.putIfAbsent(1, 2));
+        assertTrue(filter.mightContain(1, 2));
+        assertFalse(filter.mightContain(2, 1));
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        for (int i = 0; i < 10000; i++) {
+            filter.put(i, 0);
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain(i, 0));
+        }
+        int fp = 0;
+        for (int i = 10000; i < 110000; i++) {
+            if (filter.mightContain(i, 0)) {
+                fp++;
+            }
+        }
+        // expected about 100
+        assertTrue("false positives: " + fp, fp < 300);
+    }
+
+    @Test
+    public void testWindow() {
+        filter.put(1, 1);
+        now = 999;
+        assertTrue(filter.mightContain(1, 1));
+        // remembered for at least one window
+        now = 1500;
+        assertTrue(filter.mightContain(1, 1));
+        filter.put(2, 2);
+        // and at most two
+        now = 2000;
+        assertFalse(filter.mightContain(1, 1));
+        assertTrue(filter.mightContain(2, 2));
+        now = 5000;
+        assertFalse(filter.mightContain(2, 2));
+    }
+
+    @Test
+    public void testRotatesWhenFull() {
+        for (int i = 0; i < 25000; i++) {
+            filter.put(i, 0);
+        }
+        assertEquals(2, filter.getRotations());
+        // the last full filter is still checked
+        assertTrue(filter.mightContain(24999, 0));
+        assertTrue(filter.mightContain(10000, 0));
+        int fp = 0;
+        for (int i = 100000; i < 200000; i++) {
+            if (filter.mightContain(i, 0)) {
+                fp++;
+            }
+        }
+        assertTrue("false positives: " + fp, fp < 300);
+    }
+}
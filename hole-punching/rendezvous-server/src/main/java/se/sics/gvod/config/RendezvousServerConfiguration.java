@@ -10,6 +10,14 @@ public final class RendezvousServerConfiguration
      */
     int sessionExpirationTime;
     int numChildren;
+    int numShards;
+    double maxCpuLoad;
+    int maxQueueDelay;
+    int maxRelayBytesPerSec;
+    int shedLoad;
+    int shedDelay;
+    int snapshotPeriod;
+    int restoreGracePeriod;
 
     /**
      * Default constructor comes first.
@@ -17,15 +25,33 @@ public final class RendezvousServerConfiguration
     public RendezvousServerConfiguration() {
         this.sessionExpirationTime = Nat.UPPER_RULE_EXPIRATION_TIME;
         this.numChildren = VodConfig.PM_NUM_CHILDREN;
+        this.numShards = VodConfig.RS_NUM_SHARDS;
+        this.maxCpuLoad = VodConfig.RS_MAX_CPU_LOAD;
+        this.maxQueueDelay = VodConfig.RS_MAX_QUEUE_DELAY;
+        this.maxRelayBytesPerSec = VodConfig.RS_MAX_RELAY_BYTES_PER_SEC;
+        this.shedLoad = VodConfig.RS_SHED_LOAD;
+        this.shedDelay = VodConfig.RS_SHED_DELAY;
+        this.snapshotPeriod = VodConfig.RS_SNAPSHOT_PERIOD;
+        this.restoreGracePeriod = VodConfig.RS_RESTORE_GRACE_PERIOD;
     }
 
     /**
      * Full argument constructor comes second.
      */
     public RendezvousServerConfiguration(int sessionExpirationTime,
-            int numChildren) {
+            int numChildren, int numShards, double maxCpuLoad, int maxQueueDelay,
+            int maxRelayBytesPerSec, int shedLoad, int shedDelay, int snapshotPeriod,
+            int restoreGracePeriod) {
         this.sessionExpirationTime = sessionExpirationTime;
         this.numChildren = numChildren;
+        this.numShards = numShards;
+        this.maxCpuLoad = maxCpuLoad;
+        this.maxQueueDelay = maxQueueDelay;
+        this.maxRelayBytesPerSec = maxRelayBytesPerSec;
+        this.shedLoad = shedLoad;
+        this.shedDelay = shedDelay;
+        this.snapshotPeriod = snapshotPeriod;
+        this.restoreGracePeriod = restoreGracePeriod;
     }
 
     public static RendezvousServerConfiguration build() {
@@ -49,4 +75,76 @@ public final class RendezvousServerConfiguration
         this.numChildren = numChildren;
         return this;
     }
+
+    public int getNumShards() {
+        return numShards;
+    }
+
+    public RendezvousServerConfiguration setNumShards(int numShards) {
+        this.numShards = numShards;
+        return this;
+    }
+
+    public double getMaxCpuLoad() {
+        return maxCpuLoad;
+    }
+
+    public RendezvousServerConfiguration setMaxCpuLoad(double maxCpuLoad) {
+        this.maxCpuLoad = maxCpuLoad;
+        return this;
+    }
+
+    public int getMaxQueueDelay() {
+        return maxQueueDelay;
+    }
+
+    public RendezvousServerConfiguration setMaxQueueDelay(int maxQueueDelay) {
+        this.maxQueueDelay = maxQueueDelay;
+        return this;
+    }
+
+    public int getMaxRelayBytesPerSec() {
+        return maxRelayBytesPerSec;
+    }
+
+    public RendezvousServerConfiguration setMaxRelayBytesPerSec(int maxRelayBytesPerSec) {
+        this.maxRelayBytesPerSec = maxRelayBytesPerSec;
+        return this;
+    }
+
+    public int getShedLoad() {
+        return shedLoad;
+    }
+
+    public RendezvousServerConfiguration setShedLoad(int shedLoad) {
+        this.shedLoad = shedLoad;
+        return this;
+    }
+
+    public int getShedDelay() {
+        return shedDelay;
+    }
+
+    public RendezvousServerConfiguration setShedDelay(int shedDelay) {
+        this.shedDelay = shedDelay;
+        return this;
+    }
+
+    public int getSnapshotPeriod() {
+        return snapshotPeriod;
+    }
+
+    public RendezvousServerConfiguration setSnapshotPeriod(int snapshotPeriod) {
+        this.snapshotPeriod = snapshotPeriod;
+        return this;
+    }
+
+    public int getRestoreGracePeriod() {
+        return restoreGracePeriod;
+    }
+
+    public RendezvousServerConfiguration setRestoreGracePeriod(int restoreGracePeriod) {
+        this.restoreGracePeriod = restoreGracePeriod;
+        return this;
+    }
 }
@@ -0,0 +1,155 @@
+package se.sics.gvod.nat.hp.rs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A hashed timing wheel of deadlines, used by the RendezvousServer to expire
+ * client registrations and hole punching sessions without scanning all of
+ * them.
+ *
+ * The wheel has numSlots slots, each covering one tick of time. A key is put
+ * in the slot of the tick its deadline falls in (modulo numSlots), so
+ * scheduling, rescheduling and removing a key are O(1). advance() only visits
+ * the slots of the ticks that passed since it was last called, and returns the
+ * keys whose deadline passed. Keys with a deadline more than a rotation away
+ * stay in their slot until a later rotation.
+ *
+ * The RendezvousServer doesn't reschedule a record every time it hears from
+ * a client. When a key expires, it checks the record's real deadline and
+ * reschedules the key if it was refreshed in the meantime, so a keepalive is
+ * just a timestamp update.
+ *
+ * All methods are synchronized, as the wheel for registrations is shared by
+ * the RendezvousServer shards and the NatTraverser.
+ *
+ * @author jdowling
+ */
+public class ExpiryWheel<K> {
+
+    private static class Entry {
+
+        private final long deadline;
+        private final int slot;
+
+        public Entry(long deadline, int slot) {
+            this.deadline = deadline;
+            this.slot = slot;
+        }
+    }
+    private final long tick;
+    private final List<Set<K>> slots;
+    private final Map<K, Entry> entries = new HashMap<K, Entry>();
+    // the last tick that advance() processed
+    private long currentTick;
+
+    /**
+     * @param tick the width of a slot in ms
+     * @param numSlots number of slots, the wheel turns once every
+     * tick * numSlots ms
+     * @param now the current time
+     */
+    public ExpiryWheel(long tick, int numSlots, long now) {
+        if (tick < 1 || numSlots < 1) {
+            throw new IllegalArgumentException("tick and numSlots must be greater than zero");
+        }
+        this.tick = tick;
+        this.slots = new ArrayList<Set<K>>(numSlots);
+        for (int i = 0; i < numSlots; i++) {
+            slots.add(new LinkedHashSet<K>());
+        }
+        this.currentTick = now / tick;
+    }
+
+    /**
+     * Schedules a key to expire at the deadline, replacing its previous
+     * deadline. A deadline that has already passed expires in the next
+     * tick.
+     */
+    public synchronized void schedule(K key, long deadline) {
+        Entry old = entries.get(key);
+        if (old != null) {
+            slots.get(old.slot).remove(key);
+        }
+        // round up, so all the keys in a slot have expired at the end of its tick
+        long t = Math.max((deadline + tick - 1) / tick, currentTick + 1);
+        int slot = (int) (t % slots.size());
+        entries.put(key, new Entry(deadline, slot));
+        slots.get(slot).add(key);
+    }
+
+    /**
+     * @return true if the key was scheduled.
+     */
+    public synchronized boolean remove(K key) {
+        Entry e = entries.remove(key);
+        if (e == null) {
+            return false;
+        }
+        slots.get(e.slot).remove(key);
+        return true;
+    }
+
+    public synchronized boolean contains(K key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * @return the deadline of the key, or -1 if it isn't scheduled.
+     */
+    public synchronized long getDeadline(K key) {
+        Entry e = entries.get(key);
+        return (e == null) ? -1 : e.deadline;
+    }
+
+    /**
+     * Visits the slots of the ticks up to now, removing the keys whose
+     * deadline passed.
+     * @return the expired keys, earliest slot first.
+     */
+    public synchronized List<K> advance(long now) {
+        List<K> expired = new ArrayList<K>();
+        long nowTick = now / tick;
+        // after a long pause, a single rotation visits every slot
+        long first = Math.max(currentTick + 1, nowTick - slots.size() + 1);
+        for (long t = first; t <= nowTick; t++) {
+            Iterator<K> it = slots.get((int) (t % slots.size())).iterator();
+            while (it.hasNext()) {
+                K key = it.next();
+                if (entries.get(key).deadline <= now) {
+                    it.remove();
+                    entries.remove(key);
+                    expired.add(key);
+                }
+            }
+        }
+        currentTick = Math.max(currentTick, nowTick);
+        return expired;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        for (Set<K> slot : slots) {
+            slot.clear();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ExpiryWheel(" + entries.size() + " keys, " + slots.size()
+                + " slots of " + tick + "ms)";
+    }
+}
@@ -0,0 +1,164 @@
+package se.sics.gvod.nat.hp.rs;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+import se.sics.gvod.config.RendezvousServerConfiguration;
+
+/**
+ * Tracks the load of a RendezvousServer, shared by its shards and the
+ * NatTraverser, which counts the bytes it relays to the children.
+ *
+ * The load is measured against the watermarks of the configuration: the
+ * system cpu load, the delay of the shards' event queues, the bytes relayed
+ * per second and the number of children. Each one is expressed as a
+ * percentage of its watermark, and the load is the highest of them. A
+ * watermark of 0 or less is disabled.
+ *
+ * The delay of a shard's event queue is measured as how late its periodic
+ * garbage cleanup timeout is handled, as Kompics doesn't expose the length of
+ * a component's queue. Each shard calls sample() from that handler, which also
+ * samples the cpu load and the relay rate at most once per period.
+ *
+ * Above the shed load, the shards shed their most expensive children, one
+ * child per shed delay over all the shards. A shed child is still relayed to
+ * for the shed delay, and the cpu load is a one minute average, so the load
+ * only drops a while after a child was shed. Shedding goes on until the
+ * resource load is below 100.
+ *
+ * @author jdowling
+ */
+public class LoadMonitor {
+
+    private final RendezvousServerConfiguration config;
+    private final OperatingSystemMXBean os;
+    private final AtomicLong relayBytes = new AtomicLong();
+    private final long[] queueDelays;
+    private final long period;
+    private long lastSample;
+    private long lastRelayBytes;
+    private volatile double cpuLoad;
+    private volatile long relayBytesPerSec;
+    private volatile long queueDelay;
+    private volatile int numChildren;
+    private boolean shedding;
+    private long nextShedTime = Long.MIN_VALUE;
+
+    /**
+     * @param period how often sample() is called by each shard, in ms
+     */
+    public LoadMonitor(RendezvousServerConfiguration config, int numShards, long period,
+            long now) {
+        if (numShards < 1 || period < 1) {
+            throw new IllegalArgumentException("numShards and period must be greater than zero");
+        }
+        this.config = config;
+        this.os = ManagementFactory.getOperatingSystemMXBean();
+        this.queueDelays = new long[numShards];
+        this.period = period;
+        this.lastSample = now;
+    }
+
+    /**
+     * Counts bytes relayed to a child, called from any thread.
+     */
+    public void addRelayBytes(int bytes) {
+        relayBytes.addAndGet(bytes);
+    }
+
+    /**
+     * @param shard the shard that handled its periodic timeout
+     * @param now the current time
+     * @param shardQueueDelay how late the shard handled the timeout, in ms
+     * @param numChildren the number of registered children
+     */
+    public synchronized void sample(int shard, long now, long shardQueueDelay,
+            int numChildren) {
+        queueDelays[shard] = Math.max(shardQueueDelay, 0);
+        long maxDelay = 0;
+        for (long d : queueDelays) {
+            maxDelay = Math.max(maxDelay, d);
+        }
+        queueDelay = maxDelay;
+        this.numChildren = numChildren;
+
+        long elapsed = now - lastSample;
+        if (elapsed >= period) {
+            long bytes = relayBytes.get();
+            relayBytesPerSec = (bytes - lastRelayBytes) * 1000 / elapsed;
+            lastRelayBytes = bytes;
+            lastSample = now;
+            double loadAvg = os.getSystemLoadAverage();
+            // not available on all platforms
+            cpuLoad = (loadAvg < 0) ? 0 : loadAvg / os.getAvailableProcessors();
+        }
+    }
+
+    /**
+     * Cheap enough to be called by each shard on each tick, before it looks
+     * for a child to shed.
+     * @return true if a child is to be shed now.
+     */
+    public synchronized boolean isShedDue(long now) {
+        int load = getResourceLoad();
+        if (load >= config.getShedLoad()) {
+            shedding = true;
+        } else if (load < 100) {
+            shedding = false;
+        }
+        return shedding && now >= nextShedTime;
+    }
+
+    /**
+     * Called by a shard that found a child to shed, as another shard may have
+     * shed one since it called isShedDue().
+     * @return true if the shard is to shed the child.
+     */
+    public synchronized boolean claimShed(long now) {
+        if (!isShedDue(now)) {
+            return false;
+        }
+        nextShedTime = now + config.getShedDelay();
+        return true;
+    }
+
+    private static int percent(double value, double watermark) {
+        if (watermark <= 0) {
+            return 0;
+        }
+        return (int) Math.min(value * 100 / watermark, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the highest of the cpu, queue delay and relay rate loads, as a
+     * percentage of their watermarks. Above 100, new registrations are
+     * rejected.
+     */
+    public int getResourceLoad() {
+        int load = percent(cpuLoad, config.getMaxCpuLoad());
+        load = Math.max(load, percent(queueDelay, config.getMaxQueueDelay()));
+        load = Math.max(load, percent(relayBytesPerSec, config.getMaxRelayBytesPerSec()));
+        return load;
+    }
+
+    /**
+     * @return the resource load, or the number of children as a percentage
+     * of the maximum number of children if it is higher. Sent to clients as a
+     * load hint.
+     */
+    public int getLoad() {
+        return Math.max(getResourceLoad(), percent(numChildren, config.getNumChildren()));
+    }
+
+    public double getCpuLoad() {
+        return cpuLoad;
+    }
+
+    public long getQueueDelay() {
+        return queueDelay;
+    }
+
+    public long getRelayBytesPerSec() {
+        return relayBytesPerSec;
+    }
+}
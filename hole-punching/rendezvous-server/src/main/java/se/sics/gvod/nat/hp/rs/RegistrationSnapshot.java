@@ -0,0 +1,215 @@
+package se.sics.gvod.nat.hp.rs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import se.sics.gvod.address.Address;
+import se.sics.gvod.nat.hp.rs.RendezvousServer.RegisteredClientRecord;
+import se.sics.gvod.net.Nat;
+import se.sics.gvod.net.VodAddress;
+
+/**
+ * Saves the registered children of a RendezvousServer to a small binary file,
+ * so that a restarted parent still knows its children and keeps answering
+ * their keep-alive pings, instead of telling them they are not its children.
+ *
+ * For each child, the snapshot holds its address (with its NAT policy, delta
+ * and parents), its prp ports, its RTT, the expiration time of its
+ * registration and the time since it was last heard from. Temporary records
+ * are not saved. The file is written to a temp file first, then renamed.
+ *
+ * @author jdowling
+ */
+public class RegistrationSnapshot {
+
+    private static final int SNAPSHOT_MAGIC = 0x52535331; // "RSS1"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private RegistrationSnapshot() {
+    }
+
+    /**
+     * @param file the snapshot file
+     * @param selfId the id of the server, which may be registered with itself
+     * @return number of registrations written
+     */
+    public static int save(File file, Map<Integer, RegisteredClientRecord> records,
+            int selfId) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        int n;
+        try {
+            n = write(out, records, selfId, System.currentTimeMillis());
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not replace registration snapshot: " + file);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename registration snapshot to: " + file);
+        }
+        return n;
+    }
+
+    /**
+     * Loads a snapshot written by save(). See read().
+     * @return the restored records by client id, empty if the file doesn't
+     * exist
+     * @throws IOException if the file is corrupt or can't be read
+     */
+    public static Map<Integer, RegisteredClientRecord> load(File file, long maxAge,
+            long gracePeriod) throws IOException {
+        if (!file.exists()) {
+            return new HashMap<Integer, RegisteredClientRecord>();
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return read(in, System.currentTimeMillis(), maxAge, gracePeriod);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeAddress(DataOutputStream out, Address addr) throws IOException {
+        byte[] ip = addr.getIp().getAddress();
+        out.writeInt(addr.getId());
+        out.writeByte(ip.length);
+        out.write(ip);
+        out.writeInt(addr.getPort());
+    }
+
+    private static Address readAddress(DataInputStream in) throws IOException {
+        int id = in.readInt();
+        int ipLen = in.readByte();
+        if (ipLen != 4 && ipLen != 16) {
+            throw new IOException("Corrupt registration snapshot, ip length: " + ipLen);
+        }
+        byte[] ip = new byte[ipLen];
+        in.readFully(ip);
+        int port = in.readInt();
+        return new Address(InetAddress.getByAddress(ip), port, id);
+    }
+
+    /**
+     * Snapshot format: magic, version, time written, number of entries, then
+     * for each entry the client's address, overlay id, nat policy, delta and
+     * parents, its RTT, expiration time, the time since it was last heard
+     * from and its prp ports.
+     */
+    static int write(DataOutputStream out, Map<Integer, RegisteredClientRecord> records,
+            int selfId, long now) throws IOException {
+        // the map is shared with the shards, so it is copied before its size
+        // is written
+        Map<Integer, RegisteredClientRecord> children = new HashMap<Integer, RegisteredClientRecord>();
+        for (Map.Entry<Integer, RegisteredClientRecord> entry : records.entrySet()) {
+            RegisteredClientRecord r = entry.getValue();
+            if (!r.isTempRecord() && !r.isRemoving() && entry.getKey() != selfId) {
+                children.put(entry.getKey(), r);
+            }
+        }
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeByte(SNAPSHOT_VERSION);
+        out.writeLong(now);
+        out.writeInt(children.size());
+        for (RegisteredClientRecord r : children.values()) {
+            VodAddress client = r.getClient();
+            writeAddress(out, client.getPeerAddress());
+            out.writeInt(client.getOverlayId());
+            out.writeShort(client.getNatPolicy());
+            out.writeByte(r.getDelta());
+            Set<Address> parents = client.getParents();
+            out.writeShort(parents.size());
+            for (Address parent : parents) {
+                writeAddress(out, parent);
+            }
+            out.writeLong(r.getRtt());
+            out.writeLong(r.getExpirationTime());
+            out.writeLong(Math.max(0, now - r.getLastHeardFrom()));
+            Set<Integer> prpPorts = r.getPrpPorts();
+            out.writeShort(prpPorts.size());
+            for (int port : prpPorts) {
+                out.writeShort(port);
+            }
+        }
+        return children.size();
+    }
+
+    /**
+     * Restores the records in a snapshot. A restored record expires no
+     * earlier than gracePeriod ms from now, giving the child time to answer
+     * a probe or ping the server, and is marked as restored until then.
+     * @param maxAge snapshots older than this (ms) are ignored
+     */
+    static Map<Integer, RegisteredClientRecord> read(DataInputStream in, long now,
+            long maxAge, long gracePeriod) throws IOException {
+        if (in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a registration snapshot.");
+        }
+        int version = in.readByte();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("Unsupported registration snapshot version: " + version);
+        }
+        long written = in.readLong();
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("Corrupt registration snapshot, size: " + size);
+        }
+        Map<Integer, RegisteredClientRecord> restored = new HashMap<Integer, RegisteredClientRecord>();
+        if (now - written >= maxAge) {
+            return restored;
+        }
+        for (int i = 0; i < size; i++) {
+            Address addr = readAddress(in);
+            int overlayId = in.readInt();
+            short natPolicy = in.readShort();
+            int delta = in.readByte();
+            if (delta < 0 || delta > 10) {
+                throw new IOException("Corrupt registration snapshot, delta: " + delta);
+            }
+            int numParents = in.readUnsignedShort();
+            Set<Address> parents = new HashSet<Address>();
+            for (int j = 0; j < numParents; j++) {
+                parents.add(readAddress(in));
+            }
+            long rtt = in.readLong();
+            long expirationTime = in.readLong();
+            long lastHeardFrom = written - in.readLong();
+            int numPorts = in.readUnsignedShort();
+            Set<Integer> prpPorts = new HashSet<Integer>();
+            for (int j = 0; j < numPorts; j++) {
+                prpPorts.add(in.readUnsignedShort());
+            }
+
+            // the delta isn't encoded in the nat policy
+            VodAddress policy = new VodAddress(addr, overlayId, natPolicy, parents);
+            // the nat policy only puts binding timeouts above the HIGH one in
+            // the HIGH category
+            long bindingTimeout = policy.getNatBindingTimeout();
+            if (bindingTimeout == Nat.BindingTimeoutCategory.HIGH.getBindingTimeout()) {
+                bindingTimeout++;
+            }
+            VodAddress client = new VodAddress(addr, overlayId, policy.getNatType(),
+                    policy.getMappingPolicy(), policy.getAllocationPolicy(),
+                    policy.getFilteringPolicy(), bindingTimeout, delta, parents);
+            RegisteredClientRecord r = new RegisteredClientRecord(client, rtt, prpPorts,
+                    false);
+            r.restore(Math.max(lastHeardFrom, now + gracePeriod - expirationTime),
+                    expirationTime);
+            restored.put(addr.getId(), r);
+        }
+        return restored;
+    }
+}
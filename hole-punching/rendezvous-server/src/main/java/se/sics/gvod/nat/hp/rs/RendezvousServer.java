@@ -4,10 +4,14 @@
  */
 package se.sics.gvod.nat.hp.rs;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.sics.gvod.address.Address;
@@ -30,6 +34,7 @@ import se.sics.gvod.nat.common.MsgRetryComponent;
 import se.sics.gvod.nat.hp.rs.events.UnregisterTimeout;
 import se.sics.gvod.net.Nat;
 import se.sics.gvod.net.VodAddress;
+import se.sics.gvod.net.msgs.RewriteableMsg;
 import se.sics.gvod.net.msgs.ScheduleRetryTimeout;
 import se.sics.gvod.timer.*;
 import se.sics.gvod.timer.UUID;
@@ -53,10 +58,18 @@ public class RendezvousServer extends MsgRetryComponent {
     private final static int NUM_RETRIES_PRP_PRP = 1;
     private final static int NUM_RETRIES_PRC = 1;
     private final static int NUM_RETRIES_PRC_PRC = 1;
-    private final static int CLEANUP_TIMEOUT = 30 * 1000;
+    // probes of the children restored from a registration snapshot
+    private final static int PROBE_RTO = 2000;
+    private final static int NUM_RETRIES_PROBE = 2;
+    // the expiry wheels turn once every EXPIRY_SLOTS * VodConfig.RS_EXPIRY_TICK ms
+    private final static int EXPIRY_SLOTS = 1024;
     private final static int THRESHOLD_SWAP_PARENT = 50;
     ConcurrentHashMap<Integer, RegisteredClientRecord> registeredClients;
     private HashMap<HPSessionKey, HolePunching> hpSessions = new HashMap<HPSessionKey, HolePunching>();
+    // deadlines of the registeredClients records, shared by all shards
+    private ExpiryWheel<Integer> registrationExpiry;
+    // deadlines of the hpSessions
+    private ExpiryWheel<HPSessionKey> sessionExpiry;
     /**
      * <identifier of nat, ports>
      */
@@ -69,6 +82,19 @@ public class RendezvousServer extends MsgRetryComponent {
     boolean throwException = false;
     private TimeoutId garbageCleanupTimeoutId;
     RendezvousServerConfiguration config;
+    // hpSessions only holds the sessions routed to this shard,
+    // registeredClients is shared by all shards
+    private ShardRouter router;
+    private int shard;
+    // shared by all shards
+    private LoadMonitor loadMonitor;
+    // when the next garbage cleanup timeout is due, how late it is handled
+    // is the delay of this shard's event queue
+    private long nextCleanupTime;
+    // null if registration snapshots are disabled. Only shard 0 saves and
+    // restores the registrations, as they are shared by all shards.
+    private File snapshotFile = null;
+    private long lastSnapshotTime;
 
     public static class NoPortsException extends Exception {
 
@@ -77,28 +103,38 @@ public class RendezvousServer extends MsgRetryComponent {
         }
     }
 
+    /**
+     * Records are shared by all RendezvousServer shards, and read by
+     * NatTraverser, so fields are volatile and the prp ports are accessed
+     * under the record's lock.
+     */
     public static class RegisteredClientRecord {
 
         // i.e. the address of the nat and the port opened on the nat.
-        VodAddress client;
+        volatile VodAddress client;
         // registration expires if you dont recv the ping message from the client
         // timestamp is when the last ping was recvd
-        long lastHeardFromTimestamp;
+        volatile long lastHeardFromTimestamp;
         // when the registration expires. expiration time is directly dependent on
         // nat rule timeout value, which is different for different nats. This variable
         // is set to ruleexpiration timeout value recvd from the nat
-        long timeBeforeExpiration;
+        volatile long timeBeforeExpiration;
         // for port-contiguity, port prediction
         final int delta;
         // used when a new RegisterClient request is received, whether to accept the
         // new child and remove and existing child. 
-        long rtt;
+        volatile long rtt;
         // used for clients who don't call HpRegisterClient, but try to connect to
         // a client of this zServer
         final boolean tempRecord;
         // 
-        boolean removing = false;
+        volatile boolean removing = false;
+        // restored from a snapshot, and not heard from since
+        volatile boolean restored = false;
         private final Set<Integer> prpPorts;
+        final long registeredAt;
+        // bytes relayed to the client, by the shards and the NatTraverser
+        private final AtomicLong relayBytes = new AtomicLong();
 
         public RegisteredClientRecord(VodAddress clientPublicAddress,
                 long rtt, Set<Integer> prpPorts, boolean tempRecord) {
@@ -112,6 +148,7 @@ public class RendezvousServer extends MsgRetryComponent {
             this.rtt = rtt;
             this.prpPorts = (prpPorts == null) ? new HashSet<Integer>() : prpPorts;
             this.tempRecord = tempRecord;
+            this.registeredAt = this.lastHeardFromTimestamp;
         }
 
         public boolean isTempRecord() {
@@ -122,13 +159,13 @@ public class RendezvousServer extends MsgRetryComponent {
             return removing;
         }
 
-        public void addPrpPorts(Set<Integer> newPorts) {
+        public synchronized void addPrpPorts(Set<Integer> newPorts) {
             if (newPorts != null) {
                 prpPorts.addAll(newPorts);
             }
         }
 
-        public Integer popPrpPort() throws NoPortsException {
+        public synchronized Integer popPrpPort() throws NoPortsException {
             Integer port = null;
             if (prpPorts.isEmpty()) {
                 throw new NoPortsException("No ports for PRP");
@@ -138,11 +175,11 @@ public class RendezvousServer extends MsgRetryComponent {
             return port;
         }
 
-        public void pushPrpPort(int port) {
+        public synchronized void pushPrpPort(int port) {
             prpPorts.add(port);
         }
 
-        public int sizePrpPorts() {
+        public synchronized int sizePrpPorts() {
             return prpPorts.size();
         }
 
@@ -160,14 +197,31 @@ public class RendezvousServer extends MsgRetryComponent {
 
         public void setLastHeardFrom(long timeStamp) {
             this.lastHeardFromTimestamp = timeStamp;
+            this.restored = false;
+        }
+
+        public boolean isRestored() {
+            return restored;
+        }
+
+        /**
+         * Marks a record restored from a snapshot.
+         */
+        void restore(long lastHeardFrom, long expirationTime) {
+            this.lastHeardFromTimestamp = lastHeardFrom;
+            this.timeBeforeExpiration = expirationTime;
+            this.restored = true;
         }
 
         public VodAddress getClient() {
             return client;
         }
 
-        public Set<Integer> getPrpPorts() {
-            return prpPorts;
+        /**
+         * @return a copy of the prp ports
+         */
+        public synchronized Set<Integer> getPrpPorts() {
+            return new HashSet<Integer>(prpPorts);
         }
 
         public void setClient(VodAddress client) {
@@ -189,10 +243,34 @@ public class RendezvousServer extends MsgRetryComponent {
             return lastHeardFromTimestamp;
         }
 
+        /**
+         * @return when the registration expires, if the client isn't heard
+         * from again.
+         */
+        public long getDeadline() {
+            return lastHeardFromTimestamp + timeBeforeExpiration;
+        }
+
         public int getNumParents() {
             return (client == null) ? 0 : client.getParents().size();
         }
 
+        public void addRelayBytes(int bytes) {
+            relayBytes.addAndGet(bytes);
+        }
+
+        public long getRelayBytes() {
+            return relayBytes.get();
+        }
+
+        /**
+         * @return the average number of bytes relayed to the client per
+         * second since it registered.
+         */
+        public long getRelayBytesPerSec(long now) {
+            return relayBytes.get() * 1000 / Math.max(now - registeredAt, 1000);
+        }
+
         @Override
         public String toString() {
             return " Pub Addr: " + client
@@ -203,6 +281,14 @@ public class RendezvousServer extends MsgRetryComponent {
         }
     }
 
+    /**
+     * Creates the wheel for the deadlines of the registered clients, to be
+     * shared like the registered clients.
+     */
+    public static ExpiryWheel<Integer> createRegistrationExpiry(long now) {
+        return new ExpiryWheel<Integer>(VodConfig.RS_EXPIRY_TICK, EXPIRY_SLOTS, now);
+    }
+
     public RendezvousServer(RendezvousServerInit init) {
         this(null, init);
     }
@@ -216,12 +302,79 @@ public class RendezvousServer extends MsgRetryComponent {
     private void doInit(RendezvousServerInit init) {
         self = init.getSelf();
         registeredClients = init.getRegisteredClients();
+        registrationExpiry = init.getRegistrationExpiry();
+        sessionExpiry = new ExpiryWheel<HPSessionKey>(VodConfig.RS_EXPIRY_TICK,
+                EXPIRY_SLOTS, System.currentTimeMillis());
 
         config = init.getConfig();
-        compName = "(" + self.getId() + ") ";
+        router = init.getRouter();
+        shard = init.getShard();
+        loadMonitor = init.getLoadMonitor();
+        compName = (router.getNumShards() == 1) ? "(" + self.getId() + ") "
+                : "(" + self.getId() + ":" + shard + ") ";
 
         // session epiration time
         sessionExpirationTime = init.getConfig().getSessionExpirationTime();
+        enableResponseCache(VodConfig.RESPONSE_CACHE_SIZE, VodConfig.RESPONSE_CACHE_TTL);
+
+        // Restore the children from our last run before any shard is started,
+        // so that their pings are answered.
+        if (shard == 0 && config.getSnapshotPeriod() > 0 && !VodConfig.isSimulation()) {
+            snapshotFile = new File(VodConfig.getRegistrationSnapshotFile(self.getId()));
+            lastSnapshotTime = System.currentTimeMillis();
+            try {
+                Map<Integer, RegisteredClientRecord> restored = RegistrationSnapshot.load(
+                        snapshotFile, VodConfig.RS_SNAPSHOT_MAX_AGE,
+                        config.getRestoreGracePeriod());
+                for (Map.Entry<Integer, RegisteredClientRecord> entry : restored.entrySet()) {
+                    if (registeredClients.putIfAbsent(entry.getKey(), entry.getValue()) == null) {
+                        registrationExpiry.schedule(entry.getKey(),
+                                entry.getValue().getDeadline());
+                    }
+                }
+                logger.info(compName + "restored {} children from {}", restored.size(),
+                        snapshotFile);
+            } catch (IOException e) {
+                logger.warn(compName + "could not restore registration snapshot: "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    private void saveSnapshot() {
+        if (snapshotFile == null) {
+            return;
+        }
+        try {
+            int n = RegistrationSnapshot.save(snapshotFile, registeredClients, self.getId());
+            logger.trace(compName + "saved {} children to {}", n, snapshotFile);
+        } catch (IOException e) {
+            logger.warn(compName + "could not save registration snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Pings the restored children of this shard, so that the ones that are
+     * still our children confirm it before the grace period ends. The others
+     * have moved to another parent and expire.
+     */
+    private void probeRestoredChildren() {
+        int n = 0;
+        for (Map.Entry<Integer, RegisteredClientRecord> entry : registeredClients.entrySet()) {
+            RegisteredClientRecord r = entry.getValue();
+            if (!r.isRestored() || router.shardOf(entry.getKey()) != shard) {
+                continue;
+            }
+            ParentKeepAliveMsg.Ping ping = new ParentKeepAliveMsg.Ping(self.getAddress(),
+                    r.getClient());
+            ScheduleRetryTimeout st = new ScheduleRetryTimeout(PROBE_RTO, NUM_RETRIES_PROBE);
+            ParentKeepAliveMsg.PingTimeout pt = new ParentKeepAliveMsg.PingTimeout(st, ping);
+            router.expectResponse(delegator.doRetry(pt), shard);
+            n++;
+        }
+        if (n > 0) {
+            logger.debug(compName + "probing {} restored children", n);
+        }
     }
 
     public Handler<Start> handleStart = new Handler<Start>() {
@@ -229,13 +382,16 @@ public class RendezvousServer extends MsgRetryComponent {
         @Override
         public void handle(Start event) {
             // initialize grabage collection
-            logger.info("Starting RendezvousServer with support for {} children",
-                    config.getNumChildren());
-            SchedulePeriodicTimeout st = new SchedulePeriodicTimeout(CLEANUP_TIMEOUT, CLEANUP_TIMEOUT);
+            logger.info("Starting RendezvousServer shard {}/{} with support for {} children",
+                    new Object[]{shard, router.getNumShards(), config.getNumChildren()});
+            SchedulePeriodicTimeout st = new SchedulePeriodicTimeout(VodConfig.RS_EXPIRY_TICK,
+                    VodConfig.RS_EXPIRY_TICK);
             GarbageCleanupTimeout msgTimeout = new GarbageCleanupTimeout(st);
             st.setTimeoutEvent(msgTimeout);
             garbageCleanupTimeoutId = st.getTimeoutEvent().getTimeoutId();
+            nextCleanupTime = System.currentTimeMillis() + VodConfig.RS_EXPIRY_TICK;
             delegator.doTrigger(st, timer);
+            probeRestoredChildren();
         }
     };
 
@@ -243,8 +399,60 @@ public class RendezvousServer extends MsgRetryComponent {
             HpRegisterMsg.RegisterStatus res, Set<Integer> prpPorts) {
 
         logger.debug(compName + res + " sent to " + dest);
+        // rejected clients are told when to ask again
+        int retryAfter = (res == HpRegisterMsg.RegisterStatus.REJECT
+                || res == HpRegisterMsg.RegisterStatus.OVERLOADED)
+                ? config.getShedDelay() / 1000 : 0;
         delegator.doTrigger(new HpRegisterMsg.Response(self.getAddress(), dest,
-                res, timeoutId, prpPorts), network);
+                res, timeoutId, prpPorts, loadMonitor.getLoad(), retryAfter), network);
+    }
+
+    /**
+     * The children that cost this server the most are the ones it relays the
+     * most bytes to, then the ones with the highest rtt and most parents.
+     * Only looks at the children of this shard, so that the shards don't shed
+     * the same child.
+     */
+    private RegisteredClientRecord getTheMostExpensiveChild(long now) {
+        RegisteredClientRecord worst = null;
+        long worstRelayRate = -1;
+        long worstRtt = -1;
+        for (Map.Entry<Integer, RegisteredClientRecord> entry : registeredClients.entrySet()) {
+            int id = entry.getKey();
+            RegisteredClientRecord r = entry.getValue();
+            if (r.isTempRecord() || r.isRemoving() || id == self.getId()
+                    || router.shardOf(id) != shard) {
+                continue;
+            }
+            long relayRate = r.getRelayBytesPerSec(now);
+            long rtt = r.getRtt() * r.getNumParents();
+            if (relayRate > worstRelayRate
+                    || (relayRate == worstRelayRate && rtt > worstRtt)) {
+                worst = r;
+                worstRelayRate = relayRate;
+                worstRtt = rtt;
+            }
+        }
+        return worst;
+    }
+
+    /**
+     * Asks a child to find another parent. The child is still relayed to
+     * for shedDelay ms, then its record is removed.
+     */
+    private void shedChild(RegisteredClientRecord r) {
+        VodAddress child = r.getClient();
+        r.setRemoving(true);
+        logger.info(compName + "Overloaded (load {}%), shedding child {}",
+                loadMonitor.getResourceLoad(), child.getId());
+        delegator.doRetry(new HpUnregisterMsg.Request(self.getAddress(), child,
+                config.getShedDelay(), HpRegisterMsg.RegisterStatus.OVERLOADED),
+                self.getOverlayId());
+        ScheduleTimeout st = new ScheduleTimeout(config.getShedDelay());
+        UnregisterTimeout timeout = new UnregisterTimeout(st, child.getPeerAddress(),
+                null, child.getId());
+        st.setTimeoutEvent(timeout);
+        delegator.doTrigger(st, timer);
     }
 
     private VodAddress getTheWorstChild() {
@@ -265,9 +473,23 @@ public class RendezvousServer extends MsgRetryComponent {
         @Override
         public void handle(HpRegisterMsg.Request request) {
             logger.debug(compName + "Recvd Register Request from Client:" + request.getVodSource());
+            if (replayResponse(request)) {
+                return;
+            }
             VodAddress peer = request.getVodSource();
             long rtt = request.getRtt();
             TimeoutId timeoutId = request.getTimeoutId();
+            // admission control: registered clients can re-register, new
+            // ones are sent to another parent
+            RegisteredClientRecord existing = registeredClients.get(peer.getId());
+            if ((existing == null || existing.isTempRecord() || existing.isRemoving())
+                    && loadMonitor.getResourceLoad() >= 100) {
+                sendRegisterResponse(peer, timeoutId, HpRegisterMsg.RegisterStatus.OVERLOADED,
+                        request.getPrpPorts());
+                return;
+            }
+            // shards share registeredClients, so concurrent registrations at
+            // different shards can overshoot numChildren by a few children
             int currentSize = registeredClients.size();
             for (RegisteredClientRecord r : registeredClients.values()) {
                 if (r.isTempRecord()) {
@@ -348,6 +570,9 @@ public class RendezvousServer extends MsgRetryComponent {
     Handler<HpUnregisterMsg.Request> handleHpUnregisterRequestMsg = new Handler<HpUnregisterMsg.Request>() {
         @Override
         public void handle(HpUnregisterMsg.Request msg) {
+            if (replayResponse(msg)) {
+                return;
+            }
 
             HpUnregisterMsg.Response responseMsg = null;
             if (registeredClients.containsKey(msg.getVodSource().getId())) {
@@ -405,11 +630,14 @@ public class RendezvousServer extends MsgRetryComponent {
             RegisteredClientRecord clientData = new RegisteredClientRecord(
                     client, rtt, prpPorts, tempRecord);
             registeredClients.put(clientId, clientData);
+            registrationExpiry.schedule(clientId, clientData.getDeadline());
             logger.debug(compName + " " + client + " REGISTERING");
             logger.trace(getChildrenAsString());
         } else {
             // Don't update RTTs here, as some clients may not have supplied a correct RTT
             // don't update tempRecord either, as both nodes may have the same zServer,
+            // The record's deadline moves on, but it's left in its slot in
+            // registrationExpiry, which finds the new deadline when the old one passes.
             RegisteredClientRecord clientData = registeredClients.get(clientId);
             // update the client, as it may be of type NAT and have new parents
             clientData.setClient(client);
@@ -418,8 +646,7 @@ public class RendezvousServer extends MsgRetryComponent {
             logger.debug(compName + " " + client + " RE-REGISTERING on Z: ");
             logger.trace(getChildrenAsString());
             // add the new prp ports to the already registered ports...
-            Set<Integer> ports = clientData.getPrpPorts();
-            ports.addAll(prpPorts);
+            clientData.addPrpPorts(prpPorts);
             alreadyRegistered = true;
         }
         // TODO - is it ok to add me as a parent for the temporary client record client?
@@ -431,6 +658,9 @@ public class RendezvousServer extends MsgRetryComponent {
         @Override
         public void handle(HpConnectMsg.Request request) {
             printMsg(request);
+            if (replayResponse(request)) {
+                return;
+            }
 
             OpenConnectionResponseType responseType;
             HolePunching session = null;
@@ -451,7 +681,10 @@ public class RendezvousServer extends MsgRetryComponent {
             } else {
                 // check the nat compatibility
                 RegisteredClientRecord record = registeredClients.get(client_B_ID);
-                session = HpFeasability.isPossible(src, record.getClient());
+                // the client may ask for a mechanism it learned works best,
+                // the RVP falls back to its default if it isn't feasible
+                session = HpFeasability.isPossible(src, record.getClient(),
+                        request.getHpMechanism());
                 if (session == null) {
                     // TODO  - should I relay the msg?
                     responseType = OpenConnectionResponseType.NAT_COMBINATION_NOT_TRAVERSABLE;
@@ -483,15 +716,25 @@ public class RendezvousServer extends MsgRetryComponent {
                 // first store the session
                 logger.trace(compName + "Total Sessions:" + hpSessions.size() + " Creating Session between ID: " + hpSessionKey
                         + " Starting " + session.getHolePunchingMechanism());
-                // save the session start time
-                session.setSesssionStartTime(System.currentTimeMillis());
-                hpSessions.put(hpSessionKey, session);
+                putSession(hpSessionKey, session);
                 // start hole punching
                 startHolePunching(hpSessionKey, request.getMsgTimeoutId());
             }
         }
     };
 
+    /**
+     * Stores a new session, which expires sessionExpirationTime ms after it
+     * started.
+     */
+    private void putSession(HPSessionKey key, HolePunching session) {
+        if (session.getSesssionStartTime() < 0) {
+            session.setSesssionStartTime(System.currentTimeMillis());
+        }
+        hpSessions.put(key, session);
+        sessionExpiry.schedule(key, session.getSesssionStartTime() + sessionExpirationTime);
+    }
+
     private boolean isRemoteClientStillAlive(int remoteClientID) {
         RegisteredClientRecord remoteClient = registeredClients.get(remoteClientID);
         if (remoteClient == null) {
@@ -655,6 +898,9 @@ public class RendezvousServer extends MsgRetryComponent {
         @Override
         public void handle(PRP_ConnectMsg.Request request) {
             printMsg(request);
+            if (replayResponse(request)) {
+                return;
+            }
             if (isRemoteClientStillAlive(request.getRemoteClientId())) {
                 HPSessionKey key = new HPSessionKey(request.getClientId(), request.getRemoteClientId());
                 HolePunching session = hpSessions.get(key);
@@ -678,7 +924,7 @@ public class RendezvousServer extends MsgRetryComponent {
                      * client B will only repond to messages from A
                      */
 
-                    hpSessions.put(key, session);
+                    putSession(key, session);
                 }
 
                 if (session.getResponderID() != request.getRemoteClientId()) {
@@ -719,7 +965,7 @@ public class RendezvousServer extends MsgRetryComponent {
                     ScheduleRetryTimeout st = new ScheduleRetryTimeout(3000, 1, 2d);
                     PRP_PreallocatedPortsMsg.RequestRetryTimeout t
                             = new PRP_PreallocatedPortsMsg.RequestRetryTimeout(st, r);
-                    delegator.doRetry(t);
+                    router.expectResponse(delegator.doRetry(t), shard);
                 }
                 PRP_ConnectMsg.Response responseMsg
                         = new PRP_ConnectMsg.Response(self.getAddress(),
@@ -864,7 +1110,7 @@ public class RendezvousServer extends MsgRetryComponent {
                          */
 
                     }
-                    hpSessions.put(key, session);
+                    putSession(key, session);
                 } else {
                     clientInterleavedPort
                             = session.get_Interleaved_PRP_Port(request.getClientId());
@@ -988,7 +1234,7 @@ public class RendezvousServer extends MsgRetryComponent {
                     ScheduleRetryTimeout st = new ScheduleRetryTimeout(2000, 1, 2d);
                     PRP_PreallocatedPortsMsg.RequestRetryTimeout t
                             = new PRP_PreallocatedPortsMsg.RequestRetryTimeout(st, r);
-                    delegator.doRetry(t); // retry twice
+                    router.expectResponse(delegator.doRetry(t), shard); // retry twice
                 }
 
             } else {
@@ -1231,54 +1477,77 @@ public class RendezvousServer extends MsgRetryComponent {
             = new Handler<GarbageCleanupTimeout>() {
                 @Override
                 public void handle(GarbageCleanupTimeout request) {
-                    // cleaning registered client records
-                    if (!registeredClients.isEmpty()) {
-                        Set<Integer> toBeDeleted = new HashSet<Integer>();
-                        for (int clientID : registeredClients.keySet()) {
-                            RegisteredClientRecord client = registeredClients.get(clientID);
-                            if ((System.currentTimeMillis() - client.getLastHeardFrom()) > client.getExpirationTime()) {
-                                // open peers are registered withit self
-                                if (client.getClient().getId() != self.getId()) {
-                                    toBeDeleted.add(clientID);
-                                }
-                            }
+                    long now = System.currentTimeMillis();
+                    long queueDelay = now - nextCleanupTime;
+                    // the timer catches up on late periodic timeouts, so the
+                    // next one is due a period after this one was due
+                    nextCleanupTime += VodConfig.RS_EXPIRY_TICK;
+                    if (queueDelay < 0) {
+                        nextCleanupTime = now + VodConfig.RS_EXPIRY_TICK;
+                    }
+                    loadMonitor.sample(shard, now, queueDelay, registeredClients.size());
+                    if (snapshotFile != null
+                            && now - lastSnapshotTime >= config.getSnapshotPeriod()) {
+                        lastSnapshotTime = now;
+                        saveSnapshot();
+                    }
+                    if (loadMonitor.isShedDue(now)) {
+                        RegisteredClientRecord r = getTheMostExpensiveChild(now);
+                        if (r != null && loadMonitor.claimShed(now)) {
+                            shedChild(r);
                         }
+                    }
 
-                        for (int clientID : toBeDeleted) {
+                    // expiring the registered client records whose deadline
+                    // passed. The shards share registrationExpiry, so each
+                    // record is only looked at by one of them.
+                    for (Integer clientID : registrationExpiry.advance(now)) {
+                        RegisteredClientRecord client = registeredClients.get(clientID);
+                        if (client == null) {
+                            // already removed
+                            continue;
+                        }
+                        if (client.getDeadline() > now) {
+                            // heard from it since it was scheduled
+                            registrationExpiry.schedule(clientID, client.getDeadline());
+                        } else if (client.getClient().getId() == self.getId()) {
+                            // open peers are registered withit self
+                            registrationExpiry.schedule(clientID, now + client.getExpirationTime());
+                        } else if (registeredClients.remove(clientID, client)) {
                             logger.debug(compName + " Deleting the registration record for " + clientID);
-                            registeredClients.remove(clientID);
                         }
                     }
 
                     // cleaning stale hp sessions
-                    if (!hpSessions.isEmpty()) {
-                        Set<HPSessionKey> toBeDeleted = new HashSet<HPSessionKey>();
-                        for (HPSessionKey key : hpSessions.keySet()) {
-                            HolePunching session = hpSessions.get(key);
-                            if ((System.currentTimeMillis() - session.getSesssionStartTime()) > sessionExpirationTime) {
-                                toBeDeleted.add(key);
-                            }
+                    for (HPSessionKey key : sessionExpiry.advance(now)) {
+                        HolePunching session = hpSessions.get(key);
+                        if (session == null) {
+                            continue;
                         }
-
-                        for (HPSessionKey key : toBeDeleted) {
+                        long deadline = session.getSesssionStartTime() + sessionExpirationTime;
+                        if (deadline > now) {
+                            // replaced by a newer session
+                            sessionExpiry.schedule(key, deadline);
+                        } else {
                             logger.debug(compName + " Deleting the hp Session for " + key);
                             hpSessions.remove(key);
                         }
                     }
 
-                    StringBuilder sb = new StringBuilder();
-                    sb.append(compName).append("Registered Clients:  ");
-                    for (int id : registeredClients.keySet()) {
-                        sb.append(id).append(",");
-                    }
-                    logger.trace(compName + sb.toString());
-                    sb.delete(0, sb.length() - 1);
-                    sb.append(compName).append("Registered Sessions:  ");
-                    for (HPSessionKey key : hpSessions.keySet()) {
-                        sb.append(key.getClient_A_ID()).append(":").append(key.getClient_B_ID()).append(",");
+                    if (logger.isTraceEnabled()) {
+                        StringBuilder sb = new StringBuilder();
+                        sb.append(compName).append("Registered Clients:  ");
+                        for (int id : registeredClients.keySet()) {
+                            sb.append(id).append(",");
+                        }
+                        logger.trace(compName + sb.toString());
+                        sb.delete(0, sb.length() - 1);
+                        sb.append(compName).append("Registered Sessions:  ");
+                        for (HPSessionKey key : hpSessions.keySet()) {
+                            sb.append(key.getClient_A_ID()).append(":").append(key.getClient_B_ID()).append(",");
+                        }
+                        logger.trace(compName + sb.toString());
                     }
-                    logger.trace(compName + sb.toString());
-
                 }
             };
 
@@ -1297,6 +1566,12 @@ public class RendezvousServer extends MsgRetryComponent {
                                 remoteClientRecord.getClient(),
                                 request.getClientId(),
                                 request.getMessage());
+                        // the client uses the timeoutId to drop the copies of
+                        // the msg relayed by its other parents
+                        requestServerToClient.setTimeoutId(request.getTimeoutId());
+                        int size = requestServerToClient.getSize();
+                        remoteClientRecord.addRelayBytes(size);
+                        loadMonitor.addRelayBytes(size);
 
                         // ok to call trigger instead of retry, as it is a response
                         delegator.doTrigger(requestServerToClient, network);
@@ -1305,6 +1580,15 @@ public class RendezvousServer extends MsgRetryComponent {
                 }
             };
 
+    /**
+     * Relayed msgs carry the timeoutId of their sender, not a request of the
+     * child they are relayed to, and are never retransmitted by the server.
+     */
+    @Override
+    protected boolean isCachedResponse(RewriteableMsg response) {
+        return !(response instanceof RelayRequestMsg.ServerToClient);
+    }
+
     private boolean areBothRepliesRecvd(HolePunching session) {
         boolean retVal = false;
         if (session.getHolePunchingMechanism() == HPMechanism.PRC_PRC) {
@@ -1500,7 +1784,7 @@ public class RendezvousServer extends MsgRetryComponent {
                 ScheduleRetryTimeout st = new ScheduleRetryTimeout(2000, 2, 2);
                 PRP_PreallocatedPortsMsg.RequestRetryTimeout t
                         = new PRP_PreallocatedPortsMsg.RequestRetryTimeout(st, r);
-                delegator.doRetry(t); // retry twice
+                router.expectResponse(delegator.doRetry(t), shard); // retry twice
             }
 
         } else if (session.getHolePunchingMechanism() == HPMechanism.PRC) {
@@ -1603,7 +1887,7 @@ public class RendezvousServer extends MsgRetryComponent {
                     ScheduleRetryTimeout st = new ScheduleRetryTimeout(2000, 1, 2d);
                     PRP_PreallocatedPortsMsg.RequestRetryTimeout t
                             = new PRP_PreallocatedPortsMsg.RequestRetryTimeout(st, r);
-                    delegator.doRetry(t);
+                    router.expectResponse(delegator.doRetry(t), shard);
                 }
 
                 // send GoMsg first, as it would send a 
@@ -1644,6 +1928,7 @@ public class RendezvousServer extends MsgRetryComponent {
             String compName = RendezvousServer.this.compName + " - "
                     + response.getMsgTimeoutId() + " ";
 
+            router.responseHandled(response.getTimeoutId());
             if (delegator.doCancelRetry(response.getTimeoutId())) {
                 int childId = response.getSource().getId();
                 RegisteredClientRecord rc = registeredClients.get(childId);
@@ -1659,6 +1944,7 @@ public class RendezvousServer extends MsgRetryComponent {
     Handler<PRP_PreallocatedPortsMsg.RequestRetryTimeout> handle_PRP_PreallocatedPortsMsgTimeout = new Handler<PRP_PreallocatedPortsMsg.RequestRetryTimeout>() {
         @Override
         public void handle(PRP_PreallocatedPortsMsg.RequestRetryTimeout event) {
+            router.responseHandled(event.getTimeoutId());
             if (delegator.doCancelRetry(event.getTimeoutId())) {
                 // remove as child - it has probably died
                 int childId = event.getRequestMsg().getDestination().getId();
@@ -1670,8 +1956,39 @@ public class RendezvousServer extends MsgRetryComponent {
             }
         }
     };
+    Handler<ParentKeepAliveMsg.Pong> handleParentKeepAliveMsgPong
+            = new Handler<ParentKeepAliveMsg.Pong>() {
+                @Override
+                public void handle(ParentKeepAliveMsg.Pong pong) {
+                    router.responseHandled(pong.getTimeoutId());
+                    if (delegator.doCancelRetry(pong.getTimeoutId())) {
+                        RegisteredClientRecord record = registeredClients.get(pong.getSource().getId());
+                        if (record != null) {
+                            logger.trace(compName + "restored child confirmed: {}",
+                                    pong.getSource().getId());
+                            record.setClient(pong.getVodSource());
+                            record.setLastHeardFrom(System.currentTimeMillis());
+                        }
+                    }
+                }
+            };
+    Handler<ParentKeepAliveMsg.PingTimeout> handleParentKeepAliveMsgPingTimeout
+            = new Handler<ParentKeepAliveMsg.PingTimeout>() {
+                @Override
+                public void handle(ParentKeepAliveMsg.PingTimeout event) {
+                    router.responseHandled(event.getTimeoutId());
+                    if (delegator.doCancelRetry(event.getTimeoutId())) {
+                        // it expires at the end of the grace period, unless
+                        // it pings us before then
+                        logger.debug(compName + "restored child {} didn't answer the probe",
+                                event.getRequestMsg().getDestination().getId());
+                    }
+                }
+            };
+
     @Override
     public void stop(Stop stop) {
+        saveSnapshot();
         if (garbageCleanupTimeoutId != null) {
             CancelTimeout ct = new CancelTimeout(garbageCleanupTimeoutId);
             delegator.doTrigger(ct, timer);
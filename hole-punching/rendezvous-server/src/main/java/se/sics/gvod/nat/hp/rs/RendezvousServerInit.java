@@ -3,6 +3,7 @@ package se.sics.gvod.nat.hp.rs;
 import se.sics.gvod.config.RendezvousServerConfiguration;
 import java.util.concurrent.ConcurrentHashMap;
 import se.sics.gvod.common.Self;
+import se.sics.gvod.config.VodConfig;
 import se.sics.gvod.nat.hp.rs.RendezvousServer.RegisteredClientRecord;
 import se.sics.kompics.Init;
 
@@ -11,15 +12,39 @@ public final class RendezvousServerInit extends Init<RendezvousServer> {
     private final Self self;
     private final ConcurrentHashMap<Integer, RegisteredClientRecord> registeredClients;
     RendezvousServerConfiguration config;
+    private final ExpiryWheel<Integer> registrationExpiry;
+    private final ShardRouter router;
+    private final int shard;
+    private final LoadMonitor loadMonitor;
 
     public RendezvousServerInit(Self self,
             ConcurrentHashMap<Integer, RegisteredClientRecord> registeredClients,
             RendezvousServerConfiguration config
             ) {
+        this(self, registeredClients,
+                RendezvousServer.createRegistrationExpiry(System.currentTimeMillis()),
+                config, new ShardRouter(1), 0,
+                new LoadMonitor(config, 1, VodConfig.RS_EXPIRY_TICK, System.currentTimeMillis()));
+    }
+
+    /**
+     * @param registrationExpiry the deadlines of the records in
+     * registeredClients, shared like registeredClients
+     * @param loadMonitor the load of the server, shared by the shards
+     */
+    public RendezvousServerInit(Self self,
+            ConcurrentHashMap<Integer, RegisteredClientRecord> registeredClients,
+            ExpiryWheel<Integer> registrationExpiry,
+            RendezvousServerConfiguration config, ShardRouter router, int shard,
+            LoadMonitor loadMonitor) {
         assert(self != null);
         this.self = self;
         this.registeredClients = registeredClients;
+        this.registrationExpiry = registrationExpiry;
         this.config = config;
+        this.router = router;
+        this.shard = shard;
+        this.loadMonitor = loadMonitor;
     }
 
 
@@ -31,8 +56,24 @@ public final class RendezvousServerInit extends Init<RendezvousServer> {
         return registeredClients;
     }
 
+    public ExpiryWheel<Integer> getRegistrationExpiry() {
+        return registrationExpiry;
+    }
+
     public RendezvousServerConfiguration getConfig() {
         return config;
     }
 
+    public ShardRouter getRouter() {
+        return router;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public LoadMonitor getLoadMonitor() {
+        return loadMonitor;
+    }
+
 }
@@ -0,0 +1,29 @@
+package se.sics.gvod.nat.hp.rs;
+
+import se.sics.gvod.net.msgs.NatMsg;
+import se.sics.kompics.ChannelFilter;
+
+/**
+ * Only lets through msgs for the overlay that are routed to the shard.
+ *
+ * @author jdowling
+ */
+public final class ShardFilter extends ChannelFilter<NatMsg, Integer> {
+
+    private final int overlayId;
+    private final ShardRouter router;
+
+    public ShardFilter(int overlayId, ShardRouter router, int shard) {
+        super(NatMsg.class, shard, true);
+        this.overlayId = overlayId;
+        this.router = router;
+    }
+
+    @Override
+    public Integer getValue(NatMsg event) {
+        if (event.getVodDestination().getOverlayId() != overlayId) {
+            return -1;
+        }
+        return router.route(event);
+    }
+}
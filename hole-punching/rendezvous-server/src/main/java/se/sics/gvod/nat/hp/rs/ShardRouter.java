@@ -0,0 +1,102 @@
+package se.sics.gvod.nat.hp.rs;
+
+import java.util.concurrent.ConcurrentHashMap;
+import se.sics.gvod.hp.msgs.HpMsg;
+import se.sics.gvod.net.msgs.NatMsg;
+import se.sics.gvod.timer.TimeoutId;
+
+/**
+ * Partitions the clients of a node between N RendezvousServer shards, so that
+ * each shard's handlers run on their own thread. Every shard is connected to
+ * the network through a ShardFilter that uses route() to pick the shard for
+ * a msg.
+ *
+ * Msgs are routed as follows:
+ * <ul>
+ * <li>Hole punching requests (HpMsg.Request) belong to a session between two
+ * clients. They go to the shard of the lower of the two client ids, so both
+ * clients' msgs for a session reach the shard that holds it, whichever of
+ * them sent it.</li>
+ * <li>Responses to requests sent by a shard go back to that shard. The shard
+ * records the TimeoutId of each request it expects a response to.</li>
+ * <li>All other msgs (registration, keep-alives) go to the shard of their
+ * source, the client's home shard.</li>
+ * </ul>
+ * The registration records are shared by all shards in one
+ * ConcurrentHashMap, so any shard can read any client's record. Their
+ * deadlines are in one ExpiryWheel, also shared, so each expired record is
+ * handled by the first shard that finds it.
+ *
+ * @author jdowling
+ */
+public class ShardRouter {
+
+    private final int numShards;
+    private final ConcurrentHashMap<TimeoutId, Integer> pendingResponses =
+            new ConcurrentHashMap<TimeoutId, Integer>();
+
+    public ShardRouter(int numShards) {
+        if (numShards < 1) {
+            throw new IllegalArgumentException("numShards must be greater than zero");
+        }
+        this.numShards = numShards;
+    }
+
+    public int getNumShards() {
+        return numShards;
+    }
+
+    /**
+     * @return the home shard of a client
+     */
+    public int shardOf(int clientId) {
+        return (clientId & Integer.MAX_VALUE) % numShards;
+    }
+
+    /**
+     * @return the shard that holds the hole punching session between two
+     * clients
+     */
+    public int shardOf(int clientId, int remoteClientId) {
+        return shardOf(Math.min(clientId, remoteClientId));
+    }
+
+    /**
+     * Routes the response to a request sent by a shard back to it.
+     */
+    public void expectResponse(TimeoutId timeoutId, int shard) {
+        if (timeoutId != null && numShards > 1) {
+            pendingResponses.put(timeoutId, shard);
+        }
+    }
+
+    /**
+     * Call when a response arrives, or the request times out.
+     */
+    public void responseHandled(TimeoutId timeoutId) {
+        if (timeoutId != null) {
+            pendingResponses.remove(timeoutId);
+        }
+    }
+
+    public int getNumPendingResponses() {
+        return pendingResponses.size();
+    }
+
+    public int route(NatMsg msg) {
+        if (numShards == 1) {
+            return 0;
+        }
+        if (msg instanceof HpMsg.Request) {
+            HpMsg.Request r = (HpMsg.Request) msg;
+            return shardOf(r.getClientId(), r.getRemoteClientId());
+        }
+        if (msg.getTimeoutId() != null) {
+            Integer shard = pendingResponses.get(msg.getTimeoutId());
+            if (shard != null) {
+                return shard;
+            }
+        }
+        return shardOf(msg.getVodSource().getId());
+    }
+}
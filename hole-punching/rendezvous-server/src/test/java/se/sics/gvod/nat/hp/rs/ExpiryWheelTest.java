@@ -0,0 +1,129 @@
+package se.sics.gvod.nat.hp.rs;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jdowling
+ */
+public class ExpiryWheelTest {
+
+    private static final long TICK = 1000;
+    private static final int SLOTS = 16;
+    private long now;
+    private ExpiryWheel<Integer> wheel;
+
+    @Before
+    public void setUp() {
+        now = 1000 * 1000;
+        wheel = new ExpiryWheel<Integer>(TICK, SLOTS, now);
+    }
+
+    @Test
+    public void testExpiry() {
+        wheel.schedule(1, now + 2500);
+        wheel.schedule(2, now + 1000);
+        wheel.schedule(3, now + 5000);
+        assertEquals(3, wheel.size());
+        assertTrue(wheel.advance(now + 999).isEmpty());
+        assertEquals(Arrays.asList(2), wheel.advance(now + 1000));
+
+        // rescheduling moves the deadline
+        wheel.schedule(1, now + 4000);
+        assertEquals(now + 4000, wheel.getDeadline(1));
+        assertTrue(wheel.advance(now + 3000).isEmpty());
+        // expired within a tick of the deadline, earliest first
+        assertEquals(Arrays.asList(1, 3), wheel.advance(now + 5000));
+        assertTrue(wheel.isEmpty());
+
+        // passed deadlines expire in the next tick
+        wheel.schedule(4, now);
+        assertTrue(wheel.advance(now + 5999).isEmpty());
+        assertEquals(Arrays.asList(4), wheel.advance(now + 6000));
+
+        wheel.schedule(5, now + 6000);
+        assertTrue(wheel.remove(5));
+        assertFalse(wheel.remove(5));
+        assertEquals(-1, wheel.getDeadline(5));
+        assertTrue(wheel.advance(now + 7000).isEmpty());
+    }
+
+    @Test
+    public void testRotations() {
+        // more than a turn of the wheel away
+        wheel.schedule(1, now + 3 * SLOTS * TICK + 500);
+        wheel.schedule(2, now + 2 * TICK);
+        for (int i = 1; i <= 3 * SLOTS; i++) {
+            List<Integer> expired = wheel.advance(now + i * TICK);
+            assertEquals(i == 2 ? Arrays.asList(2) : Arrays.<Integer>asList(), expired);
+        }
+        assertTrue(wheel.contains(1));
+        assertEquals(Arrays.asList(1), wheel.advance(now + (3 * SLOTS + 1) * TICK));
+
+        // a long pause visits each slot once
+        wheel.schedule(3, now + 50 * TICK);
+        wheel.schedule(4, now + 60 * TICK);
+        assertEquals(2, wheel.advance(now + 100 * SLOTS * TICK).size());
+    }
+
+    /**
+     * 100k registered clients, with NAT binding timeouts of 30 to 90 seconds,
+     * sending keepalives at random. Like the RendezvousServer, keepalives only
+     * update the client's deadline, and an expired key is rescheduled if its
+     * deadline moved.
+     */
+    @Test
+    public void testChurn100k() {
+        int numClients = 100 * 1000;
+        long[] deadlines = new long[numClients];
+        long[] timeouts = new long[numClients];
+        boolean[] alive = new boolean[numClients];
+        Random r = new Random(1);
+        wheel = new ExpiryWheel<Integer>(TICK, 1024, now);
+        for (int i = 0; i < numClients; i++) {
+            timeouts[i] = 30 * 1000 + r.nextInt(60 * 1000);
+            deadlines[i] = now + timeouts[i];
+            alive[i] = true;
+            wheel.schedule(i, deadlines[i]);
+        }
+
+        int removed = 0;
+        int maxExpiredPerTick = 0;
+        long lateness = 0;
+        long end = now + 10 * 60 * 1000;
+        while (now < end) {
+            now += TICK;
+            // 90% of the clients keep sending keepalives for the first 5 minutes
+            for (int k = 0; k < numClients / 30; k++) {
+                int i = r.nextInt(numClients);
+                if (alive[i] && i % 10 != 0 && now < end - 5 * 60 * 1000) {
+                    deadlines[i] = now + timeouts[i];
+                }
+            }
+            List<Integer> expired = wheel.advance(now);
+            maxExpiredPerTick = Math.max(maxExpiredPerTick, expired.size());
+            for (Integer i : expired) {
+                if (deadlines[i] > now) {
+                    wheel.schedule(i, deadlines[i]);
+                } else {
+                    assertTrue(alive[i]);
+                    lateness = Math.max(lateness, now - deadlines[i]);
+                    alive[i] = false;
+                    removed++;
+                }
+            }
+        }
+        // no keepalives for the last 5 minutes, so everyone has expired
+        assertEquals(numClients, removed);
+        assertTrue(wheel.isEmpty());
+        // each client was freed within a tick of its deadline
+        assertTrue(lateness < TICK);
+        // the work is spread over the ticks, not done every 30 seconds
+        assertTrue(maxExpiredPerTick < numClients / 10);
+    }
+}
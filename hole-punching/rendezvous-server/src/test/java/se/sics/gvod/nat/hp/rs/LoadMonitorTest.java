@@ -0,0 +1,116 @@
+package se.sics.gvod.nat.hp.rs;
+
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import se.sics.gvod.config.RendezvousServerConfiguration;
+import se.sics.gvod.config.VodConfig;
+
+/**
+ *
+ * @author jdowling
+ */
+public class LoadMonitorTest {
+
+    private static final long PERIOD = 1000;
+    private RendezvousServerConfiguration config;
+    private LoadMonitor monitor;
+
+    @Before
+    public void setUp() throws IOException {
+        VodConfig.init(new String[]{});
+        // the cpu load of the machine running the test is left out
+        config = RendezvousServerConfiguration.build()
+                .setNumChildren(10)
+                .setMaxCpuLoad(0)
+                .setMaxQueueDelay(500)
+                .setMaxRelayBytesPerSec(1000);
+        monitor = new LoadMonitor(config, 2, PERIOD, 0);
+    }
+
+    @Test
+    public void testQueueDelay() {
+        monitor.sample(0, 100, 250, 0);
+        assertEquals(50, monitor.getResourceLoad());
+        // the slowest shard counts
+        monitor.sample(1, 200, 600, 0);
+        assertEquals(120, monitor.getResourceLoad());
+        monitor.sample(1, 300, 0, 0);
+        assertEquals(50, monitor.getResourceLoad());
+        monitor.sample(0, 400, -10, 0);
+        assertEquals(0, monitor.getResourceLoad());
+    }
+
+    @Test
+    public void testRelayRate() {
+        monitor.addRelayBytes(500);
+        // not sampled until a period has passed
+        monitor.sample(0, PERIOD / 2, 0, 0);
+        assertEquals(0, monitor.getRelayBytesPerSec());
+        monitor.addRelayBytes(1500);
+        monitor.sample(0, 2 * PERIOD, 0, 0);
+        assertEquals(1000, monitor.getRelayBytesPerSec());
+        assertEquals(100, monitor.getResourceLoad());
+        monitor.sample(1, 3 * PERIOD, 0, 0);
+        assertEquals(0, monitor.getRelayBytesPerSec());
+
+        config.setMaxRelayBytesPerSec(0);
+        monitor.addRelayBytes(1000000);
+        monitor.sample(0, 4 * PERIOD, 0, 0);
+        assertEquals(0, monitor.getResourceLoad());
+    }
+
+    @Test
+    public void testChildren() {
+        monitor.sample(0, 100, 0, 8);
+        // children only count in the load hint, they don't stop registrations
+        // of clients that would replace worse children
+        assertEquals(0, monitor.getResourceLoad());
+        assertEquals(80, monitor.getLoad());
+        monitor.sample(0, 200, 400, 8);
+        assertEquals(80, monitor.getResourceLoad());
+        monitor.sample(0, 300, 500, 8);
+        assertEquals(100, monitor.getLoad());
+    }
+
+    @Test
+    public void testShedding() {
+        config.setShedLoad(120).setShedDelay(30 * 1000);
+        long now = 0;
+        // over the shed load for a minute, both shards ticking every second
+        int shed = 0;
+        for (int tick = 0; tick < 60; tick++) {
+            now += PERIOD;
+            for (int shard = 0; shard < 2; shard++) {
+                monitor.sample(shard, now, 750, 0);
+                if (monitor.isShedDue(now) && monitor.claimShed(now)) {
+                    shed++;
+                }
+            }
+        }
+        // one child per shed delay, not one per shard and tick
+        assertEquals(2, shed);
+
+        // below the shed load, but still overloaded: shedding goes on
+        now += 30 * 1000;
+        sampleShards(now, 550);
+        assertTrue(monitor.isShedDue(now));
+        assertTrue(monitor.claimShed(now));
+        assertFalse(monitor.claimShed(now));
+
+        // below 100, shedding stops until the shed load is reached again
+        now += 30 * 1000;
+        sampleShards(now, 400);
+        assertFalse(monitor.isShedDue(now));
+        sampleShards(now, 550);
+        assertFalse(monitor.isShedDue(now));
+        sampleShards(now, 600);
+        assertTrue(monitor.isShedDue(now));
+    }
+
+    private void sampleShards(long now, long queueDelay) {
+        monitor.sample(0, now, queueDelay, 0);
+        monitor.sample(1, now, queueDelay, 0);
+    }
+}
@@ -0,0 +1,99 @@
+package se.sics.gvod.nat.hp.rs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import se.sics.gvod.address.Address;
+import se.sics.gvod.config.VodConfig;
+import se.sics.gvod.nat.hp.rs.RendezvousServer.RegisteredClientRecord;
+import se.sics.gvod.net.Nat;
+import se.sics.gvod.net.VodAddress;
+
+/**
+ *
+ * @author jdowling
+ */
+public class RegistrationSnapshotTest {
+
+    private static final int SELF_ID = 100;
+    private static final long MINUTE = 60 * 1000;
+    private final ConcurrentHashMap<Integer, RegisteredClientRecord> records =
+            new ConcurrentHashMap<Integer, RegisteredClientRecord>();
+    private VodAddress child;
+    private Set<Integer> ports;
+
+    @Before
+    public void setUp() throws Exception {
+        Nat nat = new Nat(Nat.Type.NAT,
+                Nat.MappingPolicy.HOST_DEPENDENT,
+                Nat.AllocationPolicy.PORT_CONTIGUITY,
+                Nat.FilteringPolicy.PORT_DEPENDENT,
+                3,
+                100 * 1000l);
+        Address parent = new Address(InetAddress.getByName("193.10.64.1"), 3478, SELF_ID);
+        child = new VodAddress(new Address(InetAddress.getByName("130.237.1.7"), 50007, 7),
+                VodConfig.SYSTEM_OVERLAY_ID, nat, Collections.singleton(parent));
+        ports = new HashSet<Integer>();
+        ports.add(40001);
+        ports.add(40002);
+        records.put(child.getId(), new RegisteredClientRecord(child, 120, ports, false));
+
+        VodAddress temp = new VodAddress(new Address(InetAddress.getByName("130.237.1.8"),
+                50008, 8), VodConfig.SYSTEM_OVERLAY_ID);
+        records.put(temp.getId(), new RegisteredClientRecord(temp, 5000, null, true));
+        VodAddress self = new VodAddress(parent, VodConfig.SYSTEM_OVERLAY_ID);
+        records.put(SELF_ID, new RegisteredClientRecord(self, 0, null, false));
+    }
+
+    private DataInputStream write(long now) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        // only the child is saved
+        assertEquals(1, RegistrationSnapshot.write(new DataOutputStream(bytes), records,
+                SELF_ID, now));
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    @Test
+    public void testRestore() throws Exception {
+        RegisteredClientRecord saved = records.get(child.getId());
+        long now = saved.getLastHeardFrom() + 1000;
+        long restartedAt = now + 5000;
+        Map<Integer, RegisteredClientRecord> restored = RegistrationSnapshot.read(write(now),
+                restartedAt, 10 * MINUTE, 30 * 1000);
+        assertEquals(1, restored.size());
+
+        RegisteredClientRecord r = restored.get(child.getId());
+        assertEquals(child, r.getClient());
+        assertEquals(child.getPeerAddress(), r.getClient().getPeerAddress());
+        assertEquals(child.getNatPolicy(), r.getClient().getNatPolicy());
+        assertEquals(child.getParents(), r.getClient().getParents());
+        assertEquals(saved.getDelta(), r.getDelta());
+        assertEquals(ports, r.getPrpPorts());
+        assertEquals(120, r.getRtt());
+        assertEquals(saved.getExpirationTime(), r.getExpirationTime());
+        assertFalse(r.isTempRecord());
+        assertTrue(r.isRestored());
+        // kept for at least the grace period
+        assertTrue(r.getDeadline() >= restartedAt + 30 * 1000);
+
+        r.setLastHeardFrom(restartedAt + 100);
+        assertFalse(r.isRestored());
+    }
+
+    @Test
+    public void testTooOld() throws Exception {
+        long now = System.currentTimeMillis();
+        assertTrue(RegistrationSnapshot.read(write(now), now + 11 * MINUTE, 10 * MINUTE,
+                30 * 1000).isEmpty());
+    }
+}
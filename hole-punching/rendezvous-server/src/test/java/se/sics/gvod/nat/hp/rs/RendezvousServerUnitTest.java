@@ -34,10 +34,13 @@ import se.sics.gvod.hp.msgs.PRC_OpenHoleMsg;
 import se.sics.gvod.hp.msgs.PRC_ServerRequestForConsecutiveMsg;
 import se.sics.gvod.hp.msgs.PRP_ConnectMsg;
 import se.sics.gvod.hp.msgs.PRP_PreallocatedPortsMsg;
+import se.sics.gvod.hp.msgs.RelayRequestMsg;
 import se.sics.gvod.hp.msgs.SHP_OpenHoleMsg;
+import se.sics.gvod.nat.common.ResponseCache;
 import se.sics.gvod.nat.hp.rs.RendezvousServer.NoPortsException;
 import se.sics.gvod.nat.hp.rs.events.UnregisterTimeout;
 import se.sics.gvod.net.VodAddress;
+import se.sics.gvod.net.msgs.RewriteableMsg;
 import se.sics.gvod.timer.UUID;
 import se.sics.kompics.KompicsEvent;
 import se.sics.kompics.Start;
@@ -78,7 +81,9 @@ public class RendezvousServerUnitTest extends VodRetryComponentTestCase {
                         new ConcurrentHashMap<Integer, RendezvousServer.RegisteredClientRecord>(),
                         RendezvousServerConfiguration.build().
                         setSessionExpirationTime(30 * 1000).
-                        setNumChildren(1)));
+                        setNumChildren(1).
+                        // don't restore the children of the previous test
+                        setSnapshotPeriod(0)));
 
         zServer.handleStart.handle(Start.event);
         LinkedList<KompicsEvent> events = pollEvent(1);
@@ -444,4 +449,44 @@ public class RendezvousServerUnitTest extends VodRetryComponentTestCase {
                 Interleaved_PRC_ServersRequestForPredictionMsg.Request.class);
 
     }
+
+    /**
+     * Caches a response the way MsgRetryComponent.doTrigger() does, as the
+     * test is the server's delegator.
+     */
+    private void cacheSent(ResponseCache cache, RewriteableMsg response) {
+        if (zServer.isCachedResponse(response)) {
+            cache.put(response);
+        }
+    }
+
+    @Test
+    public void testRelayNotCached() {
+        ResponseCache cache = new ResponseCache(VodConfig.RESPONSE_CACHE_SIZE,
+                VodConfig.RESPONSE_CACHE_TTL);
+        VodAddress child = privAddrs.get(0);
+        HpRegisterMsg.Request req = new HpRegisterMsg.Request(child, getAddress(), 1000);
+        req.setTimeoutId(UUID.nextUUID());
+        zServer.handleHpRegisterRequest.handle(req);
+        LinkedList<KompicsEvent> events = pollEvent(1);
+        assertSequence(events, HpRegisterMsg.Response.class);
+        cacheSent(cache, (HpRegisterMsg.Response) events.get(0));
+        assert (cache.size() == 1);
+
+        VodAddress sender = privAddrs.get(1);
+        HpRegisterMsg.Request payload = new HpRegisterMsg.Request(sender, child, 100);
+        payload.setTimeoutId(UUID.nextUUID());
+        RelayRequestMsg.ClientToServer relay = new RelayRequestMsg.ClientToServer(sender,
+                getAddress(), child.getId(), payload);
+        relay.setTimeoutId(payload.getTimeoutId());
+        zServer.handleRelayRequestMsg.handle(relay);
+        events = pollEvent(1);
+        assertSequence(events, RelayRequestMsg.ServerToClient.class);
+        RelayRequestMsg.ServerToClient relayed = (RelayRequestMsg.ServerToClient) events.get(0);
+        // the child drops the copies relayed by its other parents by timeoutId
+        assert (relayed.getTimeoutId().equals(relay.getTimeoutId()));
+        // the payloads don't push the register responses out of the cache
+        cacheSent(cache, relayed);
+        assert (cache.size() == 1);
+    }
 }
\ No newline at end of file
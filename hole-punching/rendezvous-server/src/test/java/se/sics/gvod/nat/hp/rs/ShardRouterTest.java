@@ -0,0 +1,78 @@
+package se.sics.gvod.nat.hp.rs;
+
+import java.net.InetAddress;
+import java.util.HashSet;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import se.sics.gvod.address.Address;
+import se.sics.gvod.config.VodConfig;
+import se.sics.gvod.hp.msgs.HpConnectMsg;
+import se.sics.gvod.hp.msgs.HpRegisterMsg;
+import se.sics.gvod.hp.msgs.PRP_PreallocatedPortsMsg;
+import se.sics.gvod.net.VodAddress;
+import se.sics.gvod.timer.TimeoutId;
+import se.sics.gvod.timer.UUID;
+
+/**
+ *
+ * @author jdowling
+ */
+public class ShardRouterTest {
+
+    private static final int NUM_SHARDS = 4;
+    private ShardRouter router;
+    private VodAddress server;
+    private VodAddress a;
+    private VodAddress b;
+
+    @Before
+    public void setUp() throws Exception {
+        router = new ShardRouter(NUM_SHARDS);
+        InetAddress ip = InetAddress.getByName("192.168.0.1");
+        server = new VodAddress(new Address(ip, 3478, 100), VodConfig.SYSTEM_OVERLAY_ID);
+        // a and b have different home shards
+        a = new VodAddress(new Address(ip, 4321, 5), VodConfig.SYSTEM_OVERLAY_ID);
+        b = new VodAddress(new Address(ip, 4322, 10), VodConfig.SYSTEM_OVERLAY_ID);
+    }
+
+    @Test
+    public void testRoute() {
+        assertEquals(1, router.shardOf(5));
+        assertEquals(2, router.shardOf(10));
+        assertTrue(router.shardOf(-7) >= 0);
+
+        // registrations go to the client's home shard
+        assertEquals(1, router.route(new HpRegisterMsg.Request(a, server, 100)));
+        assertEquals(2, router.route(new HpRegisterMsg.Request(b, server, 100)));
+
+        // both clients' msgs for a session go to the same shard
+        HpConnectMsg.Request fromA = new HpConnectMsg.Request(a, server, b.getId(),
+                0, 100, UUID.nextUUID());
+        HpConnectMsg.Request fromB = new HpConnectMsg.Request(b, server, a.getId(),
+                0, 100, UUID.nextUUID());
+        assertEquals(router.shardOf(a.getId(), b.getId()), router.route(fromA));
+        assertEquals(router.route(fromA), router.route(fromB));
+
+        // a single shard gets everything
+        assertEquals(0, new ShardRouter(1).route(fromB));
+    }
+
+    @Test
+    public void testResponses() {
+        TimeoutId timeoutId = UUID.nextUUID();
+        PRP_PreallocatedPortsMsg.Response res = new PRP_PreallocatedPortsMsg.Response(
+                a, server, timeoutId, PRP_PreallocatedPortsMsg.ResponseType.OK,
+                new HashSet<Integer>(), UUID.nextUUID());
+        // unknown responses go to the client's home shard
+        assertEquals(1, router.route(res));
+
+        // the shard that sent the request gets the response
+        router.expectResponse(timeoutId, 3);
+        assertEquals(3, router.route(res));
+        assertEquals(1, router.getNumPendingResponses());
+        router.responseHandled(timeoutId);
+        assertEquals(1, router.route(res));
+        assertEquals(0, router.getNumPendingResponses());
+    }
+}
@@ -10,6 +10,20 @@ extends AbstractConfiguration<NatTraverserConfiguration>{
     int connectionEstablishmentWaitTime;
     int responsiblePeerUpdateTime;
     int maxOpenedConnections;
+    int rttSnapshotPeriod;
+    int pendingMsgsMaxPerDest;
+    int pendingMsgsMaxBytesPerDest;
+    int pendingMsgsMax;
+    int pendingMsgsMaxBytes;
+    int pendingMsgTtl;
+    boolean pendingMsgsDropOldest;
+    int relayDedupExpectedMsgs;
+    double relayDedupFpp;
+    int relayDedupWindow;
+    boolean relayWhileHolePunching;
+    int natProfileMaxAge;
+    boolean relayFanOut;
+    boolean relayFastPath;
 
     /** 
      * Default constructor comes first.
@@ -19,7 +33,21 @@ extends AbstractConfiguration<NatTraverserConfiguration>{
                 VodConfig.NT_STUN_RETRIES, 
                 VodConfig.DEFAULT_RTO, 
                 VodConfig.DEFAULT_NT_CONNECTION_ESTABLISHMENT_TIMEOUT, 
-                VodConfig.NT_MAX_NUM_OPENED_CONNECTIONS);
+                VodConfig.NT_MAX_NUM_OPENED_CONNECTIONS,
+                VodConfig.NT_RTT_SNAPSHOT_PERIOD,
+                VodConfig.NT_PENDING_MSGS_MAX_PER_DEST,
+                VodConfig.NT_PENDING_MSGS_MAX_BYTES_PER_DEST,
+                VodConfig.NT_PENDING_MSGS_MAX,
+                VodConfig.NT_PENDING_MSGS_MAX_BYTES,
+                VodConfig.NT_PENDING_MSG_TTL,
+                VodConfig.NT_PENDING_MSGS_DROP_OLDEST,
+                VodConfig.NT_RELAY_DEDUP_EXPECTED_MSGS,
+                VodConfig.NT_RELAY_DEDUP_FPP,
+                VodConfig.NT_RELAY_DEDUP_WINDOW,
+                VodConfig.NT_RELAY_WHILE_HOLE_PUNCHING,
+                VodConfig.NT_NAT_PROFILE_MAX_AGE,
+                VodConfig.NT_RELAY_FAN_OUT,
+                VodConfig.NT_RELAY_FAST_PATH);
     }
 
     /** 
@@ -29,11 +57,39 @@ extends AbstractConfiguration<NatTraverserConfiguration>{
             int stunRetries,
             int connectionEstablishmentWaitTime,
             int responsiblePeerUpdateTime,
-            int maxOpenedConnections) {
+            int maxOpenedConnections,
+            int rttSnapshotPeriod,
+            int pendingMsgsMaxPerDest,
+            int pendingMsgsMaxBytesPerDest,
+            int pendingMsgsMax,
+            int pendingMsgsMaxBytes,
+            int pendingMsgTtl,
+            boolean pendingMsgsDropOldest,
+            int relayDedupExpectedMsgs,
+            double relayDedupFpp,
+            int relayDedupWindow,
+            boolean relayWhileHolePunching,
+            int natProfileMaxAge,
+            boolean relayFanOut,
+            boolean relayFastPath) {
         this.stunRetries = stunRetries;
         this.connectionEstablishmentWaitTime = connectionEstablishmentWaitTime;
         this.responsiblePeerUpdateTime = responsiblePeerUpdateTime;
         this.maxOpenedConnections = maxOpenedConnections;
+        this.rttSnapshotPeriod = rttSnapshotPeriod;
+        this.pendingMsgsMaxPerDest = pendingMsgsMaxPerDest;
+        this.pendingMsgsMaxBytesPerDest = pendingMsgsMaxBytesPerDest;
+        this.pendingMsgsMax = pendingMsgsMax;
+        this.pendingMsgsMaxBytes = pendingMsgsMaxBytes;
+        this.pendingMsgTtl = pendingMsgTtl;
+        this.pendingMsgsDropOldest = pendingMsgsDropOldest;
+        this.relayDedupExpectedMsgs = relayDedupExpectedMsgs;
+        this.relayDedupFpp = relayDedupFpp;
+        this.relayDedupWindow = relayDedupWindow;
+        this.relayWhileHolePunching = relayWhileHolePunching;
+        this.natProfileMaxAge = natProfileMaxAge;
+        this.relayFanOut = relayFanOut;
+        this.relayFastPath = relayFastPath;
     }
 
     public static NatTraverserConfiguration build() {
@@ -52,6 +108,62 @@ extends AbstractConfiguration<NatTraverserConfiguration>{
         return stunRetries;
     }
 
+    public int getRttSnapshotPeriod() {
+        return rttSnapshotPeriod;
+    }
+
+    public int getPendingMsgsMaxPerDest() {
+        return pendingMsgsMaxPerDest;
+    }
+
+    public int getPendingMsgsMaxBytesPerDest() {
+        return pendingMsgsMaxBytesPerDest;
+    }
+
+    public int getPendingMsgsMax() {
+        return pendingMsgsMax;
+    }
+
+    public int getPendingMsgsMaxBytes() {
+        return pendingMsgsMaxBytes;
+    }
+
+    public int getPendingMsgTtl() {
+        return pendingMsgTtl;
+    }
+
+    public boolean isPendingMsgsDropOldest() {
+        return pendingMsgsDropOldest;
+    }
+
+    public int getRelayDedupExpectedMsgs() {
+        return relayDedupExpectedMsgs;
+    }
+
+    public double getRelayDedupFpp() {
+        return relayDedupFpp;
+    }
+
+    public int getRelayDedupWindow() {
+        return relayDedupWindow;
+    }
+
+    public boolean isRelayWhileHolePunching() {
+        return relayWhileHolePunching;
+    }
+
+    public int getNatProfileMaxAge() {
+        return natProfileMaxAge;
+    }
+
+    public boolean isRelayFanOut() {
+        return relayFanOut;
+    }
+
+    public boolean isRelayFastPath() {
+        return relayFastPath;
+    }
+
     public int getConnectionEstablishmentWaitTime() {
         return connectionEstablishmentWaitTime;
     }
@@ -71,6 +183,76 @@ extends AbstractConfiguration<NatTraverserConfiguration>{
         return this;
     }
 
+    public NatTraverserConfiguration setRttSnapshotPeriod(int rttSnapshotPeriod) {
+        this.rttSnapshotPeriod = rttSnapshotPeriod;
+        return this;
+    }
+
+    public NatTraverserConfiguration setPendingMsgsMaxPerDest(int pendingMsgsMaxPerDest) {
+        this.pendingMsgsMaxPerDest = pendingMsgsMaxPerDest;
+        return this;
+    }
+
+    public NatTraverserConfiguration setPendingMsgsMaxBytesPerDest(int pendingMsgsMaxBytesPerDest) {
+        this.pendingMsgsMaxBytesPerDest = pendingMsgsMaxBytesPerDest;
+        return this;
+    }
+
+    public NatTraverserConfiguration setPendingMsgsMax(int pendingMsgsMax) {
+        this.pendingMsgsMax = pendingMsgsMax;
+        return this;
+    }
+
+    public NatTraverserConfiguration setPendingMsgsMaxBytes(int pendingMsgsMaxBytes) {
+        this.pendingMsgsMaxBytes = pendingMsgsMaxBytes;
+        return this;
+    }
+
+    public NatTraverserConfiguration setPendingMsgTtl(int pendingMsgTtl) {
+        this.pendingMsgTtl = pendingMsgTtl;
+        return this;
+    }
+
+    public NatTraverserConfiguration setPendingMsgsDropOldest(boolean pendingMsgsDropOldest) {
+        this.pendingMsgsDropOldest = pendingMsgsDropOldest;
+        return this;
+    }
+
+    public NatTraverserConfiguration setRelayDedupExpectedMsgs(int relayDedupExpectedMsgs) {
+        this.relayDedupExpectedMsgs = relayDedupExpectedMsgs;
+        return this;
+    }
+
+    public NatTraverserConfiguration setRelayDedupFpp(double relayDedupFpp) {
+        this.relayDedupFpp = relayDedupFpp;
+        return this;
+    }
+
+    public NatTraverserConfiguration setRelayDedupWindow(int relayDedupWindow) {
+        this.relayDedupWindow = relayDedupWindow;
+        return this;
+    }
+
+    public NatTraverserConfiguration setRelayWhileHolePunching(boolean relayWhileHolePunching) {
+        this.relayWhileHolePunching = relayWhileHolePunching;
+        return this;
+    }
+
+    public NatTraverserConfiguration setNatProfileMaxAge(int natProfileMaxAge) {
+        this.natProfileMaxAge = natProfileMaxAge;
+        return this;
+    }
+
+    public NatTraverserConfiguration setRelayFanOut(boolean relayFanOut) {
+        this.relayFanOut = relayFanOut;
+        return this;
+    }
+
+    public NatTraverserConfiguration setRelayFastPath(boolean relayFastPath) {
+        this.relayFastPath = relayFastPath;
+        return this;
+    }
+
     public NatTraverserConfiguration setResponsiblePeerUpdateTime(int responsiblePeerUpdateTime) {
         this.responsiblePeerUpdateTime = responsiblePeerUpdateTime;
         return this;
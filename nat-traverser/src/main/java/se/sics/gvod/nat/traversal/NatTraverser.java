@@ -1,15 +1,17 @@
 package se.sics.gvod.nat.traversal;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import org.slf4j.Logger;
@@ -22,10 +24,12 @@ import se.sics.gvod.common.VodDescriptor;
 import se.sics.gvod.common.evts.GarbageCleanupTimeout;
 import se.sics.gvod.common.evts.Join;
 import se.sics.gvod.common.hp.HPMechanism;
-import se.sics.gvod.common.hp.HPSessionKey;
+import se.sics.gvod.common.hp.HolePunching;
+import se.sics.gvod.common.hp.HpFeasability;
 import se.sics.gvod.common.msgs.DirectMsgNetty;
+import se.sics.gvod.common.msgs.Encodable;
 import se.sics.gvod.common.msgs.RelayMsgNetty;
-import se.sics.gvod.common.util.CachedNatType;
+import se.sics.gvod.common.util.NatProfile;
 import se.sics.gvod.common.util.NatStr;
 import se.sics.gvod.common.util.ToVodAddr;
 import se.sics.gvod.config.BaseCommandLineConfig;
@@ -40,16 +44,26 @@ import se.sics.gvod.croupier.PeerSamplePort;
 import se.sics.gvod.croupier.events.CroupierSample;
 import se.sics.gvod.filters.MsgDestFilterOverlayId;
 import se.sics.gvod.hp.events.OpenConnectionResponseType;
+import se.sics.gvod.hp.msgs.RelayRequestMsg;
+import se.sics.gvod.nat.common.RotatingBloomFilter;
+import se.sics.gvod.nat.hp.client.ConnectionTable;
+import se.sics.gvod.nat.hp.client.HpFailureTable;
 import se.sics.gvod.nat.hp.client.HpClient;
 import se.sics.gvod.nat.hp.client.HpClientInit;
+import se.sics.gvod.nat.hp.client.HpMechanismSelector;
 import se.sics.gvod.nat.hp.client.HpClientPort;
 import se.sics.gvod.nat.hp.client.OpenedConnection;
+import se.sics.gvod.nat.hp.client.events.ConnectionMigrated;
 import se.sics.gvod.nat.hp.client.events.DeleteConnection;
 import se.sics.gvod.nat.hp.client.events.OpenConnectionRequest;
 import se.sics.gvod.nat.hp.client.events.OpenConnectionResponse;
+import se.sics.gvod.nat.hp.rs.ExpiryWheel;
+import se.sics.gvod.nat.hp.rs.LoadMonitor;
 import se.sics.gvod.nat.hp.rs.RendezvousServer;
 import se.sics.gvod.nat.hp.rs.RendezvousServer.RegisteredClientRecord;
 import se.sics.gvod.nat.hp.rs.RendezvousServerInit;
+import se.sics.gvod.nat.hp.rs.ShardFilter;
+import se.sics.gvod.nat.hp.rs.ShardRouter;
 import se.sics.gvod.nat.traversal.events.ConnectionEstablishmentTimeout;
 import se.sics.gvod.nat.traversal.events.DisconnectNeighbour;
 import se.sics.gvod.nat.traversal.events.HpFailed;
@@ -57,8 +71,10 @@ import se.sics.gvod.nat.traversal.events.NatTraverserInit;
 import se.sics.gvod.nat.traversal.events.StartServices;
 import se.sics.gvod.net.Nat;
 import se.sics.gvod.net.NatNetworkControl;
+import se.sics.gvod.net.RelayTable;
 import se.sics.gvod.net.VodAddress;
 import se.sics.gvod.net.VodNetwork;
+import se.sics.gvod.net.events.SetRelayTable;
 import se.sics.gvod.net.msgs.DirectMsg;
 import se.sics.gvod.net.msgs.RelayMsg;
 import se.sics.gvod.net.msgs.RewriteableMsg;
@@ -80,6 +96,7 @@ import se.sics.gvod.timer.ScheduleTimeout;
 import se.sics.gvod.timer.Timeout;
 import se.sics.gvod.timer.TimeoutId;
 import se.sics.gvod.timer.Timer;
+import se.sics.gvod.timer.UUID;
 import se.sics.kompics.Component;
 import se.sics.kompics.ComponentDefinition;
 import se.sics.kompics.Fault;
@@ -95,6 +112,16 @@ import se.sics.kompics.Stop;
  */
 public class NatTraverser extends ComponentDefinition {
 
+    // Servers are ranked by the p90 of their RTT, so an occasional slow reply
+    // doesn't push a nearby server down the list.
+    private static final double SERVER_RANKING_PERCENTILE = 0.9d;
+    // Tags for the keys of relayed msgs in receivedRelays
+    private static final long RELAY_ONEWAY_TAG = 0;
+    private static final long RELAY_WAVE_TAG = 1L << 62;
+    private static final long RELAY_COPY_TAG = 2L << 62;
+    private static final long RELAY_DIRECT_TAG = 3L << 62;
+    // A request retried more often than this is treated as a duplicate
+    private static final int MAX_RELAY_WAVES = 16;
     private final Logger logger = LoggerFactory.getLogger(NatTraverser.class);
     private Positive<VodNetwork> network = positive(VodNetwork.class);
     private Positive<Timer> timer = positive(Timer.class);
@@ -106,17 +133,61 @@ public class NatTraverser extends ComponentDefinition {
     private Component stunClient;
     private Component parentMaker;
     private Component stunServer; // initialized, if the peer has an open ip
-    private Component zServer; // initialized, if the peer has an open ip
+    // RendezvousServer shards, initialized if the peer has an open ip
+    private final List<Component> zServers = new ArrayList<Component>();
     private Self self;
     private String compName; // only for debugging
     // Registered private nodes, shared with RendezvousServer
     private final ConcurrentHashMap<Integer, RegisteredClientRecord> registeredClients = new ConcurrentHashMap<Integer, RegisteredClientRecord>();
+    // Deadlines of the registeredClients records, shared with RendezvousServer
+    private final ExpiryWheel<Integer> registrationExpiry =
+            RendezvousServer.createRegistrationExpiry(System.currentTimeMillis());
+    // Load of the RendezvousServer shards, created with them
+    private volatile LoadMonitor loadMonitor;
+    // registeredClients, as seen by the relay fast path of the network
+    // component. Called on its I/O threads.
+    private final RelayTable relayTable = new RelayTable() {
+        @Override
+        public VodAddress getSelf() {
+            return self.getAddress();
+        }
+
+        @Override
+        public VodAddress getChild(int id) {
+            RegisteredClientRecord rcr = registeredClients.get(id);
+            return (rcr == null) ? null : rcr.getClient();
+        }
+
+        @Override
+        public boolean touch(int id) {
+            RegisteredClientRecord rcr = registeredClients.get(id);
+            if (rcr == null) {
+                return false;
+            }
+            rcr.setLastHeardFrom(System.currentTimeMillis());
+            return true;
+        }
+
+        @Override
+        public void relayed(int id, int bytes) {
+            RegisteredClientRecord rcr = registeredClients.get(id);
+            if (rcr != null) {
+                rcr.addRelayBytes(bytes);
+            }
+            LoadMonitor monitor = loadMonitor;
+            if (monitor != null) {
+                monitor.addRelayBytes(bytes);
+            }
+        }
+    };
     // Registered open connections to private nodes, shared with HpClient
-    private final ConcurrentHashMap<Integer, OpenedConnection> openedConnections = new ConcurrentHashMap<Integer, OpenedConnection>();
-    // map to store the messages before the hole in the nat is created. 
-    // here the Integer is the id of the destination peer
-    // TODO: bound list in size, priority?
-    private final HashMap<Integer, LinkedList<DirectMsg>> pendingMsgs = new HashMap<Integer, LinkedList<DirectMsg>>();
+    private final ConnectionTable openedConnections = new ConnectionTable();
+    // Hole punching failures by dest peer and mechanism, shared with HpClient
+    private HpFailureTable hpFailures;
+    private HpMechanismSelector hpMechanisms;
+    // stores the messages before the hole in the nat is created,
+    // by the id of the destination peer. Bounded, see PendingMsgQueue.
+    private PendingMsgQueue<DirectMsg> pendingMsgs;
     // for each destination we have to do hole punching
     // hole punching consists of multiple stages. to store which
     // state the hole punching is going through following map is used
@@ -126,6 +197,8 @@ public class NatTraverser extends ComponentDefinition {
     private int stunRetries = 0;
     private int maxOpenedConnections = 0;
     private int connectionEstablishmentWaitTime; // maximum time to wait for HP to finish
+    private boolean relayWhileHolePunching; // relay msgs to private nodes until HP has finished
+    private boolean relayFanOut; // relay msgs via all parents of a private node, not just the best
     private boolean initializedServerComponents = false;
     private NatTraverserConfiguration natTraverserConfig;
     private HpClientConfiguration hpClientConfig;
@@ -133,21 +206,20 @@ public class NatTraverser extends ComponentDefinition {
     private StunServerConfiguration stunServerConfiguration;
     private StunClientConfiguration stunClientConfiguration;
     private ParentMakerConfiguration parentMakerConfig;
-    // <UniqueIdOfRequest,<ids of nodes that sent requests>>
-    // When the NT receives a request, it makes an entry in the Map with 
-    // (<clientId,timeoutId>, <ids of nodes that sent requests>)
-    // If there is no HPSessionKey, the request is forwarded up and an id is entered into
-    // the value's HashSet. If another request arrives and it does not have its id in the
-    // HashSet, then the request is dropped, and its id is entered into the HashSet.
-    // If another request arrives and it does have its id in the
-    // HashSet, then the request is forwarded up (it's a retry request), and 
-    // all other ids (apart from its own) are removed from the HashSet.
-    private Map<HPSessionKey, Set<Integer>> receivedRelays = new HashMap<HPSessionKey, Set<Integer>>();
-    // TODO: tell Cosmin, i got a concurrentModificationException, even though this map
-    // is only accessed within this component. It is accessed by 3 handlers, one
-    // from the timer port, 2 from network port. Is the timer port a problem?
-    private ConcurrentHashMap<Long, HPSessionKey> receivedRelaysIndex = new ConcurrentHashMap<Long, HPSessionKey>();
+    // Relayed msgs received, for duplicate checking, keyed by <clientId,timeoutId>.
+    // A relayed request arrives via one of our parents, or via each of them if
+    // the sender fans out. The first copy is forwarded up and the others are
+    // dropped. A retry of the request arrives again via the same parent(s), so
+    // the n-th copy from a relay is part of the n-th wave of copies, and the
+    // first copy of each wave is forwarded up.
+    // Entries are forgotten after relayDedupWindow to 2 * relayDedupWindow ms.
+    private RotatingBloomFilter receivedRelays;
     private Map<Integer, Long> outstandingTimestamps = new HashMap<Integer, Long>();
+    // <timeoutId, parentId> of relayed requests sent via a single parent
+    private Map<Integer, Integer> outstandingRelayParents = new HashMap<Integer, Integer>();
+    // <parentId, number of relayed requests sent via the parent that were not
+    // answered>, reset when a response arrives via the parent.
+    private Map<Integer, Integer> relayFailures = new HashMap<Integer, Integer>();
     private boolean stunTypeDetermined = false;
     private Set<Address> failedStunServers = new HashSet<Address>();
     private List<VodAddress> croupierSamples = new ArrayList<VodAddress>();
@@ -162,6 +234,14 @@ public class NatTraverser extends ComponentDefinition {
     private ConcurrentSkipListSet<Integer> parentPorts = new ConcurrentSkipListSet<Integer>();
     private boolean isOpenServer;
     private Set<Address> stunServers;
+    // null if RTT snapshots are disabled
+    private File rttSnapshotFile = null;
+    // null if the NAT profile cache is disabled
+    private File natProfileFile = null;
+    // null if hole punching mechanisms are not learned
+    private File hpStatsFile = null;
+    // The cached NAT profile we started with, until stun has revalidated it.
+    private NatProfile cachedNatProfile = null;
 
     class ServersInitTimeout extends Timeout {
 
@@ -170,6 +250,13 @@ public class NatTraverser extends ComponentDefinition {
         }
     }
 
+    class RttSnapshotTimeout extends Timeout {
+
+        public RttSnapshotTimeout(SchedulePeriodicTimeout st) {
+            super(st);
+        }
+    }
+
     private class StunRetryTimeout extends Timeout {
 
         private final int nodeId;
@@ -247,10 +334,12 @@ public class NatTraverser extends ComponentDefinition {
         subscribe(handleRelayRequestUp, network);
         subscribe(handleRelayOnewayUp, network);
         subscribe(handleRelayResponseUp, network);
+        subscribe(handleRelayedDirectMsg, network);
 
         subscribe(handleGarbageCleanupTimeout, timer);
         subscribe(handleStunRetryTimeout, timer);
         subscribe(handleServersInitTimeout, timer);
+        subscribe(handleRttSnapshotTimeout, timer);
 
         subscribe(handleCroupierSample, globalCroupierPort);
 
@@ -272,20 +361,68 @@ public class NatTraverser extends ComponentDefinition {
         connectionEstablishmentWaitTime = natTraverserConfig.getConnectionEstablishmentWaitTime();
         maxOpenedConnections = natTraverserConfig.getMaxOpenedConnections();
         stunRetries = natTraverserConfig.getStunRetries();
+        relayWhileHolePunching = natTraverserConfig.isRelayWhileHolePunching();
+        relayFanOut = natTraverserConfig.isRelayFanOut();
+        receivedRelays = new RotatingBloomFilter(
+                natTraverserConfig.getRelayDedupExpectedMsgs(),
+                natTraverserConfig.getRelayDedupFpp(),
+                natTraverserConfig.getRelayDedupWindow());
+        pendingMsgs = new PendingMsgQueue<DirectMsg>(
+                natTraverserConfig.getPendingMsgsMaxPerDest(),
+                natTraverserConfig.getPendingMsgsMaxBytesPerDest(),
+                natTraverserConfig.getPendingMsgsMax(),
+                natTraverserConfig.getPendingMsgsMaxBytes(),
+                natTraverserConfig.getPendingMsgTtl(),
+                natTraverserConfig.isPendingMsgsDropOldest());
         isOpenServer = init.isOpenServer();
 
+        hpFailures = new HpFailureTable(hpClientConfig.getFailureBackoff(),
+                hpClientConfig.getFailureMaxBackoff(), hpClientConfig.getFailureDecay());
+        hpMechanisms = new HpMechanismSelector(hpClientConfig.getMechanismExploration(),
+                hpClientConfig.getMechanismMinSamples(),
+                hpClientConfig.getMechanismMinSuccessRate(), new Random(VodConfig.getSeed()));
+        if (hpClientConfig.isLearnMechanisms() && !VodConfig.isSimulation()) {
+            hpStatsFile = new File(VodConfig.getHpStatsFile(self.getId()));
+            try {
+                int n = hpMechanisms.load(hpStatsFile);
+                logger.info(compName + "restored {} hole punching stats from {}", n, hpStatsFile);
+            } catch (IOException e) {
+                logger.warn(compName + "could not restore hole punching stats: " + e.getMessage());
+            }
+        }
         hpClient = create(HpClient.class, new HpClientInit(self.clone(VodConfig.SYSTEM_OVERLAY_ID),
-                openedConnections, hpClientConfig, parentPorts));
+                openedConnections, hpClientConfig, parentPorts, hpFailures, hpMechanisms));
         connect(hpClient.getNegative(Timer.class), timer);
         connect(hpClient.getNegative(VodNetwork.class), network,
                 new MsgDestFilterOverlayId(VodConfig.SYSTEM_OVERLAY_ID));
         connect(hpClient.getNegative(NatNetworkControl.class), lowerNetControl);
         subscribe(handleOpenConnectionResponse, hpClient.getPositive(HpClientPort.class));
+        subscribe(handleConnectionMigrated, hpClient.getPositive(HpClientPort.class));
         subscribe(handleFault, hpClient.getControl());
 
+        // Restore the RTTs from our last run first, so that we don't overwrite
+        // them with the default sample for the public nodes below.
+        if (natTraverserConfig.getRttSnapshotPeriod() > 0 && !VodConfig.isSimulation()) {
+            rttSnapshotFile = new File(VodConfig.getRttSnapshotFile(self.getId()));
+            try {
+                int n = RTTStore.instance(self.getId()).loadSnapshot(rttSnapshotFile,
+                        VodConfig.NT_RTT_SNAPSHOT_MAX_AGE);
+                logger.info(compName + "restored {} RTTs from {}", n, rttSnapshotFile);
+            } catch (IOException e) {
+                logger.warn(compName + "could not restore RTT snapshot: " + e.getMessage());
+            }
+        }
+
+        if (natTraverserConfig.getNatProfileMaxAge() > 0 && !VodConfig.isSimulation()) {
+            natProfileFile = new File(VodConfig.getNatProfileFile(self.getId()));
+        }
+
         for (Address addr : init.getPublicNodes()) {
-            RTTStore.addSample(self.getId(), ToVodAddr.hpServer(addr), 5000);
-            RTTStore.addSample(self.getId(), ToVodAddr.stunServer(addr), 5000);
+            if (RTTStore.containsPublicSample(self.getId(), ToVodAddr.hpServer(addr))) {
+                continue;
+            }
+            RTTStore.addPlaceholderSample(self.getId(), ToVodAddr.hpServer(addr), 5000);
+            RTTStore.addPlaceholderSample(self.getId(), ToVodAddr.stunServer(addr), 5000);
         }
 
         stunServers = new HashSet<Address>();
@@ -308,6 +445,13 @@ public class NatTraverser extends ComponentDefinition {
                 trigger(st, timer);
             }
 
+            if (rttSnapshotFile != null) {
+                int period = natTraverserConfig.getRttSnapshotPeriod();
+                SchedulePeriodicTimeout spt = new SchedulePeriodicTimeout(period, period);
+                spt.setTimeoutEvent(new RttSnapshotTimeout(spt));
+                trigger(spt, timer);
+            }
+
             if (isOpenServer) {
                 retryStartServerComponents();
             } else {
@@ -323,18 +467,27 @@ public class NatTraverser extends ComponentDefinition {
                 );
                 connect(stunClient.getNegative(NatNetworkControl.class), lowerNetControl);
 
-                CachedNatType sc = VodConfig.getSavedNatType();
-                VodAddress va = sc.getNatBean().getVodAddress();
-                if (va != null) {
-                    self.setNat(va.getNat());
+                // If we are on the same network as in our last run, start with
+                // the NAT type and parents we had then. Stun still runs, and
+                // we only re-initialize if it finds a different NAT type.
+                cachedNatProfile = loadNatProfile();
+                if (cachedNatProfile != null) {
+                    Nat nat = cachedNatProfile.getNat();
+                    logger.info(compName + "Using cached NAT type " + nat + ", revalidating it.");
+                    self.setNat(nat);
+                    self.setUpnp(nat.isUpnp());
                     if (!self.isOpen()) {
-                        for (Address p : va.getParents()) {
+                        for (Address p : cachedNatProfile.getParents()) {
                             self.addParent(p);
                         }
                     }
                     List<Address> l = new ArrayList<Address>();
                     l.addAll(stunServers);
                     sendGetNatTypeResponse(l);
+                    // the profile doesn't record a stun server, it is
+                    // optional in a GetNatTypeResponse
+                    trigger(new GetNatTypeResponse(nat, GetNatTypeResponse.Status.SUCCEED,
+                            null, 0), natTraverserPort);
                 }
                 trigger(Start.event, stunClient.getControl());
                 trigger(new GetNatTypeRequest(stunServers,
@@ -379,30 +532,118 @@ public class NatTraverser extends ComponentDefinition {
         }
     };
 
+    Handler<ConnectionMigrated> handleConnectionMigrated = new Handler<ConnectionMigrated>() {
+        @Override
+        public void handle(ConnectionMigrated event) {
+            int remoteId = event.getRemoteId();
+            List<DirectMsg> held = pendingMsgs.drain(remoteId);
+            logger.debug(compName + "Connection to " + remoteId + " moved to new NAT mapping: "
+                    + event.isSuccess() + ", sending " + held.size() + " held msgs");
+            // If the move failed, the connection was deleted, and the first
+            // msg starts hole punching again.
+            for (DirectMsg msg : held) {
+                sendDownDirectMsg(msg);
+            }
+        }
+    };
+
     private void sendDownDirectMsg(DirectMsg msg) {
         if (msg.getVodDestination().isOpen()) {
             // simply send the packet down
             trigger(msg, network);
         } else {
             int remoteId = msg.getDestination().getId();
+            OpenedConnection oc = openedConnections.get(remoteId);
+            if (oc != null && oc.isMigrating()) {
+                // The connection is moving to our new NAT mapping, hold the
+                // msg until the HpClient knows if the move worked.
+                if (!pendingMsgs.offer(remoteId, msg, msgSize(msg))) {
+                    logger.warn(compName + "Pending msgs full, dropping msg to " + remoteId
+                            + " message class :" + msg.getClass().getName() + ". " + pendingMsgs);
+                }
+                return;
+            }
             if (!sendMsgUsingConnection(msg, remoteId)) {
-                // No open connection to dest. Start hole-punching.
-                // if hole punching for the destion peer is going
-                // on then save the mesage; otherwise start hp
-                LinkedList<DirectMsg> msgList;
-                if (onGoingHP.containsKey(remoteId)) {
-                    msgList = pendingMsgs.get(remoteId);
-                } else {
-                    // start the hole punching process
-                    msgList = new LinkedList<DirectMsg>();
-                    pendingMsgs.put(remoteId, msgList);
+                // Hole punching to the dest peer failed recently, don't try
+                // again until its back off is over, just relay the message.
+                if (!onGoingHP.containsKey(remoteId)
+                        && isHpBackedOff(msg.getVodDestination())
+                        && relayViaParents(msg)) {
+                    logger.debug(compName + "Hole punching to {} is backed off, relayed msg - "
+                            + msg.getClass().getName(), remoteId);
+                    return;
+                }
+                // No open connection to dest. Relay the message via the
+                // parents of the dest peer, or save it until hole punching
+                // to the dest peer has finished. Start hole punching if it is
+                // not already going on, so that later messages are sent
+                // directly once the connection is open.
+                if (!relayWhileHolePunching || !relayViaParents(msg)) {
+                    if (!pendingMsgs.offer(remoteId, msg, msgSize(msg))) {
+                        logger.warn(compName + "Pending msgs full, dropping msg to " + remoteId
+                                + " message class :" + msg.getClass().getName() + ". " + pendingMsgs);
+                        return;
+                    }
+                }
+                if (!onGoingHP.containsKey(remoteId)) {
                     // TODO - take heartbeat connection (true or false) from the msgs, instead of hard-coding.
                     startHolePunchingProcess(msg.getVodDestination(), true, 0, msg.getTimeoutId());
                 }
-                msgList.add(msg);
             }
         }
     }
+
+    private boolean isHpBackedOff(VodAddress dest) {
+        HolePunching hp = HpFeasability.isPossible(self.getAddress(), dest);
+        HPMechanism mechanism = (hp == null) ? HPMechanism.NOT_POSSIBLE
+                : hp.getHolePunchingMechanism();
+        return hpFailures.isBackedOff(dest.getId(), mechanism);
+    }
+
+    /**
+     * Sends a msg to a private node via the RendezvousServer of its best
+     * parent (or of all its parents, if relayFanOut), wrapped in a
+     * RelayRequestMsg. All copies of the msg have the same random timeoutId,
+     * so that the dest can drop the duplicates.
+     * @return false if the msg could not be relayed, and should be buffered
+     * until hole punching has finished.
+     */
+    private boolean relayViaParents(DirectMsg msg) {
+        if (!(msg instanceof Encodable)) {
+            return false;
+        }
+        List<Address> parents = relayParents(msg.getVodDestination().getParents(), relayFanOut);
+        if (parents.isEmpty()) {
+            return false;
+        }
+        VodAddress src = self.clone(VodConfig.SYSTEM_OVERLAY_ID).getAddress();
+        int remoteId = msg.getDestination().getId();
+        TimeoutId relayMsgId = UUID.nextUUID();
+        List<RelayRequestMsg.ClientToServer> copies = new ArrayList<RelayRequestMsg.ClientToServer>();
+        for (Address p : parents) {
+            RelayRequestMsg.ClientToServer rm = new RelayRequestMsg.ClientToServer(src,
+                    ToVodAddr.systemAddr(p), remoteId, msg);
+            if (rm.getSize() > VodConfig.DEFAULT_MTU) {
+                return false;
+            }
+            rm.setTimeoutId(relayMsgId);
+            copies.add(rm);
+        }
+        for (RelayRequestMsg.ClientToServer rm : copies) {
+            trigger(rm, network);
+        }
+        logger.debug(compName + "Relayed msg to {} via {} parents while hole punching - "
+                + msg.getClass().getName(), remoteId, copies.size());
+        return true;
+    }
+
+    private int msgSize(DirectMsg msg) {
+        if (msg instanceof DirectMsgNetty.Base) {
+            return ((DirectMsgNetty.Base) msg).getSize();
+        }
+        return VodConfig.DEFAULT_MTU;
+    }
+
     Handler<DirectMsgNetty.Request> handleUpperDirectMsgNettyRequest = new Handler<DirectMsgNetty.Request>() {
         @Override
         public void handle(DirectMsgNetty.Request msg) {
@@ -470,6 +711,13 @@ public class NatTraverser extends ComponentDefinition {
             logger.info(compName + msg.getClass().getName()
                     + " Adding OpenedConnection to " + msg.getSource()
                     + " from Local Port " + msg.getDestination().getPort());
+        } else if (!msg.getVodSource().isOpen()) {
+            openedConnections.touch(remoteId);
+            if (openedConnections.migrate(remoteId, msg.getSource(),
+                    msg.getDestination().getPort())) {
+                logger.info(compName + "NAT mapping of " + remoteId
+                        + " changed, moved connection to " + msg.getSource());
+            }
         }
         trigger(msg, upperNet);
     }
@@ -519,7 +767,12 @@ public class NatTraverser extends ComponentDefinition {
     Handler<ServersInitTimeout> handleServersInitTimeout = new Handler<ServersInitTimeout>() {
         @Override
         public void handle(ServersInitTimeout timeout) {
-            List<RTT> rtts = RTTStore.getOnAvgBest(self.getId(), 5);
+            if (initializedServerComponents || !self.isOpen()) {
+                // started, or stopped after stun found we are behind a NAT
+                return;
+            }
+            List<RTT> rtts = RTTStore.getOnPercentileBest(self.getId(), 5,
+                    SERVER_RANKING_PERCENTILE, new HashSet<Address>());
 
             // I need to have a reference to another public node to
             // start the stunserver, if i don't have one, start a timeout
@@ -557,19 +810,33 @@ public class NatTraverser extends ComponentDefinition {
             } else {
                 if (!sendMsgUsingConnection(msg, msg.getRemoteId())) {
                     // No open connection to dest. 
-                    // Send by relaying msg via all parents of destination.
-                    Set<Address> parents = new HashSet<Address>(msg.getVodDestination().getParents());
+                    // Send by relaying msg via the best parent of the destination.
+                    // If this is a retry, the parent we used didn't deliver the
+                    // request or the response, so send it via all parents.
+                    boolean retry = false;
+                    if (msg.getTimeoutId().isSupported()) {
+                        int timeoutId = msg.getTimeoutId().getId();
+                        retry = outstandingTimestamps.containsKey(timeoutId);
+                        Integer failedParent = outstandingRelayParents.remove(timeoutId);
+                        if (failedParent != null) {
+                            relayFailed(failedParent);
+                        }
+                    }
+                    List<Address> parents = relayParents(msg.getVodDestination().getParents(),
+                            relayFanOut || retry);
                     if (!parents.isEmpty()) {
                         for (Address p : parents) {
-                            if (p.getId() != self.getId()) {
-                                msg.rewriteDestination(p);
-                                trigger(msg, network);
-                            }
+                            msg.rewriteDestination(p);
+                            trigger(msg, network);
                         }
 
                         if (msg.getTimeoutId().isSupported()) {
                             outstandingTimestamps.put(msg.getTimeoutId().getId(),
                                     System.currentTimeMillis());
+                            if (parents.size() == 1) {
+                                outstandingRelayParents.put(msg.getTimeoutId().getId(),
+                                        parents.get(0).getId());
+                            }
                         }
                     } else {
                         logger.debug(compName + msg.getClass()
@@ -609,22 +876,17 @@ public class NatTraverser extends ComponentDefinition {
                 // TODO: - maybe a 3-way handshake is really needed for relayed msgs to make
                 // them reliable and distinguish the difference retried msgs and duplicate requests
                 // via different relay servers.
-                HPSessionKey sk = new HPSessionKey(msg.getClientId(), timeoutId);
-                Integer relayId = msg.getSource().getId();
-                if (!receivedRelays.containsKey(sk)
-                        || (receivedRelays.containsKey(sk)
-                        && receivedRelays.get(sk).contains(relayId))) {
-                    Set<Integer> ids = receivedRelays.get(sk);
-                    if (!receivedRelays.containsKey(sk)) {
-                        ids = new HashSet<Integer>();
-                        receivedRelays.put(sk, ids);
-                    }
-                    ids.clear();
-                    ids.add(relayId);
-                    receivedRelaysIndex.put(System.currentTimeMillis(), sk);
+                long key = relayKey(msg.getClientId(), timeoutId);
+                int relayId = msg.getSource().getId();
+                int wave = 0;
+                while (wave < MAX_RELAY_WAVES
+                        && receivedRelays.mightContain(key, relayCopyTag(relayId, wave))) {
+                    wave++;
+                }
+                receivedRelays.put(key, relayCopyTag(relayId, wave));
+                if (receivedRelays.putIfAbsent(key, RELAY_WAVE_TAG | wave)) {
                     trigger(msg, upperNet);
                 } else {
-                    receivedRelays.get(sk).add(relayId);
                     // silently discard duplicates as many requests will arrive via multiple relay servers
                     logger.debug(compName + msg.getClass()
                             + " relay msg discarded at {} from {} "
@@ -648,8 +910,11 @@ public class NatTraverser extends ComponentDefinition {
                     if (startTime != null) {
                         long rtt = System.currentTimeMillis() - startTime;
                         msg.setRtt(rtt);
+                        // the source is the parent that relayed the response
                         RTTStore.addSample(msg.getDestination().getId(), msg.getVodSource(), rtt);
                         outstandingTimestamps.remove(msg.getTimeoutId().getId());
+                        outstandingRelayParents.remove(msg.getTimeoutId().getId());
+                        relayFailures.remove(msg.getSource().getId());
                     } else {
                         logger.debug(compName + msg.getClass() + " Couldn't find startTime for node {} with timer {} - " + self.getNat(),
                                 self.getId(), msg.getTimeoutId());
@@ -685,6 +950,89 @@ public class NatTraverser extends ComponentDefinition {
         }
     };
 
+    Handler<RelayRequestMsg.ServerToClient> handleRelayedDirectMsg = new Handler<RelayRequestMsg.ServerToClient>() {
+        @Override
+        public void handle(RelayRequestMsg.ServerToClient msg) {
+            DirectMsg relayed = msg.getMessage();
+            if (relayed == null) {
+                logger.warn(compName + "Could not decode msg relayed by {}", msg.getSource());
+                return;
+            }
+            // The sender relays the msg via each of our parents, and all copies
+            // have the same timeoutId. Don't add an OpenedConnection to the
+            // sender, as we have not received anything directly from it.
+            long key = relayKey(relayed.getSource().getId(), msg.getTimeoutId().getId());
+            if (receivedRelays.putIfAbsent(key, RELAY_DIRECT_TAG)) {
+                trigger(relayed, upperNet);
+            } else {
+                logger.debug(compName + relayed.getClass()
+                        + " relayed msg discarded at {} from {}, duplicate.",
+                        self.getId(), relayed.getSource().getId());
+            }
+        }
+    };
+
+    /**
+     * Picks the parents of a private node to relay a msg to it via, not
+     * including ourselves. The best parent is the one with the fewest
+     * unanswered relayed requests, then the lowest RTO of relayed requests.
+     * Parents we have not relayed via yet come after those we have an RTT
+     * for, so that a slow but working parent is not dropped for an unknown one.
+     * @param parents the parents of the private node
+     * @param fanOut return all parents, best first, instead of just the best
+     * @return the parents to relay via, empty if there are none.
+     */
+    private List<Address> relayParents(Set<Address> parents, final boolean fanOut) {
+        List<Address> ranked = new ArrayList<Address>(parents.size());
+        for (Address p : parents) {
+            if (p.getId() != self.getId()) {
+                ranked.add(p);
+            }
+        }
+        if (ranked.size() <= 1) {
+            return ranked;
+        }
+        final Map<Integer, Long> rtos = new HashMap<Integer, Long>();
+        for (Address p : ranked) {
+            RTT rtt = RTTStore.getRtt(self.getId(), ToVodAddr.systemAddr(p));
+            rtos.put(p.getId(), (rtt == null) ? Long.MAX_VALUE : rtt.getRTO());
+        }
+        Collections.sort(ranked, new Comparator<Address>() {
+            @Override
+            public int compare(Address a1, Address a2) {
+                int f1 = numRelayFailures(a1.getId());
+                int f2 = numRelayFailures(a2.getId());
+                if (f1 != f2) {
+                    return (f1 < f2) ? -1 : 1;
+                }
+                long r1 = rtos.get(a1.getId());
+                long r2 = rtos.get(a2.getId());
+                if (r1 != r2) {
+                    return (r1 < r2) ? -1 : 1;
+                }
+                return 0;
+            }
+        });
+        return fanOut ? ranked : ranked.subList(0, 1);
+    }
+
+    private int numRelayFailures(int parentId) {
+        Integer n = relayFailures.get(parentId);
+        return (n == null) ? 0 : n;
+    }
+
+    private void relayFailed(int parentId) {
+        relayFailures.put(parentId, numRelayFailures(parentId) + 1);
+    }
+
+    private static long relayKey(int clientId, int timeoutId) {
+        return ((long) clientId << 32) | (timeoutId & 0xFFFFFFFFL);
+    }
+
+    private static long relayCopyTag(int relayId, int wave) {
+        return RELAY_COPY_TAG | ((relayId & 0xFFFFFFFFL) << 8) | wave;
+    }
+
     // Used by both Relay.RequestMsg and Relay.ResponseMsg
     // Do *not* use clientId and remoteId here.
     private void relayMsg(RelayMsg.Base msg) {
@@ -715,6 +1063,7 @@ public class NatTraverser extends ComponentDefinition {
                 RegisteredClientRecord tempClient = new RegisteredClientRecord(msg.getVodSource(),
                         5000, null, true);
                 registeredClients.put(msg.getSource().getId(), tempClient);
+                registrationExpiry.schedule(msg.getSource().getId(), tempClient.getDeadline());
             } else {
                 RegisteredClientRecord client = registeredClients.get(msg.getSource().getId());
                 client.setLastHeardFrom(System.currentTimeMillis());
@@ -726,6 +1075,10 @@ public class NatTraverser extends ComponentDefinition {
                     nattedDest.getOverlayId(), nattedDest.getNat());
             // forward the message, as it's from my child
             msg.rewriteDestinationAtRelay(self.getAddress(), finalDest);
+            rcr.addRelayBytes(msg.getSize());
+            if (loadMonitor != null) {
+                loadMonitor.addRelayBytes(msg.getSize());
+            }
             trigger(msg, network);
 
         } else {
@@ -752,10 +1105,8 @@ public class NatTraverser extends ComponentDefinition {
                 // duplicates that arrive via different relay servers, as a oneway
                 // msg doesn't expect a reply. All that matters is that it is received 
                 // and executed once.
-                HPSessionKey sk = new HPSessionKey(msg.getClientId(), msg.getTimeoutId().getId());
-                if (!receivedRelays.containsKey(sk)) {
-                    receivedRelays.put(sk, null);
-                    receivedRelaysIndex.put(System.currentTimeMillis(), sk);
+                long key = relayKey(msg.getClientId(), msg.getTimeoutId().getId());
+                if (receivedRelays.putIfAbsent(key, RELAY_ONEWAY_TAG)) {
                     trigger(msg, upperNet);
                 } else {
                     // silently discard duplicates                
@@ -772,8 +1123,9 @@ public class NatTraverser extends ComponentDefinition {
                 trigger(msg, network);
             } else {
 //            delegator.doMulticast(msg, msg.getVodDestination().getParents(), 1000, 0);
-                // Send the request in parallel via all of the node's parents
-                for (Address parent : msg.getVodDestination().getParents()) {
+                // Send the msg via the node's best parent, or in parallel via
+                // all of its parents if configured for reliability.
+                for (Address parent : relayParents(msg.getVodDestination().getParents(), relayFanOut)) {
                     msg.rewriteDestination(parent);
                     trigger(msg, network);
                 }
@@ -781,52 +1133,6 @@ public class NatTraverser extends ComponentDefinition {
         }
     };
 
-    private Set<Integer> oldestConnections(int number/**
-     * number of old connections
-     */
-    ) {
-        List<Integer> keysList = new ArrayList<Integer>(openedConnections.keySet());
-        List<OpenedConnection> valuesList = new ArrayList<OpenedConnection>(openedConnections.values());
-        TreeSet<OpenedConnection> sortedSet = new TreeSet<OpenedConnection>(new NatTraverser.ConnectionTSComparator());
-
-        for (int i = 0; i < valuesList.size(); i++) {
-            sortedSet.add(valuesList.get(i));
-        }
-
-        Object[] sortedArray = sortedSet.toArray();
-
-        Set<Integer> oldConnections = new HashSet<Integer>();
-        String str = ""; // only for debug msgs
-
-        for (int i = 0; i < number; i++) {
-            Integer oldConnectionKey = keysList.get(valuesList.indexOf(sortedArray[i]));
-            oldConnections.add(oldConnectionKey);
-            str += "{ " + oldConnectionKey.toString() + " - " + ((OpenedConnection) sortedArray[i]).getLastUsed() + " }";
-        }
-        logger.trace(compName + " To be deleted " + str);
-        return oldConnections;
-    }
-
-    class ConnectionTSComparator implements Comparator<Object> {
-
-        @Override
-        public int compare(Object obj1, Object obj2) {
-            OpenedConnection c1 = (OpenedConnection) obj1;
-            OpenedConnection c2 = (OpenedConnection) obj2;
-            int ret = 1;
-
-            if (c1.getLastUsed() == c2.getLastUsed()) {
-                ret = 0;
-            }
-
-            if (c1.getLastUsed() < c2.getLastUsed()) {
-                ret = -1;
-            }
-
-            return ret;
-        }
-    }
-
     public void sendOpenConnectionRequest(VodAddress destAddress, boolean keepConnectionOpenWithHeartbeat, boolean skipPacing, TimeoutId id) {
         OpenConnectionRequest request = new OpenConnectionRequest(destAddress, keepConnectionOpenWithHeartbeat, skipPacing, id);
         trigger(request, hpClient.getPositive(HpClientPort.class));
@@ -844,27 +1150,66 @@ public class NatTraverser extends ComponentDefinition {
 
         stunServer = create(StunServer.class,
                 new StunServerInit(self.clone(VodConfig.SYSTEM_OVERLAY_ID), partners, stunServerConfiguration));
-        zServer = create(RendezvousServer.class,
-                new RendezvousServerInit(self.clone(VodConfig.SYSTEM_OVERLAY_ID), registeredClients, rendezvousServerConfig));
-
-        connect(zServer.getNegative(Timer.class), timer);
-        connect(zServer.getNegative(VodNetwork.class), network,
-                new MsgDestFilterOverlayId(VodConfig.SYSTEM_OVERLAY_ID));
+        ShardRouter router = new ShardRouter(rendezvousServerConfig.getNumShards());
+        loadMonitor = new LoadMonitor(rendezvousServerConfig, router.getNumShards(),
+                VodConfig.RS_EXPIRY_TICK, System.currentTimeMillis());
+        for (int i = 0; i < router.getNumShards(); i++) {
+            Component zServer = create(RendezvousServer.class,
+                    new RendezvousServerInit(self.clone(VodConfig.SYSTEM_OVERLAY_ID),
+                            registeredClients, registrationExpiry, rendezvousServerConfig,
+                            router, i, loadMonitor));
+            connect(zServer.getNegative(Timer.class), timer);
+            connect(zServer.getNegative(VodNetwork.class), network,
+                    new ShardFilter(VodConfig.SYSTEM_OVERLAY_ID, router, i));
+            zServers.add(zServer);
+        }
 
         connect(stunServer.getNegative(Timer.class), timer);
         connect(stunServer.getNegative(VodNetwork.class), network, new MsgDestFilterOverlayId(VodConfig.SYSTEM_OVERLAY_ID));
         connect(stunServer.getNegative(NatNetworkControl.class), lowerNetControl);
 
         subscribe(handleFault, stunServer.getControl());
-        subscribe(handleFault, zServer.getControl());
+        for (Component zServer : zServers) {
+            subscribe(handleFault, zServer.getControl());
+        }
 
         initializedServerComponents = true;
         trigger(Start.event, stunServer.getControl());
-        trigger(Start.event, zServer.getControl());
+        for (Component zServer : zServers) {
+            trigger(Start.event, zServer.getControl());
+        }
+        if (natTraverserConfig.isRelayFastPath()) {
+            // relay msgs from registered clients to children without
+            // decoding them, see relayMsg() for the slow path
+            trigger(new SetRelayTable(relayTable), lowerNetControl);
+        }
 
         return true;
     }
 
+    /**
+     * Stops the stun server and rendezvous servers, when stun finds we are
+     * behind a NAT after starting them with a cached open NAT type. The
+     * children are dropped, they find new parents when their pings fail.
+     */
+    private void stopServerComponents() {
+        if (!initializedServerComponents) {
+            return;
+        }
+        logger.info(compName + "Stopping the server components.");
+        trigger(new SetRelayTable(null), lowerNetControl);
+        trigger(new Stop(), stunServer.getControl());
+        for (Component zServer : zServers) {
+            trigger(new Stop(), zServer.getControl());
+        }
+        zServers.clear();
+        stunServer = null;
+        loadMonitor = null;
+        registeredClients.clear();
+        registrationExpiry.clear();
+        initializedServerComponents = false;
+    }
+
     /**
      *
      * @param msg
@@ -873,11 +1218,10 @@ public class NatTraverser extends ComponentDefinition {
      * @return
      */
     public boolean sendMsgUsingConnection(RewriteableMsg msg, int remoteId) {
-        if (openedConnections.containsKey(remoteId)) {
-            // if I already have an open hole-punched connection to remotedId node.
-            OpenedConnection connection = openedConnections.get(remoteId);
-            // update connection timestamp
-            connection.setLastUsed(System.currentTimeMillis());
+        // if I already have an open hole-punched connection to remotedId node,
+        // update its connection timestamp
+        OpenedConnection connection = openedConnections.touchSent(remoteId);
+        if (connection != null) {
 
             // change the src and dest addresses and send the message of the network
             int portInUse = connection.getPortInUse();
@@ -934,10 +1278,8 @@ public class NatTraverser extends ComponentDefinition {
         // send all pending messages
         logger.trace(compName + " HP for " + destId + " took " + ((System.currentTimeMillis() - session.getHpStartTime()) / 1000) + " secs");
 
-        List<DirectMsg> msgs = pendingMsgs.get(destId);
-        Iterator<DirectMsg> itr = msgs.iterator();
-        while (itr.hasNext()) {
-            DirectMsg msg = itr.next();
+        // expired msgs are not sent, their senders have already timed out
+        for (DirectMsg msg : pendingMsgs.drain(destId)) {
             sendMsgUsingConnection(msg, destId);
         }
 
@@ -963,7 +1305,7 @@ public class NatTraverser extends ComponentDefinition {
             startHolePunchingProcess(destAddress, true, remaniningRetries, msgTimeoutId);
         } else {
             // hp failed. discard all messages
-            pendingMsgs.remove(destId);
+            pendingMsgs.discard(destId);
             // TODO - can i use reflection to create a response msg, if we follow the 
             // request/response idiom?
             trigger(new HpFailed(msgTimeoutId, flag, destAddress), natTraverserPort);
@@ -998,7 +1340,8 @@ public class NatTraverser extends ComponentDefinition {
                         + " opned connections. " + maxOpenedConnections + " are allowed "
                         + "removing " + connectionsToRemove);
 
-                Set<Integer> oldConnections = oldestConnections(connectionsToRemove);
+                List<Integer> oldConnections = openedConnections.oldest(connectionsToRemove);
+                logger.trace(compName + " To be deleted " + oldConnections);
                 for (Integer connectionKey : oldConnections) {
                     if (connectionKey != null) {
                         // connections are created and maintained by the
@@ -1014,20 +1357,12 @@ public class NatTraverser extends ComponentDefinition {
                 }
             }
 
-            // Clean up old references to relay msgs, that are stored for duplicate checking
-            long t = System.currentTimeMillis();
-            HashSet<Long> keysToBeRemoved = new HashSet<Long>();
-
-            for (Long l : receivedRelaysIndex.keySet()) {
-                if (t - l > VodConfig.NT_STALE_RELAY_MSG_TIME) {
-                    keysToBeRemoved.add(l);
-                }
+            int expired = pendingMsgs.expire();
+            if (expired > 0 || pendingMsgs.size() > 0) {
+                logger.debug(compName + "Expired " + expired + " " + pendingMsgs);
             }
 
-            for (Long l : keysToBeRemoved) {
-                HPSessionKey sk = receivedRelaysIndex.remove(l);
-                receivedRelays.remove(sk);
-            }
+            long t = System.currentTimeMillis();
 
             // Clean up any old timestamps for relay msgs where the response wasn't received
             HashSet<Integer> tsToBeRemoved = new HashSet<Integer>();
@@ -1039,12 +1374,27 @@ public class NatTraverser extends ComponentDefinition {
             }
             for (Integer i : tsToBeRemoved) {
                 outstandingTimestamps.remove(i);
+                Integer failedParent = outstandingRelayParents.remove(i);
+                if (failedParent != null) {
+                    relayFailed(failedParent);
+                }
+            }
+
+            // Slowly forgive parents that failed to relay, so that they are
+            // tried again if they recover.
+            Iterator<Map.Entry<Integer, Integer>> it = relayFailures.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Integer> e = it.next();
+                if (e.getValue() <= 1) {
+                    it.remove();
+                } else {
+                    e.setValue(e.getValue() - 1);
+                }
             }
         }
     };
 
     private void sendGetNatTypeResponse(List<Address> stunServers) {
-        stunTypeDetermined = true;
         failedStunServers.clear();
         // Only start RendezvousServer if we can run it on the default port
         if (self.getNat().isOpen()) {
@@ -1055,6 +1405,10 @@ public class NatTraverser extends ComponentDefinition {
             if (parentMaker != null) {
                 trigger(new Stop(), parentMaker.getControl());
             }
+        } else if (parentMaker != null) {
+            // re-initialized after stun found a different NAT type, the
+            // ParentMaker is already running.
+            logger.debug(compName + "ParentMaker already started.");
         } else { // behind a NAT
             parentMaker = create(ParentMaker.class,
                     new ParentMakerInit(self.clone(VodConfig.SYSTEM_OVERLAY_ID), parentMakerConfig, parentPorts));
@@ -1080,13 +1434,43 @@ public class NatTraverser extends ComponentDefinition {
             logger.info(compName + " Nat type is " + event.getStatus() + " - " + event.getNat());
 
             if (event.getStatus() == GetNatTypeResponse.Status.SUCCEED) {
+                stunTypeDetermined = true;
+                NatProfile cached = cachedNatProfile;
+                cachedNatProfile = null;
                 self.setNat(event.getNat());
                 self.setUpnp(event.getNat().isUpnp());
+                if (cached != null && NatProfile.sameNat(cached.getNat(), event.getNat())) {
+                    // we are already running with this NAT type
+                    logger.info(compName + "Cached NAT type confirmed by stun.");
+                    saveNatProfile();
+                    return;
+                }
+                if (cached != null) {
+                    logger.warn(compName + "NAT type changed from cached " + cached.getNat()
+                            + " to " + event.getNat() + ". Re-initializing.");
+                    if (self.isOpen() || self.isUpnp()) {
+                        for (Address p : cached.getParents()) {
+                            self.removeParent(p);
+                        }
+                    }
+                    if (self.isOpen() && parentMaker != null) {
+                        trigger(new Stop(), parentMaker.getControl());
+                    }
+                    if (!self.isOpen()) {
+                        // started from a cached open NAT type
+                        stopServerComponents();
+                    }
+                }
                 List<Address> l = new ArrayList<Address>();
                 if (event.getStunServer() != null) {
                     l.add(event.getStunServer());
                 }
                 sendGetNatTypeResponse(l);
+                saveNatProfile();
+            } else if (cachedNatProfile != null) {
+                // keep running with the cached NAT type while we retry
+                retryStun(event.getStunServer());
+                return;
             } else {
                 retryStun(event.getStunServer());
             }
@@ -1117,7 +1501,8 @@ public class NatTraverser extends ComponentDefinition {
         public void handle(StunRetryTimeout timeout) {
             if (!stunTypeDetermined) {
                 Set<Address> stunServers = new HashSet<Address>();
-                List<RTT> rtts = RTTStore.getOnAvgBest(self.getId(), 1, failedStunServers);
+                List<RTT> rtts = RTTStore.getOnPercentileBest(self.getId(), 1,
+                        SERVER_RANKING_PERCENTILE, failedStunServers);
                 if (rtts.isEmpty()) { // couldn't find any new samples
                     retryStun(null);
                 } else {
@@ -1138,6 +1523,9 @@ public class NatTraverser extends ComponentDefinition {
         public void handle(GetNatTypeResponseRuleExpirationTime event) {
             if (self.getNat() != null) {
                 self.getNat().setBindingTimeout(event.getRuleLifeTime());
+                if (stunTypeDetermined) {
+                    saveNatProfile();
+                }
             } else {
                 logger.warn("Trying to set binding time on a Null Nat!");
             }
@@ -1177,14 +1565,94 @@ public class NatTraverser extends ComponentDefinition {
                     trigger(ex, control);
                 }
             };
+    Handler<RttSnapshotTimeout> handleRttSnapshotTimeout = new Handler<RttSnapshotTimeout>() {
+        @Override
+        public void handle(RttSnapshotTimeout timeout) {
+            saveRttSnapshot();
+            saveHpStats();
+        }
+    };
+
+    private void saveRttSnapshot() {
+        if (rttSnapshotFile == null) {
+            return;
+        }
+        try {
+            int n = RTTStore.instance(self.getId()).saveSnapshot(rttSnapshotFile);
+            logger.trace(compName + "saved {} RTTs to {}", n, rttSnapshotFile);
+        } catch (IOException e) {
+            logger.warn(compName + "could not save RTT snapshot: " + e.getMessage());
+        }
+    }
+
+    private void saveHpStats() {
+        if (hpStatsFile == null) {
+            return;
+        }
+        try {
+            int n = hpMechanisms.save(hpStatsFile);
+            logger.trace(compName + "saved {} hole punching stats to {}", n, hpStatsFile);
+        } catch (IOException e) {
+            logger.warn(compName + "could not save hole punching stats: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the NAT profile saved by our last run, if it was saved on the
+     * same network and is not too old, otherwise null.
+     */
+    private NatProfile loadNatProfile() {
+        if (natProfileFile == null) {
+            return null;
+        }
+        try {
+            NatProfile profile = NatProfile.load(natProfileFile);
+            if (profile == null) {
+                return null;
+            }
+            if (!profile.isValid(NatProfile.networkFingerprint(), System.currentTimeMillis(),
+                    natTraverserConfig.getNatProfileMaxAge())) {
+                logger.info(compName + "Not using cached NAT profile, the network changed or it is too old.");
+                return null;
+            }
+            return profile;
+        } catch (IOException e) {
+            logger.warn(compName + "could not load NAT profile: " + e.getMessage());
+            natProfileFile.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Saves our NAT type and parents, once stun has determined the NAT type.
+     */
+    private void saveNatProfile() {
+        if (natProfileFile == null || !stunTypeDetermined || self.getNat() == null) {
+            return;
+        }
+        try {
+            new NatProfile(self.getNat(), self.getParents(),
+                    NatProfile.networkFingerprint(), System.currentTimeMillis())
+                    .save(natProfileFile);
+        } catch (IOException e) {
+            logger.warn(compName + "could not save NAT profile: " + e.getMessage());
+        }
+    }
+
     public Handler<Stop> handleStop = new Handler<Stop>() {
         @Override
         public void handle(Stop event) {
+            saveRttSnapshot();
+            saveHpStats();
+            saveNatProfile();
             trigger(new Stop(), hpClient.getControl());
             trigger(new Stop(), parentMaker.getControl());
             if (initializedServerComponents) {
                 trigger(new Stop(), stunServer.getControl());
-                trigger(new Stop(), zServer.getControl());
+                for (Component zServer : zServers) {
+                    trigger(new Stop(), zServer.getControl());
+                }
+                trigger(new SetRelayTable(null), lowerNetControl);
             }
 
         }
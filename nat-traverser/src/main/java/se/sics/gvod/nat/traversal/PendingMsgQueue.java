@@ -0,0 +1,305 @@
+package se.sics.gvod.nat.traversal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Buffers the messages sent to private nodes while hole punching to them is in
+ * progress. The queue is bounded both per destination and in total, by number
+ * of messages and by bytes, and messages expire after a ttl, so that a
+ * failing hole punching session or a fast sender cannot use up the heap, and
+ * stale messages are not delivered after their sender has given up on them.
+ *
+ * When a limit is reached, either the oldest messages are dropped to make
+ * room (dropOldest), or the new message is rejected.
+ *
+ * Not thread-safe, it is only accessed from NatTraverser's handlers.
+ *
+ * @param <M> type of the buffered messages
+ * @author jdowling
+ */
+public class PendingMsgQueue<M> {
+
+    private static class Entry<M> {
+
+        private final int destId;
+        private final M msg;
+        private final int size;
+        private final long expires;
+        private boolean removed = false;
+
+        public Entry(int destId, M msg, int size, long expires) {
+            this.destId = destId;
+            this.msg = msg;
+            this.size = size;
+            this.expires = expires;
+        }
+    }
+
+    private static class DestQueue<M> {
+
+        private final ArrayDeque<Entry<M>> entries = new ArrayDeque<Entry<M>>();
+        private int bytes = 0;
+    }
+    private final int maxMsgsPerDest;
+    private final int maxBytesPerDest;
+    private final int maxMsgs;
+    private final int maxBytes;
+    private final long ttl;
+    private final boolean dropOldest;
+    private final Map<Integer, DestQueue<M>> queues = new HashMap<Integer, DestQueue<M>>();
+    // all entries in the order they were added, which is also the order they
+    // expire in. Entries removed through their destination are skipped.
+    private final ArrayDeque<Entry<M>> all = new ArrayDeque<Entry<M>>();
+    private int numMsgs = 0;
+    private int numBytes = 0;
+    private long totalQueued = 0;
+    private long totalDelivered = 0;
+    private long totalDropped = 0;
+    private long totalRejected = 0;
+    private long totalExpired = 0;
+    private long totalDiscarded = 0;
+
+    /**
+     * @param maxMsgsPerDest max number of messages buffered per destination
+     * @param maxBytesPerDest max bytes buffered per destination
+     * @param maxMsgs max number of messages buffered in total
+     * @param maxBytes max bytes buffered in total
+     * @param ttl time in ms after which a message is no longer delivered
+     * @param dropOldest if true, the oldest messages are dropped when a limit
+     * is reached, otherwise the new message is rejected.
+     */
+    public PendingMsgQueue(int maxMsgsPerDest, int maxBytesPerDest,
+            int maxMsgs, int maxBytes, long ttl, boolean dropOldest) {
+        if (maxMsgsPerDest < 1 || maxBytesPerDest < 1 || maxMsgs < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Limits must be greater than zero");
+        }
+        if (ttl < 1) {
+            throw new IllegalArgumentException("ttl must be greater than zero");
+        }
+        this.maxMsgsPerDest = maxMsgsPerDest;
+        this.maxBytesPerDest = maxBytesPerDest;
+        this.maxMsgs = maxMsgs;
+        this.maxBytes = maxBytes;
+        this.ttl = ttl;
+        this.dropOldest = dropOldest;
+    }
+
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Buffers a message for a destination.
+     * @param destId id of the destination node
+     * @param msg the message
+     * @param size size of the message in bytes
+     * @return false if the message was rejected.
+     */
+    public boolean offer(int destId, M msg, int size) {
+        long now = now();
+        expire(now);
+        if (size > maxBytesPerDest || size > maxBytes) {
+            totalRejected++;
+            return false;
+        }
+        DestQueue<M> q = queues.get(destId);
+        if (q == null) {
+            q = new DestQueue<M>();
+        }
+        while (q.entries.size() >= maxMsgsPerDest || q.bytes + size > maxBytesPerDest) {
+            if (!dropOldest) {
+                totalRejected++;
+                return false;
+            }
+            remove(q.entries.peekFirst());
+            totalDropped++;
+        }
+        if (numMsgs >= maxMsgs || numBytes + size > maxBytes) {
+            if (!dropOldest) {
+                totalRejected++;
+                return false;
+            }
+            while (numMsgs >= maxMsgs || numBytes + size > maxBytes) {
+                remove(oldest());
+                totalDropped++;
+            }
+        }
+        // a new queue, or one removed from the map after dropping all its entries
+        queues.put(destId, q);
+        Entry<M> e = new Entry<M>(destId, msg, size, now + ttl);
+        q.entries.addLast(e);
+        q.bytes += size;
+        all.addLast(e);
+        numMsgs++;
+        numBytes += size;
+        totalQueued++;
+        compact();
+        return true;
+    }
+
+    /**
+     * Removes the messages buffered for a destination.
+     * @param destId id of the destination node
+     * @return the messages that have not expired, oldest first.
+     */
+    public List<M> drain(int destId) {
+        expire(now());
+        DestQueue<M> q = queues.remove(destId);
+        List<M> msgs = new ArrayList<M>();
+        if (q == null) {
+            return msgs;
+        }
+        for (Entry<M> e : q.entries) {
+            e.removed = true;
+            msgs.add(e.msg);
+        }
+        numMsgs -= q.entries.size();
+        numBytes -= q.bytes;
+        totalDelivered += msgs.size();
+        return msgs;
+    }
+
+    /**
+     * Discards the messages buffered for a destination, e.g., when hole
+     * punching to it failed.
+     * @return the number of messages discarded.
+     */
+    public int discard(int destId) {
+        DestQueue<M> q = queues.remove(destId);
+        if (q == null) {
+            return 0;
+        }
+        for (Entry<M> e : q.entries) {
+            e.removed = true;
+        }
+        numMsgs -= q.entries.size();
+        numBytes -= q.bytes;
+        totalDiscarded += q.entries.size();
+        return q.entries.size();
+    }
+
+    /**
+     * Removes the messages whose ttl has passed.
+     * @return the number of expired messages.
+     */
+    public int expire() {
+        return expire(now());
+    }
+
+    private int expire(long now) {
+        int n = 0;
+        while (!all.isEmpty()) {
+            Entry<M> e = all.peekFirst();
+            if (e.removed) {
+                all.pollFirst();
+            } else if (e.expires <= now) {
+                remove(e);
+                n++;
+            } else {
+                break;
+            }
+        }
+        totalExpired += n;
+        return n;
+    }
+
+    private Entry<M> oldest() {
+        Entry<M> e = all.peekFirst();
+        while (e.removed) {
+            all.pollFirst();
+            e = all.peekFirst();
+        }
+        return e;
+    }
+
+    private void remove(Entry<M> e) {
+        DestQueue<M> q = queues.get(e.destId);
+        // entries are removed oldest first, in both queues
+        q.entries.remove(e);
+        q.bytes -= e.size;
+        if (q.entries.isEmpty()) {
+            queues.remove(e.destId);
+        }
+        if (all.peekFirst() == e) {
+            all.pollFirst();
+        } else {
+            e.removed = true;
+        }
+        numMsgs--;
+        numBytes -= e.size;
+    }
+
+    /**
+     * Drops entries that were removed through their destination, if they
+     * make up most of the queue.
+     */
+    private void compact() {
+        if (all.size() > 2 * numMsgs + 16) {
+            Iterator<Entry<M>> it = all.iterator();
+            while (it.hasNext()) {
+                if (it.next().removed) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public boolean contains(int destId) {
+        return queues.containsKey(destId);
+    }
+
+    public int size() {
+        return numMsgs;
+    }
+
+    public int size(int destId) {
+        DestQueue<M> q = queues.get(destId);
+        return (q == null) ? 0 : q.entries.size();
+    }
+
+    public int getBytes() {
+        return numBytes;
+    }
+
+    public int getNumDestinations() {
+        return queues.size();
+    }
+
+    public long getTotalQueued() {
+        return totalQueued;
+    }
+
+    public long getTotalDelivered() {
+        return totalDelivered;
+    }
+
+    public long getTotalDropped() {
+        return totalDropped;
+    }
+
+    public long getTotalRejected() {
+        return totalRejected;
+    }
+
+    public long getTotalExpired() {
+        return totalExpired;
+    }
+
+    public long getTotalDiscarded() {
+        return totalDiscarded;
+    }
+
+    @Override
+    public String toString() {
+        return "pending msgs=" + numMsgs + ", bytes=" + numBytes
+                + ", dests=" + queues.size() + ", queued=" + totalQueued
+                + ", delivered=" + totalDelivered + ", dropped=" + totalDropped
+                + ", rejected=" + totalRejected + ", expired=" + totalExpired
+                + ", discarded=" + totalDiscarded;
+    }
+}
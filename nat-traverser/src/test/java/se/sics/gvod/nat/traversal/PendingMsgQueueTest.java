@@ -0,0 +1,109 @@
+package se.sics.gvod.nat.traversal;
+
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jdowling
+ */
+public class PendingMsgQueueTest {
+
+    private long now = 0;
+
+    private PendingMsgQueue<String> queue(boolean dropOldest) {
+        // 3 msgs or 300 bytes per destination, 5 msgs or 1000 bytes in total, 1s ttl
+        return new PendingMsgQueue<String>(3, 300, 5, 1000, 1000, dropOldest) {
+            @Override
+            protected long now() {
+                return now;
+            }
+        };
+    }
+
+    @Test
+    public void testDrain() {
+        PendingMsgQueue<String> q = queue(true);
+        assertTrue(q.offer(1, "a", 10));
+        assertTrue(q.offer(1, "b", 10));
+        assertTrue(q.offer(2, "c", 10));
+        assertEquals(3, q.size());
+        assertEquals(30, q.getBytes());
+        assertEquals(Arrays.asList("a", "b"), q.drain(1));
+        assertFalse(q.contains(1));
+        assertEquals(1, q.size());
+        assertEquals(1, q.discard(2));
+        assertEquals(0, q.size());
+        assertEquals(0, q.getBytes());
+        assertEquals(2, q.getTotalDelivered());
+        assertEquals(1, q.getTotalDiscarded());
+    }
+
+    @Test
+    public void testDropOldestPerDestination() {
+        PendingMsgQueue<String> q = queue(true);
+        q.offer(1, "a", 10);
+        q.offer(1, "b", 10);
+        q.offer(1, "c", 10);
+        assertTrue(q.offer(1, "d", 10));
+        assertEquals(Arrays.asList("b", "c", "d"), q.drain(1));
+        q.offer(1, "e", 200);
+        assertTrue(q.offer(1, "f", 200));
+        assertEquals(Arrays.asList("f"), q.drain(1));
+        assertEquals(2, q.getTotalDropped());
+    }
+
+    @Test
+    public void testDropOldestGlobal() {
+        PendingMsgQueue<String> q = queue(true);
+        q.offer(1, "a", 10);
+        q.offer(2, "b", 10);
+        q.offer(3, "c", 10);
+        q.offer(4, "d", 10);
+        q.offer(1, "e", 10);
+        assertTrue(q.offer(5, "f", 10));
+        assertEquals(5, q.size());
+        assertEquals(Arrays.asList("e"), q.drain(1));
+        // bytes
+        assertTrue(q.offer(6, "g", 300));
+        assertTrue(q.offer(7, "h", 300));
+        assertTrue(q.offer(8, "i", 300));
+        assertTrue(q.getBytes() <= 1000);
+        assertFalse(q.contains(2));
+        assertTrue(q.contains(8));
+    }
+
+    @Test
+    public void testReject() {
+        PendingMsgQueue<String> q = queue(false);
+        q.offer(1, "a", 10);
+        q.offer(1, "b", 10);
+        q.offer(1, "c", 10);
+        assertFalse(q.offer(1, "d", 10));
+        q.offer(2, "e", 10);
+        q.offer(3, "f", 10);
+        assertFalse(q.offer(4, "g", 10));
+        assertFalse(q.contains(4));
+        assertFalse(q.offer(5, "h", 301));
+        assertEquals(3, q.getTotalRejected());
+        assertEquals(Arrays.asList("a", "b", "c"), q.drain(1));
+    }
+
+    @Test
+    public void testExpiry() {
+        PendingMsgQueue<String> q = queue(true);
+        q.offer(1, "a", 10);
+        now = 500;
+        q.offer(1, "b", 10);
+        q.offer(2, "c", 10);
+        now = 1000;
+        assertEquals(1, q.expire());
+        assertEquals(Arrays.asList("b"), q.drain(1));
+        now = 1500;
+        assertEquals(0, q.drain(2).size());
+        assertEquals(0, q.size());
+        assertEquals(2, q.getTotalExpired());
+        assertEquals(0, q.getNumDestinations());
+    }
+}
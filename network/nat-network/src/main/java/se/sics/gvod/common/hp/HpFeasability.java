@@ -4,6 +4,8 @@
  */
 package se.sics.gvod.common.hp;
 
+import java.util.ArrayList;
+import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.sics.gvod.net.VodAddress;
@@ -49,6 +51,57 @@ public class HpFeasability {
         }
     }
 
+    /**
+     * @param clientA source node
+     * @param clientB destination node
+     * @return the HolePunching objects of all the mechanisms that are feasible
+     * for the two nodes, in the order that isPossible() tests them. Empty, if
+     * hole punching is not feasible.
+     */
+    public static List<HolePunching> allPossible(VodAddress clientA, VodAddress clientB) {
+        List<HolePunching> all = new ArrayList<HolePunching>();
+        HolePunching hp;
+        if ((hp = isConnectionReversalFeasible(clientA, clientB)) != null) {
+            all.add(hp);
+        }
+        if ((hp = isShpFeasible(clientA, clientB)) != null) {
+            all.add(hp);
+        }
+        if ((hp = isPrpFeasible(clientA, clientB)) != null) {
+            all.add(hp);
+        }
+        if ((hp = isPrcFeasible(clientA, clientB)) != null) {
+            all.add(hp);
+        }
+        if ((hp = isPrpPrpFeasible(clientA, clientB)) != null) {
+            all.add(hp);
+        }
+        if ((hp = isPrcPrcFeasible(clientA, clientB)) != null) {
+            all.add(hp);
+        }
+        if ((hp = isPrpPrcFeasible(clientA, clientB)) != null) {
+            all.add(hp);
+        }
+        return all;
+    }
+
+    /**
+     * @param preferred the mechanism asked for by the source node
+     * @return the HolePunching object for the preferred mechanism, if it is
+     * feasible, else the one returned by isPossible().
+     */
+    public static HolePunching isPossible(VodAddress clientA, VodAddress clientB,
+            HPMechanism preferred) {
+        if (preferred != null && preferred != HPMechanism.NONE) {
+            for (HolePunching hp : allPossible(clientA, clientB)) {
+                if (hp.getHolePunchingMechanism() == preferred) {
+                    return hp;
+                }
+            }
+        }
+        return isPossible(clientA, clientB);
+    }
+
     // Simple Holepunching Test
     // Checking simple hole punching feasibility. Theorm 6.1 -- NatCracker: Combinations Matter Paper.
     // WHEN TO USE SIMPLE HOLE PUNCHING SPH
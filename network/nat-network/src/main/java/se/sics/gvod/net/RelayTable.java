@@ -0,0 +1,35 @@
+package se.sics.gvod.net;
+
+/**
+ * The registration table of a parent, as seen by the network component. It
+ * lets the network component relay msgs to the parent's children on its I/O
+ * thread, without delivering them to the NatTraverser. Implementations are
+ * called concurrently from the I/O threads, so they must be thread-safe.
+ *
+ * @author jdowling
+ */
+public interface RelayTable {
+
+    /**
+     * @return the address of the parent, used as the source of relayed msgs.
+     */
+    VodAddress getSelf();
+
+    /**
+     * @return the address of a registered client, or null if it isn't
+     * registered.
+     */
+    VodAddress getChild(int id);
+
+    /**
+     * Records that a client sent a msg to be relayed.
+     * @return false if the client isn't registered, then the msg has to be
+     * relayed by the NatTraverser.
+     */
+    boolean touch(int id);
+
+    /**
+     * Records the size of a msg relayed to a registered client.
+     */
+    void relayed(int id, int bytes);
+}
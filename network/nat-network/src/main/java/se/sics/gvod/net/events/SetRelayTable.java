@@ -0,0 +1,24 @@
+package se.sics.gvod.net.events;
+
+import se.sics.gvod.net.RelayTable;
+import se.sics.kompics.Event;
+
+/**
+ * Installs the registration table that the network component uses to relay
+ * msgs to children without decoding them. A null table turns the fast path
+ * off.
+ *
+ * @author jdowling
+ */
+public final class SetRelayTable extends Event {
+
+    private final RelayTable relayTable;
+
+    public SetRelayTable(RelayTable relayTable) {
+        this.relayTable = relayTable;
+    }
+
+    public RelayTable getRelayTable() {
+        return relayTable;
+    }
+}
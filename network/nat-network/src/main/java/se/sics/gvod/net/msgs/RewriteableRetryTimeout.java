@@ -15,6 +15,7 @@ public class RewriteableRetryTimeout extends OverlayTimeout{
 
     private final RewriteableMsg retryMessage;
     private final ScheduleRetryTimeout scheduleRetryTimeout;
+    private boolean retryBudgetExceeded = false;
 
     public RewriteableRetryTimeout(ScheduleRetryTimeout st, RewriteableMsg retryMessage,
             int overlayId) {
@@ -31,4 +32,16 @@ public class RewriteableRetryTimeout extends OverlayTimeout{
     public RewriteableMsg getMsg() {
         return retryMessage;
     }
+
+    /**
+     * @return true if this timeout was delivered early because the sender's
+     * retry budget was exceeded, rather than after all retries were sent.
+     */
+    public boolean isRetryBudgetExceeded() {
+        return retryBudgetExceeded;
+    }
+
+    public void setRetryBudgetExceeded(boolean retryBudgetExceeded) {
+        this.retryBudgetExceeded = retryBudgetExceeded;
+    }
 }
@@ -38,12 +38,24 @@ public class HpConnectMsg implements Serializable {
         static final long serialVersionUID = 187778888654L;
         private final int delta;
         private final long rtt;
+        // the mechanism the client wants to use, NONE lets the RVP choose
+        private final HPMechanism hpMechanism;
 
         public Request(VodAddress src, VodAddress dest, int remoteClientId,
                 int delta, long rtt, TimeoutId msgTimeoutId) {
+            this(src, dest, remoteClientId, delta, rtt, HPMechanism.NONE, msgTimeoutId);
+        }
+
+        public Request(VodAddress src, VodAddress dest, int remoteClientId,
+                int delta, long rtt, HPMechanism hpMechanism, TimeoutId msgTimeoutId) {
             super(src, dest, remoteClientId, msgTimeoutId);
             this.delta = delta;
             this.rtt = rtt;
+            this.hpMechanism = hpMechanism;
+        }
+
+        public HPMechanism getHpMechanism() {
+            return hpMechanism;
         }
 
         public int getDelta() {
@@ -58,7 +70,8 @@ public class HpConnectMsg implements Serializable {
         public int getSize() {
             return super.getHeaderSize()
                     + 1 /*delta*/
-                    + 2 /*rtt*/;
+                    + 2 /*rtt*/
+                    + 1 /*hpMechanism*/;
         }
 
         @Override
@@ -71,13 +84,14 @@ public class HpConnectMsg implements Serializable {
             ByteBuf buffer = createChannelBufferWithHeader();
             UserTypesEncoderFactory.writeUnsignedintAsOneByte(buffer, delta);
             UserTypesEncoderFactory.writeUnsignedintAsTwoBytes(buffer, (int) rtt);
+            UserTypesEncoderFactory.writeUnsignedintAsOneByte(buffer, hpMechanism.ordinal());
             return buffer;
         }
 
         @Override
         public RewriteableMsg copy() {
             HpConnectMsg.Request copy = new HpConnectMsg.Request(vodSrc, vodDest,
-                    remoteClientId, delta, rtt, msgTimeoutId);
+                    remoteClientId, delta, rtt, hpMechanism, msgTimeoutId);
             copy.setTimeoutId(timeoutId);
             return copy;
         }
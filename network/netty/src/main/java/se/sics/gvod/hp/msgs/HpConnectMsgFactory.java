@@ -24,8 +24,10 @@ public class HpConnectMsgFactory {
         protected HpConnectMsg.Request process(ByteBuf buffer) throws MessageDecodingException {
             int delta = UserTypesDecoderFactory.readIntAsOneByte(buffer);
             long rtt = (long) UserTypesDecoderFactory.readUnsignedIntAsTwoBytes(buffer);
+            int hm = UserTypesDecoderFactory.readUnsignedIntAsOneByte(buffer);
+            HPMechanism hpMechanism = HPMechanism.values()[hm];
             return new HpConnectMsg.Request(vodSrc, vodDest, remoteClientId, delta, rtt,
-                    msgTimeoutId);
+                    hpMechanism, msgTimeoutId);
         }
     }
 
@@ -1,6 +1,7 @@
 package se.sics.gvod.hp.msgs;
 
 import io.netty.buffer.ByteBuf;
+import se.sics.gvod.address.Address;
 import se.sics.gvod.common.msgs.DirectMsgNetty;
 import se.sics.gvod.common.msgs.MessageEncodingException;
 import se.sics.gvod.net.BaseMsgFrameDecoder;
@@ -8,6 +9,7 @@ import se.sics.gvod.net.VodAddress;
 import se.sics.gvod.net.msgs.RewriteableMsg;
 import se.sics.gvod.net.msgs.RewriteableRetryTimeout;
 import se.sics.gvod.net.msgs.ScheduleRetryTimeout;
+import se.sics.gvod.net.util.UserTypesEncoderFactory;
 import se.sics.gvod.timer.TimeoutId;
 
 /**
@@ -56,14 +58,29 @@ public class HpKeepAliveMsg {
     public final static class Pong extends DirectMsgNetty.Response {
 
         static final long serialVersionUID = 6624678722345L;
+        // the public address that the Ping was received from, so that the
+        // pinging node can detect when its NAT mapping changes. Can be null.
+        private final Address observedSource;
         
         @Override
         public int getSize() {
-            return super.getHeaderSize();
+            return super.getHeaderSize()
+                    + UserTypesEncoderFactory.ADDRESS_LEN
+                    ;
         }
 
         public Pong(VodAddress src, VodAddress dest, TimeoutId timeoutId) {
+            this(src, dest, timeoutId, null);
+        }
+
+        public Pong(VodAddress src, VodAddress dest, TimeoutId timeoutId,
+                Address observedSource) {
             super(src, dest, timeoutId);
+            this.observedSource = observedSource;
+        }
+
+        public Address getObservedSource() {
+            return observedSource;
         }
 
          @Override
@@ -73,12 +90,14 @@ public class HpKeepAliveMsg {
 
         @Override
         public ByteBuf toByteArray() throws MessageEncodingException {
-            return createChannelBufferWithHeader();
+            ByteBuf buffer = createChannelBufferWithHeader();
+            UserTypesEncoderFactory.writeAddress(buffer, observedSource);
+            return buffer;
         }
 
         @Override
         public RewriteableMsg copy() {
-            return new HpKeepAliveMsg.Pong(vodSrc, vodDest, timeoutId);
+            return new HpKeepAliveMsg.Pong(vodSrc, vodDest, timeoutId, observedSource);
         }
 
     }
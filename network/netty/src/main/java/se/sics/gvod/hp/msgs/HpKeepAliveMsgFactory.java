@@ -1,8 +1,10 @@
 package se.sics.gvod.hp.msgs;
 
 import io.netty.buffer.ByteBuf;
+import se.sics.gvod.address.Address;
 import se.sics.gvod.common.msgs.DirectMsgNettyFactory;
 import se.sics.gvod.common.msgs.MessageDecodingException;
+import se.sics.gvod.net.util.UserTypesDecoderFactory;
 
 public class HpKeepAliveMsgFactory {
 
@@ -36,8 +38,8 @@ public class HpKeepAliveMsgFactory {
 
         @Override
         protected HpKeepAliveMsg.Pong process(ByteBuf buffer) throws MessageDecodingException {
-
-            return new HpKeepAliveMsg.Pong(vodSrc, vodDest, timeoutId);
+            Address observedSource = UserTypesDecoderFactory.readAddress(buffer);
+            return new HpKeepAliveMsg.Pong(vodSrc, vodDest, timeoutId, observedSource);
         }
 
     }
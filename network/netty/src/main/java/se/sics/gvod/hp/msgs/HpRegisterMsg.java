@@ -87,7 +87,9 @@ public class HpRegisterMsg {
 
         ACCEPT, REJECT, ALREADY_REGISTERED, BETTER_CHILD, BETTER_PARENT, 
         PARENT_EXITING, CHILD_EXITING,
-        NOT_CHILD, DEAD_PARENT, PARENT_REQUEST_FAILED;
+        NOT_CHILD, DEAD_PARENT, PARENT_REQUEST_FAILED,
+        // the rendezvous server is overloaded, ask another parent
+        OVERLOADED;
     };
 
     public final static class Response extends DirectMsgNetty.SystemResponse {
@@ -95,18 +97,37 @@ public class HpRegisterMsg {
         static final long serialVersionUID = 987545675L;
         private final RegisterStatus responseType;
         private final Set<Integer> prpPorts;
+        // load of the rendezvous server, as a percentage of its watermarks
+        private final int load;
+        // seconds before the client should ask this server again
+        private final int retryAfter;
 
         public Response(VodAddress src, VodAddress dest, RegisterStatus responseType,
                 TimeoutId timeoutId, Set<Integer> prpPorts) {
+            this(src, dest, responseType, timeoutId, prpPorts, 0, 0);
+        }
+
+        public Response(VodAddress src, VodAddress dest, RegisterStatus responseType,
+                TimeoutId timeoutId, Set<Integer> prpPorts, int load, int retryAfter) {
             super(src, dest, timeoutId);
             this.responseType = responseType;
             this.prpPorts = (prpPorts == null) ? new HashSet<Integer>() : prpPorts;
+            this.load = Math.min(Math.max(load, 0), 255);
+            this.retryAfter = Math.min(Math.max(retryAfter, 0), 65535);
         }
 
         public Set<Integer> getPrpPorts() {
             return prpPorts;
         }
 
+        public int getLoad() {
+            return load;
+        }
+
+        public int getRetryAfter() {
+            return retryAfter;
+        }
+
         public RegisterStatus getResponseType() {
             return responseType;
         }
@@ -115,7 +136,9 @@ public class HpRegisterMsg {
         public int getSize() {
             return super.getHeaderSize()
                     + 1
-                    + 1 + prpPorts.size() * 4;
+                    + 1 + prpPorts.size() * 4
+                    + 1 /* load */
+                    + 2 /* retryAfter */;
         }
 
         @Override
@@ -128,13 +151,15 @@ public class HpRegisterMsg {
             ByteBuf buffer = createChannelBufferWithHeader();
             UserTypesEncoderFactory.writeUnsignedintAsOneByte(buffer, responseType.ordinal());
             UserTypesEncoderFactory.writeSetUnsignedTwoByteInts(buffer, prpPorts);
+            UserTypesEncoderFactory.writeUnsignedintAsOneByte(buffer, load);
+            UserTypesEncoderFactory.writeUnsignedintAsTwoBytes(buffer, retryAfter);
             return buffer;
         }
 
         @Override
         public RewriteableMsg copy() {
             return new HpRegisterMsg.Response(vodSrc, vodDest, responseType, timeoutId,
-                    prpPorts);
+                    prpPorts, load, retryAfter);
         }
     }
 
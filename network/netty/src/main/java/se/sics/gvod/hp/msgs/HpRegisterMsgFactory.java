@@ -49,8 +49,10 @@ public class HpRegisterMsgFactory {
             HpRegisterMsg.RegisterStatus responseType =
                     HpRegisterMsg.RegisterStatus.values()[rt];
             Set<Integer> prpPorts = UserTypesDecoderFactory.readSetUnsignedTwoByteInts(buffer);
+            int load = UserTypesDecoderFactory.readUnsignedIntAsOneByte(buffer);
+            int retryAfter = UserTypesDecoderFactory.readUnsignedIntAsTwoBytes(buffer);
             return new HpRegisterMsg.Response(vodSrc, vodDest,
-                    responseType, timeoutId, prpPorts);
+                    responseType, timeoutId, prpPorts, load, retryAfter);
         }
 
     }
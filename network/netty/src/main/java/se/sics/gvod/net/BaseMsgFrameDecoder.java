@@ -138,9 +138,23 @@ public class BaseMsgFrameDecoder extends MsgFrameDecoder {
     public static final byte PANG                          = 0x58;
     //
     // NB: RANGE OF +VE BYTES ENDS AT 0x7F
-    
-    
-    
+
+    // Relay msgs that parents forward without decoding them.
+    // Subclasses should register their own relay msgs.
+    static {
+        RelayForwarder.registerRelayOpcode(RELAY_REQUEST, RelayForwarder.Kind.REQUEST);
+        RelayForwarder.registerRelayOpcode(RELAY_RESPONSE, RelayForwarder.Kind.RESPONSE);
+        RelayForwarder.registerRelayOpcode(RELAY_ONEWAY, RelayForwarder.Kind.ONEWAY);
+        RelayForwarder.registerRelayOpcode(TARGET_UTILITY_PROBE_REQUEST, RelayForwarder.Kind.REQUEST);
+        RelayForwarder.registerRelayOpcode(TARGET_UTILITY_PROBE_RESPONSE, RelayForwarder.Kind.RESPONSE);
+        RelayForwarder.registerRelayOpcode(SETS_EXCHANGE_REQUEST, RelayForwarder.Kind.REQUEST);
+        RelayForwarder.registerRelayOpcode(SETS_EXCHANGE_RESPONSE, RelayForwarder.Kind.RESPONSE);
+        RelayForwarder.registerRelayOpcode(GRADIENT_HEARTBEAT_REQUEST, RelayForwarder.Kind.REQUEST);
+        RelayForwarder.registerRelayOpcode(GRADIENT_HEARTBEAT_RESPONSE, RelayForwarder.Kind.RESPONSE);
+        RelayForwarder.registerRelayOpcode(LEADER_SELECTION_REQUEST, RelayForwarder.Kind.REQUEST);
+        RelayForwarder.registerRelayOpcode(LEADER_SELECTION_RESPONSE, RelayForwarder.Kind.RESPONSE);
+    }
+
     public BaseMsgFrameDecoder() {
         super();
     }
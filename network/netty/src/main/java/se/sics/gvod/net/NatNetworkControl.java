@@ -18,6 +18,7 @@ public class NatNetworkControl extends PortType {
         negative(PortBindRequest.class);
         negative(PortDeleteRequest.class);
         negative(CloseConnectionRequest.class);
+        negative(SetRelayTable.class);
         positive(PortAllocResponse.class);
         positive(PortBindResponse.class);
         positive(PortDeleteResponse.class);
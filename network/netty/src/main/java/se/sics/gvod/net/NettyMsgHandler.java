@@ -30,6 +30,20 @@ public class NettyMsgHandler extends NettyBaseHandler<DatagramPacket> {
 
     @Override
     protected void messageReceived(ChannelHandlerContext ctx, DatagramPacket msg) throws Exception {
+        // parents relay msgs to their children without decoding them
+        RelayTable relayTable = getComponent().getRelayTable();
+        if (relayTable != null) {
+            DatagramPacket relayed = RelayForwarder.relay(msg, relayTable, ctx.alloc());
+            if (relayed != null) {
+                int size = relayed.content().readableBytes();
+                logger.trace("Relaying msg at port {} from {} to " + relayed.recipient(),
+                        getPort(ctx), msg.sender());
+                ctx.writeAndFlush(relayed);
+                getComponent().relayedMessage(msg.content().readableBytes(), size);
+                return;
+            }
+        }
+
         RewriteableMsg rewrittenMsg = (RewriteableMsg) decoder.parse(msg.content());
 
         // session-less UDP means that remoteAddresses cannot be found in
@@ -100,6 +100,8 @@ public final class NettyNetwork extends ComponentDefinition {
     private Map<InetSocketAddress, UdtChannel> udtSocketsToChannels = new HashMap<InetSocketAddress, UdtChannel>();
     // Bandwidth Measurement statistics
     private boolean enableBandwidthStats;
+    // set by the NatTraverser of a parent, to relay msgs on the I/O threads
+    private volatile RelayTable relayTable;
     private long prevTotalWritten;
     private long prevTotalRead;
     private static long totalWrittenBytes, totalReadBytes;
@@ -136,6 +138,7 @@ public final class NettyNetwork extends ComponentDefinition {
         subscribe(handlePortAllocRequest, netControl);
         subscribe(handlePortDeleteRequest, netControl);
         subscribe(handleCloseConnectionRequest, netControl);
+        subscribe(handleSetRelayTable, netControl);
         subscribe(handleByteCounterTimeout, timer);
         subscribe(handleStart, control);
         subscribe(handleStop, control);
@@ -280,6 +283,13 @@ public final class NettyNetwork extends ComponentDefinition {
             }
         }
     };
+    Handler<SetRelayTable> handleSetRelayTable = new Handler<SetRelayTable>() {
+        @Override
+        public void handle(SetRelayTable event) {
+            logger.debug("Relay fast path " + (event.getRelayTable() == null ? "disabled" : "enabled"));
+            relayTable = event.getRelayTable();
+        }
+    };
     /**
      * Start listening as a server on the given port.
      */
@@ -947,6 +957,18 @@ public final class NettyNetwork extends ComponentDefinition {
         totalReadBytes += msg.getSize();
     }
 
+    final RelayTable getRelayTable() {
+        return relayTable;
+    }
+
+    /**
+     * Counts a msg relayed by the I/O thread, without being delivered.
+     */
+    final void relayedMessage(int bytesRead, int bytesWritten) {
+        totalReadBytes += bytesRead;
+        totalWrittenBytes += bytesWritten;
+    }
+
     /**
      * Forward an exception to the upper components.
      *
@@ -0,0 +1,162 @@
+package se.sics.gvod.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.socket.DatagramPacket;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.sics.gvod.address.Address;
+import se.sics.gvod.common.msgs.MessageEncodingException;
+import se.sics.gvod.net.util.UserTypesEncoderFactory;
+
+/**
+ * Relays msgs from a parent to its children without decoding them.
+ *
+ * The slow path decodes a relay msg, delivers it to the NatTraverser, which
+ * rewrites its header with RelayMsg.rewriteDestinationAtRelay() and sends it
+ * to be encoded again. For msgs whose opcode is registered as a relay opcode,
+ * relay() only parses the relay header (see RelayMsgNetty.Base.writeHeader),
+ * makes the same decision as NatTraverser.relayMsg() using the RelayTable, and
+ * writes the rewritten header followed by the original clientId, remoteId and
+ * payload bytes. The length of the header changes, as the parents of the
+ * source are replaced by the parents of the relay, so the header is written to
+ * a new buffer rather than patched in place.
+ *
+ * relay() returns null for all the msgs that need the slow path: msgs for this
+ * node, msgs to unknown children, and msgs from unregistered sources (for which
+ * the NatTraverser adds a temporary registration record).
+ *
+ * @author jdowling
+ */
+public class RelayForwarder {
+
+    private static final Logger logger = LoggerFactory.getLogger(RelayForwarder.class);
+
+    public static enum Kind {
+
+        REQUEST, RESPONSE, ONEWAY;
+
+        /**
+         * Requests and responses carry a timeoutId, oneway msgs don't.
+         */
+        public boolean hasTimeout() {
+            return this != ONEWAY;
+        }
+    }
+    private static final AtomicReferenceArray<Kind> kinds = new AtomicReferenceArray<Kind>(256);
+
+    /**
+     * Registers an opcode of a msg that extends RelayMsgNetty.Request,
+     * Response or Oneway, so that it is relayed without being decoded.
+     * MsgFrameDecoders register the relay msgs they decode.
+     */
+    public static void registerRelayOpcode(byte opcode, Kind kind) {
+        kinds.set(opcode & 0xFF, kind);
+    }
+
+    /**
+     * @return the kind of relay msg, or null if the opcode isn't a relay msg.
+     */
+    public static Kind getKind(byte opcode) {
+        return kinds.get(opcode & 0xFF);
+    }
+
+    /**
+     * @param packet msg received by a parent
+     * @param table registration table of the parent
+     * @param alloc allocator for the relayed msg
+     * @return the msg to send to the child, or null if the msg has to be
+     * decoded and handled by the NatTraverser.
+     */
+    public static DatagramPacket relay(DatagramPacket packet, RelayTable table,
+            ByteBufAllocator alloc) {
+        ByteBuf in = packet.content().duplicate();
+        if (!in.isReadable()) {
+            return null;
+        }
+        byte opcode = in.readByte();
+        Kind kind = getKind(opcode);
+        if (kind == null) {
+            return null;
+        }
+        InetSocketAddress sender = packet.sender();
+        if (sender == null || sender.getAddress() instanceof Inet4Address == false) {
+            return null;
+        }
+        try {
+            int timeoutId = kind.hasTimeout() ? in.readInt() : 0;
+            int srcId = in.readInt();
+            in.skipBytes(4); // destId
+            int srcOverlayId = in.readInt();
+            short srcNatPolicy = in.readUnsignedByte();
+            in.skipBytes(in.readUnsignedShort() * UserTypesEncoderFactory.ADDRESS_LEN);
+            in.skipBytes(4 + 1); // overlayId and natPolicy of dest
+            // nextDest
+            in.skipBytes(UserTypesEncoderFactory.ADDRESS_LEN + 4 + 1);
+            in.skipBytes(in.readUnsignedShort() * UserTypesEncoderFactory.ADDRESS_LEN);
+            int rest = in.readerIndex();
+            int clientId = in.readInt();
+            int remoteId = in.readInt();
+
+            // same decision as NatTraverser.relayMsg()
+            VodAddress self = table.getSelf();
+            int nextDestId;
+            if (kind == Kind.RESPONSE) {
+                if (clientId == self.getId()) {
+                    return null;
+                }
+                nextDestId = clientId;
+            } else {
+                if (remoteId == self.getId()) {
+                    return null;
+                }
+                nextDestId = remoteId;
+            }
+            VodAddress child = table.getChild(nextDestId);
+            if (child == null || !table.touch(srcId)) {
+                return null;
+            }
+
+            ByteBuf out = alloc.buffer(packet.content().writerIndex() - rest
+                    + 1 + 4 + 4 + 4
+                    + 4 + 1 + 2 + UserTypesEncoderFactory.ADDRESS_LEN * self.getParents().size()
+                    + 4 + 1
+                    + UserTypesEncoderFactory.VOD_ADDRESS_LEN_NO_PARENTS);
+            try {
+                out.writeByte(opcode);
+                if (kind.hasTimeout()) {
+                    out.writeInt(timeoutId);
+                }
+                // the source id isn't rewritten, the relay is the source of
+                // the UDP packet
+                out.writeInt(srcId);
+                out.writeInt(child.getId());
+                out.writeInt(self.getOverlayId());
+                UserTypesEncoderFactory.writeUnsignedintAsOneByte(out, self.getNatPolicy());
+                UserTypesEncoderFactory.writeListAddresses(out, self.getParents());
+                out.writeInt(child.getOverlayId());
+                UserTypesEncoderFactory.writeUnsignedintAsOneByte(out, child.getNatPolicy());
+                // nextDest is the source of the msg, at its public address
+                UserTypesEncoderFactory.writeVodAddress(out, new VodAddress(
+                        new Address(sender.getAddress(), sender.getPort(), srcId),
+                        srcOverlayId, srcNatPolicy, null));
+                out.writeBytes(packet.content(), rest, packet.content().writerIndex() - rest);
+            } catch (MessageEncodingException e) {
+                out.release();
+                throw e;
+            }
+            table.relayed(child.getId(), out.readableBytes());
+            Address dest = child.getPeerAddress();
+            return new DatagramPacket(out, new InetSocketAddress(dest.getIp(), dest.getPort()));
+        } catch (IndexOutOfBoundsException e) {
+            // truncated msg, the decoder reports it
+            return null;
+        } catch (MessageEncodingException e) {
+            logger.warn("Could not relay msg with opcode " + opcode + ": " + e.getMessage());
+            return null;
+        }
+    }
+}
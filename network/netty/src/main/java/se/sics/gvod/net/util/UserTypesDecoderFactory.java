@@ -18,6 +18,7 @@ import se.sics.gvod.common.BitField;
 import se.sics.gvod.common.DescriptorBuffer;
 import se.sics.gvod.common.Utility;
 import se.sics.gvod.common.UtilityVod;
+import se.sics.gvod.common.VivaldiCoordinate;
 import se.sics.gvod.common.VodDescriptor;
 import se.sics.gvod.common.msgs.MessageDecodingException;
 import se.sics.gvod.common.msgs.NatReportMsg;
@@ -311,8 +312,24 @@ public class UserTypesDecoderFactory {
         Utility utility = UserTypesDecoderFactory.readUtility(buffer);
         int mtu = UserTypesDecoderFactory.readUnsignedIntAsTwoBytes(buffer);
         long numberOfEntries = buffer.readLong();
+        VivaldiCoordinate coordinate = UserTypesDecoderFactory.readVivaldiCoordinate(buffer);
 
-        return new VodDescriptor(addr, utility, age, mtu, numberOfEntries);
+        VodDescriptor desc = new VodDescriptor(addr, utility, age, mtu, numberOfEntries);
+        desc.setCoordinate(coordinate);
+        return desc;
+    }
+
+    public static VivaldiCoordinate readVivaldiCoordinate(ByteBuf buffer) {
+        if (buffer.readByte() == 0) {
+            return null;
+        }
+        double[] position = new double[VivaldiCoordinate.DIMENSIONS];
+        for (int i = 0; i < position.length; i++) {
+            position[i] = buffer.readFloat();
+        }
+        double height = buffer.readFloat();
+        double error = buffer.readFloat();
+        return new VivaldiCoordinate(position, height, error);
     }
 
     public static LinkedList<Boolean> readBooleanLinkedList(ByteBuf buffer) throws MessageDecodingException {
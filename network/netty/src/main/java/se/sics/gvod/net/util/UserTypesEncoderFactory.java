@@ -19,6 +19,7 @@ import se.sics.gvod.common.DescriptorBuffer;
 import se.sics.gvod.common.Utility;
 import se.sics.gvod.common.UtilityLS;
 import se.sics.gvod.common.UtilityVod;
+import se.sics.gvod.common.VivaldiCoordinate;
 import se.sics.gvod.common.VodDescriptor;
 import se.sics.gvod.common.msgs.MessageEncodingException;
 import se.sics.gvod.common.msgs.NatReportMsg;
@@ -40,7 +41,9 @@ public class UserTypesEncoderFactory {
     public static final int ADDRESS_LEN = 10;
     public static final int UTILITY_LEN = 2 + 8 + 2;
     public static final int UUID_LEN = 16;
-    public static final int GVOD_NODE_DESCRIPTOR_LEN = VOD_ADDRESS_LEN_NO_PARENTS + 2 + 2 + UTILITY_LEN;
+    public static final int VIVALDI_COORDINATE_LEN = 1 + 4 * (VivaldiCoordinate.DIMENSIONS + 2);
+    public static final int GVOD_NODE_DESCRIPTOR_LEN = VOD_ADDRESS_LEN_NO_PARENTS + 2 + 2 + UTILITY_LEN
+            + VIVALDI_COORDINATE_LEN;
     public static final String STRING_CHARSET = "UTF-8";
     public static final int NAT_LEN = 1 /*
              * type
@@ -189,6 +192,21 @@ public class UserTypesEncoderFactory {
         UserTypesEncoderFactory.writeUtility(buffer, nodeDescriptor.getUtility());
         UserTypesEncoderFactory.writeUnsignedintAsTwoBytes(buffer, nodeDescriptor.getMtu());
         buffer.writeLong(nodeDescriptor.getNumberOfIndexEntries());
+        UserTypesEncoderFactory.writeVivaldiCoordinate(buffer, nodeDescriptor.getCoordinate());
+    }
+
+    public static void writeVivaldiCoordinate(ByteBuf buffer,
+            VivaldiCoordinate coordinate) {
+        if (coordinate == null) {
+            buffer.writeByte(0);
+            return;
+        }
+        buffer.writeByte(1);
+        for (int i = 0; i < VivaldiCoordinate.DIMENSIONS; i++) {
+            buffer.writeFloat((float) coordinate.getPosition(i));
+        }
+        buffer.writeFloat((float) coordinate.getHeight());
+        buffer.writeFloat((float) coordinate.getError());
     }
 
     public static void writeBooleanLinkedList(ByteBuf buffer, LinkedList<Boolean> list) throws MessageEncodingException {
@@ -598,7 +598,7 @@ public class EncodingDecodingTest {
     @Test
     public void HpFeasibilityMsg() {
         HpConnectMsg.Request msg = new HpConnectMsg.Request(gSrc, gDest, remoteClientId,
-                1, 1000, UUID.nextUUID());
+                1, 1000, HPMechanism.PRP_PRC, UUID.nextUUID());
         msg.setTimeoutId(UUID.nextUUID());
         try {
             ByteBuf buffer = msg.toByteArray();
@@ -606,6 +606,8 @@ public class EncodingDecodingTest {
             HpConnectMsg.Request res =
                     HpConnectMsgFactory.Request.fromBuffer(buffer);
             compareNatMsgs(msg, res);
+            assert (res.getHpMechanism() == HPMechanism.PRP_PRC);
+            assert (res.getDelta() == 1);
         } catch (MessageDecodingException ex) {
             Logger.getLogger(EncodingDecodingTest.class.getName()).log(Level.SEVERE, null, ex);
             assert (false);
@@ -683,6 +685,24 @@ public class EncodingDecodingTest {
             assert (false);
         }
 
+        HpRegisterMsg.Response resp3 = new HpRegisterMsg.Response(gSrc, gDest,
+                HpRegisterMsg.RegisterStatus.OVERLOADED, UUID.nextUUID(), ports, 130, 30);
+        try {
+            ByteBuf buffer = resp3.toByteArray();
+            opCodeCorrect(buffer, resp3);
+            HpRegisterMsg.Response res4 = HpRegisterMsgFactory.Response.fromBuffer(buffer);
+            compareNatMsgs(resp3, res4);
+            assert (res4.getResponseType() == HpRegisterMsg.RegisterStatus.OVERLOADED);
+            assert (res4.getLoad() == 130);
+            assert (res4.getRetryAfter() == 30);
+        } catch (MessageDecodingException ex) {
+            Logger.getLogger(EncodingDecodingTest.class.getName()).log(Level.SEVERE, null, ex);
+            assert (false);
+        } catch (MessageEncodingException ex) {
+            Logger.getLogger(EncodingDecodingTest.class.getName()).log(Level.SEVERE, null, ex);
+            assert (false);
+        }
+
     }
 
     @Test
@@ -1089,13 +1109,15 @@ public class EncodingDecodingTest {
 
     @Test
     public void hpKeepAliveMsgPong() {
-        HpKeepAliveMsg.Pong msg = new HpKeepAliveMsg.Pong(gSrc, gDest, UUID.nextUUID());
+        HpKeepAliveMsg.Pong msg = new HpKeepAliveMsg.Pong(gSrc, gDest, UUID.nextUUID(),
+                gSrc.getPeerAddress());
         try {
             ByteBuf buffer = msg.toByteArray();
             opCodeCorrect(buffer, msg);
             HpKeepAliveMsg.Pong res =
                     HpKeepAliveMsgFactory.Response.fromBuffer(buffer);
             compareNatMsgs(msg, res);
+            assert (gSrc.getPeerAddress().equals(res.getObservedSource()));
         } catch (MessageDecodingException ex) {
             Logger.getLogger(EncodingDecodingTest.class.getName()).log(Level.SEVERE, null, ex);
             assert (false);
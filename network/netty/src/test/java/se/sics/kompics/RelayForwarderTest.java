@@ -0,0 +1,167 @@
+package se.sics.kompics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.socket.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import se.sics.gvod.address.Address;
+import se.sics.gvod.common.UtilityVod;
+import se.sics.gvod.common.VodDescriptor;
+import se.sics.gvod.common.msgs.Encodable;
+import se.sics.gvod.config.BaseCommandLineConfig;
+import se.sics.gvod.config.VodConfig;
+import se.sics.gvod.gradient.msgs.SetsExchangeMsg;
+import se.sics.gvod.gradient.msgs.SetsExchangeMsgFactory;
+import se.sics.gvod.net.BaseMsgFrameDecoder;
+import se.sics.gvod.net.Nat;
+import se.sics.gvod.net.RelayForwarder;
+import se.sics.gvod.net.RelayTable;
+import se.sics.gvod.net.VodAddress;
+import se.sics.gvod.net.msgs.RelayMsg;
+import se.sics.gvod.timer.UUID;
+
+/**
+ * Checks that the relay fast path sends the child the same bytes as
+ * decoding the msg, rewriting it like NatTraverser.relayMsg() and encoding it.
+ *
+ * @author jdowling
+ */
+public class RelayForwarderTest {
+
+    private VodAddress relay;
+    private VodAddress source;
+    private VodAddress child;
+    // public address of the source, as seen by the relay
+    private InetSocketAddress sender;
+    private final Map<Integer, VodAddress> registered = new HashMap<Integer, VodAddress>();
+    private final RelayTable table = new RelayTable() {
+        @Override
+        public VodAddress getSelf() {
+            return relay;
+        }
+
+        @Override
+        public VodAddress getChild(int id) {
+            return registered.get(id);
+        }
+
+        @Override
+        public boolean touch(int id) {
+            return registered.containsKey(id);
+        }
+
+        @Override
+        public void relayed(int id, int bytes) {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        // registers the relay opcodes
+        new BaseMsgFrameDecoder();
+        Nat nat = new Nat(Nat.Type.NAT,
+                Nat.MappingPolicy.HOST_DEPENDENT,
+                Nat.AllocationPolicy.PORT_PRESERVATION,
+                Nat.FilteringPolicy.PORT_DEPENDENT,
+                1,
+                100 * 1000l);
+        relay = new VodAddress(new Address(InetAddress.getByName("193.10.64.1"), 3478, 100),
+                VodConfig.SYSTEM_OVERLAY_ID);
+        Address parent = new Address(InetAddress.getByName("193.10.64.2"), 3478, 200);
+        source = new VodAddress(new Address(InetAddress.getByName("192.168.0.5"), 4321, 5),
+                VodConfig.SYSTEM_OVERLAY_ID, nat, Collections.singleton(parent));
+        child = new VodAddress(new Address(InetAddress.getByName("130.237.1.7"), 50007, 7),
+                VodConfig.SYSTEM_OVERLAY_ID, nat);
+        sender = new InetSocketAddress(InetAddress.getByName("130.237.1.5"), 50005);
+        registered.put(source.getId(), source);
+        registered.put(child.getId(), child);
+    }
+
+    private DatagramPacket received(ByteBuf buffer) {
+        return new DatagramPacket(buffer, new InetSocketAddress(relay.getIp(), relay.getPort()),
+                sender);
+    }
+
+    /**
+     * The slow path: rewrite the decoded msg at the relay.
+     */
+    private ByteBuf rewrite(RelayMsg.Base msg) throws Exception {
+        msg.getSource().setIp(sender.getAddress());
+        msg.getSource().setPort(sender.getPort());
+        msg.rewriteDestinationAtRelay(relay, new VodAddress(child.getPeerAddress(),
+                child.getOverlayId(), child.getNat()));
+        return ((Encodable) msg).toByteArray();
+    }
+
+    @Test
+    public void testRequest() throws Exception {
+        SetsExchangeMsg.Request msg = new SetsExchangeMsg.Request(source, relay,
+                source.getId(), child.getId(), UUID.nextUUID());
+        ByteBuf buffer = msg.toByteArray();
+
+        DatagramPacket relayed = RelayForwarder.relay(received(buffer.duplicate()), table,
+                UnpooledByteBufAllocator.DEFAULT);
+        assertNotNull(relayed);
+        assertEquals(new InetSocketAddress(child.getIp(), child.getPort()), relayed.recipient());
+
+        buffer.readByte();
+        ByteBuf expected = rewrite(SetsExchangeMsgFactory.Request.fromBuffer(buffer));
+        assertEquals(expected, relayed.content());
+    }
+
+    @Test
+    public void testResponse() throws Exception {
+        ArrayList<VodDescriptor> descriptors = new ArrayList<VodDescriptor>();
+        descriptors.add(new VodDescriptor(source, new UtilityVod(1, 12, 123), 200,
+                BaseCommandLineConfig.DEFAULT_MTU));
+        // from the source, to the child that sent the request
+        SetsExchangeMsg.Response msg = new SetsExchangeMsg.Response(source, relay,
+                child.getId(), source.getId(), relay, UUID.nextUUID(), descriptors, descriptors);
+        ByteBuf buffer = msg.toByteArray();
+
+        DatagramPacket relayed = RelayForwarder.relay(received(buffer.duplicate()), table,
+                UnpooledByteBufAllocator.DEFAULT);
+        assertNotNull(relayed);
+
+        buffer.readByte();
+        ByteBuf expected = rewrite(SetsExchangeMsgFactory.Response.fromBuffer(buffer));
+        assertEquals(expected, relayed.content());
+    }
+
+    @Test
+    public void testSlowPath() throws Exception {
+        // for the relay itself
+        SetsExchangeMsg.Request msg = new SetsExchangeMsg.Request(source, relay,
+                source.getId(), relay.getId(), UUID.nextUUID());
+        assertNull(RelayForwarder.relay(received(msg.toByteArray()), table,
+                UnpooledByteBufAllocator.DEFAULT));
+
+        // unknown child
+        msg = new SetsExchangeMsg.Request(source, relay, source.getId(), 8, UUID.nextUUID());
+        assertNull(RelayForwarder.relay(received(msg.toByteArray()), table,
+                UnpooledByteBufAllocator.DEFAULT));
+
+        // unregistered source, the NatTraverser adds a temporary record
+        registered.remove(source.getId());
+        msg = new SetsExchangeMsg.Request(source, relay, source.getId(), child.getId(),
+                UUID.nextUUID());
+        assertNull(RelayForwarder.relay(received(msg.toByteArray()), table,
+                UnpooledByteBufAllocator.DEFAULT));
+
+        // not a relay msg, or truncated
+        assertNull(RelayForwarder.relay(received(Unpooled.wrappedBuffer(
+                new byte[]{BaseMsgFrameDecoder.PING})), table, UnpooledByteBufAllocator.DEFAULT));
+        assertNull(RelayForwarder.relay(received(Unpooled.wrappedBuffer(
+                new byte[]{BaseMsgFrameDecoder.SETS_EXCHANGE_REQUEST, 0, 0})), table,
+                UnpooledByteBufAllocator.DEFAULT));
+    }
+}
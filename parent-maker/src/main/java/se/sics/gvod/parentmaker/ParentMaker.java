@@ -97,6 +97,16 @@ import se.sics.kompics.Stop;
  *
  * Parents can be black-listed for a short amount of time if
  * HpRegisterMsg.Request msgs to them fail a number of times.
+ *
+ * An overloaded parent rejects new children with an OVERLOADED response, and
+ * sheds existing children with an OVERLOADED HpUnregisterMsg.Request. It is
+ * not asked again for as long as it says, and a replacement parent is asked
+ * straight away. A shedding parent keeps relaying for the delay in its
+ * request, so it is only removed when a replacement is added or the delay
+ * has passed.
+ *
+ * A parent that restarted probes the children it restored with a
+ * ParentKeepAliveMsg.Ping, which is answered while it is still a parent.
  */
 public class ParentMaker extends MsgRetryComponent {
 
@@ -108,6 +118,10 @@ public class ParentMaker extends MsgRetryComponent {
     private String compName;
     Map<VodAddress, Connection> connections = new HashMap<VodAddress, Connection>();
     Map<Address, Long> rejections = new HashMap<Address, Long>();
+    // overloaded parents, and until when they should not be asked again
+    Map<Address, Long> overloadedParents = new HashMap<Address, Long>();
+    // parents shedding this node, and when they stop relaying for it
+    Map<VodAddress, Long> sheddingParents = new HashMap<VodAddress, Long>();
     private Map<TimeoutId, Long> requestStartTimes = new HashMap<TimeoutId, Long>();
     private Set<Integer> outstandingParentRequests = new HashSet<Integer>();
     private Set<VodAddress> croupierSamples = new HashSet<VodAddress>();
@@ -205,6 +219,7 @@ public class ParentMaker extends MsgRetryComponent {
         config = init.getConfig();
         portsInUse = init.getBoundPorts();
         VodConfig.PM_NUM_PARENTS = config.getNumParents();
+        enableResponseCache(VodConfig.RESPONSE_CACHE_SIZE, VodConfig.RESPONSE_CACHE_TTL);
     }
 
     public Handler<Start> handleStart = new Handler<Start>() {
@@ -239,6 +254,24 @@ public class ParentMaker extends MsgRetryComponent {
                 logger.debug(compName + getParentsAsStr());
             }
 
+            long now = System.currentTimeMillis();
+            Iterator<Long> overloaded = overloadedParents.values().iterator();
+            while (overloaded.hasNext()) {
+                if (overloaded.next() < now) {
+                    overloaded.remove();
+                }
+            }
+            // shedding parents that no replacement was found for in time
+            List<VodAddress> shed = new ArrayList<VodAddress>();
+            for (Entry<VodAddress, Long> entry : sheddingParents.entrySet()) {
+                if (entry.getValue() < now) {
+                    shed.add(entry.getKey());
+                }
+            }
+            for (VodAddress parent : shed) {
+                removeParent(parent, false, false);
+            }
+
             List<RTT> currentRtts = getCurrentRtts();
             Set<VodAddress> currentParents = new HashSet<VodAddress>();
             for (RTT r : currentRtts) {
@@ -252,16 +285,17 @@ public class ParentMaker extends MsgRetryComponent {
                     logger.warn(compName + " no parents! " + self.getNat()
                             + pi
                             + " rejected: " + rejections.keySet().size()
+                            + " overloaded: " + overloadedParents.keySet().size()
                             + " num better rtts " + RTTStore.getOnAvgBest(self.getId(),
                                     config.getNumParents(),
-                                    rejections.keySet()).size());
+                                    getAvoidedParents()).size());
                 }
             }
 
             List<RTT> betterRtts;
             if (currentRtts.size() < config.getNumParents()) {
                 betterRtts = RTTStore.getOnAvgBest(self.getId(), config.getNumParents(),
-                        rejections.keySet());
+                        getAvoidedParents());
                 if (betterRtts.isEmpty()) {
                     logger.warn(compName + "No better RTTS availabile ");
                 }
@@ -269,6 +303,12 @@ public class ParentMaker extends MsgRetryComponent {
                 RTT worstRtt = Collections.max(currentRtts, RTT.Order.ByRto);
                 betterRtts = RTTStore.getAllOnAvgBetterRtts(self.getId(), worstRtt.getRTO(),
                         config.getKeepParentRttRange());
+                Iterator<RTT> better = betterRtts.iterator();
+                while (better.hasNext()) {
+                    if (isOverloaded(better.next().getAddress())) {
+                        better.remove();
+                    }
+                }
             }
 
             List<RTT> allRtts = new ArrayList<RTT>();
@@ -283,6 +323,12 @@ public class ParentMaker extends MsgRetryComponent {
                 if (!iter.hasNext()) {
                     logger.debug(compName + " no new RTT samples available");
                     croupierSamples.removeAll(currentParents);
+                    Iterator<VodAddress> samples = croupierSamples.iterator();
+                    while (samples.hasNext()) {
+                        if (isOverloaded(samples.next())) {
+                            samples.remove();
+                        }
+                    }
                     if (croupierSamples.isEmpty()) {
                         removeRejections(config.getNumParents());
                         break;
@@ -296,20 +342,7 @@ public class ParentMaker extends MsgRetryComponent {
                     throw new IllegalStateException("Error with nat parent");
                 }
                 if (!currentRtts.contains(min)) {
-                    if (self.getAddress().getNat().preallocatePorts()) {
-                        PortAllocRequest allocReq = new PortAllocRequest(self.getIp(), self.getId(),
-                                2, Transport.UDP);
-                        PrpPortsResponse allocResp = new PrpPortsResponse(allocReq,
-                                ToVodAddr.hpServer(min.getAddress().getPeerAddress()),
-                                min.getRTO());
-                        allocReq.setResponse(allocResp);
-                        delegator.doTrigger(allocReq, natNetworkControl);
-                    } else {
-                        // if i have no connections, bid for the parent's slot with RTO as '0'
-                        long normalizedRtt
-                                = (connections.isEmpty() && !outstandingBids) ? 0 : min.getRTO();
-                        sendRequest(min.getAddress(), normalizedRtt, new HashSet<Integer>());
-                    }
+                    requestParent(min);
                 } else {
                     i--;
                 }
@@ -338,6 +371,70 @@ public class ParentMaker extends MsgRetryComponent {
         }
     };
 
+    /**
+     * Asks a candidate parent to be my parent, after allocating ports for it if
+     * my NAT is PRP.
+     */
+    private void requestParent(RTT candidate) {
+        if (self.getAddress().getNat().preallocatePorts()) {
+            PortAllocRequest allocReq = new PortAllocRequest(self.getIp(), self.getId(),
+                    2, Transport.UDP);
+            PrpPortsResponse allocResp = new PrpPortsResponse(allocReq,
+                    ToVodAddr.hpServer(candidate.getAddress().getPeerAddress()),
+                    candidate.getRTO());
+            allocReq.setResponse(allocResp);
+            delegator.doTrigger(allocReq, natNetworkControl);
+        } else {
+            // if i have no connections, bid for the parent's slot with RTO as '0'
+            long normalizedRtt
+                    = (connections.isEmpty() && !outstandingBids) ? 0 : candidate.getRTO();
+            sendRequest(candidate.getAddress(), normalizedRtt, new HashSet<Integer>());
+        }
+    }
+
+    /**
+     * Asks the best candidate parent that isn't a parent, hasn't rejected me
+     * and isn't overloaded, without waiting for the next round.
+     */
+    private void requestReplacementParent() {
+        List<RTT> candidates = RTTStore.getOnAvgBest(self.getId(),
+                config.getNumParents() + connections.size(), getAvoidedParents());
+        for (RTT candidate : candidates) {
+            if (!isParent(candidate.getAddress())
+                    && !outstandingParentRequests.contains(candidate.getAddress().getId())) {
+                requestParent(candidate);
+                return;
+            }
+        }
+        logger.debug(compName + "No replacement parent available until the next round");
+    }
+
+    private Set<Address> getAvoidedParents() {
+        Set<Address> avoided = new HashSet<Address>(rejections.keySet());
+        avoided.addAll(overloadedParents.keySet());
+        return avoided;
+    }
+
+    private boolean isOverloaded(VodAddress node) {
+        for (Address a : overloadedParents.keySet()) {
+            if (a.getId() == node.getId()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param retryAfter how long the parent asked not to be asked again, in
+     * ms
+     */
+    private void addOverloadedParent(Address parent, long retryAfter) {
+        if (retryAfter <= 0) {
+            retryAfter = VodConfig.PM_PARENT_REJECTED_CLEANUP_TIMEOUT;
+        }
+        overloadedParents.put(parent, System.currentTimeMillis() + retryAfter);
+    }
+
     /**
      * remove a random number of rejected server
      *
@@ -391,6 +488,7 @@ public class ParentMaker extends MsgRetryComponent {
     }
 
     private void removeParent(VodAddress parent, boolean failed, boolean sendUnregisterReq) {
+        sheddingParents.remove(parent);
         if (failed) {
             RTTStore.removeSamples(self.getId(), parent);
             rejections.put(parent.getPeerAddress(), System.currentTimeMillis());
@@ -471,6 +569,23 @@ public class ParentMaker extends MsgRetryComponent {
             }
         }
     };
+    /**
+     * A restarted parent checks that I'm still its child.
+     */
+    Handler<ParentKeepAliveMsg.Ping> handleParentPing = new Handler<ParentKeepAliveMsg.Ping>() {
+        @Override
+        public void handle(ParentKeepAliveMsg.Ping ping) {
+            Connection c = connections.get(ping.getVodSource());
+            if (c == null) {
+                // it isn't my parent any more, its registration expires
+                logger.debug(compName + "Ping from non-parent {}", ping.getVodSource().getId());
+                return;
+            }
+            c.setLastReceivedPong(System.currentTimeMillis());
+            delegator.doTrigger(new ParentKeepAliveMsg.Pong(self.getAddress(),
+                    ping.getVodSource(), ping.getTimeoutId()), network);
+        }
+    };
     /**
      * parent is not responding to pings. Remove if enough parents left?
      */
@@ -557,6 +672,17 @@ public class ParentMaker extends MsgRetryComponent {
                     }
                     unbindPorts(msg.getPrpPorts());
                 }
+            } else if (msg.getResponseType() == HpRegisterMsg.RegisterStatus.OVERLOADED) {
+                addOverloadedParent(peer, msg.getRetryAfter() * 1000L);
+                logger.debug(compName + "Parent {} overloaded, load " + msg.getLoad() + "%",
+                        peer);
+                if (self.getNat().preallocatePorts()) {
+                    for (int p : msg.getPrpPorts()) {
+                        removePortFromParent(msg.getVodSource().getId(), p);
+                    }
+                    unbindPorts(msg.getPrpPorts());
+                }
+                requestReplacementParent();
             } else if (msg.getResponseType() == HpRegisterMsg.RegisterStatus.ACCEPT) {
                 addParentRtt(msg, rtt);
             } else if (msg.getResponseType() == HpRegisterMsg.RegisterStatus.ALREADY_REGISTERED) {
@@ -630,8 +756,17 @@ public class ParentMaker extends MsgRetryComponent {
         // TODO check if already added, as then I should not start another timer
         if (connections.size() < config.getNumParents()) {
             addParent(candidateParent, event.getPrpPorts());
+        } else if (!sheddingParents.isEmpty() && !isParent(candidateParent)) {
+            VodAddress sheddingParent = sheddingParents.keySet().iterator().next();
+            removeParent(sheddingParent, false, false);
+            logger.info(compName + "Replacing overloaded parent {} with {}",
+                    sheddingParent.getId(), candidateParent.getId());
+            addParent(candidateParent, event.getPrpPorts());
         } else {
             List<RTT> currentRtts = getCurrentRtts();
+            if (currentRtts.isEmpty()) {
+                return;
+            }
             RTT worstRtt = Collections.max(currentRtts, RTT.Order.ByRto);
             if (rtt + config.getKeepParentRttRange() < worstRtt.getRTO()) {
                 VodAddress hpAddr = worstRtt.getAddress();
@@ -691,6 +826,21 @@ public class ParentMaker extends MsgRetryComponent {
                 public void handle(HpUnregisterMsg.Request event) {
                     logger.debug(compName + "Parent {} telling me to unregister: {}",
                             event.getVodSource().getId(), event.getStatus());
+                    VodAddress parent = event.getVodSource();
+                    if (event.getStatus() == HpRegisterMsg.RegisterStatus.OVERLOADED
+                            && isParent(parent)) {
+                        // keep the parent while it still relays for me
+                        CroupierStats.instance(self.clone(VodConfig.SYSTEM_OVERLAY_ID))
+                                .parentChangeEvent(event.getSource(),
+                                        HpRegisterMsg.RegisterStatus.OVERLOADED);
+                        addOverloadedParent(parent.getPeerAddress(), event.getDelay());
+                        if (!sheddingParents.containsKey(parent)) {
+                            sheddingParents.put(parent,
+                                    System.currentTimeMillis() + event.getDelay());
+                        }
+                        requestReplacementParent();
+                        return;
+                    }
                     CroupierStats.instance(self.clone(VodConfig.SYSTEM_OVERLAY_ID)).parentChangeEvent(event.getSource(),
                             HpRegisterMsg.RegisterStatus.BETTER_CHILD);
                     removeParent(event.getVodSource(), false, false);
@@ -698,10 +848,15 @@ public class ParentMaker extends MsgRetryComponent {
                 }
             };
 
+    /**
+     * @return the RTTs of the parents, except the ones that are shedding me
+     */
     private List<RTT> getCurrentRtts() {
         List<RTT> currentRtts = new ArrayList<RTT>();
-        for (Connection c : connections.values()) {
-            currentRtts.add(c.getRtt());
+        for (Entry<VodAddress, Connection> entry : connections.entrySet()) {
+            if (!sheddingParents.containsKey(entry.getKey())) {
+                currentRtts.add(entry.getValue().getRtt());
+            }
         }
         return currentRtts;
     }
@@ -718,6 +873,10 @@ public class ParentMaker extends MsgRetryComponent {
     Handler<PRP_PreallocatedPortsMsg.Request> handlePRP_PreallocatedPortsMsg = new Handler<PRP_PreallocatedPortsMsg.Request>() {
         @Override
         public void handle(PRP_PreallocatedPortsMsg.Request request) {
+            // don't allocate more ports for a retransmitted request
+            if (replayResponse(request)) {
+                return;
+            }
 
             if (!connections.containsKey(request.getVodSource())) {
                 PRP_PreallocatedPortsMsg.Response resp
@@ -733,6 +892,7 @@ public class ParentMaker extends MsgRetryComponent {
                     rto = RTTStore.getRtt(self.getId(),
                             request.getVodSource()).getRTO();
                 }
+                markResponsePending(request);
                 allocPorts(request.getVodSource(), rto, request.getTimeoutId(),
                         request.getMsgTimeoutId());
             }
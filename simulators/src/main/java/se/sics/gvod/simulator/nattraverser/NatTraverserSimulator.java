@@ -346,10 +346,6 @@
 //
 //            logger.info("Hp No heartbeats: {}", HpClient.nonPingedConnections);
 //
-//            for (String str : HpClient.failedPings.keySet()) {
-//                logger.info(str + " = " + HpClient.failedPings.get(str));
-//            }
-//
 //            System.out.println("Success");
 //            for (String natType : successCount.keySet()) {
 //                System.out.println("\t" + natType + "/" + successCount.get(natType));
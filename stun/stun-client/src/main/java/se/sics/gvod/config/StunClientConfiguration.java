@@ -33,6 +33,16 @@ public final class StunClientConfiguration extends AbstractConfiguration<StunCli
     int rtoRetries;
     // Amount to scale the RTO after a timeout.
     double rtoScale;
+    // Run the independent stun tests in parallel and answer as soon as the
+    // NAT type is known, instead of running them one after the other.
+    boolean fastClassification;
+    // Longest NAT binding timeout that is measured.
+    int ruleExpirationMaxWait;
+    // Number of NAT bindings opened in parallel to measure the NAT binding timeout.
+    // The measurement is a search over the rounds of parallel bindings, with
+    // ruleExpirationIncrement as its precision. With 1, a single binding is
+    // tested with ruleExpirationMinWait, then longer and longer waits.
+    int bindingTimeoutProbes;
 
     /**
      * Default constructor comes first.
@@ -49,7 +59,10 @@ public final class StunClientConfiguration extends AbstractConfiguration<StunCli
                 VodConfig.STUN_MEASURE_NAT_BINDING_TIMEOUT,
                 VodConfig.STUN_RTO,
                 VodConfig.STUN_RTO_RETRIES,
-                VodConfig.STUN_RTO_SCALE);
+                VodConfig.STUN_RTO_SCALE,
+                VodConfig.STUN_FAST_CLASSIFICATION,
+                VodConfig.STUN_RULE_EXPIRATION_MAX_WAIT,
+                VodConfig.STUN_BINDING_TIMEOUT_PROBES);
     }
 
     /**
@@ -66,7 +79,10 @@ public final class StunClientConfiguration extends AbstractConfiguration<StunCli
             boolean measureNatBindingTimeout,
             int rto,
             int rtoRetries,
-            double rtoScale) {
+            double rtoScale,
+            boolean fastClassification,
+            int ruleExpirationMaxWait,
+            int bindingTimeoutProbes) {
         this.randTolerance = randTolerance;
         this.ruleExpirationMinWait = ruleExpirationMinWait;
         this.ruleExpirationIncrement = ruleExpirationIncrement;
@@ -78,6 +94,9 @@ public final class StunClientConfiguration extends AbstractConfiguration<StunCli
         this.rto = rto;
         this.rtoRetries = rtoRetries;
         this.rtoScale = rtoScale;
+        this.fastClassification = fastClassification;
+        this.ruleExpirationMaxWait = ruleExpirationMaxWait;
+        this.bindingTimeoutProbes = bindingTimeoutProbes;
     }
 
     public static StunClientConfiguration build() {
@@ -127,6 +146,18 @@ public final class StunClientConfiguration extends AbstractConfiguration<StunCli
     public boolean isMeasureNatBindingTimeout() {
         return measureNatBindingTimeout;
     }
+
+    public boolean isFastClassification() {
+        return fastClassification;
+    }
+
+    public int getRuleExpirationMaxWait() {
+        return ruleExpirationMaxWait;
+    }
+
+    public int getBindingTimeoutProbes() {
+        return bindingTimeoutProbes;
+    }
     
     public StunClientConfiguration setMinimumRtt(int minimumRtt) {
         this.minimumRto = minimumRtt;
@@ -183,4 +214,19 @@ public final class StunClientConfiguration extends AbstractConfiguration<StunCli
         this.measureNatBindingTimeout = measureNatBindingTimeout;
         return this;
     }
+
+    public StunClientConfiguration setFastClassification(boolean fastClassification) {
+        this.fastClassification = fastClassification;
+        return this;
+    }
+
+    public StunClientConfiguration setRuleExpirationMaxWait(int ruleExpirationMaxWait) {
+        this.ruleExpirationMaxWait = ruleExpirationMaxWait;
+        return this;
+    }
+
+    public StunClientConfiguration setBindingTimeoutProbes(int bindingTimeoutProbes) {
+        this.bindingTimeoutProbes = bindingTimeoutProbes;
+        return this;
+    }
 }
@@ -0,0 +1,202 @@
+package se.sics.gvod.stun.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import se.sics.gvod.address.Address;
+import se.sics.gvod.timer.TimeoutId;
+
+/**
+ * Measures the NAT binding timeout with a search over rounds of parallel probes.
+ *
+ * In each round, a new NAT binding is opened from each probe port at the same
+ * time (a PING to the stun server). Then, after a different delay for each
+ * probe, the stun server is asked to send a HEARTBEAT to the public address of
+ * the probe's binding. If the HEARTBEAT arrives, the binding was still alive
+ * after that delay, otherwise it had expired. The delays are spread evenly over
+ * the interval that the binding timeout is known to be in, so every round
+ * divides the interval by (number of probes + 1). The search is finished when
+ * the interval is no wider than the precision.
+ *
+ * A binding that is alive after a delay is also alive after any shorter delay,
+ * so probes with delays outside the interval aren't needed, and a round is over
+ * as soon as no probe is left inside the interval.
+ *
+ * @author jdowling
+ */
+class BindingTimeoutSearch {
+
+    private final List<Integer> ports;
+    private final long precision;
+    // a binding was still alive after lo ms
+    private long lo = 0;
+    // a binding had expired after hi ms, or hi is the longest wait
+    private long hi;
+    private int round = 0;
+    private boolean narrowed = false;
+    private final long[] delays;
+    private final boolean[] pending;
+    private final Address[] bindings;
+    private final TimeoutId[] timers;
+    // outstanding PING/HEARTBEAT msgs of this round, and their probes
+    private final Map<TimeoutId, Integer> msgs = new HashMap<TimeoutId, Integer>();
+
+    /**
+     * @param ports the local ports used to open bindings, one per probe
+     * @param maxWait the longest binding timeout measured
+     * @param precision the search stops when the binding timeout is known to
+     * within this many ms.
+     */
+    BindingTimeoutSearch(List<Integer> ports, long maxWait, long precision) {
+        if (ports.isEmpty()) {
+            throw new IllegalArgumentException("No ports to probe the binding timeout with");
+        }
+        if (precision < 1) {
+            throw new IllegalArgumentException("precision must be greater than zero");
+        }
+        this.ports = new ArrayList<Integer>(ports);
+        this.hi = maxWait;
+        this.precision = precision;
+        int n = ports.size();
+        delays = new long[n];
+        pending = new boolean[n];
+        bindings = new Address[n];
+        timers = new TimeoutId[n];
+    }
+
+    void nextRound() {
+        round++;
+        narrowed = false;
+        msgs.clear();
+        for (int i = 0; i < delays.length; i++) {
+            delays[i] = lo + (hi - lo) * (i + 1) / (delays.length + 1);
+            pending[i] = true;
+            bindings[i] = null;
+            timers[i] = null;
+        }
+    }
+
+    void alive(int probe) {
+        pending[probe] = false;
+        if (delays[probe] > lo && delays[probe] < hi) {
+            lo = delays[probe];
+            narrowed = true;
+        }
+    }
+
+    void dead(int probe) {
+        pending[probe] = false;
+        if (delays[probe] > lo && delays[probe] < hi) {
+            hi = delays[probe];
+            narrowed = true;
+        }
+    }
+
+    /**
+     * The probe didn't give an answer, e.g., the PING opening its binding
+     * timed out.
+     */
+    void failed(int probe) {
+        pending[probe] = false;
+    }
+
+    /**
+     * @return true if the probe has no answer yet and its answer would narrow
+     * the interval.
+     */
+    boolean isNeeded(int probe) {
+        return pending[probe] && delays[probe] > lo && delays[probe] < hi;
+    }
+
+    boolean isRoundFinished() {
+        for (int i = 0; i < delays.length; i++) {
+            if (isNeeded(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isFinished() {
+        return hi - lo <= precision;
+    }
+
+    /**
+     * @return true if an answer in this round narrowed the interval.
+     */
+    boolean isNarrowed() {
+        return narrowed;
+    }
+
+    /**
+     * @return the longest delay that a binding was seen to be alive after,
+     * or 0 if none was.
+     */
+    long getBindingTimeout() {
+        return lo;
+    }
+
+    long getUpperBound() {
+        return hi;
+    }
+
+    int getRound() {
+        return round;
+    }
+
+    int getNumProbes() {
+        return delays.length;
+    }
+
+    int getPort(int probe) {
+        return ports.get(probe);
+    }
+
+    List<Integer> getPorts() {
+        return ports;
+    }
+
+    long getDelay(int probe) {
+        return delays[probe];
+    }
+
+    Address getBinding(int probe) {
+        return bindings[probe];
+    }
+
+    void setBinding(int probe, Address binding) {
+        bindings[probe] = binding;
+    }
+
+    TimeoutId getTimer(int probe) {
+        return timers[probe];
+    }
+
+    void setTimer(int probe, TimeoutId timer) {
+        timers[probe] = timer;
+    }
+
+    void addMsg(TimeoutId timeoutId, int probe) {
+        msgs.put(timeoutId, probe);
+    }
+
+    boolean isProbeMsg(TimeoutId timeoutId) {
+        return msgs.containsKey(timeoutId);
+    }
+
+    int removeMsg(TimeoutId timeoutId) {
+        return msgs.remove(timeoutId);
+    }
+
+    Collection<TimeoutId> getMsgs() {
+        return new ArrayList<TimeoutId>(msgs.keySet());
+    }
+
+    @Override
+    public String toString() {
+        return "round " + round + " (" + lo + ", " + hi + "] delays " + Arrays.toString(delays);
+    }
+}
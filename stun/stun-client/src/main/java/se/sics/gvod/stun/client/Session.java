@@ -18,6 +18,7 @@ import se.sics.gvod.address.Address;
 import se.sics.gvod.config.VodConfig;
 import se.sics.gvod.common.util.ToVodAddr;
 import se.sics.gvod.net.VodAddress;
+import se.sics.gvod.timer.TimeoutId;
 
 /**
  *
@@ -56,6 +57,12 @@ import se.sics.gvod.net.VodAddress;
     private final long startTime;
     private int natRuleExpirationTime;
     private final Address privateAddress;
+    // fast mode: the EchoChangePort test is run alongside the EchoChangeIpAndPort test
+    private TimeoutId changePortTimeoutId;
+    // HOST_DEPENDENT if EchoChangePort was answered, PORT_DEPENDENT if it timed out
+    private FilteringPolicy changePortResult;
+    private boolean changeIpTimedOut = false;
+    private BindingTimeoutSearch bindingTimeoutSearch;
 
     public Session(long transactionId, Address privateAddress, Address stunServer, 
             boolean measureNatBindingTimeout) {
@@ -314,5 +321,36 @@ import se.sics.gvod.net.VodAddress;
     public AlternativePortAllocationPolicy getAlternativeAllocationPolicy() {
         return alternativeAllocationPolicy;
     }
-    
+
+    public TimeoutId getChangePortTimeoutId() {
+        return changePortTimeoutId;
+    }
+
+    public void setChangePortTimeoutId(TimeoutId changePortTimeoutId) {
+        this.changePortTimeoutId = changePortTimeoutId;
+    }
+
+    public FilteringPolicy getChangePortResult() {
+        return changePortResult;
+    }
+
+    public void setChangePortResult(FilteringPolicy changePortResult) {
+        this.changePortResult = changePortResult;
+    }
+
+    public boolean isChangeIpTimedOut() {
+        return changeIpTimedOut;
+    }
+
+    public void setChangeIpTimedOut(boolean changeIpTimedOut) {
+        this.changeIpTimedOut = changeIpTimedOut;
+    }
+
+    BindingTimeoutSearch getBindingTimeoutSearch() {
+        return bindingTimeoutSearch;
+    }
+
+    void setBindingTimeoutSearch(BindingTimeoutSearch bindingTimeoutSearch) {
+        this.bindingTimeoutSearch = bindingTimeoutSearch;
+    }
 }
@@ -6,6 +6,7 @@ package se.sics.gvod.stun.client;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -33,12 +34,16 @@ import se.sics.gvod.net.NatNetworkControl;
 import se.sics.gvod.net.Transport;
 import se.sics.gvod.net.VodAddress;
 import se.sics.gvod.net.events.PortAllocRequest;
+import se.sics.gvod.net.events.PortDeleteRequest;
 import se.sics.gvod.net.msgs.ScheduleRetryTimeout;
+import se.sics.gvod.stun.client.events.BindingProbeTimer;
 import se.sics.gvod.stun.client.events.GetNatTypeRequest;
 import se.sics.gvod.stun.client.events.GetNatTypeResponse;
 import se.sics.gvod.stun.client.events.GetNatTypeResponseRuleExpirationTime;
 import se.sics.gvod.stun.client.events.RequestServerHeartBeatTimer;
+import se.sics.gvod.stun.client.events.StunBindingPortAllocResponse;
 import se.sics.gvod.stun.client.events.StunClientInit;
+import se.sics.gvod.stun.client.events.StunEchoPortAllocResponse;
 import se.sics.gvod.stun.client.events.StunPortAllocResponse;
 import se.sics.gvod.stun.client.events.UpnpTimeout;
 import se.sics.gvod.stun.msgs.EchoChangeIpAndPortMsg;
@@ -145,6 +150,9 @@ public class StunClient extends MsgRetryComponent {
     private boolean test1Finished = false;
     private boolean measureNatBindingTimeout = false;
     private boolean ongoing = false;
+    private boolean fastClassification = false;
+    // fast mode: number of UDP_BLOCKED echoes still waiting for a response
+    private int test1Outstanding = 0;
 
     private class TriesPair {
 
@@ -176,6 +184,7 @@ public class StunClient extends MsgRetryComponent {
         this.delegator.doSubscribe(handleEchoChangePortTimeout, timer);
         this.delegator.doSubscribe(handleEchoRequestTimeout, timer);
         this.delegator.doSubscribe(handleRequestServerHeartBeatTimer, timer);
+        this.delegator.doSubscribe(handleBindingProbeTimer, timer);
         this.delegator.doSubscribe(handleUpnpTimeout, timer);
         this.delegator.doSubscribe(handleStartUpnp, timer);
 
@@ -183,6 +192,8 @@ public class StunClient extends MsgRetryComponent {
         this.delegator.doSubscribe(handleEchoChangePortResponse, network);
         this.delegator.doSubscribe(handleEchoResponse, network);
         this.delegator.doSubscribe(handlePortAllocResponse, natNetworkControl);
+        this.delegator.doSubscribe(handleEchoPortAllocResponse, natNetworkControl);
+        this.delegator.doSubscribe(handleBindingPortAllocResponse, natNetworkControl);
         this.delegator.doSubscribe(handleGetNatTypeRequest, stunPort);
         this.delegator.doSubscribe(handleStart, control);
         // handler in super class
@@ -247,12 +258,16 @@ public class StunClient extends MsgRetryComponent {
             openIp = false;
             test1Finished = false;
             measureNatBindingTimeout = event.isMeasureNatBindingTimeout();
-            sessionMap.clear();
+            fastClassification = config.isFastClassification();
+            test1Outstanding = 0;
+            for (Long transactionId : new ArrayList<Long>(sessionMap.keySet())) {
+                removeSession(transactionId);
+            }
 
             if (config.isUpnpEnable()) {
                 startUpnp();
             } else {
-                startEcho();
+                startTest1();
             }
 
         }
@@ -266,6 +281,14 @@ public class StunClient extends MsgRetryComponent {
         return sb.toString();
     }
 
+    private void startTest1() {
+        if (fastClassification) {
+            startFastEcho();
+        } else {
+            startEcho();
+        }
+    }
+
     private void startEcho() {
         //
         // TEST 1
@@ -299,14 +322,97 @@ public class StunClient extends MsgRetryComponent {
         sessionMap.put(transactionId, session);
         transactionMap.put(serverAddress, transactionId);
         echoTimestamps.put(serverAddress, System.currentTimeMillis());
-        sendEchoRequest(ToVodAddr.stunServer(serverAddress), EchoMsg.Test.UDP_BLOCKED, transactionId);
+        sendEchoRequest(self.getAddress(), ToVodAddr.stunServer(serverAddress),
+                EchoMsg.Test.UDP_BLOCKED, transactionId);
 //        }
     }
 
-    private void sendEchoRequest(VodAddress target, EchoMsg.Test testType, long transactionId) {
+    /**
+     * Fast mode TEST 1: echo up to STUN_FAST_NUM_PARALLEL_SERVERS stun servers at
+     * the same time, each one from a different local port, so that the tests
+     * run later against one server don't find a NAT binding opened for another.
+     * The first server to answer is used for the rest of the tests, the others
+     * are held back in case it fails.
+     */
+    private void startFastEcho() {
+        if (initialServers.isEmpty()) {
+            sendResponse(GetNatTypeResponse.Status.NO_SERVER);
+            return;
+        }
+        List<Address> servers = new ArrayList<Address>();
+        Iterator<Address> iter = initialServers.iterator();
+        while (iter.hasNext() && servers.size() < VodConfig.STUN_FAST_NUM_PARALLEL_SERVERS) {
+            servers.add(iter.next());
+        }
+        initialServers.removeAll(servers);
+        test1Outstanding = servers.size();
+
+        // the first server is echoed from our own port, without waiting for a port
+        sendFastEcho(servers.remove(0), self.getAddress().getPeerAddress());
+        if (!servers.isEmpty()) {
+            PortAllocRequest allocReq = new PortAllocRequest(self.getIp(),
+                    self.getId(), servers.size(), Transport.UDP);
+            StunEchoPortAllocResponse allocResp = new StunEchoPortAllocResponse(allocReq, servers);
+            allocReq.setResponse(allocResp);
+            delegator.doTrigger(allocReq, natNetworkControl);
+        }
+    }
+
+    Handler<StunEchoPortAllocResponse> handleEchoPortAllocResponse
+            = new Handler<StunEchoPortAllocResponse>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public void handle(StunEchoPortAllocResponse response) {
+                    List<Address> servers = (List<Address>) response.getKey();
+                    if (!ongoing) {
+                        // the run finished before the ports were allocated
+                        deletePorts(response.getAllocatedPorts());
+                        return;
+                    }
+                    Iterator<Integer> ports = response.getAllocatedPorts().iterator();
+                    for (Address server : servers) {
+                        if (!ports.hasNext()) {
+                            logger.warn(compName + "Not enough ports allocated for parallel echo. Skipping "
+                                    + server);
+                            test1Outstanding--;
+                            continue;
+                        }
+                        sendFastEcho(server, new Address(self.getIp(), ports.next(), self.getId()));
+                    }
+                    Set<Integer> unused = new HashSet<Integer>();
+                    while (ports.hasNext()) {
+                        unused.add(ports.next());
+                    }
+                    deletePorts(unused);
+                }
+            };
+
+    private void sendFastEcho(Address serverAddress, Address localAddress) {
+        long transactionId = random.nextLong();
+        Session session = new Session(transactionId, localAddress,
+                serverAddress, measureNatBindingTimeout);
+        sessionMap.put(transactionId, session);
+        transactionMap.put(serverAddress, transactionId);
+        echoTimestamps.put(serverAddress, System.currentTimeMillis());
+        sendEchoRequest(localAddress(session), ToVodAddr.stunServer(serverAddress),
+                EchoMsg.Test.UDP_BLOCKED, transactionId);
+    }
+
+    /**
+     * @return the local address that msgs for the session are sent from.
+     */
+    private VodAddress localAddress(Session session) {
+        if (session.getPrivateAddress().equals(self.getAddress().getPeerAddress())) {
+            return self.getAddress();
+        }
+        return ToVodAddr.stunClient(session.getPrivateAddress());
+    }
+
+    private void sendEchoRequest(VodAddress source, VodAddress target,
+            EchoMsg.Test testType, long transactionId) {
         int rto = calculateRto(target.getPeerAddress(), 0);
 
-        EchoMsg.Request bindingReq = new EchoMsg.Request(self.getAddress(),
+        EchoMsg.Request bindingReq = new EchoMsg.Request(source,
                 target, testType, transactionId);
         ScheduleRetryTimeout st
                 = new ScheduleRetryTimeout(rto, config.getRtoRetries(),
@@ -337,7 +443,7 @@ public class StunClient extends MsgRetryComponent {
         logger.debug(compName + "sendEchoChangeIpAndPortRequest " + " Rto=" + rto + " - "
                 + transactionId);
         EchoChangeIpAndPortMsg.Request echoChangeIpReq = new EchoChangeIpAndPortMsg.Request(
-                self.getAddress(), target, transactionId);
+                localAddress(session), target, transactionId);
         ScheduleRetryTimeout st
                 = new ScheduleRetryTimeout(rto, config.getRtoRetries(),
                         config.getRtoScale());
@@ -352,20 +458,22 @@ public class StunClient extends MsgRetryComponent {
 
     }
 
-    private void sendEchoChangePortRequest(VodAddress target, long transactionId) {
+    private TimeoutId sendEchoChangePortRequest(VodAddress target, long transactionId) {
 
+        Session session = sessionMap.get(transactionId);
         EchoChangePortMsg.Request echoChangePortReq = new EchoChangePortMsg.Request(
-                self.getAddress(), target, transactionId);
-        RoundTripTime echoRtt = echoRtts.get(target.getPeerAddress());
+                localAddress(session), target, transactionId);
         long rto = calculateRto(target.getPeerAddress(), 1000);
         ScheduleRetryTimeout st
                 = new ScheduleRetryTimeout(rto, config.getRtoRetries(),
                         config.getRtoScale());
-        delegator.doRetry(new EchoChangePortMsg.RequestRetryTimeout(st, echoChangePortReq));
+        TimeoutId timeoutId = delegator.doRetry(
+                new EchoChangePortMsg.RequestRetryTimeout(st, echoChangePortReq));
 
         logger.debug(compName + "Sending EchoChangePort:"
                 + target.getPeerAddress() + " Rto= " + rto
                 + " retries=" + config.getRtoRetries() + " tid: " + transactionId);
+        return timeoutId;
     }
 
     private void testIfFinished(Session session, long transactionId) {
@@ -428,6 +536,188 @@ public class StunClient extends MsgRetryComponent {
         delegator.doRetry(requestRetryTimeout);
     }
 
+    private void startBindingTimeoutSearch(Session session) {
+        PortAllocRequest allocReq = new PortAllocRequest(self.getIp(), self.getId(),
+                config.getBindingTimeoutProbes(), Transport.UDP);
+        StunBindingPortAllocResponse allocResp
+                = new StunBindingPortAllocResponse(allocReq, session.getTransactionId());
+        allocReq.setResponse(allocResp);
+        delegator.doTrigger(allocReq, natNetworkControl);
+    }
+
+    Handler<StunBindingPortAllocResponse> handleBindingPortAllocResponse
+            = new Handler<StunBindingPortAllocResponse>() {
+                @Override
+                public void handle(StunBindingPortAllocResponse response) {
+                    long transactionId = (Long) response.getKey();
+                    List<Integer> ports = new ArrayList<Integer>(response.getAllocatedPorts());
+                    Session session = sessionMap.get(transactionId);
+                    if (session == null || ports.isEmpty()) {
+                        logger.warn(compName + "Cannot measure the binding timeout. tid: "
+                                + transactionId);
+                        deletePorts(ports);
+                        removeSession(transactionId);
+                        return;
+                    }
+                    session.setBindingTimeoutSearch(new BindingTimeoutSearch(ports,
+                            config.getRuleExpirationMaxWait(),
+                            config.getRuleExpirationIncrement()));
+                    startBindingRound(session);
+                }
+            };
+
+    /**
+     * Opens a new binding from each probe port, with a PING to the stun server.
+     */
+    private void startBindingRound(Session session) {
+        BindingTimeoutSearch search = session.getBindingTimeoutSearch();
+        search.nextRound();
+        logger.debug(compName + "Measuring the binding timeout, " + search
+                + " tid: " + session.getTransactionId());
+        VodAddress server = session.getServer1();
+        for (int i = 0; i < search.getNumProbes(); i++) {
+            VodAddress source = ToVodAddr.stunClient(new Address(self.getIp(),
+                    search.getPort(i), self.getId()));
+            EchoMsg.Request pingReq = new EchoMsg.Request(source, server,
+                    EchoMsg.Test.PING, session.getTransactionId());
+            pingReq.setTryId(i);
+            ScheduleRetryTimeout st
+                    = new ScheduleRetryTimeout(calculateRto(server.getPeerAddress(), 0),
+                            config.getRtoRetries(), config.getRtoScale());
+            search.addMsg(delegator.doRetry(new EchoMsg.RequestTimeout(st, pingReq)), i);
+        }
+    }
+
+    private boolean isBindingProbeMsg(Session session, TimeoutId timeoutId) {
+        return session != null && session.getBindingTimeoutSearch() != null
+                && session.getBindingTimeoutSearch().isProbeMsg(timeoutId);
+    }
+
+    private void handleBindingProbeResponse(Session session, EchoMsg.Response msg) {
+        if (!delegator.doCancelRetry(msg.getTimeoutId())) {
+            return;
+        }
+        BindingTimeoutSearch search = session.getBindingTimeoutSearch();
+        int probe = search.removeMsg(msg.getTimeoutId());
+        if (!search.isNeeded(probe)) {
+            return;
+        }
+        if (msg.getTestType() == EchoMsg.Test.PING) {
+            // the binding is open, ask for a heartbeat to it after the probe's delay
+            search.setBinding(probe, msg.getReplyPublicAddr());
+            ScheduleTimeout st = new ScheduleTimeout(search.getDelay(probe));
+            BindingProbeTimer t = new BindingProbeTimer(st, session.getTransactionId(), probe);
+            st.setTimeoutEvent(t);
+            search.setTimer(probe, t.getTimeoutId());
+            delegator.doTrigger(st, timer);
+        } else {
+            logger.debug(compName + "Binding alive after " + search.getDelay(probe)
+                    + "ms tid: " + session.getTransactionId());
+            search.alive(probe);
+            checkBindingRound(session);
+        }
+    }
+
+    private void handleBindingProbeTimeout(Session session, EchoMsg.RequestTimeout event) {
+        if (!delegator.doCancelRetry(event.getTimeoutId())) {
+            return;
+        }
+        BindingTimeoutSearch search = session.getBindingTimeoutSearch();
+        int probe = search.removeMsg(event.getTimeoutId());
+        if (event.getRequestMsg().getTestType() == EchoMsg.Test.HEARTBEAT) {
+            logger.debug(compName + "Binding expired after " + search.getDelay(probe)
+                    + "ms tid: " + session.getTransactionId());
+            search.dead(probe);
+        } else {
+            // couldn't open the binding
+            search.failed(probe);
+        }
+        checkBindingRound(session);
+    }
+
+    Handler<BindingProbeTimer> handleBindingProbeTimer = new Handler<BindingProbeTimer>() {
+        @Override
+        public void handle(BindingProbeTimer event) {
+            Session session = sessionMap.get(event.getTransactionId());
+            if (session == null || session.getBindingTimeoutSearch() == null) {
+                return;
+            }
+            BindingTimeoutSearch search = session.getBindingTimeoutSearch();
+            int probe = event.getProbe();
+            if (!event.getTimeoutId().equals(search.getTimer(probe))) {
+                return;
+            }
+            search.setTimer(probe, null);
+            // The heartbeat is sent from our own port, so it doesn't refresh
+            // the probe's binding. The stun server sends the reply to the binding.
+            EchoMsg.Request hbRequest = new EchoMsg.Request(self.getAddress(),
+                    session.getServer1(), EchoMsg.Test.HEARTBEAT,
+                    session.getTransactionId(), search.getBinding(probe));
+            ScheduleRetryTimeout st
+                    = new ScheduleRetryTimeout(calculateRto(session.getServer1().getPeerAddress(), 0),
+                            config.getRtoRetries(), config.getRtoScale());
+            search.addMsg(delegator.doRetry(new EchoMsg.RequestTimeout(st, hbRequest)), probe);
+        }
+    };
+
+    private void checkBindingRound(Session session) {
+        BindingTimeoutSearch search = session.getBindingTimeoutSearch();
+        // probes that can't narrow the interval any more are stopped
+        for (int i = 0; i < search.getNumProbes(); i++) {
+            if (search.getTimer(i) != null && !search.isNeeded(i)) {
+                delegator.doTrigger(new CancelTimeout(search.getTimer(i)), timer);
+                search.setTimer(i, null);
+            }
+        }
+        if (!search.isRoundFinished()) {
+            return;
+        }
+        for (TimeoutId id : search.getMsgs()) {
+            delegator.doCancelRetry(id);
+        }
+        if (search.isFinished() || !search.isNarrowed()) {
+            finishBindingTimeoutSearch(session);
+        } else {
+            startBindingRound(session);
+        }
+    }
+
+    private void finishBindingTimeoutSearch(Session session) {
+        BindingTimeoutSearch search = session.getBindingTimeoutSearch();
+        deletePorts(search.getPorts());
+        long ruleTimeout = search.getBindingTimeout();
+        if (ruleTimeout > 0) {
+            // if the stun server stopped answering, the longest delay a
+            // binding was alive after is still a safe value
+            logger.debug(compName + "Binding timeout is between " + ruleTimeout + " and "
+                    + search.getUpperBound() + "ms, found in " + search.getRound() + " rounds");
+            session.setRuleLifeTime(ruleTimeout);
+            sendRuleTimoutValue(session.getTransactionId(), ruleTimeout);
+        } else {
+            logger.warn(compName + "Could not measure the binding timeout: " + search
+                    + " tid: " + session.getTransactionId());
+            removeSession(session.getTransactionId());
+        }
+    }
+
+    /**
+     * Removes a session. A fast TEST 1 session echoes from a port allocated
+     * for it, which is released.
+     */
+    private void removeSession(long transactionId) {
+        Session session = sessionMap.remove(transactionId);
+        if (session != null && session.getPrivateAddress().getPort() != self.getPort()) {
+            deletePorts(Collections.singleton(session.getPrivateAddress().getPort()));
+        }
+    }
+
+    private void deletePorts(Collection<Integer> ports) {
+        if (!ports.isEmpty()) {
+            delegator.doTrigger(new PortDeleteRequest(self.getId(), new HashSet<Integer>(ports)),
+                    natNetworkControl);
+        }
+    }
+
     private boolean determineAllocationPolicy(Session session) {
         // first check for the PP coz alternative policy is difficult to determine
         // not always possible if mapping is EI
@@ -596,6 +886,11 @@ public class StunClient extends MsgRetryComponent {
     }
 
     private void determineMappingAndAllocationPolicies(long transactionId) {
+        Session session = sessionMap.get(transactionId);
+        if (session.getMapAllocState() != MappingAllocState.NOT_STARTED) {
+            return;
+        }
+        session.setMapAllocState(MappingAllocState.STARTED);
         logger.debug(compName + "Sending PortAllocRequest for two new ports on client...");
         PortAllocRequest allocReq = new PortAllocRequest(self.getIp(),
                 self.getId(), 2, Transport.UDP);
@@ -677,7 +972,7 @@ public class StunClient extends MsgRetryComponent {
     public void sendRuleTimoutValue(long transactionId, long ruleTimeoutVal) {
         delegator.doTrigger(new GetNatTypeResponseRuleExpirationTime(ruleTimeoutVal), stunPort);
         logger.debug(compName + " Removing session: " + transactionId);
-        sessionMap.remove(transactionId);
+        removeSession(transactionId);
     }
 
     private void printMsgDetails(StunResponseMsg message) {
@@ -714,11 +1009,14 @@ public class StunClient extends MsgRetryComponent {
     }
 
     private void storeSample(Address serverAddress, long rtt) {
+        // Store the RTT as a DEFAULT_PORT sample, so that it can be used by ParentMaker
         if (rtt > 5000) { // set a max RTT to be 5 seconds
             rtt = 5 * 1000;
+            // not a measured RTT, so it is kept out of the percentiles
+            RTTStore.addPlaceholderSample(self.getId(), ToVodAddr.hpServer(serverAddress), rtt);
+        } else {
+            RTTStore.addSample(self.getId(), ToVodAddr.hpServer(serverAddress), rtt);
         }
-        // Store the RTT as a DEFAULT_PORT sample, so that it can be used by ParentMaker
-        RTTStore.addSample(self.getId(), ToVodAddr.hpServer(serverAddress), rtt);
         RoundTripTime pt = new RoundTripTime(rtt, serverAddress);
         echoRtts.put(serverAddress, pt);
 
@@ -729,12 +1027,24 @@ public class StunClient extends MsgRetryComponent {
             printMsgDetails(msg);
             long transactionId = msg.getTransactionId();
             Session session = sessionMap.get(transactionId);
+            if (isBindingProbeMsg(session, msg.getTimeoutId())) {
+                handleBindingProbeResponse(session, msg);
+                return;
+            }
             if (delegator.doCancelRetry(msg.getTimeoutId()) && session != null) {
                 logger.debug(compName + " EchoMsg.Response Recvd - timeoutId = "
                         + msg.getTimeoutId() + " tid: " + transactionId);
                 Address serverAddress = msg.getSource();
 
                 if (msg.getTestType() == EchoMsg.Test.UDP_BLOCKED) {
+                    if (fastClassification) {
+                        test1Outstanding--;
+                        if (!ongoing) {
+                            // the NAT type was already decided by the other servers
+                            removeSession(transactionId);
+                            return;
+                        }
+                    }
                     Long echoTs = echoTimestamps.get(serverAddress);
                     if (echoTs != null) {
                         logger.trace("RTT sample for " + serverAddress + " was {}/{}",
@@ -759,8 +1069,13 @@ public class StunClient extends MsgRetryComponent {
                     }
 
                     if (partners.isEmpty()) {
-                        manageHostFailure(session, serverAddress,
-                                GetNatTypeResponse.Status.SECOND_SERVER_FAILED);
+                        if (fastClassification) {
+                            manageFastTest1Failure(session, serverAddress,
+                                    GetNatTypeResponse.Status.SECOND_SERVER_FAILED);
+                        } else {
+                            manageHostFailure(session, serverAddress,
+                                    GetNatTypeResponse.Status.SECOND_SERVER_FAILED);
+                        }
                         return;
                     } else {
                         session.setPartnerServers(partners, bestRto);
@@ -826,6 +1141,10 @@ public class StunClient extends MsgRetryComponent {
                             + "to " + event.getRequestMsg().getDestination()
                             + " tid: " + transactionId);
 
+                    if (isBindingProbeMsg(sessionMap.get(transactionId), event.getTimeoutId())) {
+                        handleBindingProbeTimeout(sessionMap.get(transactionId), event);
+                        return;
+                    }
                     if (delegator.doCancelRetry(event.getTimeoutId())) {
                         Session session = sessionMap.get(transactionId);
                         EchoMsg.Test testType = event.getRequestMsg().getTestType();
@@ -834,7 +1153,13 @@ public class StunClient extends MsgRetryComponent {
                             VodAddress server = session.getServer1();
                             echoTimeoutedServers.add(server.getPeerAddress());
                             echoTimestamps.remove(server.getPeerAddress());
-                            manageHostFailure(session, server.getPeerAddress(), GetNatTypeResponse.Status.FIRST_SERVER_FAILED);
+                            if (fastClassification) {
+                                test1Outstanding--;
+                                manageFastTest1Failure(session, server.getPeerAddress(),
+                                        GetNatTypeResponse.Status.FIRST_SERVER_FAILED);
+                            } else {
+                                manageHostFailure(session, server.getPeerAddress(), GetNatTypeResponse.Status.FIRST_SERVER_FAILED);
+                            }
                         } else if (testType == EchoMsg.Test.PING) {
                             logger.debug(compName + "FAILED: EchoMsg.Test.PING response failed for Try-ID "
                                     + event.getRequestMsg().getTryId() + " tid: " + transactionId);
@@ -881,12 +1206,52 @@ public class StunClient extends MsgRetryComponent {
         if (status == GetNatTypeResponse.Status.FIRST_SERVER_FAILED
                 && initialServers.isEmpty() == false) {
             // try the next stun server from the list
-            startEcho();
+            startTest1();
         } else {
             sendResponse(session, status);
         }
     }
 
+    /**
+     * In fast mode, a server failing TEST 1 only ends the run if no other server
+     * has answered and none is still being waited on.
+     */
+    private void manageFastTest1Failure(Session session, Address server,
+            GetNatTypeResponse.Status status) {
+        if (test1Finished || test1Outstanding > 0) {
+            logger.debug(compName + " server " + server + " failed test 1 with "
+                    + status + ", waiting on other servers.");
+            failedHosts.add(server);
+            removeSession(session.getTransactionId());
+            return;
+        }
+        manageHostFailure(session, server, status);
+    }
+
+    /**
+     * Fast mode: the filtering policy is known, the EchoChangePort test isn't
+     * needed any more.
+     */
+    private void cancelChangePortTest(Session session) {
+        if (session.getChangePortTimeoutId() != null) {
+            delegator.doCancelRetry(session.getChangePortTimeoutId());
+            session.setChangePortTimeoutId(null);
+        }
+    }
+
+    private void finishFiltering(Session session, FilteringPolicy filteringPolicy) {
+        long transactionId = session.getTransactionId();
+        determineMappingAndAllocationPolicies(transactionId);
+        session.setFilteringPolicy(filteringPolicy);
+        session.setFinishedFilter(true);
+        if (session.isFinishedAllocation() && session.isFinishedMapping()) {
+            sendResponse(session, GetNatTypeResponse.Status.SUCCEED);
+        } else {
+            logger.debug(compName + "Filtering is " + filteringPolicy
+                    + ", mapping and allocation not finished yet. tid: " + transactionId);
+        }
+    }
+
     private void startTest2(EchoMsg.Response event) {
         long transactionId = event.getTransactionId();
         Session session = sessionMap.get(transactionId);
@@ -917,6 +1282,13 @@ public class StunClient extends MsgRetryComponent {
             sendEchoChangeIpAndPortRequest(session.getServer1(), session.getTransactionId());
         }
 
+        if (fastClassification) {
+            // The filtering tests and the mapping/allocation tests don't depend
+            // on each other, so run them all at the same time.
+            session.setChangePortTimeoutId(
+                    sendEchoChangePortRequest(session.getServer1(), transactionId));
+            determineMappingAndAllocationPolicies(transactionId);
+        }
     }
     Handler<EchoChangeIpAndPortMsg.Response> handleEchoChangeIpAndPortResponse
             = new Handler<EchoChangeIpAndPortMsg.Response>() {
@@ -929,6 +1301,7 @@ public class StunClient extends MsgRetryComponent {
                         long transactionId = event.getTransactionId();
                         Session session = sessionMap.get(transactionId);
                         VodAddress server1 = session.getServer1();
+                        cancelChangePortTest(session);
 
                         logger.debug(compName + "StunClient: EchoChangeIpandPort.ResponseMsg received. from " + event.getSource());
 
@@ -986,7 +1359,10 @@ public class StunClient extends MsgRetryComponent {
                             logger.error(compName + "Missing entry for " + transactionId + " . Entries are: "
                                     + sb.toString());
                         }
-                        sendEchoChangePortRequest(session.getServer1(), transactionId);
+                        session.setChangeIpTimedOut(true);
+                        if (!fastClassification) {
+                            sendEchoChangePortRequest(session.getServer1(), transactionId);
+                        }
 
                         // if the node is behind a firewall, we have to set its allocation policy.
                         // the EchoChangePortRequest will check its filtering policy
@@ -998,6 +1374,10 @@ public class StunClient extends MsgRetryComponent {
                             session.setFinishedMapping(true);
                             session.setMappingPolicy(MappingPolicy.ENDPOINT_INDEPENDENT);
                         }
+                        // fast mode: the EchoChangePort test may have finished first
+                        if (session.getChangePortResult() != null) {
+                            finishFiltering(session, session.getChangePortResult());
+                        }
                     } else {
                         logger.warn(compName + "Cancel retry EchoChangeIpAndPortMsg failed. Response should have been received."
                                 + " tid: " + event.getRequestMsg().getTransactionId());
@@ -1016,14 +1396,15 @@ public class StunClient extends MsgRetryComponent {
                     if (delegator.doCancelRetry(event.getTimeoutId())) {
 
                         long transactionId = event.getTransactionId();
-                        determineMappingAndAllocationPolicies(transactionId);
-
                         Session session = sessionMap.get(transactionId);
-                        session.setFilteringPolicy(FilteringPolicy.HOST_DEPENDENT);
-                        session.setFinishedFilter(true);
-                        if (session.isFinishedAllocation() && session.isFinishedMapping()) {
-                            sendResponse(session, GetNatTypeResponse.Status.SUCCEED);
+                        session.setChangePortTimeoutId(null);
+                        if (!session.isChangeIpTimedOut()) {
+                            // fast mode: filtering is still ENDPOINT_INDEPENDENT
+                            // if EchoChangeIpAndPort is answered
+                            session.setChangePortResult(FilteringPolicy.HOST_DEPENDENT);
+                            return;
                         }
+                        finishFiltering(session, FilteringPolicy.HOST_DEPENDENT);
                     } else {
                         logger.debug(compName + "Stun Client EchoChangePort Response. Cancel Retry FAILED"
                                 + " tid: " + event.getTransactionId());
@@ -1041,17 +1422,15 @@ public class StunClient extends MsgRetryComponent {
                     if (delegator.doCancelRetry(event.getTimeoutId())) {
                         logger.debug(compName + "EchoChangePortMsg.Request Cancelled Timeout "
                                 + " tid: " + transactionId);
-                        determineMappingAndAllocationPolicies(transactionId);
-
                         Session session = sessionMap.get(transactionId);
-                        session.setFilteringPolicy(FilteringPolicy.PORT_DEPENDENT);
-                        session.setFinishedFilter(true);
-                        if (session.isFinishedAllocation() && session.isFinishedMapping()) {
-                            sendResponse(session, GetNatTypeResponse.Status.SUCCEED);
-                        } else {
-                            logger.warn(compName + "EchoChangePort: Not finished all branches "
-                                    + " tid: " + transactionId);
+                        session.setChangePortTimeoutId(null);
+                        if (!session.isChangeIpTimedOut()) {
+                            // fast mode: filtering is still ENDPOINT_INDEPENDENT
+                            // if EchoChangeIpAndPort is answered
+                            session.setChangePortResult(FilteringPolicy.PORT_DEPENDENT);
+                            return;
                         }
+                        finishFiltering(session, FilteringPolicy.PORT_DEPENDENT);
                     }
 
                 }
@@ -1115,11 +1494,31 @@ public class StunClient extends MsgRetryComponent {
                 timeTaken), stunPort);
         ongoing = false;
 
+        // held back sessions will not run TEST 2 any more
+        for (Address server : test2HeldbackServers) {
+            Long heldBackTid = transactionMap.get(server);
+            if (heldBackTid != null && heldBackTid != tid) {
+                removeSession(heldBackTid);
+            }
+        }
+        test2HeldbackServers.clear();
+        test2HoldbackResponses.clear();
+
         if (session != null) {
-            if (session.isMeasureNatBindingTimeout()) {
+            session.setState(SessionState.FINISHED);
+            cancelChangePortTest(session);
+            // The binding timeout is measured after the NAT type is returned,
+            // the node doesn't wait for it to join.
+            if (session.isMeasureNatBindingTimeout() && config.getBindingTimeoutProbes() > 1) {
+                if (nat.getType() == Nat.Type.NAT) {
+                    startBindingTimeoutSearch(session);
+                } else {
+                    removeSession(session.getTransactionId());
+                }
+            } else if (session.isMeasureNatBindingTimeout()) {
                 startHeartBeatRequestTimer(session.getTransactionId());
             } else {
-                sessionMap.remove(session.getTransactionId());
+                removeSession(session.getTransactionId());
             }
         }
     }
@@ -1171,7 +1570,7 @@ public class StunClient extends MsgRetryComponent {
         }
         sendResponse(GetNatTypeResponse.Status.NO_UPNP);
         ongoing = true;
-        startEcho();
+        startTest1();
     }
     Handler<UpnpTimeout> handleUpnpTimeout = new Handler<UpnpTimeout>() {
         @Override
@@ -1260,7 +1659,7 @@ public class StunClient extends MsgRetryComponent {
 //                        sendUpnpMapPortsRequest(privatePublicPorts);
                     }
                 } else { // !upnpSupported, then start Stun protocol
-                    startEcho();
+                    startTest1();
                     delegator.doTrigger(new ShutdownUpnp(),
                             upnp.getPositive(UpnpPort.class));
                 }
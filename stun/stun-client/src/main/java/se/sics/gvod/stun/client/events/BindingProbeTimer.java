@@ -0,0 +1,30 @@
+package se.sics.gvod.stun.client.events;
+
+import se.sics.gvod.timer.ScheduleTimeout;
+import se.sics.gvod.timer.Timeout;
+
+/**
+ * The delay of a binding timeout probe is over, time to ask the stun server
+ * for a heartbeat to the probe's binding.
+ *
+ * @author jdowling
+ */
+public class BindingProbeTimer extends Timeout {
+
+    private final long transactionId;
+    private final int probe;
+
+    public BindingProbeTimer(ScheduleTimeout request, long transactionId, int probe) {
+        super(request);
+        this.transactionId = transactionId;
+        this.probe = probe;
+    }
+
+    public long getTransactionId() {
+        return transactionId;
+    }
+
+    public int getProbe() {
+        return probe;
+    }
+}
@@ -0,0 +1,17 @@
+package se.sics.gvod.stun.client.events;
+
+import se.sics.gvod.net.events.PortAllocRequest;
+import se.sics.gvod.net.events.PortAllocResponse;
+
+/**
+ * Ports for the probes that measure the NAT binding timeout. The key is the
+ * transaction id of the stun session.
+ *
+ * @author jdowling
+ */
+public class StunBindingPortAllocResponse extends PortAllocResponse
+{
+    public StunBindingPortAllocResponse(PortAllocRequest request, Object key) {
+        super(request,key);
+    }
+}
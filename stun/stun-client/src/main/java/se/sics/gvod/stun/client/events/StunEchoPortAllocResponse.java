@@ -0,0 +1,17 @@
+package se.sics.gvod.stun.client.events;
+
+import se.sics.gvod.net.events.PortAllocRequest;
+import se.sics.gvod.net.events.PortAllocResponse;
+
+/**
+ * Ports for the stun servers echoed in parallel in fast classification mode.
+ * The key is the list of stun servers, one port per server.
+ *
+ * @author jdowling
+ */
+public class StunEchoPortAllocResponse extends PortAllocResponse
+{
+    public StunEchoPortAllocResponse(PortAllocRequest request, Object key) {
+        super(request,key);
+    }
+}
@@ -0,0 +1,93 @@
+package se.sics.gvod.stun.client;
+
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jdowling
+ */
+public class BindingTimeoutSearchTest {
+
+    private static final int MAX_WAIT = 5 * 60 * 1000;
+    private static final int PRECISION = 10 * 1000;
+
+    /**
+     * Runs the search against a NAT whose bindings expire after
+     * bindingTimeout ms. The probes of a round finish in the order of their
+     * delays.
+     * @return total time waited for, i.e., the sum of the longest delay
+     * probed in each round.
+     */
+    private long measure(BindingTimeoutSearch search, long bindingTimeout) {
+        long waited = 0;
+        while (!search.isFinished()) {
+            search.nextRound();
+            long roundTime = 0;
+            for (int i = 0; i < search.getNumProbes() && !search.isRoundFinished(); i++) {
+                if (!search.isNeeded(i)) {
+                    continue;
+                }
+                roundTime = search.getDelay(i);
+                if (search.getDelay(i) <= bindingTimeout) {
+                    search.alive(i);
+                } else {
+                    search.dead(i);
+                }
+            }
+            assertTrue(search.isRoundFinished());
+            assertTrue(search.isNarrowed());
+            waited += roundTime;
+        }
+        return waited;
+    }
+
+    @Test
+    public void testConverges() {
+        long[] timeouts = {20 * 1000, 45 * 1000, 90 * 1000, 170 * 1000, 299 * 1000};
+        for (long t : timeouts) {
+            BindingTimeoutSearch search = new BindingTimeoutSearch(
+                    Arrays.asList(4001, 4002, 4003, 4004), MAX_WAIT, PRECISION);
+            long waited = measure(search, t);
+            assertTrue(search.getBindingTimeout() <= t);
+            assertTrue(search.getUpperBound() > t);
+            assertTrue(search.getUpperBound() - search.getBindingTimeout() <= PRECISION);
+            // (5 min / 10s) needs 3 rounds of 4 probes, 5 rounds of 1 probe
+            assertTrue(search.getRound() <= 3);
+            // a round waits for at most one probe step longer than the binding
+            // lives, where a sequential search waits 30s+40s+...+t
+            assertTrue("waited " + waited + " for " + t,
+                    waited <= search.getRound() * (t + MAX_WAIT / 5));
+        }
+    }
+
+    @Test
+    public void testRoundEndsAtFirstExpiredBinding() {
+        BindingTimeoutSearch search = new BindingTimeoutSearch(
+                Arrays.asList(4001, 4002, 4003, 4004), MAX_WAIT, PRECISION);
+        search.nextRound();
+        assertEquals(60 * 1000, search.getDelay(0));
+        assertEquals(240 * 1000, search.getDelay(3));
+        search.alive(0);
+        assertFalse(search.isNeeded(0));
+        assertFalse(search.isRoundFinished());
+        search.dead(1);
+        // the longer probes can't tell us anything more
+        assertFalse(search.isNeeded(2));
+        assertFalse(search.isNeeded(3));
+        assertTrue(search.isRoundFinished());
+        assertEquals(60 * 1000, search.getBindingTimeout());
+        assertEquals(120 * 1000, search.getUpperBound());
+
+        // nothing learnt in a round, e.g., the stun server has gone
+        search.nextRound();
+        for (int i = 0; i < search.getNumProbes(); i++) {
+            search.failed(i);
+        }
+        assertTrue(search.isRoundFinished());
+        assertFalse(search.isNarrowed());
+        assertFalse(search.isFinished());
+        assertEquals(60 * 1000, search.getBindingTimeout());
+    }
+}
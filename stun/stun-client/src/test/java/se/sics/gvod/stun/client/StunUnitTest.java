@@ -5,6 +5,7 @@
 package se.sics.gvod.stun.client;
 
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.Set;
 import org.junit.After;
@@ -14,11 +15,16 @@ import se.sics.gvod.address.Address;
 import se.sics.gvod.common.VodRetryComponentTestCase;
 import se.sics.gvod.config.StunClientConfiguration;
 import se.sics.gvod.net.Nat;
+import se.sics.gvod.net.VodAddress;
+import se.sics.gvod.net.events.PortAllocRequest;
+import se.sics.gvod.net.events.PortDeleteRequest;
 import se.sics.gvod.net.msgs.ScheduleRetryTimeout;
 import static se.sics.gvod.stun.client.StunClientTest.StunClientComponentTester.ruleLifeTime;
 import se.sics.gvod.stun.client.events.GetNatTypeRequest;
 import se.sics.gvod.stun.client.events.GetNatTypeResponse;
 import se.sics.gvod.stun.client.events.StunClientInit;
+import se.sics.gvod.stun.client.events.StunEchoPortAllocResponse;
+import se.sics.gvod.stun.client.events.StunPortAllocResponse;
 import se.sics.gvod.stun.msgs.EchoChangeIpAndPortMsg;
 import se.sics.gvod.stun.msgs.EchoChangePortMsg;
 import se.sics.gvod.stun.msgs.EchoMsg;
@@ -127,4 +133,152 @@ public class StunUnitTest extends VodRetryComponentTestCase {
         events = pollEvent(1);
         assertSequence(events, EchoChangePortMsg.Request.class);
     }
+
+    private StunClient fastStunClient() {
+        return new StunClient(this,
+                new StunClientInit(this,
+                        0,
+                        StunClientConfiguration.build().
+                        setRandTolerance(1).
+                        setRuleExpirationMinWait(ruleLifeTime).
+                        setRuleExpirationIncrement(ruleLifeTime).
+                        setUpnpEnable(false).
+                        setMinimumRtt(500).
+                        setRto(500).
+                        setRtoRetries(0).
+                        setFastClassification(true)));
+    }
+
+    private Set<Integer> ports(int... ports) {
+        Set<Integer> s = new LinkedHashSet<Integer>();
+        for (int p : ports) {
+            s.add(p);
+        }
+        return s;
+    }
+
+    @Test
+    public void testFastNatClient() {
+        StunClient fast = fastStunClient();
+        stunServers.add(pubAddrs.get(0).getPeerAddress());
+        fast.handleGetNatTypeRequest.handle(new GetNatTypeRequest(stunServers, 5000, false));
+        events = pollEvent(1);
+        assertSequence(events, EchoMsg.Request.class);
+        EchoMsg.Request req = (EchoMsg.Request) events.get(0);
+        long transId = req.getTransactionId();
+
+        Set<Address> partners = new HashSet<Address>();
+        partners.add(pubAddrs.get(1).getPeerAddress());
+        fast.handleEchoResponse.handle(new EchoMsg.Response(pubAddrs.get(0),
+                privAddrs.get(0), partners, 100, EchoMsg.Test.UDP_BLOCKED,
+                transId, req.getTimeoutId(), 3479));
+        // both filtering tests and the mapping/allocation tests start together
+        events = pollEvent(3);
+        assertSequence(events, EchoChangeIpAndPortMsg.Request.class,
+                EchoChangePortMsg.Request.class, PortAllocRequest.class);
+        EchoChangeIpAndPortMsg.Request ecip = (EchoChangeIpAndPortMsg.Request) events.get(0);
+        EchoChangePortMsg.Request ecp = (EchoChangePortMsg.Request) events.get(1);
+        PortAllocRequest allocReq = (PortAllocRequest) events.get(2);
+
+        // the change port answer comes first, but the filtering policy isn't
+        // known until the change ip and port test has timed out
+        fast.handleEchoChangePortResponse.handle(new EchoChangePortMsg.Response(
+                pubAddrs.get(0), getAddress(), transId, ecp.getTimeoutId()));
+        fast.handleEchoChangeIpAndPortTimeout.handle(
+                (EchoChangeIpAndPortMsg.RequestRetryTimeout) timeouts.get(ecip.getTimeoutId()));
+
+        StunPortAllocResponse allocResp = (StunPortAllocResponse) allocReq.getResponse();
+        allocResp.setAllocatedPorts(ports(30001, 30002));
+        fast.handlePortAllocResponse.handle(allocResp);
+        events = pollEvent(8);
+        for (KompicsEvent e : events) {
+            EchoMsg.Request ping = (EchoMsg.Request) e;
+            assert (ping.getTestType() == EchoMsg.Test.PING);
+            // endpoint independent mapping with port preservation
+            Address natAddr = new Address(pubAddrs.get(2).getIp(),
+                    ping.getSource().getPort(), getId());
+            fast.handleEchoResponse.handle(new EchoMsg.Response(ping.getVodDestination(),
+                    ping.getVodSource(), natAddr, partners, 100, EchoMsg.Test.PING,
+                    transId, ping.getTimeoutId(), 3479, ping.getTryId()));
+        }
+        events = pollEvent(1);
+        assertSequence(events, GetNatTypeResponse.class);
+        GetNatTypeResponse r = (GetNatTypeResponse) events.get(0);
+        assert (r.getStatus() == GetNatTypeResponse.Status.SUCCEED);
+        assert (r.getNat().getMappingPolicy() == Nat.MappingPolicy.ENDPOINT_INDEPENDENT);
+        assert (r.getNat().getAllocationPolicy() == Nat.AllocationPolicy.PORT_PRESERVATION);
+        assert (r.getNat().getFilteringPolicy() == Nat.FilteringPolicy.HOST_DEPENDENT);
+    }
+
+    @Test
+    public void testFastParallelEcho() {
+        StunClient fast = fastStunClient();
+        stunServers.add(pubAddrs.get(0).getPeerAddress());
+        stunServers.add(pubAddrs.get(1).getPeerAddress());
+        fast.handleGetNatTypeRequest.handle(new GetNatTypeRequest(stunServers, 5000, false));
+        events = pollEvent(2);
+        assertSequence(events, EchoMsg.Request.class, PortAllocRequest.class);
+        EchoMsg.Request first = (EchoMsg.Request) events.get(0);
+        assert (first.getSource().getPort() == getAddress().getPort());
+        StunEchoPortAllocResponse allocResp = (StunEchoPortAllocResponse)
+                ((PortAllocRequest) events.get(1)).getResponse();
+        allocResp.setAllocatedPorts(ports(30003));
+        fast.handleEchoPortAllocResponse.handle(allocResp);
+        events = pollEvent(1);
+        assertSequence(events, EchoMsg.Request.class);
+        EchoMsg.Request second = (EchoMsg.Request) events.get(0);
+        assert (second.getSource().getPort() == 30003);
+        assert (!second.getDestination().equals(first.getDestination()));
+
+        // one server failing doesn't end the run while another may answer
+        fast.handleEchoRequestTimeout.handle(
+                (EchoMsg.RequestTimeout) timeouts.get(first.getTimeoutId()));
+
+        Set<Address> partners = new HashSet<Address>();
+        partners.add(pubAddrs.get(2).getPeerAddress());
+        VodAddress natAddr = new VodAddress(new Address(pubAddrs.get(3).getIp(), 30003, getId()),
+                getAddress().getOverlayId());
+        fast.handleEchoResponse.handle(new EchoMsg.Response(second.getVodDestination(),
+                natAddr, partners, 100, EchoMsg.Test.UDP_BLOCKED,
+                second.getTransactionId(), second.getTimeoutId(), 3479));
+        events = pollEvent(3);
+        assertSequence(events, EchoChangeIpAndPortMsg.Request.class,
+                EchoChangePortMsg.Request.class, PortAllocRequest.class);
+        // the tests are run from the port that the server answered on
+        EchoChangeIpAndPortMsg.Request ecip = (EchoChangeIpAndPortMsg.Request) events.get(0);
+        assert (ecip.getSource().getPort() == 30003);
+    }
+
+    @Test
+    public void testFastEchoPortsReleased() {
+        StunClient fast = fastStunClient();
+        stunServers.add(pubAddrs.get(0).getPeerAddress());
+        stunServers.add(pubAddrs.get(1).getPeerAddress());
+        fast.handleGetNatTypeRequest.handle(new GetNatTypeRequest(stunServers, 5000, false));
+        events = pollEvent(2);
+        EchoMsg.Request first = (EchoMsg.Request) events.get(0);
+        StunEchoPortAllocResponse allocResp = (StunEchoPortAllocResponse)
+                ((PortAllocRequest) events.get(1)).getResponse();
+        // one port more than there are servers to echo from it
+        allocResp.setAllocatedPorts(ports(30003, 30004));
+        fast.handleEchoPortAllocResponse.handle(allocResp);
+        events = pollEvent(2);
+        assertSequence(events, EchoMsg.Request.class, PortDeleteRequest.class);
+        EchoMsg.Request second = (EchoMsg.Request) events.get(0);
+        assert (((PortDeleteRequest) events.get(1)).getPortsToDelete().equals(ports(30004)));
+
+        // both servers time out, the session that echoed from 30003 is dropped
+        fast.handleEchoRequestTimeout.handle(
+                (EchoMsg.RequestTimeout) timeouts.get(first.getTimeoutId()));
+        fast.handleEchoRequestTimeout.handle(
+                (EchoMsg.RequestTimeout) timeouts.get(second.getTimeoutId()));
+        boolean released = false;
+        for (KompicsEvent e : popEvents()) {
+            if (e instanceof PortDeleteRequest
+                    && ((PortDeleteRequest) e).getPortsToDelete().contains(30003)) {
+                released = true;
+            }
+        }
+        assert (released);
+    }
 }
@@ -96,6 +96,7 @@ public final class StunServer extends MsgRetryComponent {
                 s.getIp(), VodConfig.DEFAULT_STUN_PORT, s.getId(), s.getOverlayId());
         compName = "(" + self.getId() + ") ";
         config = init.getConfig();
+        enableResponseCache(VodConfig.RESPONSE_CACHE_SIZE, VodConfig.RESPONSE_CACHE_TTL);
 
         StringBuilder sb = new StringBuilder();
         sb.append(compName).append("Starting SunServer: ").append(self.getAddress()).append("\n");
@@ -164,6 +165,9 @@ public final class StunServer extends MsgRetryComponent {
         @Override
         public void handle(EchoMsg.Request msg) {
             printMsgDetails(msg);
+            if (replayResponse(msg)) {
+                return;
+            }
 
             // this server listens on both the ports i.e. Pa, and Pb.
             // if the echo is for Pa then reply using Pa, and if the echo is for
@@ -211,6 +215,9 @@ public final class StunServer extends MsgRetryComponent {
         @Override
         public void handle(EchoChangePortMsg.Request message) {
             printMsgDetails(message);
+            if (replayResponse(message)) {
+                return;
+            }
 
             // reply using the other port i.e. "VodConfig.DEFAULT_STUN_PORT_2"
             VodAddress changedAddress = ToVodAddr.stunServer2(self.getAddress().getPeerAddress());
@@ -237,6 +244,11 @@ public final class StunServer extends MsgRetryComponent {
         @Override
         public void handle(ServerHostChangeMsg.Request message) {
             printMsgDetails(message);
+            // only the response to the partner is replayed, not the
+            // EchoChangeIpAndPortMsg.Response sent to the client.
+            if (replayResponse(message)) {
+                return;
+            }
 
             // TODO - add this node to the RandomView or some list of previously seen nodes.
             Address clientPublicAddr = message.getClientPublicAddr();
@@ -21,6 +21,7 @@
 package se.sics.gvod.common;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import org.junit.After;
@@ -170,6 +171,23 @@ public abstract class VodRetryComponentTestCase extends VodComponentTestCase
         return null;
     }
 
+    @Override
+    public TimeoutId doHedge(RewriteableRetryTimeout timeout, List<Address> candidates,
+            long hedgeDelay) {
+        return doHedge(timeout, candidates, hedgeDelay, null);
+    }
+
+    /**
+     * Hedges are not timed in unit tests, only the msg to the first candidate
+     * is sent.
+     */
+    @Override
+    public TimeoutId doHedge(RewriteableRetryTimeout timeout, List<Address> candidates,
+            long hedgeDelay, Object request) {
+        timeout.getMsg().rewriteDestination(candidates.get(0));
+        return doRetry(timeout, request);
+    }
+
     @Override
     public boolean doCancelRetry(TimeoutId timeoutId) {
         return (timeouts.remove(timeoutId) != null);